@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The value of a key: one or more components, each a {@link String}, an {@link Integer} or a {@link Long}. Null
+ * components are turned into empty strings.
+ * <p>
+ * The canonical form of a key is the string representation of its components joined with {@link #SEPARATOR}. It is
+ * used as the id of the PE instance for the key. Keys with the same canonical form are equal, whatever the types of
+ * their components.
+ * <p>
+ * The hashes of a key are computed once, at construction, by walking the characters of its canonical form without
+ * building it:
+ * <ul>
+ * <li>{@link #hashCode()} is the hash code of the canonical form, so keys can be matched against PE instance ids,</li>
+ * <li>{@link #longHash()} is the hash of the canonical form computed by <code>DefaultHasher</code>, so keys are
+ * assigned to the same partitions as their canonical form.</li>
+ * </ul>
+ * The canonical form is only built when {@link #toString()} is called.
+ */
+public final class CompositeKey {
+
+    public static final char SEPARATOR = '^';
+
+    private static final long[] POWERS_OF_10 = new long[19];
+    static {
+        POWERS_OF_10[0] = 1;
+        for (int i = 1; i < POWERS_OF_10.length; i++) {
+            POWERS_OF_10[i] = POWERS_OF_10[i - 1] * 10;
+        }
+    }
+
+    private final Object[] components;
+    private final int hashCode;
+    private final long longHash;
+    private String canonicalForm;
+
+    private CompositeKey(Object[] components) {
+        this.components = components;
+        int h = 0;
+        long hash = 0;
+        int a = 63689;
+        final int b = 378551;
+        for (int i = 0; i < components.length; i++) {
+            if (i > 0) {
+                h = 31 * h + SEPARATOR;
+                hash = hash * a + SEPARATOR;
+                a = a * b;
+            }
+            Object component = components[i];
+            int length = length(component);
+            for (int j = 0; j < length; j++) {
+                char c = charAt(component, j);
+                h = 31 * h + c;
+                hash = hash * a + c;
+                a = a * b;
+            }
+        }
+        this.hashCode = h;
+        this.longHash = Math.abs(hash);
+    }
+
+    public static CompositeKey of(String component) {
+        return new CompositeKey(new Object[] { checkComponent(component) });
+    }
+
+    public static CompositeKey of(long component) {
+        return new CompositeKey(new Object[] { normalize(component) });
+    }
+
+    public static CompositeKey of(Object... components) {
+        Object[] copy = new Object[components.length];
+        for (int i = 0; i < components.length; i++) {
+            copy[i] = checkComponent(components[i]);
+        }
+        return new CompositeKey(copy);
+    }
+
+    /** Creates a key from the list of values returned by a {@link KeyFinder}. */
+    public static CompositeKey of(List<String> components) {
+        Object[] copy = new Object[components.size()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = checkComponent(components.get(i));
+        }
+        return new CompositeKey(copy);
+    }
+
+    private static Object checkComponent(Object component) {
+        if (component == null) {
+            // key finders may return null values, joined as empty strings like before composite keys
+            return "";
+        }
+        if (component instanceof String) {
+            return component;
+        }
+        if (component instanceof Long) {
+            return normalize((Long) component);
+        }
+        if (component instanceof Integer) {
+            return component;
+        }
+        throw new IllegalArgumentException("Unsupported key component: " + component.getClass().getName());
+    }
+
+    /* The magnitude of Long.MIN_VALUE has no long representation, keep its string form instead. */
+    private static Object normalize(long component) {
+        return component == Long.MIN_VALUE ? String.valueOf(component) : Long.valueOf(component);
+    }
+
+    private static int digits(long magnitude) {
+        int digits = 1;
+        while (digits < POWERS_OF_10.length && magnitude >= POWERS_OF_10[digits]) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int length(Object component) {
+        if (component instanceof String) {
+            return ((String) component).length();
+        }
+        long value = ((Number) component).longValue();
+        return value < 0 ? 1 + digits(-value) : digits(value);
+    }
+
+    private static char charAt(Object component, int index) {
+        if (component instanceof String) {
+            return ((String) component).charAt(index);
+        }
+        long value = ((Number) component).longValue();
+        if (value < 0) {
+            if (index == 0) {
+                return '-';
+            }
+            value = -value;
+            index--;
+        }
+        long digit = (value / POWERS_OF_10[digits(value) - 1 - index]) % 10;
+        return (char) ('0' + digit);
+    }
+
+    /**
+     * @return the number of components
+     */
+    public int size() {
+        return components.length;
+    }
+
+    /**
+     * @return the component at index: a {@link String}, an {@link Integer} or a {@link Long}
+     */
+    public Object get(int index) {
+        return components[index];
+    }
+
+    /**
+     * @return the hash of the canonical form, as computed by <code>DefaultHasher</code>
+     */
+    public long longHash() {
+        return longHash;
+    }
+
+    /**
+     * @return true if the canonical form of this key is the given string, compared without building the canonical form
+     */
+    public boolean contentEquals(String s) {
+        int position = 0;
+        for (int i = 0; i < components.length; i++) {
+            if (i > 0) {
+                if (position >= s.length() || s.charAt(position++) != SEPARATOR) {
+                    return false;
+                }
+            }
+            Object component = components[i];
+            int length = length(component);
+            if (position + length > s.length()) {
+                return false;
+            }
+            if (component instanceof String) {
+                if (!((String) component).regionMatches(0, s, position, length)) {
+                    return false;
+                }
+                position += length;
+            } else {
+                for (int j = 0; j < length; j++) {
+                    if (s.charAt(position++) != charAt(component, j)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return position == s.length();
+    }
+
+    /**
+     * @return the string representation of the components, as returned by a {@link KeyFinder}
+     */
+    public List<String> toList() {
+        List<String> list = new ArrayList<String>(components.length);
+        for (Object component : components) {
+            list.add(component.toString());
+        }
+        return list;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CompositeKey)) {
+            return false;
+        }
+        CompositeKey other = (CompositeKey) obj;
+        return hashCode == other.hashCode && longHash == other.longHash && contentEquals(other.toString());
+    }
+
+    /**
+     * @return the canonical form of the key
+     */
+    @Override
+    public String toString() {
+        String s = canonicalForm;
+        if (s == null) {
+            if (components.length == 1) {
+                s = components[0].toString();
+            } else {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < components.length; i++) {
+                    if (i > 0) {
+                        sb.append(SEPARATOR);
+                    }
+                    sb.append(components[i]);
+                }
+                s = sb.toString();
+            }
+            canonicalForm = s;
+        }
+        return s;
+    }
+}
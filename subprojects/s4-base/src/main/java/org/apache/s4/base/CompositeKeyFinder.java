@@ -0,0 +1,35 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+import java.util.List;
+
+/**
+ * A {@link KeyFinder} that returns the key of an event as a {@link CompositeKey}. The key is used directly for routing
+ * the event to a partition, a stream lane and a PE instance, without joining its components into a string.
+ */
+public abstract class CompositeKeyFinder<T extends Event> implements KeyFinder<T> {
+
+    public abstract CompositeKey getKey(T event);
+
+    @Override
+    public List<String> get(T event) {
+        return getKey(event).toList();
+    }
+}
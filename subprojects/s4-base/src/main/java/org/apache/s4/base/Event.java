@@ -29,7 +29,11 @@ import com.google.common.collect.Maps;
  * The base event class in S4. The base class supports generic key/value pairs which us useful for rapid prototyping and
  * for inter-application communication. For greater efficiency and type safety, extend this class to create custom event
  * types.
- * 
+ * <p>
+ * Events created with an {@link EventSchema} store the attributes defined by the schema in typed slots, without
+ * boxing primitive values, see {@link EventAttributes}. Use the typed accessors such as {@link #putLong(String, long)}
+ * and {@link #getLong(String)} to avoid boxing altogether. Attributes that are not defined by the schema are stored
+ * like those of events without a schema.
  * 
  */
 public class Event {
@@ -40,6 +44,7 @@ public class Event {
     private String streamName;
     private int appId;
     private Map<String, Data<?>> map;
+    private EventAttributes attributes;
 
     /** Default constructor sets time using system time. */
     public Event() {
@@ -53,6 +58,40 @@ public class Event {
         this.time = time;
     }
 
+    /** Creates an event with typed attribute storage for the attributes of the schema. Time is set using system time. */
+    public Event(EventSchema schema) {
+        this();
+        this.attributes = new EventAttributes(schema);
+    }
+
+    /** Creates an event with typed attribute storage for the attributes of the schema. */
+    public Event(long time, EventSchema schema) {
+        this(time);
+        this.attributes = new EventAttributes(schema);
+    }
+
+    /**
+     * @return the schema of the attributes, or null if the event has none
+     */
+    public EventSchema getSchema() {
+        return attributes == null ? null : attributes.getSchema();
+    }
+
+    /* The slot of key in the schema of the event, or -1. */
+    private int slot(String key) {
+        return attributes == null ? -1 : attributes.getSchema().slot(key);
+    }
+
+    /* The slot of key, checking that the schema defines it with the given primitive type. */
+    private int slot(String key, Class<?> primitiveType) {
+        int slot = slot(key);
+        if (slot >= 0 && attributes.getSchema().getType(slot) != primitiveType) {
+            throw new IllegalArgumentException("Attribute [" + key + "] is of type "
+                    + attributes.getSchema().getType(slot).getName() + ", not " + primitiveType.getName());
+        }
+        return slot;
+    }
+
     /**
      * @return the create time
      */
@@ -116,6 +155,16 @@ public class Event {
      */
     public <T> void put(String key, Class<T> type, T value) {
 
+        int slot = slot(key);
+        if (slot >= 0) {
+            if (!attributes.getSchema().accepts(slot, type)) {
+                throw new IllegalArgumentException("Attribute [" + key + "] is of type "
+                        + attributes.getSchema().getType(slot).getName() + ", not " + type.getName());
+            }
+            attributes.set(slot, value);
+            return;
+        }
+
         if (map == null) {
             map = Maps.newHashMap();
         }
@@ -132,6 +181,16 @@ public class Event {
     @SuppressWarnings("unchecked")
     public <T> T get(String key, Class<T> type) {
 
+        int slot = slot(key);
+        if (slot >= 0) {
+            if (!attributes.getSchema().accepts(slot, type)) {
+                logger.error("Trying to get a value of type {} for an attribute of type {}.", type, attributes
+                        .getSchema().getType(slot));
+                return null;
+            }
+            return (T) attributes.get(slot);
+        }
+
         Data<?> data = map.get(key);
 
         if (type != data.type) {
@@ -150,24 +209,101 @@ public class Event {
      */
     public String get(String key) {
 
+        int slot = slot(key);
+        if (slot >= 0) {
+            return String.valueOf(attributes.get(slot));
+        }
+
         Data<?> data = map.get(key);
 
         return String.valueOf(data.value);
     }
 
+    public void putLong(String key, long value) {
+        int slot = slot(key, long.class);
+        if (slot >= 0) {
+            attributes.setLong(slot, value);
+        } else {
+            put(key, Long.class, value);
+        }
+    }
+
+    public long getLong(String key) {
+        int slot = slot(key, long.class);
+        return slot >= 0 ? attributes.getLong(slot) : get(key, Long.class);
+    }
+
+    public void putInt(String key, int value) {
+        int slot = slot(key, int.class);
+        if (slot >= 0) {
+            attributes.setInt(slot, value);
+        } else {
+            put(key, Integer.class, value);
+        }
+    }
+
+    public int getInt(String key) {
+        int slot = slot(key, int.class);
+        return slot >= 0 ? attributes.getInt(slot) : get(key, Integer.class);
+    }
+
+    public void putDouble(String key, double value) {
+        int slot = slot(key, double.class);
+        if (slot >= 0) {
+            attributes.setDouble(slot, value);
+        } else {
+            put(key, Double.class, value);
+        }
+    }
+
+    public double getDouble(String key) {
+        int slot = slot(key, double.class);
+        return slot >= 0 ? attributes.getDouble(slot) : get(key, Double.class);
+    }
+
+    public void putBoolean(String key, boolean value) {
+        int slot = slot(key, boolean.class);
+        if (slot >= 0) {
+            attributes.setBoolean(slot, value);
+        } else {
+            put(key, Boolean.class, value);
+        }
+    }
+
+    public boolean getBoolean(String key) {
+        int slot = slot(key, boolean.class);
+        return slot >= 0 ? attributes.getBoolean(slot) : get(key, Boolean.class);
+    }
+
     public boolean hasAttributes() {
 
-        return map != null;
+        return map != null || attributes != null;
     }
 
     public boolean containsKey(String key) {
-        return map.containsKey(key);
+        int slot = slot(key);
+        if (slot >= 0) {
+            return attributes.isSet(slot);
+        }
+        return map != null && map.containsKey(key);
     }
 
     public Map<String, String> getAttributesAsMap() {
 
         Map<String, String> amap = Maps.newHashMap();
 
+        if (attributes != null) {
+            EventSchema schema = attributes.getSchema();
+            for (int slot = 0; slot < schema.size(); slot++) {
+                if (attributes.isSet(slot)) {
+                    amap.put(schema.getName(slot), String.valueOf(attributes.get(slot)));
+                }
+            }
+        }
+        if (map == null) {
+            return amap;
+        }
+
         for (Map.Entry<String, Data<?>> entry : map.entrySet()) {
             String key = entry.getKey();
             String value = String.valueOf(entry.getValue().value);
@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+/**
+ * The attribute values of an {@link Event} with an {@link EventSchema}. Values of primitive attributes are stored as
+ * raw bits in an array of longs, without boxing, and values of other attributes in an array of objects. A bit set
+ * records which attributes are set.
+ * <p>
+ * The <code>getXxx(int)</code> and <code>setXxx(int, xxx)</code> methods do not check the type of the slot. They are
+ * meant for serializers and code that resolved the slot through the schema.
+ */
+public final class EventAttributes {
+
+    private final EventSchema schema;
+    private final long[] primitives;
+    private final Object[] objects;
+    private final long[] present;
+
+    public EventAttributes(EventSchema schema) {
+        this.schema = schema;
+        this.primitives = new long[schema.primitiveCount()];
+        this.objects = new Object[schema.objectCount()];
+        this.present = new long[(schema.size() + 63) >>> 6];
+    }
+
+    public EventSchema getSchema() {
+        return schema;
+    }
+
+    public boolean isSet(int slot) {
+        return (present[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    private void markSet(int slot) {
+        present[slot >>> 6] |= 1L << slot;
+    }
+
+    /**
+     * @return the raw bits of a primitive attribute: the value of integral types, 0 or 1 for booleans, and the IEEE 754
+     *         bits for floating point types
+     */
+    public long getBits(int slot) {
+        return primitives[schema.storageIndex(slot)];
+    }
+
+    public void setBits(int slot, long bits) {
+        primitives[schema.storageIndex(slot)] = bits;
+        markSet(slot);
+    }
+
+    public Object getObject(int slot) {
+        return objects[schema.storageIndex(slot)];
+    }
+
+    public void setObject(int slot, Object value) {
+        objects[schema.storageIndex(slot)] = value;
+        markSet(slot);
+    }
+
+    public long getLong(int slot) {
+        return getBits(slot);
+    }
+
+    public void setLong(int slot, long value) {
+        setBits(slot, value);
+    }
+
+    public int getInt(int slot) {
+        return (int) getBits(slot);
+    }
+
+    public void setInt(int slot, int value) {
+        setBits(slot, value);
+    }
+
+    public double getDouble(int slot) {
+        return Double.longBitsToDouble(getBits(slot));
+    }
+
+    public void setDouble(int slot, double value) {
+        setBits(slot, Double.doubleToRawLongBits(value));
+    }
+
+    public boolean getBoolean(int slot) {
+        return getBits(slot) != 0;
+    }
+
+    public void setBoolean(int slot, boolean value) {
+        setBits(slot, value ? 1 : 0);
+    }
+
+    /**
+     * @return the value of the attribute, boxed if it is primitive, or null if it is not set
+     */
+    public Object get(int slot) {
+        if (!isSet(slot)) {
+            return null;
+        }
+        Class<?> type = schema.getType(slot);
+        if (!type.isPrimitive()) {
+            return getObject(slot);
+        }
+        long bits = getBits(slot);
+        if (type == long.class) {
+            return bits;
+        } else if (type == int.class) {
+            return (int) bits;
+        } else if (type == double.class) {
+            return Double.longBitsToDouble(bits);
+        } else if (type == boolean.class) {
+            return bits != 0;
+        } else if (type == float.class) {
+            return Float.intBitsToFloat((int) bits);
+        } else if (type == short.class) {
+            return (short) bits;
+        } else if (type == byte.class) {
+            return (byte) bits;
+        } else {
+            return (char) bits;
+        }
+    }
+
+    /**
+     * Sets the value of the attribute from an object of the slot type, or of its wrapper type for primitive slots.
+     */
+    public void set(int slot, Object value) {
+        Class<?> type = schema.getType(slot);
+        if (!type.isPrimitive()) {
+            setObject(slot, value);
+        } else if (type == double.class) {
+            setDouble(slot, (Double) value);
+        } else if (type == boolean.class) {
+            setBoolean(slot, (Boolean) value);
+        } else if (type == float.class) {
+            setBits(slot, Float.floatToRawIntBits((Float) value));
+        } else if (type == char.class) {
+            setBits(slot, (Character) value);
+        } else {
+            setBits(slot, ((Number) value).longValue());
+        }
+    }
+}
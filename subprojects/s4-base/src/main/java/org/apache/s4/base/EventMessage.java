@@ -18,6 +18,8 @@
 
 package org.apache.s4.base;
 
+import java.nio.ByteBuffer;
+
 /**
  * <p>
  * Encapsulates application-level events of type {@link Event}.
@@ -34,39 +36,133 @@ package org.apache.s4.base;
  */
 public class EventMessage {
 
-    private String appName;
+    private int appId;
+    private int streamId;
     private String streamName;
-    private byte[] serializedEvent;
+    private ByteBuffer serializedEvent;
 
     public EventMessage() {
     }
 
+    /**
+     * 
+     * @param appId
+     *            id of the application
+     * @param streamName
+     *            name of the stream
+     * @param serializedEvent
+     *            application-specific {@link Event} instance in serialized form
+     */
+    public EventMessage(int appId, String streamName, byte[] serializedEvent) {
+        this(appId, streamId(streamName), serializedEvent);
+        this.streamName = streamName;
+    }
+
+    /**
+     * Creates a message from routing information received from the network, where the stream is only identified by
+     * its id.
+     * 
+     * @param appId
+     *            id of the application
+     * @param streamId
+     *            id of the stream, see {@link #streamId(String)}
+     * @param serializedEvent
+     *            application-specific {@link Event} instance in serialized form
+     */
+    public EventMessage(int appId, int streamId, byte[] serializedEvent) {
+        this(appId, streamId, ByteBuffer.wrap(serializedEvent));
+    }
+
+    /**
+     * Creates a message from routing information received from the network, without copying the serialized event.
+     * 
+     * @param appId
+     *            id of the application
+     * @param streamId
+     *            id of the stream, see {@link #streamId(String)}
+     * @param serializedEvent
+     *            buffer whose remaining bytes hold the serialized {@link Event}. The buffer is shared, not copied, and
+     *            must not be modified afterwards.
+     */
+    public EventMessage(int appId, int streamId, ByteBuffer serializedEvent) {
+        this.appId = appId;
+        this.streamId = streamId;
+        this.serializedEvent = serializedEvent.slice();
+    }
+
     /**
      * 
      * @param appName
-     *            name of the application
+     *            id of the application, as a string
      * @param streamName
      *            name of the stream
      * @param serializedEvent
      *            application-specific {@link Event} instance in serialized form
+     * @deprecated use {@link #EventMessage(int, String, byte[])}
      */
+    @Deprecated
     public EventMessage(String appName, String streamName, byte[] serializedEvent) {
-        super();
-        this.appName = appName;
-        this.streamName = streamName;
-        this.serializedEvent = serializedEvent;
+        this(appName == null || appName.isEmpty() ? -1 : Integer.parseInt(appName), streamName, serializedEvent);
+    }
+
+    /**
+     * Stream names are not sent over the network. A stream is identified by this id, computed from its name, so that
+     * both ends agree on it without coordination.
+     * 
+     * @param streamName
+     *            name of the stream
+     * @return the id of the stream
+     */
+    public static int streamId(String streamName) {
+        return streamName == null ? 0 : streamName.hashCode();
+    }
+
+    public int getAppId() {
+        return appId;
     }
 
     public String getAppName() {
-        return appName;
+        return String.valueOf(appId);
+    }
+
+    public int getStreamId() {
+        return streamId;
     }
 
+    /**
+     * @return the name of the stream, or null if the message was received from the network.
+     */
     public String getStreamName() {
         return streamName;
     }
 
+    /**
+     * @return the serialized event. The array is copied when the message only holds a part of it, prefer
+     *         {@link #getSerializedEventBuffer()} for messages received from the network.
+     */
     public byte[] getSerializedEvent() {
-        return serializedEvent;
+        if (serializedEvent.hasArray() && serializedEvent.arrayOffset() == 0
+                && serializedEvent.remaining() == serializedEvent.array().length) {
+            return serializedEvent.array();
+        }
+        byte[] copy = new byte[serializedEvent.remaining()];
+        serializedEvent.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * @return a new buffer over the serialized event, positioned at its first byte. Reading from it does not affect
+     *         this message.
+     */
+    public ByteBuffer getSerializedEventBuffer() {
+        return serializedEvent.duplicate();
+    }
+
+    /**
+     * @return the size of the serialized event, in bytes
+     */
+    public int getSerializedEventLength() {
+        return serializedEvent.remaining();
     }
 
 }
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Primitives;
+
+/**
+ * The layout of the attributes of generic {@link Event}s: an ordered list of attribute names and types.
+ * <p>
+ * Each attribute is assigned a slot. Values of primitive attributes are stored unboxed, in an array of longs, and values
+ * of other attributes in an array of objects, see {@link EventAttributes}. Serializers write the slot values only, in
+ * slot order, and identify the schema by an id, so attribute names and types are not sent with each event.
+ * <p>
+ * Schemas are immutable and meant to be shared by all the events of a stream. Create them with a {@link Builder}:
+ * 
+ * <pre>
+ * EventSchema schema = new EventSchema.Builder().add(&quot;user&quot;, String.class).add(&quot;count&quot;, long.class).build();
+ * Event event = new Event(schema);
+ * event.putLong(&quot;count&quot;, 12);
+ * </pre>
+ */
+public final class EventSchema {
+
+    private final String[] names;
+    private final Class<?>[] types;
+    /* Index in the primitive or object array of the attribute values. */
+    private final int[] storageIndexes;
+    private final int primitiveCount;
+    private final Map<String, Integer> slots;
+
+    private EventSchema(List<String> names, List<Class<?>> types) {
+        this.names = names.toArray(new String[names.size()]);
+        this.types = types.toArray(new Class<?>[types.size()]);
+        this.storageIndexes = new int[this.names.length];
+        this.slots = Maps.newHashMapWithExpectedSize(this.names.length);
+        int primitives = 0;
+        int objects = 0;
+        for (int slot = 0; slot < this.names.length; slot++) {
+            storageIndexes[slot] = this.types[slot].isPrimitive() ? primitives++ : objects++;
+            slots.put(this.names[slot], slot);
+        }
+        this.primitiveCount = primitives;
+    }
+
+    /**
+     * @return the slot of the attribute, or -1 if the schema does not define it
+     */
+    public int slot(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * @return the number of attributes
+     */
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * @return the declared type of the attribute. Primitive attributes have a primitive type.
+     */
+    public Class<?> getType(int slot) {
+        return types[slot];
+    }
+
+    public boolean isPrimitive(int slot) {
+        return types[slot].isPrimitive();
+    }
+
+    /**
+     * @return true if values of the given type can be stored in the slot. Wrapper types are accepted for primitive
+     *         attributes.
+     */
+    public boolean accepts(int slot, Class<?> type) {
+        return Primitives.wrap(types[slot]) == Primitives.wrap(type);
+    }
+
+    int storageIndex(int slot) {
+        return storageIndexes[slot];
+    }
+
+    int primitiveCount() {
+        return primitiveCount;
+    }
+
+    int objectCount() {
+        return names.length - primitiveCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int slot = 0; slot < names.length; slot++) {
+            if (slot > 0) {
+                sb.append(", ");
+            }
+            sb.append(names[slot]).append(':').append(types[slot].getName());
+        }
+        return sb.append(']').toString();
+    }
+
+    public static class Builder {
+
+        private final List<String> names = new ArrayList<String>();
+        private final List<Class<?>> types = new ArrayList<Class<?>>();
+
+        /**
+         * Adds an attribute. Use a primitive type, such as <code>long.class</code>, to store values unboxed.
+         */
+        public Builder add(String name, Class<?> type) {
+            Preconditions.checkNotNull(name);
+            Preconditions.checkNotNull(type);
+            Preconditions.checkArgument(type != void.class, "Invalid type for attribute [%s]", name);
+            Preconditions.checkArgument(!names.contains(name), "Attribute [%s] is already defined", name);
+            names.add(name.intern());
+            types.add(type);
+            return this;
+        }
+
+        public EventSchema build() {
+            return new EventSchema(names, types);
+        }
+    }
+}
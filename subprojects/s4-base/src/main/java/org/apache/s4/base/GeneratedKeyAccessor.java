@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Base class of the key accessors generated by {@link KeyAccessorGenerator}. A subclass reads one field of an event
+ * and returns its value as a {@link CompositeKey}, without reflection.
+ */
+public abstract class GeneratedKeyAccessor {
+
+    /* weak, so that the accessors cached by event class do not keep the class loaded */
+    private final WeakReference<Class<?>> eventType;
+
+    /**
+     * @param eventType
+     *            class that declares the key field; the generated code reads the field by its offset, so it must only
+     *            be given instances of this class
+     */
+    protected GeneratedKeyAccessor(Class<?> eventType) {
+        this.eventType = new WeakReference<Class<?>>(eventType);
+    }
+
+    public final CompositeKey getKey(Object event) {
+        Class<?> type = eventType.get();
+        if (type == null || !type.isInstance(event)) {
+            throw new ClassCastException("Cannot read a key of [" + (type == null ? "unloaded class" : type.getName())
+                    + "] from " + (event == null ? "null" : "[" + event.getClass().getName() + "]") + ".");
+        }
+        return readKey(event);
+    }
+
+    /**
+     * Reads the key field of an event already known to be an instance of the declaring class.
+     */
+    protected abstract CompositeKey readKey(Object event);
+}
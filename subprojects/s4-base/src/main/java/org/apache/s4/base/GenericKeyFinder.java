@@ -19,13 +19,10 @@
 package org.apache.s4.base;
 
 import java.lang.reflect.Field;
-import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Lists;
-
 /**
  * Use introspection on the target Event to create the key finder. The search for the key is as follows:
  * 
@@ -36,46 +33,37 @@ import com.google.common.collect.Lists;
  * <li>Otherwise, fail.
  * </ul>
  * 
+ * Fields are read through an accessor class generated once per field, see {@link KeyAccessorGenerator}, so a key
+ * finder created from a key name costs about the same as a hand-written one.
  * 
  * @param <T>
  */
-public class GenericKeyFinder<T extends Event> implements KeyFinder<T> {
+public class GenericKeyFinder<T extends Event> extends CompositeKeyFinder<T> {
 
     private static final Logger logger = LoggerFactory.getLogger(GenericKeyFinder.class);
 
     final private String keyName;
     private Class<T> eventType;
-    private Field field;
+    private GeneratedKeyAccessor accessor;
 
     public GenericKeyFinder(String keyName, Class<T> eventType) throws SecurityException {
         this.keyName = keyName;
         this.eventType = eventType;
 
         logger.debug("Creating a generic key finder for key [{}] with event type [{}].", keyName, eventType.getName());
-        field = getField();
+        Field field = getField();
+        if (field != null) {
+            accessor = KeyAccessorGenerator.accessorFor(field);
+        }
     }
 
     @Override
-    public List<String> get(T event) {
-
-        List<String> list = Lists.newArrayList();
-
-        if (field != null) {
-
-            try {
-                list.add(String.valueOf(field.get(event)));
-            } catch (IllegalArgumentException e) {
-                logger.error("Unable to access field [{}] in event of type [{}].", field.getName(), eventType.getName());
-                throw e;
-            } catch (IllegalAccessException e) {
-                logger.error("Could not access field.", e);
-                return null;
-            }
+    public CompositeKey getKey(T event) {
 
-        } else {
-            list.add(event.get(keyName));
+        if (accessor != null) {
+            return accessor.getKey(event);
         }
-        return list;
+        return CompositeKey.of(event.get(keyName));
     }
 
     private Field getField() throws SecurityException {
@@ -87,7 +75,6 @@ public class GenericKeyFinder<T extends Event> implements KeyFinder<T> {
             f = eventType.getDeclaredField(keyName);
             logger.debug("Found field [{}] of type [{}].", f.getName(), f.getType());
 
-            f.setAccessible(true);
             return f;
         } catch (NoSuchFieldException e) {
 
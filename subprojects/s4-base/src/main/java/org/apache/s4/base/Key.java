@@ -29,6 +29,9 @@ import org.apache.commons.lang.StringUtils;
  * 
  * The application programmer provides the events and the corresponding finders. The framework will use it to key on
  * events.
+ * <p>
+ * Use {@link #getKey(Event)} to get the key as a {@link CompositeKey}. Finders that extend {@link CompositeKeyFinder}
+ * return it directly, the values of other finders are wrapped.
  */
 public class Key<T extends Event> {
 
@@ -44,7 +47,20 @@ public class Key<T extends Event> {
         return finder.get(event);
     }
 
+    @SuppressWarnings("unchecked")
+    public CompositeKey getKey(T event) {
+        if (finder instanceof CompositeKeyFinder) {
+            return ((CompositeKeyFinder<T>) finder).getKey(event);
+        }
+        return CompositeKey.of(finder.get(event));
+    }
+
+    @SuppressWarnings("unchecked")
     public String get(T event) {
+        if (finder instanceof CompositeKeyFinder && separator.length() == 1
+                && separator.charAt(0) == CompositeKey.SEPARATOR) {
+            return ((CompositeKeyFinder<T>) finder).getKey(event).toString();
+        }
         List<String> keys = getList(event);
 
         return StringUtils.join(keys, separator);
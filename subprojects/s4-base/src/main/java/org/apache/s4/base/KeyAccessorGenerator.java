@@ -0,0 +1,169 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.I2L;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.s4.base.util.GeneratedClasses;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Generates a {@link GeneratedKeyAccessor} subclass for a field of an event class. The generated code reads the field
+ * through its memory offset, without reflection, and builds the key from its value:
+ * <ul>
+ * <li>long, int, short and byte fields are read as primitives and used as numeric key components. The component itself
+ * is boxed by {@link CompositeKey#of(long)}, which only avoids an allocation for small values,
+ * <li>other fields are converted with <code>String.valueOf()</code>.
+ * </ul>
+ * Accessors are generated once per field and shared by all key finders on that field. They are cached by declaring
+ * class, with weak keys, and neither the generated classes nor the accessors strongly reference the event class, so the
+ * cache does not prevent unloading applications.
+ */
+public class KeyAccessorGenerator {
+
+    private static final String UNSAFE = GeneratedClasses.UNSAFE_TYPE;
+    private static final String BASE_CLASS = Type.getInternalName(GeneratedKeyAccessor.class);
+    private static final String COMPOSITE_KEY = Type.getInternalName(CompositeKey.class);
+
+    /* accessors of each event class, by field name */
+    private static final LoadingCache<Class<?>, ConcurrentMap<String, GeneratedKeyAccessor>> accessors = CacheBuilder
+            .newBuilder().weakKeys().build(new CacheLoader<Class<?>, ConcurrentMap<String, GeneratedKeyAccessor>>() {
+                @Override
+                public ConcurrentMap<String, GeneratedKeyAccessor> load(Class<?> eventType) {
+                    return new MapMaker().makeMap();
+                }
+            });
+
+    private KeyAccessorGenerator() {
+    }
+
+    /**
+     * @return the accessor for a non-static field, generated on first use
+     */
+    public static GeneratedKeyAccessor accessorFor(Field field) {
+        if (Modifier.isStatic(field.getModifiers())) {
+            throw new IllegalArgumentException("Cannot use static field [" + field.getName() + "] as a key.");
+        }
+        ConcurrentMap<String, GeneratedKeyAccessor> classAccessors;
+        try {
+            classAccessors = accessors.get(field.getDeclaringClass());
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Cannot create key accessor for field [" + field + "].", e.getCause());
+        }
+        GeneratedKeyAccessor accessor = classAccessors.get(field.getName());
+        if (accessor == null) {
+            try {
+                accessor = generate(field).getConstructor(Class.class).newInstance(field.getDeclaringClass());
+            } catch (Exception e) {
+                throw new RuntimeException("Cannot create key accessor for field [" + field + "].", e);
+            }
+            GeneratedKeyAccessor existing = classAccessors.putIfAbsent(field.getName(), accessor);
+            if (existing != null) {
+                accessor = existing;
+            }
+        }
+        return accessor;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Class<? extends GeneratedKeyAccessor> generate(Field field) {
+        String className = "org/apache/s4/base/generated/" + field.getDeclaringClass().getName().replace('.', '_')
+                + "_" + field.getName() + "KeyAccessor";
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, className, null, BASE_CLASS, null);
+
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "(Ljava/lang/Class;)V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitVarInsn(ALOAD, 1);
+        init.visitMethodInsn(INVOKESPECIAL, BASE_CLASS, "<init>", "(Ljava/lang/Class;)V");
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "readKey", "(Ljava/lang/Object;)L" + COMPOSITE_KEY + ";",
+                null, null);
+        mv.visitCode();
+        generateReadKey(mv, field, GeneratedClasses.fieldOffset(field));
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+
+        return (Class<? extends GeneratedKeyAccessor>) GeneratedClasses.define(
+                GeneratedKeyAccessor.class.getClassLoader(), className.replace('/', '.'), cw.toByteArray());
+    }
+
+    private static void generateReadKey(MethodVisitor mv, Field field, long offset) {
+        Class<?> type = field.getType();
+
+        // unsafe.getXxx(event, offset)
+        GeneratedClasses.loadUnsafe(mv);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitLdcInsn(Long.valueOf(offset));
+        if (!type.isPrimitive()) {
+            mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE, "getObject", "(Ljava/lang/Object;J)Ljava/lang/Object;");
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/String", "valueOf", "(Ljava/lang/Object;)Ljava/lang/String;");
+            mv.visitMethodInsn(INVOKESTATIC, COMPOSITE_KEY, "of", "(Ljava/lang/String;)L" + COMPOSITE_KEY + ";");
+            return;
+        }
+
+        String descriptor = Type.getDescriptor(type);
+        mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE, "get" + accessorSuffix(type), "(Ljava/lang/Object;J)" + descriptor);
+        if (type == long.class || type == int.class || type == short.class || type == byte.class) {
+            if (type != long.class) {
+                mv.visitInsn(I2L);
+            }
+            mv.visitMethodInsn(INVOKESTATIC, COMPOSITE_KEY, "of", "(J)L" + COMPOSITE_KEY + ";");
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, "java/lang/String", "valueOf", "(" + descriptor + ")Ljava/lang/String;");
+            mv.visitMethodInsn(INVOKESTATIC, COMPOSITE_KEY, "of", "(Ljava/lang/String;)L" + COMPOSITE_KEY + ";");
+        }
+    }
+
+    /* int -> Int, boolean -> Boolean, etc. */
+    private static String accessorSuffix(Class<?> primitiveType) {
+        String name = primitiveType.getName();
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
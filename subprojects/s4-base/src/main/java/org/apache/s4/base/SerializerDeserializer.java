@@ -18,12 +18,21 @@
 
 package org.apache.s4.base;
 
+import java.nio.ByteBuffer;
+
 /**
  * Defines serialization and deserialization methods used within the S4 platform, typically for events and PEs.
+ * <p>
+ * Implementations must be thread safe: the same instance is used from stream, communication and checkpointing threads.
  *
  */
 public interface SerializerDeserializer {
     public byte[] serialize(Object message);
 
     public Object deserialize(byte[] rawMessage);
+
+    /**
+     * Deserializes a message starting at the position of the buffer. The position is advanced past the message.
+     */
+    public Object deserialize(ByteBuffer buffer);
 }
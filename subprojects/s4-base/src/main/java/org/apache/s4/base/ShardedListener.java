@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+/**
+ * 
+ * A {@link Listener} that hands off the received byte arrays in several shards, each received by a single thread. All
+ * the messages of a sender connection go to the same shard, so that they are received in the order they were sent.
+ * 
+ */
+public interface ShardedListener extends Listener {
+
+    /**
+     * @return number of shards, at least 1
+     */
+    int getShardCount();
+
+    /**
+     * Perform blocking receive on a shard
+     * 
+     * @param shard
+     *            index of the shard, from 0 to {@link #getShardCount()} - 1
+     * @return <ul>
+     *         <li>byte[] message of the shard</li>
+     *         <li>null if the associated blocking thread is interrupted</li>
+     *         </ul>
+     */
+    byte[] recv(int shard);
+}
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Support for the classes that S4 generates at runtime: key accessors, serializers and state copiers.
+ * <p>
+ * Generated code reads and writes fields through <code>sun.misc.Unsafe</code> and their memory offsets, so that private
+ * and final fields of application classes can be used. The Unsafe instance is looked up reflectively and only named in
+ * generated bytecode, which keeps the compiler from warning about the proprietary API.
+ */
+public final class GeneratedClasses {
+
+    /** Internal name of the Unsafe class, for the <code>INVOKEVIRTUAL</code> instructions of generated code. */
+    public static final String UNSAFE_TYPE = "sun/misc/Unsafe";
+
+    /**
+     * The Unsafe instance. It is typed as an object so that no compiled class refers to the proprietary API; generated
+     * code loads it with {@link #loadUnsafe(MethodVisitor)}.
+     */
+    public static final Object UNSAFE;
+
+    private static final Method objectFieldOffset;
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName(UNSAFE_TYPE.replace('/', '.'));
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = field.get(null);
+            objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", Field.class);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private GeneratedClasses() {
+    }
+
+    /**
+     * @return the memory offset of a non-static field, to be used with the Unsafe accessors
+     */
+    public static long fieldOffset(Field field) {
+        try {
+            return (Long) objectFieldOffset.invoke(UNSAFE, field);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot get the offset of field [" + field + "].", e);
+        }
+    }
+
+    /**
+     * Emits the instructions that push the Unsafe instance on the operand stack.
+     */
+    public static void loadUnsafe(MethodVisitor mv) {
+        mv.visitFieldInsn(Opcodes.GETSTATIC, GeneratedClasses.class.getName().replace('.', '/'), "UNSAFE",
+                "Ljava/lang/Object;");
+        mv.visitTypeInsn(Opcodes.CHECKCAST, UNSAFE_TYPE);
+    }
+
+    /**
+     * Defines a generated class in a new classloader, so that it can be unloaded with its users.
+     * 
+     * @param parent
+     *            classloader that resolves the classes the generated class refers to
+     * @param name
+     *            binary name of the class
+     * @param bytes
+     *            class file
+     */
+    public static Class<?> define(ClassLoader parent, String name, byte[] bytes) {
+        return new DefiningClassLoader(parent).define(name, bytes);
+    }
+
+    private static class DefiningClassLoader extends ClassLoader {
+
+        DefiningClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free ring buffer for handing off elements between threads. Any number of producers and consumers may
+ * use it concurrently.
+ * <p>
+ * Each slot carries a sequence number that tells whether it is ready to be written or to be read, so producers and
+ * consumers only contend on their own counter.
+ * <p>
+ * {@link #put(Object)} applies the {@link OverflowPolicy} when the buffer is full:
+ * <ul>
+ * <li>{@link OverflowPolicy#BLOCK}: wait until there is room</li>
+ * <li>{@link OverflowPolicy#DROP_OLDEST}: discard the oldest elements to make room</li>
+ * <li>{@link OverflowPolicy#DROP_NEWEST}: discard the new element</li>
+ * </ul>
+ * Waiting threads spin briefly, then yield, then park for increasing periods. After about 13ms without progress, they
+ * block until an element is added or removed. Producers and consumers only take a lock to wake such blocked threads up.
+ * <p>
+ * Subclasses can override {@link #onDrop(Object)} to release resources attached to discarded elements.
+ *
+ * @param <T>
+ *            type of the elements
+ */
+public class RingBuffer<T> {
+
+    public enum OverflowPolicy {
+        BLOCK, DROP_OLDEST, DROP_NEWEST
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    /* Parks last from MIN_PARK_NANOS, doubling at each try. */
+    private static final int PARK_TRIES = 8;
+    private static final long MIN_PARK_NANOS = 50000L;
+    /* Blocked threads also check the buffer after this delay, in case a wake up was missed. */
+    private static final long MAX_BLOCK_MILLIS = 100L;
+
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Object blockLock = new Object();
+    private final AtomicInteger blocked = new AtomicInteger();
+
+    /**
+     * @param capacity
+     *            minimum number of elements the buffer can hold, rounded up to the next power of 2, and at least 2
+     * @param overflowPolicy
+     *            what {@link #put(Object)} does when the buffer is full
+     */
+    public RingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid ring buffer capacity: " + capacity);
+        }
+        if (overflowPolicy == null) {
+            throw new NullPointerException("overflowPolicy");
+        }
+        // with a single slot, the sequence of a written slot would also mark it as writable
+        int size = Math.max(2, Integer.highestOneBit(capacity));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<T>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Adds an element if there is room, without waiting.
+     *
+     * @return false if the buffer is full
+     */
+    public boolean offer(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    // publish: the slot can now be read at this position
+                    sequences.lazySet(index, position + 1);
+                    wakeBlocked();
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+            position = tail.get();
+        }
+    }
+
+    /**
+     * Removes the oldest element, without waiting.
+     *
+     * @return the oldest element, or null if the buffer is empty
+     */
+    public T poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    T element = elements.get(index);
+                    elements.lazySet(index, null);
+                    // release: the slot can be written for the next lap
+                    sequences.lazySet(index, position + mask + 1);
+                    wakeBlocked();
+                    return element;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+            position = head.get();
+        }
+    }
+
+    /**
+     * Adds an element, applying the overflow policy if the buffer is full.
+     *
+     * @return false if the element was dropped
+     * @throws InterruptedException
+     *             if interrupted while waiting for room with the {@link OverflowPolicy#BLOCK} policy
+     */
+    public boolean put(T element) throws InterruptedException {
+        if (offer(element)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+        case DROP_NEWEST:
+            dropped.incrementAndGet();
+            onDrop(element);
+            return false;
+        case DROP_OLDEST:
+            do {
+                T oldest = poll();
+                if (oldest != null) {
+                    dropped.incrementAndGet();
+                    onDrop(oldest);
+                }
+            } while (!offer(element));
+            return true;
+        default:
+            int tries = 0;
+            while (!offer(element)) {
+                tries = idle(tries, false);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Removes the oldest element, waiting for one if the buffer is empty.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        int tries = 0;
+        T element;
+        while ((element = poll()) == null) {
+            tries = idle(tries, true);
+        }
+        return element;
+    }
+
+    /**
+     * Called by {@link #put(Object)} for each element discarded by the overflow policy. Does nothing by default.
+     */
+    protected void onDrop(T element) {
+    }
+
+    private int idle(int tries, boolean forElement) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (tries < SPIN_TRIES) {
+            // busy spin
+        } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        } else if (tries < SPIN_TRIES + YIELD_TRIES + PARK_TRIES) {
+            LockSupport.parkNanos(MIN_PARK_NANOS << (tries - SPIN_TRIES - YIELD_TRIES));
+        } else {
+            block(forElement);
+            return tries;
+        }
+        return tries + 1;
+    }
+
+    /* Waits for an element to be added, or removed if forElement is false. */
+    private void block(boolean forElement) throws InterruptedException {
+        synchronized (blockLock) {
+            blocked.incrementAndGet();
+            try {
+                // checked after registering: either this sees the progress, or the producer or consumer sees the count
+                long size = tail.get() - head.get();
+                if (forElement ? size <= 0 : size > mask) {
+                    blockLock.wait(MAX_BLOCK_MILLIS);
+                }
+            } finally {
+                blocked.decrementAndGet();
+            }
+        }
+    }
+
+    private void wakeBlocked() {
+        if (blocked.get() > 0) {
+            synchronized (blockLock) {
+                blockLock.notifyAll();
+            }
+        }
+    }
+
+    /* Number of threads blocked in put() or take(), for tests. */
+    int getBlockedCount() {
+        return blocked.get();
+    }
+
+    /**
+     * @return approximate number of elements in the buffer
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return number of elements discarded by {@link #put(Object)} so far
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
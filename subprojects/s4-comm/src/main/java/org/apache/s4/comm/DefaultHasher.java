@@ -18,13 +18,14 @@
 
 package org.apache.s4.comm;
 
-import org.apache.s4.base.Hasher;
+import org.apache.s4.base.CompositeKey;
+import org.apache.s4.base.CompositeKeyHasher;
 
 /**
  * Simple hasher implementation.
  *
  */
-public class DefaultHasher implements Hasher {
+public class DefaultHasher implements CompositeKeyHasher {
 
     @Override
     public long hash(String hashKey) {
@@ -40,4 +41,12 @@ public class DefaultHasher implements Hasher {
         return Math.abs(hash);
     }
 
+    /**
+     * Composite keys compute the same hash once, at construction.
+     */
+    @Override
+    public long hash(CompositeKey key) {
+        return key.longHash();
+    }
+
 }
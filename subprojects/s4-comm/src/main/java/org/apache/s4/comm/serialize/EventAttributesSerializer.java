@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.serialize;
+
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.s4.base.EventAttributes;
+import org.apache.s4.base.EventSchema;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.SerializationException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.serialize.IntSerializer;
+import com.esotericsoftware.kryo.serialize.LongSerializer;
+import com.esotericsoftware.kryo.serialize.StringSerializer;
+import com.google.common.collect.Maps;
+
+/**
+ * Serializes {@link EventAttributes} as the id of their schema followed by the values of the set attributes, in slot
+ * order:
+ * <ul>
+ * <li>integral types and chars are written as variable length integers,
+ * <li>floating point types and booleans are written with their natural size,
+ * <li>references are written through Kryo, with their class unless the declared type is final.
+ * </ul>
+ * Schemas registered with {@link KryoSerDeser#registerSchema(EventSchema, int)} are identified by their id. The names
+ * and types of the attributes of other schemas are written with each event, prefixed by their encoded length. Both
+ * ends cache up to {@link #MAX_CACHED_SCHEMAS} of these schemas: the writer by schema, the reader by encoded form, so
+ * that the schema of each event is not decoded again.
+ */
+class EventAttributesSerializer extends Serializer {
+
+    private static final Class<?>[] PRIMITIVE_TYPES = new Class<?>[] { null, long.class, int.class, short.class,
+            byte.class, char.class, boolean.class, double.class, float.class };
+
+    static final int MAX_CACHED_SCHEMAS = 1024;
+
+    private final Kryo kryo;
+    private final Map<EventSchema, Integer> schemaIds;
+    private final Map<Integer, EventSchema> schemasById;
+
+    /* Serializers are owned by the Kryo instance of a single thread, these caches are not shared. */
+    private final Map<EventSchema, byte[]> encodedSchemas = new IdentityHashMap<EventSchema, byte[]>();
+    private final Map<ByteBuffer, EventSchema> decodedSchemas = Maps.newHashMap();
+
+    EventAttributesSerializer(Kryo kryo, Map<EventSchema, Integer> schemaIds, Map<Integer, EventSchema> schemasById) {
+        this.kryo = kryo;
+        this.schemaIds = schemaIds;
+        this.schemasById = schemasById;
+    }
+
+    @Override
+    public void writeObjectData(ByteBuffer buffer, Object object) {
+        EventAttributes attributes = (EventAttributes) object;
+        EventSchema schema = attributes.getSchema();
+
+        Integer id = schemaIds.get(schema);
+        if (id != null) {
+            IntSerializer.put(buffer, id + 1, true);
+        } else {
+            IntSerializer.put(buffer, 0, true);
+            writeSchema(buffer, schema);
+        }
+
+        for (int word = 0; word < schema.size(); word += 64) {
+            long bits = 0;
+            for (int slot = word; slot < Math.min(word + 64, schema.size()); slot++) {
+                if (attributes.isSet(slot)) {
+                    bits |= 1L << slot;
+                }
+            }
+            LongSerializer.put(buffer, bits, true);
+        }
+
+        for (int slot = 0; slot < schema.size(); slot++) {
+            if (!attributes.isSet(slot)) {
+                continue;
+            }
+            Class<?> type = schema.getType(slot);
+            if (!type.isPrimitive()) {
+                if (Modifier.isFinal(type.getModifiers())) {
+                    kryo.writeObject(buffer, attributes.getObject(slot));
+                } else {
+                    kryo.writeClassAndObject(buffer, attributes.getObject(slot));
+                }
+            } else if (type == double.class) {
+                buffer.putDouble(attributes.getDouble(slot));
+            } else if (type == float.class) {
+                buffer.putInt((int) attributes.getBits(slot));
+            } else if (type == boolean.class) {
+                buffer.put(attributes.getBoolean(slot) ? (byte) 1 : (byte) 0);
+            } else {
+                LongSerializer.put(buffer, attributes.getBits(slot), false);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T readObjectData(ByteBuffer buffer, Class<T> type) {
+        int id = IntSerializer.get(buffer, true);
+        EventSchema schema;
+        if (id == 0) {
+            schema = readSchema(buffer);
+        } else {
+            schema = schemasById.get(id - 1);
+            if (schema == null) {
+                throw new SerializationException("No event schema registered with id " + (id - 1));
+            }
+        }
+
+        EventAttributes attributes = new EventAttributes(schema);
+        long[] present = new long[(schema.size() + 63) >>> 6];
+        for (int i = 0; i < present.length; i++) {
+            present[i] = LongSerializer.get(buffer, true);
+        }
+
+        for (int slot = 0; slot < schema.size(); slot++) {
+            if ((present[slot >>> 6] & (1L << slot)) == 0) {
+                continue;
+            }
+            Class<?> slotType = schema.getType(slot);
+            if (!slotType.isPrimitive()) {
+                if (Modifier.isFinal(slotType.getModifiers())) {
+                    attributes.setObject(slot, kryo.readObject(buffer, slotType));
+                } else {
+                    attributes.setObject(slot, kryo.readClassAndObject(buffer));
+                }
+            } else if (slotType == double.class) {
+                attributes.setDouble(slot, buffer.getDouble());
+            } else if (slotType == float.class) {
+                attributes.setBits(slot, buffer.getInt());
+            } else if (slotType == boolean.class) {
+                attributes.setBoolean(slot, buffer.get() != 0);
+            } else {
+                attributes.setBits(slot, LongSerializer.get(buffer, false));
+            }
+        }
+        return (T) attributes;
+    }
+
+    private void writeSchema(ByteBuffer buffer, EventSchema schema) {
+        byte[] encoded = encodedSchemas.get(schema);
+        if (encoded != null) {
+            buffer.putInt(encoded.length);
+            buffer.put(encoded);
+            return;
+        }
+
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        int start = buffer.position();
+        encodeSchema(buffer, schema);
+        int length = buffer.position() - start;
+        buffer.putInt(lengthPosition, length);
+
+        if (encodedSchemas.size() < MAX_CACHED_SCHEMAS) {
+            encoded = new byte[length];
+            ByteBuffer copy = buffer.duplicate();
+            copy.position(start);
+            copy.get(encoded);
+            encodedSchemas.put(schema, encoded);
+        }
+    }
+
+    private void encodeSchema(ByteBuffer buffer, EventSchema schema) {
+        IntSerializer.put(buffer, schema.size(), true);
+        for (int slot = 0; slot < schema.size(); slot++) {
+            StringSerializer.put(buffer, schema.getName(slot));
+            Class<?> type = schema.getType(slot);
+            if (type.isPrimitive()) {
+                buffer.put((byte) primitiveCode(type));
+            } else {
+                buffer.put((byte) 0);
+                kryo.writeClass(buffer, type);
+            }
+        }
+    }
+
+    private EventSchema readSchema(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new SerializationException("Invalid event schema length: " + length);
+        }
+        int end = buffer.position() + length;
+
+        ByteBuffer encoded = buffer.slice();
+        encoded.limit(length);
+        EventSchema schema = decodedSchemas.get(encoded);
+        if (schema == null) {
+            schema = decodeSchema(buffer);
+            if (buffer.position() != end) {
+                throw new SerializationException("Event schema of " + length + " bytes was decoded from "
+                        + (buffer.position() + length - end) + " bytes");
+            }
+            if (decodedSchemas.size() < MAX_CACHED_SCHEMAS) {
+                byte[] key = new byte[length];
+                encoded.get(key);
+                decodedSchemas.put(ByteBuffer.wrap(key), schema);
+            }
+        }
+        buffer.position(end);
+        return schema;
+    }
+
+    private EventSchema decodeSchema(ByteBuffer buffer) {
+        EventSchema.Builder builder = new EventSchema.Builder();
+        int size = IntSerializer.get(buffer, true);
+        for (int slot = 0; slot < size; slot++) {
+            String name = StringSerializer.get(buffer);
+            int code = buffer.get();
+            builder.add(name, code == 0 ? kryo.readClass(buffer).getType() : PRIMITIVE_TYPES[code]);
+        }
+        return builder.build();
+    }
+
+    private static int primitiveCode(Class<?> type) {
+        for (int code = 1; code < PRIMITIVE_TYPES.length; code++) {
+            if (PRIMITIVE_TYPES[code] == type) {
+                return code;
+            }
+        }
+        throw new IllegalArgumentException("Not a primitive type: " + type);
+    }
+}
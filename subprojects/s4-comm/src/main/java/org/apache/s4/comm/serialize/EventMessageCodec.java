@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.serialize;
+
+import java.nio.ByteBuffer;
+
+import org.apache.s4.base.EventMessage;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Wire format of {@link EventMessage} instances. The serialized event is not serialized again: it is written after a
+ * fixed size header.
+ * 
+ * <pre>
+ * +-------------+----------------+---------------------+--------------------+
+ * | appId (int) | streamId (int) | payload length (int)| payload            |
+ * +-------------+----------------+---------------------+--------------------+
+ * </pre>
+ * 
+ * The stream id is computed from the stream name with {@link EventMessage#streamId(String)}.
+ */
+public final class EventMessageCodec {
+
+    public static final int HEADER_LENGTH = 12;
+
+    private EventMessageCodec() {
+    }
+
+    /**
+     * @return the number of bytes needed to encode the message
+     */
+    public static int encodedLength(EventMessage message) {
+        return HEADER_LENGTH + message.getSerializedEventLength();
+    }
+
+    /**
+     * Encodes a message into a new Netty buffer.
+     */
+    public static ChannelBuffer encode(EventMessage message) {
+        ChannelBuffer buffer = ChannelBuffers.buffer(encodedLength(message));
+        encode(message, buffer);
+        return buffer;
+    }
+
+    /**
+     * Appends the encoded message to a Netty buffer.
+     */
+    public static void encode(EventMessage message, ChannelBuffer buffer) {
+        buffer.writeInt(message.getAppId());
+        buffer.writeInt(message.getStreamId());
+        buffer.writeInt(message.getSerializedEventLength());
+        buffer.writeBytes(message.getSerializedEventBuffer());
+    }
+
+    /**
+     * Encodes a message into a new byte array.
+     */
+    public static byte[] encodeToArray(EventMessage message) {
+        int payloadLength = message.getSerializedEventLength();
+        byte[] frame = new byte[HEADER_LENGTH + payloadLength];
+        ByteBuffer.wrap(frame).putInt(message.getAppId()).putInt(message.getStreamId()).putInt(payloadLength)
+                .put(message.getSerializedEventBuffer());
+        return frame;
+    }
+
+    /**
+     * Decodes a message received from the network. The returned message only knows the id of its stream, and its
+     * serialized event is a slice of the frame: the frame must not be modified afterwards.
+     * 
+     * @throws IllegalArgumentException
+     *             if the frame is not a valid encoded message
+     */
+    public static EventMessage decode(byte[] frame) {
+        if (frame.length < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Frame too short for an event message: " + frame.length + " bytes");
+        }
+        ByteBuffer header = ByteBuffer.wrap(frame, 0, HEADER_LENGTH);
+        int appId = header.getInt();
+        int streamId = header.getInt();
+        int payloadLength = header.getInt();
+        if (payloadLength < 0 || payloadLength > frame.length - HEADER_LENGTH) {
+            throw new IllegalArgumentException("Invalid payload length [" + payloadLength + "] in frame of "
+                    + frame.length + " bytes");
+        }
+        return new EventMessage(appId, streamId, ByteBuffer.wrap(frame, HEADER_LENGTH, payloadLength));
+    }
+}
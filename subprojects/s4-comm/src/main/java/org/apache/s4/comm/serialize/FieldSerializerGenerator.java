@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.serialize;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.POP2;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.s4.base.util.GeneratedClasses;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.serialize.IntSerializer;
+import com.esotericsoftware.kryo.serialize.LongSerializer;
+
+/**
+ * Generates a {@link GeneratedSerializer} subclass for a given class. The generated code reads and writes every
+ * non-static, non-transient field of the class hierarchy in a fixed order:
+ * <ul>
+ * <li>int and long fields are written as variable length integers,
+ * <li>other primitive fields are written with their natural size,
+ * <li>references are written through Kryo, with their class.
+ * </ul>
+ * Fields are accessed through their memory offsets, so the class doesn't need to expose them.
+ * <p>
+ * The target class must have a no-arg constructor.
+ */
+public class FieldSerializerGenerator {
+
+    private static final String UNSAFE = GeneratedClasses.UNSAFE_TYPE;
+    private static final String BYTE_BUFFER = Type.getInternalName(ByteBuffer.class);
+    private static final String BASE_CLASS = Type.getInternalName(GeneratedSerializer.class);
+    private static final String KRYO = Type.getInternalName(Kryo.class);
+    private static final String FIELDS_METHOD_DESC = "(Ljava/nio/ByteBuffer;Ljava/lang/Object;)V";
+
+    private final Class<?> targetClass;
+
+    public FieldSerializerGenerator(Class<?> targetClass) {
+        this.targetClass = targetClass;
+    }
+
+    /**
+     * @return the serialized fields, superclass fields first, sorted by name within a class.
+     */
+    static List<Field> serializedFields(Class<?> type) {
+        List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.add(c);
+        }
+        Collections.reverse(hierarchy);
+
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> c : hierarchy) {
+            Field[] declaredFields = c.getDeclaredFields();
+            Arrays.sort(declaredFields, new Comparator<Field>() {
+                @Override
+                public int compare(Field f1, Field f2) {
+                    return f1.getName().compareTo(f2.getName());
+                }
+            });
+            for (Field field : declaredFields) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @return the generated serializer class, with a public constructor taking a {@link Kryo} instance.
+     */
+    @SuppressWarnings("unchecked")
+    public Class<? extends GeneratedSerializer> generate() {
+        String className = "org/apache/s4/comm/serialize/generated/" + targetClass.getName().replace('.', '_')
+                + "Serializer";
+        List<Field> fields = serializedFields(targetClass);
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, className, null, BASE_CLASS, null);
+
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "(L" + KRYO + ";)V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitVarInsn(ALOAD, 1);
+        init.visitMethodInsn(INVOKESPECIAL, BASE_CLASS, "<init>", "(L" + KRYO + ";)V");
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor write = cw.visitMethod(ACC_PUBLIC, "writeFields", FIELDS_METHOD_DESC, null, null);
+        write.visitCode();
+        for (Field field : fields) {
+            generateWrite(write, field, GeneratedClasses.fieldOffset(field));
+        }
+        write.visitInsn(RETURN);
+        write.visitMaxs(0, 0);
+        write.visitEnd();
+
+        MethodVisitor read = cw.visitMethod(ACC_PUBLIC, "readFields", FIELDS_METHOD_DESC, null, null);
+        read.visitCode();
+        for (Field field : fields) {
+            generateRead(read, field, GeneratedClasses.fieldOffset(field));
+        }
+        read.visitInsn(RETURN);
+        read.visitMaxs(0, 0);
+        read.visitEnd();
+
+        cw.visitEnd();
+
+        return (Class<? extends GeneratedSerializer>) GeneratedClasses.define(
+                GeneratedSerializer.class.getClassLoader(), className.replace('/', '.'), cw.toByteArray());
+    }
+
+    /* Pushes unsafe, object and field offset: the first arguments of the Unsafe accessors. */
+    private static void loadFieldAddress(MethodVisitor mv, long offset) {
+        GeneratedClasses.loadUnsafe(mv);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitLdcInsn(Long.valueOf(offset));
+    }
+
+    private static void generateWrite(MethodVisitor mv, Field field, long offset) {
+        Class<?> type = field.getType();
+        if (!type.isPrimitive()) {
+            // kryo.writeClassAndObject(buffer, unsafe.getObject(object, offset))
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, BASE_CLASS, "kryo", "L" + KRYO + ";");
+            mv.visitVarInsn(ALOAD, 1);
+            loadFieldAddress(mv, offset);
+            mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE, "getObject", "(Ljava/lang/Object;J)Ljava/lang/Object;");
+            mv.visitMethodInsn(INVOKEVIRTUAL, KRYO, "writeClassAndObject", "(Ljava/nio/ByteBuffer;Ljava/lang/Object;)V");
+            return;
+        }
+
+        String descriptor = Type.getDescriptor(type);
+        mv.visitVarInsn(ALOAD, 1);
+        loadFieldAddress(mv, offset);
+        mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE, "get" + accessorSuffix(type), "(Ljava/lang/Object;J)" + descriptor);
+        if (type == int.class) {
+            mv.visitInsn(ICONST_0);
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(IntSerializer.class), "put", "(L" + BYTE_BUFFER
+                    + ";IZ)I");
+            mv.visitInsn(POP);
+        } else if (type == long.class) {
+            mv.visitInsn(ICONST_0);
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(LongSerializer.class), "put", "(L" + BYTE_BUFFER
+                    + ";JZ)J");
+            mv.visitInsn(POP2);
+        } else if (type == boolean.class) {
+            mv.visitMethodInsn(INVOKESTATIC, BASE_CLASS, "writeBoolean", "(L" + BYTE_BUFFER + ";Z)V");
+        } else {
+            mv.visitMethodInsn(INVOKEVIRTUAL, BYTE_BUFFER, byteBufferSuffix(type, "put"), "(" + descriptor + ")L"
+                    + BYTE_BUFFER + ";");
+            mv.visitInsn(POP);
+        }
+    }
+
+    private static void generateRead(MethodVisitor mv, Field field, long offset) {
+        Class<?> type = field.getType();
+        loadFieldAddress(mv, offset);
+        if (!type.isPrimitive()) {
+            // unsafe.putObject(object, offset, kryo.readClassAndObject(buffer))
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, BASE_CLASS, "kryo", "L" + KRYO + ";");
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, KRYO, "readClassAndObject", "(Ljava/nio/ByteBuffer;)Ljava/lang/Object;");
+            mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE, "putObject", "(Ljava/lang/Object;JLjava/lang/Object;)V");
+            return;
+        }
+
+        String descriptor = Type.getDescriptor(type);
+        mv.visitVarInsn(ALOAD, 1);
+        if (type == int.class) {
+            mv.visitInsn(ICONST_0);
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(IntSerializer.class), "get", "(L" + BYTE_BUFFER
+                    + ";Z)I");
+        } else if (type == long.class) {
+            mv.visitInsn(ICONST_0);
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(LongSerializer.class), "get", "(L" + BYTE_BUFFER
+                    + ";Z)J");
+        } else if (type == boolean.class) {
+            mv.visitMethodInsn(INVOKESTATIC, BASE_CLASS, "readBoolean", "(L" + BYTE_BUFFER + ";)Z");
+        } else {
+            mv.visitMethodInsn(INVOKEVIRTUAL, BYTE_BUFFER, byteBufferSuffix(type, "get"), "()" + descriptor);
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE, "put" + accessorSuffix(type), "(Ljava/lang/Object;J" + descriptor
+                + ")V");
+    }
+
+    /* int -> Int, boolean -> Boolean, etc. */
+    private static String accessorSuffix(Class<?> primitiveType) {
+        String name = primitiveType.getName();
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /* ByteBuffer.get()/put(byte) for bytes, getShort()/putShort(short) for shorts, etc. */
+    private static String byteBufferSuffix(Class<?> primitiveType, String prefix) {
+        return primitiveType == byte.class ? prefix : prefix + accessorSuffix(primitiveType);
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.serialize;
+
+import java.nio.ByteBuffer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+
+/**
+ * Base class of the serializers generated by {@link FieldSerializerGenerator}. Subclasses read and write the fields of
+ * an object in a fixed order, without reflection.
+ */
+public abstract class GeneratedSerializer extends Serializer {
+
+    protected final Kryo kryo;
+
+    protected GeneratedSerializer(Kryo kryo) {
+        this.kryo = kryo;
+    }
+
+    @Override
+    public void writeObjectData(ByteBuffer buffer, Object object) {
+        writeFields(buffer, object);
+    }
+
+    @Override
+    public <T> T readObjectData(ByteBuffer buffer, Class<T> type) {
+        T object = newInstance(kryo, type);
+        readFields(buffer, object);
+        return object;
+    }
+
+    protected abstract void writeFields(ByteBuffer buffer, Object object);
+
+    protected abstract void readFields(ByteBuffer buffer, Object object);
+
+    protected static void writeBoolean(ByteBuffer buffer, boolean value) {
+        buffer.put(value ? (byte) 1 : (byte) 0);
+    }
+
+    protected static boolean readBoolean(ByteBuffer buffer) {
+        return buffer.get() != 0;
+    }
+}
@@ -19,25 +19,68 @@
 package org.apache.s4.comm.serialize;
 
 import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
+import org.apache.s4.base.Event;
+import org.apache.s4.base.EventAttributes;
+import org.apache.s4.base.EventSchema;
 import org.apache.s4.base.SerializerDeserializer;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.ObjectBuffer;
+import com.esotericsoftware.kryo.SerializationException;
 import com.esotericsoftware.kryo.serialize.ClassSerializer;
+import com.esotericsoftware.kryo.serialize.IntSerializer;
 import com.esotericsoftware.kryo.serialize.SimpleSerializer;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
 
 /**
  * Serializazer/deserializer based on <a href="http://code.google.com/p/kryo/">kryo</a>
+ * <p>
+ * Kryo instances are not meant to be used concurrently, so each thread gets its own instance along with a reusable
+ * buffer. Buffer sizes must be set before the first serialization.
+ * <p>
+ * Classes can be registered with a stable id using {@link #registerClass(Class, int)}. Registered classes are identified
+ * by a 2 bytes id in the serialized form instead of their name, and {@link Event} subclasses are serialized with a
+ * generated serializer, see {@link FieldSerializerGenerator}. Both ends must register the same classes with the same
+ * ids.
+ * <p>
+ * The attributes of events with an {@link EventSchema} are written without their names and types when the schema is
+ * registered with {@link #registerSchema(EventSchema, int)}, see {@link EventAttributesSerializer}.
  *
  */
 public class KryoSerDeser implements SerializerDeserializer {
 
-    private Kryo kryo = new Kryo();
+    /** Highest stable id that can be used for registering a class. */
+    public static final int MAX_STABLE_ID = 8190;
+
+    /*
+     * Stable ids are written with an offset, so that they don't clash with the ids of the classes registered by Kryo
+     * and still fit in 2 bytes. Kryo uses 16383 for unregistered classes.
+     */
+    private static final int STABLE_ID_BASE = 8192;
+
+    private final ClassLoader classLoader;
+
+    private final Map<Class<?>, Integer> stableIds = Maps.newHashMap();
+    private final Map<Integer, Class<?>> classesByStableId = Maps.newHashMap();
+    private final Map<Class<?>, Class<? extends GeneratedSerializer>> generatedSerializers = Maps.newHashMap();
+    private final Map<EventSchema, Integer> schemaIds = new IdentityHashMap<EventSchema, Integer>();
+    private final Map<Integer, EventSchema> schemasById = Maps.newHashMap();
+    private boolean initialized = false;
 
     private int initialBufferSize = 2048;
     private int maxBufferSize = 256 * 1024;
 
+    private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState(createKryo());
+        }
+    };
+
     public void setInitialBufferSize(int initialBufferSize) {
         this.initialBufferSize = initialBufferSize;
     }
@@ -57,6 +100,59 @@ public class KryoSerDeser implements SerializerDeserializer {
      *            can only be handled by the application classloader.
      */
     public KryoSerDeser(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Registers a class with a stable id. Registrations must be done before the first serialization.
+     * 
+     * @param type
+     *            the class to register
+     * @param id
+     *            an id between 0 and {@link #MAX_STABLE_ID}, unique for this serializer
+     */
+    public synchronized void registerClass(Class<?> type, int id) {
+        Preconditions.checkState(!initialized, "Cannot register class [%s] after the first serialization", type);
+        Preconditions.checkArgument(id >= 0 && id <= MAX_STABLE_ID, "Invalid id [%s] for class [%s]", id, type);
+        Class<?> registered = classesByStableId.get(id);
+        Preconditions.checkArgument(registered == null || registered == type,
+                "Cannot register class [%s] with id [%s], already used by class [%s]", type, id, registered);
+        Integer registeredId = stableIds.get(type);
+        Preconditions.checkArgument(registeredId == null || registeredId == id,
+                "Class [%s] is already registered with id [%s]", type, registeredId);
+
+        stableIds.put(type, id);
+        classesByStableId.put(id, type);
+        if (Event.class.isAssignableFrom(type)) {
+            generatedSerializers.put(type, new FieldSerializerGenerator(type).generate());
+        }
+    }
+
+    /**
+     * Registers an event schema with a stable id. Registrations must be done before the first serialization.
+     * 
+     * @param schema
+     *            the schema to register
+     * @param id
+     *            a non-negative id, unique among the schemas of this serializer
+     */
+    public synchronized void registerSchema(EventSchema schema, int id) {
+        Preconditions.checkState(!initialized, "Cannot register schema [%s] after the first serialization", schema);
+        Preconditions.checkArgument(id >= 0 && id < Integer.MAX_VALUE, "Invalid id [%s] for schema [%s]", id, schema);
+        EventSchema registered = schemasById.get(id);
+        Preconditions.checkArgument(registered == null || registered == schema,
+                "Cannot register schema [%s] with id [%s], already used by schema [%s]", schema, id, registered);
+        Integer registeredId = schemaIds.get(schema);
+        Preconditions.checkArgument(registeredId == null || registeredId == id,
+                "Schema [%s] is already registered with id [%s]", schema, registeredId);
+
+        schemaIds.put(schema, id);
+        schemasById.put(id, schema);
+    }
+
+    private synchronized Kryo createKryo() {
+        initialized = true;
+        Kryo kryo = new StableIdKryo(Maps.newHashMap(stableIds), Maps.newHashMap(classesByStableId));
         kryo.setClassLoader(classLoader);
         kryo.setRegistrationOptional(true);
 
@@ -75,18 +171,87 @@ public class KryoSerDeser implements SerializerDeserializer {
             }
 
         });
+        kryo.register(EventAttributes.class, new EventAttributesSerializer(kryo,
+                new IdentityHashMap<EventSchema, Integer>(schemaIds), Maps.newHashMap(schemasById)));
 
+        for (Class<?> type : stableIds.keySet()) {
+            Class<? extends GeneratedSerializer> serializerClass = generatedSerializers.get(type);
+            if (serializerClass == null) {
+                kryo.register(type);
+            } else {
+                try {
+                    kryo.register(type, serializerClass.getConstructor(Kryo.class).newInstance(kryo));
+                } catch (Exception e) {
+                    throw new RuntimeException("Cannot instantiate generated serializer for class " + type, e);
+                }
+            }
+        }
+        return kryo;
     }
 
     @Override
     public Object deserialize(byte[] rawMessage) {
-        ObjectBuffer buffer = new ObjectBuffer(kryo, initialBufferSize, maxBufferSize);
-        return buffer.readClassAndObject(rawMessage);
+        return threadState.get().buffer.readClassAndObject(rawMessage);
     }
 
     @Override
     public byte[] serialize(Object message) {
-        ObjectBuffer buffer = new ObjectBuffer(kryo, initialBufferSize, maxBufferSize);
-        return buffer.writeClassAndObject(message);
+        return threadState.get().buffer.writeClassAndObject(message);
+    }
+
+    @Override
+    public Object deserialize(ByteBuffer buffer) {
+        return threadState.get().kryo.readClassAndObject(buffer);
+    }
+
+    /* Writes the stable id of registered classes instead of the id assigned by Kryo. */
+    private static class StableIdKryo extends Kryo {
+
+        private final Map<Class<?>, Integer> stableIds;
+        private final Map<Integer, Class<?>> classesByStableId;
+
+        StableIdKryo(Map<Class<?>, Integer> stableIds, Map<Integer, Class<?>> classesByStableId) {
+            this.stableIds = stableIds;
+            this.classesByStableId = classesByStableId;
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public RegisteredClass writeClass(ByteBuffer buffer, Class type) {
+            if (type != null) {
+                Integer id = stableIds.get(type);
+                if (id != null) {
+                    IntSerializer.put(buffer, STABLE_ID_BASE + id, true);
+                    return getRegisteredClass(type);
+                }
+            }
+            return super.writeClass(buffer, type);
+        }
+
+        @Override
+        public RegisteredClass readClass(ByteBuffer buffer) {
+            int position = buffer.position();
+            int id = IntSerializer.get(buffer, true);
+            if (id >= STABLE_ID_BASE && id <= STABLE_ID_BASE + MAX_STABLE_ID) {
+                Class<?> type = classesByStableId.get(id - STABLE_ID_BASE);
+                if (type == null) {
+                    throw new SerializationException("No class registered with id " + (id - STABLE_ID_BASE));
+                }
+                return getRegisteredClass(type);
+            }
+            buffer.position(position);
+            return super.readClass(buffer);
+        }
+    }
+
+    /* Kryo instance and buffer owned by a single thread. The buffer grows as needed, up to the max buffer size. */
+    private class ThreadState {
+        final Kryo kryo;
+        final ObjectBuffer buffer;
+
+        ThreadState(Kryo kryo) {
+            this.kryo = kryo;
+            this.buffer = new ObjectBuffer(kryo, initialBufferSize, maxBufferSize);
+        }
     }
 }
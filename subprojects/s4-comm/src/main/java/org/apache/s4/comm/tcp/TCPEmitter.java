@@ -21,14 +21,19 @@ package org.apache.s4.comm.tcp;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.EventMessage;
-import org.apache.s4.base.SerializerDeserializer;
-import org.apache.s4.comm.serialize.KryoSerDeser;
+import org.apache.s4.comm.serialize.EventMessageCodec;
 import org.apache.s4.comm.topology.Cluster;
 import org.apache.s4.comm.topology.ClusterChangeListener;
 import org.apache.s4.comm.topology.ClusterNode;
@@ -44,23 +49,42 @@ import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+import org.jboss.netty.handler.codec.frame.FixedLengthFrameDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import org.apache.helix.model.InstanceConfig;
 
 /**
  * TCPEmitter - Uses TCP to send messages across partitions.
+ * <p>
+ * Each message is written as a frame prefixed by its length. By default every message is written to the channel as soon
+ * as it is sent. When batching is enabled with <code>s4.comm.tcp.batching</code>, frames are accumulated per channel
+ * and written together when:
+ * <ul>
+ * <li>the batch reaches <code>s4.comm.tcp.batchMaxBytes</code> bytes, or
+ * <li>the first message of the batch has waited <code>s4.comm.tcp.batchLingerMs</code> milliseconds.
+ * </ul>
+ * At most <code>s4.comm.tcp.maxPendingMessages</code> messages can be buffered or in flight for a channel. When the limit
+ * is reached, senders wait for pending writes to complete, for up to <code>s4.comm.timeout</code> milliseconds, and the
+ * message is dropped after that.
+ * <p>
+ * When the remote {@link TCPListener} grants credits, the emitter spends one credit per message sent on that channel.
+ * Without credits, senders wait for up to <code>s4.comm.timeout</code> milliseconds, then the message is shed. Channels
+ * that never received a grant are not limited, but the messages sent before the first grant are charged to it, since the
+ * listener returns their credits too.
  * 
  */
 
@@ -86,8 +110,41 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
 	// lock for synchronizing between cluster updates callbacks and other code
 	private final Lock lock;
 
-	@Inject
-	SerializerDeserializer serDeser= new KryoSerDeser();
+	@Inject(optional = true)
+	@Named("s4.comm.tcp.batching")
+	boolean batching = false;
+
+	@Inject(optional = true)
+	@Named("s4.comm.tcp.batchMaxBytes")
+	int batchMaxBytes = 64 * 1024;
+
+	@Inject(optional = true)
+	@Named("s4.comm.tcp.batchLingerMs")
+	long batchLingerMs = 1;
+
+	@Inject(optional = true)
+	@Named("s4.comm.tcp.maxPendingMessages")
+	int maxPendingMessages = 10000;
+
+	/*
+	 * Batches of frames waiting to be written, per channel
+	 */
+	private final ConcurrentMap<Channel, ChannelBatch> batches = new MapMaker()
+			.makeMap();
+	private ScheduledExecutorService lingerTimer;
+
+	private final AtomicLong batchesSent = new AtomicLong();
+	private final AtomicLong batchedMessagesSent = new AtomicLong();
+	private final AtomicLong droppedMessages = new AtomicLong();
+
+	/*
+	 * Credits granted by the remote listener, per channel
+	 */
+	private final ConcurrentMap<Channel, ChannelCredits> credits = new MapMaker()
+			.makeMap();
+	private final AtomicLong creditStalls = new AtomicLong();
+	private final AtomicLong creditStallNanos = new AtomicLong();
+	private final AtomicLong shedMessages = new AtomicLong();
 
 	@Inject
 	public TCPEmitter(Cluster topology, @Named("s4.comm.timeout") int timeout)
@@ -111,8 +168,11 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
 			@Override
 			public ChannelPipeline getPipeline() {
 				ChannelPipeline p = Channels.pipeline();
-				p.addLast("1", new LengthFieldPrepender(4));
-				p.addLast("2", new ExceptionHandler());
+				// frames are length-prefixed when written, see writeFrame()
+				// the only incoming messages are 4-byte credit grants
+				p.addLast("1", new FixedLengthFrameDecoder(4));
+				p.addLast("2", new CreditHandler());
+				p.addLast("3", new ExceptionHandler());
 				return p;
 			}
 		});
@@ -126,6 +186,15 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
 	@Inject
 	private void init() {
 		this.topology.addListener(this);
+		if (batching) {
+			lingerTimer = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+							.setDaemon(true).setNameFormat("TCPEmitter-linger")
+							.build());
+			logger.info(
+					"Batching enabled with max batch size [{}] bytes and linger time [{}] ms",
+					batchMaxBytes, batchLingerMs);
+		}
 	}
 
 	private boolean connectTo(InstanceConfig config) {
@@ -155,30 +224,125 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
 		return false;
 	}
 
-	private void sendMessage(String streamName, int partitionId, byte[] message) {
-		ChannelBuffer buffer = ChannelBuffers.buffer(message.length);
-		buffer.writeBytes(message);
+	private boolean sendMessage(String streamName, int partitionId,
+			EventMessage message) {
 		InstanceConfig config = topology
 				.getDestination(streamName, partitionId);
 		if (!nodeChannelMap.containsKey(config)) {
 			if (!connectTo(config)) {
 				// Couldn't connect, discard message
-				return;
+				return true;
 			}
 		}
 
 		Channel c = nodeChannelMap.get(config);
 		if (c == null)
-			return;
+			return true;
+
+		return sendOnChannel(c, partitionId, message);
+	}
 
+	boolean sendOnChannel(Channel c, int partitionId, EventMessage message) {
+		if (!acquireCredit(c)) {
+			return false;
+		}
+
+		if (lingerTimer != null) {
+			if (!batchFor(c).add(message)) {
+				// the message was not sent, so the listener will not grant
+				// its credit back
+				releaseCredit(c);
+				return false;
+			}
+			return true;
+		}
+
+		ChannelBuffer buffer = ChannelBuffers.buffer(4 + EventMessageCodec
+				.encodedLength(message));
+		writeFrame(buffer, message);
 		c.write(buffer).addListener(new MessageSendingListener(partitionId));
+		return true;
+	}
+
+	/* Appends a length-prefixed frame, as expected by the listener. */
+	private static void writeFrame(ChannelBuffer buffer, EventMessage message) {
+		buffer.writeInt(EventMessageCodec.encodedLength(message));
+		EventMessageCodec.encode(message, buffer);
+	}
+
+	/* Spends one credit, waiting for a grant if none is left. */
+	private boolean acquireCredit(Channel channel) {
+		Semaphore available = creditsFor(channel).acquire();
+		if (available == null || available.tryAcquire()) {
+			return true;
+		}
+		long start = System.nanoTime();
+		creditStalls.incrementAndGet();
+		try {
+			if (available.tryAcquire(nettyTimeout, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			creditStallNanos.addAndGet(System.nanoTime() - start);
+		}
+		shedMessages.incrementAndGet();
+		return false;
+	}
+
+	/* Gives back the credit of a message that was not sent. */
+	private void releaseCredit(Channel channel) {
+		creditsFor(channel).release();
+	}
+
+	/* Adds credits granted by the remote listener. */
+	void grantCredits(Channel channel, int granted) {
+		creditsFor(channel).grant(granted);
+	}
+
+	/* Credits available on a channel, or -1 if it never received a grant. */
+	int availableCredits(Channel channel) {
+		ChannelCredits channelCredits = credits.get(channel);
+		Semaphore available = channelCredits == null ? null
+				: channelCredits.available;
+		return available == null ? -1 : Math.max(0,
+				available.availablePermits());
+	}
+
+	private ChannelCredits creditsFor(Channel channel) {
+		ChannelCredits channelCredits = credits.get(channel);
+		if (channelCredits == null) {
+			channelCredits = new ChannelCredits();
+			ChannelCredits existing = credits.putIfAbsent(channel,
+					channelCredits);
+			if (existing != null) {
+				channelCredits = existing;
+			}
+		}
+		return channelCredits;
+	}
+
+	private void forgetChannel(Channel channel) {
+		batches.remove(channel);
+		credits.remove(channel);
+	}
+
+	private ChannelBatch batchFor(Channel channel) {
+		ChannelBatch batch = batches.get(channel);
+		if (batch == null) {
+			batch = new ChannelBatch(channel);
+			ChannelBatch existing = batches.putIfAbsent(channel, batch);
+			if (existing != null) {
+				batch = existing;
+			}
+		}
+		return batch;
 	}
 
 	@Override
 	public boolean send(int partitionId, EventMessage message) {
-		sendMessage(message.getStreamName(), partitionId,
-				serDeser.serialize(message));
-		return true;
+		return sendMessage(message.getStreamName(), partitionId, message);
 	}
 
 	protected void removeChannel(int partition) {
@@ -186,6 +350,11 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
 		if (c == null) {
 			return;
 		}
+		ChannelBatch batch = batches.get(c);
+		if (batch != null) {
+			batch.flush();
+		}
+		forgetChannel(c);
 		c.close().addListener(new ChannelFutureListener() {
 			@Override
 			public void operationComplete(ChannelFuture future)
@@ -199,6 +368,12 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
 	}
 
 	public void close() {
+		if (lingerTimer != null) {
+			lingerTimer.shutdown();
+			for (ChannelBatch batch : batches.values()) {
+				batch.flush();
+			}
+		}
 		try {
 			channels.close().await();
 			bootstrap.releaseExternalResources();
@@ -216,6 +391,249 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
     return topology.getPhysicalCluster().getPartitionCount();
   }
 
+	/**
+	 * @return number of batches written, when batching is enabled
+	 */
+	public long getBatchesSent() {
+		return batchesSent.get();
+	}
+
+	/**
+	 * @return number of messages written as part of a batch
+	 */
+	public long getBatchedMessagesSent() {
+		return batchedMessagesSent.get();
+	}
+
+	/**
+	 * @return average number of messages per batch written so far
+	 */
+	public double getAverageBatchSize() {
+		long sent = batchesSent.get();
+		return sent == 0 ? 0 : (double) batchedMessagesSent.get() / sent;
+	}
+
+	/**
+	 * @return number of messages dropped because too many messages were
+	 *         pending for their channel
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	/**
+	 * @return number of messages currently buffered or in flight, over all
+	 *         channels
+	 */
+	public int getPendingMessages() {
+		int pending = 0;
+		for (ChannelBatch batch : batches.values()) {
+			pending += batch.getPendingMessages();
+		}
+		return pending;
+	}
+
+	/**
+	 * @return number of sends that had to wait for credits
+	 */
+	public long getCreditStalls() {
+		return creditStalls.get();
+	}
+
+	/**
+	 * @return total time spent waiting for credits, in milliseconds
+	 */
+	public long getCreditStallTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(creditStallNanos.get());
+	}
+
+	/**
+	 * @return number of messages shed because no credit was granted in time
+	 */
+	public long getShedMessages() {
+		return shedMessages.get();
+	}
+
+	/**
+	 * @return credits currently available to send to the node hosting the
+	 *         partition, or -1 if it is not limited by credits
+	 */
+	public int getAvailableCredits(String streamName, int partitionId) {
+		Channel c = nodeChannelMap.get(topology.getDestination(streamName,
+				partitionId));
+		return c == null ? -1 : availableCredits(c);
+	}
+
+	public int getBatchMaxBytes() {
+		return batchMaxBytes;
+	}
+
+	public long getBatchLingerMs() {
+		return batchLingerMs;
+	}
+
+	public int getMaxPendingMessages() {
+		return maxPendingMessages;
+	}
+
+	/*
+	 * Frames waiting to be written to a channel. The batch is written when it
+	 * is large enough, or by the linger timer.
+	 */
+	class ChannelBatch implements Runnable {
+
+		private final Channel channel;
+		private ChannelBuffer buffer;
+		private int bufferedMessages = 0;
+		private int inFlightMessages = 0;
+		private boolean flushScheduled = false;
+
+		ChannelBatch(Channel channel) {
+			this.channel = channel;
+		}
+
+		synchronized boolean add(EventMessage message) {
+			if (bufferedMessages + inFlightMessages >= maxPendingMessages) {
+				flush();
+				long deadline = System.currentTimeMillis() + nettyTimeout;
+				try {
+					while (inFlightMessages >= maxPendingMessages) {
+						long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0) {
+							droppedMessages.incrementAndGet();
+							return false;
+						}
+						wait(remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					droppedMessages.incrementAndGet();
+					return false;
+				}
+			}
+			if (buffer == null) {
+				buffer = ChannelBuffers.dynamicBuffer(Math.min(batchMaxBytes,
+						4096));
+			}
+			writeFrame(buffer, message);
+			bufferedMessages++;
+			if (buffer.readableBytes() >= batchMaxBytes) {
+				flush();
+			} else if (!flushScheduled) {
+				flushScheduled = true;
+				try {
+					lingerTimer.schedule(this, batchLingerMs,
+							TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					// emitter is closing
+					flush();
+				}
+			}
+			return true;
+		}
+
+		synchronized void flush() {
+			if (bufferedMessages == 0) {
+				return;
+			}
+			final int count = bufferedMessages;
+			inFlightMessages += count;
+			bufferedMessages = 0;
+			ChannelBuffer batch = buffer;
+			buffer = null;
+			batchesSent.incrementAndGet();
+			batchedMessagesSent.addAndGet(count);
+			channel.write(batch).addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(ChannelFuture future)
+						throws Exception {
+					synchronized (ChannelBatch.this) {
+						inFlightMessages -= count;
+						ChannelBatch.this.notifyAll();
+					}
+					if (!future.isSuccess()) {
+						logger.warn("Failed to send batch of {} messages to {}",
+								count, channel.getRemoteAddress());
+					}
+				}
+			});
+		}
+
+		synchronized int getPendingMessages() {
+			return bufferedMessages + inFlightMessages;
+		}
+
+		@Override
+		public synchronized void run() {
+			flushScheduled = false;
+			flush();
+		}
+	}
+
+	/*
+	 * Credits of a channel. Until the first grant, sends are not limited but
+	 * counted, and the first grant is reduced by that count: the listener
+	 * returns a credit for every message it consumes, including those.
+	 */
+	static class ChannelCredits {
+		volatile Semaphore available;
+		private long uncharged;
+
+		/* @return the semaphore to take a credit from, or null if the send is free */
+		Semaphore acquire() {
+			Semaphore granted = available;
+			if (granted != null) {
+				return granted;
+			}
+			synchronized (this) {
+				if (available == null) {
+					uncharged++;
+				}
+				return available;
+			}
+		}
+
+		void release() {
+			Semaphore granted = available;
+			if (granted == null) {
+				synchronized (this) {
+					if (available == null) {
+						uncharged--;
+						return;
+					}
+					granted = available;
+				}
+			}
+			granted.release();
+		}
+
+		void grant(int credits) {
+			Semaphore granted = available;
+			if (granted == null) {
+				synchronized (this) {
+					if (available == null) {
+						// can start negative if more messages than the window were sent
+						available = new Semaphore((int) Math.max(
+								Integer.MIN_VALUE + 1, credits - uncharged));
+						return;
+					}
+					granted = available;
+				}
+			}
+			granted.release(credits);
+		}
+	}
+
+	/* Adds credits granted by the remote listener. */
+	class CreditHandler extends SimpleChannelUpstreamHandler {
+		@Override
+		public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+				throws Exception {
+			grantCredits(e.getChannel(),
+					((ChannelBuffer) e.getMessage()).readInt());
+		}
+	}
+
 	class ExceptionHandler extends SimpleChannelUpstreamHandler {
 		@Override
 		public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e)
@@ -223,9 +641,11 @@ public class TCPEmitter implements Emitter, ClusterChangeListener {
 			Throwable t = e.getCause();
 			if (t instanceof ClosedChannelException) {
 				nodeChannelMap.inverse().remove(e.getChannel());
+				forgetChannel(e.getChannel());
 				return;
 			} else if (t instanceof ConnectException) {
 				nodeChannelMap.inverse().remove(e.getChannel());
+				forgetChannel(e.getChannel());
 				return;
 			} else {
 				logger.error("Unexpected exception", t);
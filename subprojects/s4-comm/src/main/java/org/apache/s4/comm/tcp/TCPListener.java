@@ -19,15 +19,17 @@
 package org.apache.s4.comm.tcp;
 
 import java.net.InetSocketAddress;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.s4.base.Listener;
+import org.apache.s4.base.ShardedListener;
+import org.apache.s4.base.util.RingBuffer;
+import org.apache.s4.base.util.RingBuffer.OverflowPolicy;
 import org.apache.s4.comm.topology.Assignment;
 import org.apache.s4.comm.topology.ClusterNode;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelFuture;
@@ -47,16 +49,51 @@ import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Preconditions;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
 /**
  * Receives messages through TCP for the assigned subcluster.
+ * <p>
+ * Netty I/O threads hand frames off to the receiving thread through a bounded ring buffer of
+ * <code>s4.comm.tcp.listener.queueCapacity</code> frames. When the buffer is full, the
+ * <code>s4.comm.tcp.listener.overflowPolicy</code> applies: <code>BLOCK</code> (the default) holds up the I/O thread
+ * until there is room, <code>DROP_OLDEST</code> and <code>DROP_NEWEST</code> discard frames instead.
+ * <p>
+ * There is one such buffer per receiving thread, <code>s4.receiver.threads</code>. Each connection is assigned to one
+ * of them, so that the frames of a connection are received in order.
+ * <p>
+ * When <code>s4.comm.tcp.listener.creditWindow</code> is positive, the listener grants that many credits to each
+ * connected emitter, and grants them again as frames are received, or dropped, by the receiving side. A grant is a
+ * 4-byte count written back on the channel. {@link TCPEmitter} uses one credit per message, and charges the messages
+ * it sent before the first grant to that grant, so it learns how much this node can absorb and slows down or sheds load
+ * instead of filling Netty write buffers.
  * 
  */
-public class TCPListener implements Listener {
+public class TCPListener implements ShardedListener {
     private static final Logger logger = LoggerFactory.getLogger(TCPListener.class);
-    private BlockingQueue<byte[]> handoffQueue = new SynchronousQueue<byte[]>();
+
+    @Inject(optional = true)
+    @Named("s4.comm.tcp.listener.queueCapacity")
+    int queueCapacity = 16384;
+
+    @Inject(optional = true)
+    @Named("s4.comm.tcp.listener.overflowPolicy")
+    OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    @Inject(optional = true)
+    @Named("s4.comm.tcp.listener.creditWindow")
+    int creditWindow = 0;
+
+    @Inject(optional = true)
+    @Named("s4.receiver.threads")
+    int shardCount = 1;
+
+    /* one per shard, holding byte[] frames, or CreditedFrame when credits are enabled */
+    private RingBuffer<Object>[] handoffQueues;
+    /* assigns connections to shards, round robin */
+    private final AtomicInteger nextShard = new AtomicInteger();
     private ClusterNode node;
     private ServerBootstrap bootstrap;
     private final ChannelGroup channels = new DefaultChannelGroup();
@@ -78,7 +115,7 @@ System.out.println("TCPListener.TCPListener()");
             public ChannelPipeline getPipeline() {
                 ChannelPipeline p = Channels.pipeline();
                 p.addLast("1", new LengthFieldBasedFrameDecoder(999999, 0, 4, 0, 4));
-                p.addLast("2", new ChannelHandler(handoffQueue));
+                p.addLast("2", new ChannelHandler());
 
                 return p;
             }
@@ -89,21 +126,79 @@ System.out.println("TCPListener.TCPListener()");
         bootstrap.setOption("child.reuseAddress", true);
         bootstrap.setOption("child.connectTimeoutMillis", nettyTimeout);
         bootstrap.setOption("readWriteFair", true);
+    }
 
+    /* Binds once the optional queue settings are injected. */
+    @SuppressWarnings("unchecked")
+    @Inject
+    private void bind() {
+        Preconditions.checkArgument(shardCount > 0, "Invalid number of shards: %s", shardCount);
+        handoffQueues = new RingBuffer[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            handoffQueues[i] = new RingBuffer<Object>(queueCapacity, overflowPolicy) {
+                @Override
+                protected void onDrop(Object frame) {
+                    if (frame instanceof CreditedFrame) {
+                        ((CreditedFrame) frame).account.consumed();
+                    }
+                }
+            };
+        }
         Channel c = bootstrap.bind(new InetSocketAddress(node.getPort()));
         channels.add(c);
     }
 
+    /**
+     * Receives from the only shard. With several shards, use {@link #recv(int)}.
+     */
     public byte[] recv() {
+        Preconditions.checkState(shardCount == 1, "Frames are received from %s shards", shardCount);
+        return recv(0);
+    }
+
+    @Override
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    @Override
+    public byte[] recv(int shard) {
         try {
-            byte[] msg = handoffQueue.take();
-            return msg;
+            Object frame = handoffQueues[shard].take();
+            if (frame instanceof CreditedFrame) {
+                CreditedFrame credited = (CreditedFrame) frame;
+                credited.account.consumed();
+                return credited.data;
+            }
+            return (byte[]) frame;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             return null;
         }
     }
 
+    /**
+     * @return number of frames discarded because the hand-off buffer was full
+     */
+    public long getDroppedMessages() {
+        long dropped = 0;
+        for (RingBuffer<Object> handoffQueue : handoffQueues) {
+            dropped += handoffQueue.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    /**
+     * @return approximate number of frames waiting to be received
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (RingBuffer<Object> handoffQueue : handoffQueues) {
+            size += handoffQueue.size();
+        }
+        return size;
+    }
+
     @Override
     public int getPartitionId() {
         return node.getPartition();
@@ -118,19 +213,61 @@ System.out.println("TCPListener.TCPListener()");
         bootstrap.releaseExternalResources();
     }
 
+    private static void grant(Channel channel, int credits) {
+        ChannelBuffer buffer = ChannelBuffers.buffer(4);
+        buffer.writeInt(credits);
+        channel.write(buffer);
+    }
+
+    /* Counts frames consumed from a channel and returns them as credits, in batches of a quarter window. */
+    class CreditAccount {
+        private final Channel channel;
+        private final AtomicInteger consumed = new AtomicInteger();
+
+        CreditAccount(Channel channel) {
+            this.channel = channel;
+        }
+
+        void consumed() {
+            int count = consumed.incrementAndGet();
+            if (count >= Math.max(1, creditWindow / 4) && consumed.compareAndSet(count, 0)) {
+                grant(channel, count);
+            }
+        }
+    }
+
+    private static final class CreditedFrame {
+        final byte[] data;
+        final CreditAccount account;
+
+        CreditedFrame(byte[] data, CreditAccount account) {
+            this.data = data;
+            this.account = account;
+        }
+    }
+
     public class ChannelHandler extends SimpleChannelHandler {
-        private BlockingQueue<byte[]> handoffQueue;
 
-        public ChannelHandler(BlockingQueue<byte[]> handOffQueue) {
-            this.handoffQueue = handOffQueue;
+        private CreditAccount credits;
+        /* one handler per connection, so all its frames go to the same shard */
+        private final RingBuffer<Object> handoffQueue = handoffQueues[(nextShard.getAndIncrement() & Integer.MAX_VALUE)
+                % handoffQueues.length];
+
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            if (creditWindow > 0) {
+                credits = new CreditAccount(e.getChannel());
+                grant(e.getChannel(), creditWindow);
+            }
+            super.channelConnected(ctx, e);
         }
 
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
             channels.add(e.getChannel());
             ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
             try {
-                handoffQueue.put(buffer.array()); // this holds up the Netty upstream I/O thread if
-                                                  // there's no receiver at the other end of the handoff queue
+                // with the BLOCK policy, this holds up the Netty upstream I/O thread only while the buffer is full
+                handoffQueue.put(credits == null ? buffer.array() : new CreditedFrame(buffer.array(), credits));
             } catch (InterruptedException ie) {
                 Thread.currentThread().interrupt();
             }
@@ -28,9 +28,9 @@ import java.util.Map;
 
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.EventMessage;
-import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.topology.Cluster;
 import org.apache.s4.comm.topology.ClusterChangeListener;
+import org.apache.s4.comm.serialize.EventMessageCodec;
 import org.apache.s4.comm.topology.ClusterNode;
 import org.slf4j.LoggerFactory;
 
@@ -48,9 +48,6 @@ public class UDPEmitter implements Emitter, ClusterChangeListener {
     private final long messageDropInQueueCount = 0;
     private final Cluster topology;
 
-    @Inject
-    SerializerDeserializer serDeser;
-
     public long getMessageDropInQueueCount() {
         return messageDropInQueueCount;
     }
@@ -79,7 +76,6 @@ public class UDPEmitter implements Emitter, ClusterChangeListener {
     @Override
     public boolean send(int partitionId, EventMessage eventMessage) {
         try {
-            byte[] message = serDeser.serialize(eventMessage);
             ClusterNode node = nodes.get(partitionId);
             if (node == null) {
                 LoggerFactory.getLogger(getClass()).error(
@@ -87,14 +83,13 @@ public class UDPEmitter implements Emitter, ClusterChangeListener {
                         partitionId);
                 return false;
             }
-            byte[] byteBuffer = new byte[message.length];
-            System.arraycopy(message, 0, byteBuffer, 0, message.length);
+            byte[] message = EventMessageCodec.encodeToArray(eventMessage);
             InetAddress inetAddress = inetCache.get(partitionId);
             if (inetAddress == null) {
                 inetAddress = InetAddress.getByName(node.getMachineName());
                 inetCache.put(partitionId, inetAddress);
             }
-            DatagramPacket dp = new DatagramPacket(byteBuffer, byteBuffer.length, inetAddress, node.getPort());
+            DatagramPacket dp = new DatagramPacket(message, message.length, inetAddress, node.getPort());
             socket.send(dp);
         } catch (IOException e) {
             throw new RuntimeException(e);
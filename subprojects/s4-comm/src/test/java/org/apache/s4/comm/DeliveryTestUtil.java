@@ -69,7 +69,7 @@ public class DeliveryTestUtil {
                 for (int partition = 0; partition < emitter.getPartitionCount(); partition++) {
                     for (int i = 0; i < numMessages; i++) {
                         byte[] message = (new String("message-" + i)).getBytes();
-                        emitter.send(partition, new EventMessage(null, null, message));
+                        emitter.send(partition, new EventMessage(-1, null, message));
                         Thread.sleep(interval);
                     }
                 }
@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.serialize;
+
+import org.apache.s4.base.EventMessage;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EventMessageCodecTest {
+
+    @Test
+    public void testEncodeDecode() {
+        EventMessage message = new EventMessage(3, "stream1", "payload".getBytes());
+
+        ChannelBuffer buffer = EventMessageCodec.encode(message);
+        Assert.assertEquals(EventMessageCodec.HEADER_LENGTH + 7, buffer.readableBytes());
+        byte[] frame = new byte[buffer.readableBytes()];
+        buffer.readBytes(frame);
+        Assert.assertArrayEquals(frame, EventMessageCodec.encodeToArray(message));
+
+        EventMessage decoded = EventMessageCodec.decode(frame);
+        Assert.assertEquals(3, decoded.getAppId());
+        Assert.assertEquals(EventMessage.streamId("stream1"), decoded.getStreamId());
+        Assert.assertEquals("payload", new String(decoded.getSerializedEvent()));
+    }
+
+    @Test
+    public void testDecodeSharesFrame() {
+        byte[] frame = EventMessageCodec.encodeToArray(new EventMessage(3, "stream1", "payload".getBytes()));
+
+        EventMessage decoded = EventMessageCodec.decode(frame);
+        Assert.assertEquals(7, decoded.getSerializedEventLength());
+        frame[EventMessageCodec.HEADER_LENGTH] = 'P';
+        Assert.assertEquals('P', decoded.getSerializedEventBuffer().get());
+        Assert.assertEquals("Payload", new String(decoded.getSerializedEvent()));
+
+        // re-encoding only writes the slice
+        frame[EventMessageCodec.HEADER_LENGTH] = 'p';
+        Assert.assertArrayEquals(frame, EventMessageCodec.encodeToArray(decoded));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedFrame() {
+        byte[] frame = EventMessageCodec.encodeToArray(new EventMessage(3, "stream1", "payload".getBytes()));
+        byte[] truncated = new byte[frame.length - 1];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        EventMessageCodec.decode(truncated);
+    }
+}
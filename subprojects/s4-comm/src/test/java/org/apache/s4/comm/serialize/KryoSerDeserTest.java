@@ -0,0 +1,192 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.serialize;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.base.EventSchema;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KryoSerDeserTest {
+
+    @Test
+    public void testByteBuffer() {
+        KryoSerDeser serDeser = new KryoSerDeser();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        // messages received back to back, as in a frame
+        buffer.put(serDeser.serialize("first"));
+        buffer.put(serDeser.serialize(Long.valueOf(2)));
+        buffer.flip();
+        Assert.assertEquals("first", serDeser.deserialize(buffer));
+        Assert.assertEquals(Long.valueOf(2), serDeser.deserialize(buffer));
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final KryoSerDeser serDeser = new KryoSerDeser();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 4; i++) {
+            final int thread = i;
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (int j = 0; j < 1000; j++) {
+                        String message = thread + "-" + j;
+                        if (!message.equals(serDeser.deserialize(serDeser.serialize(message)))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> result : results) {
+            Assert.assertTrue(result.get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRegisteredEvent() {
+        KryoSerDeser registered = new KryoSerDeser();
+        registered.registerClass(TestEvent.class, 1);
+
+        TestEvent event = new TestEvent(42, 1234567890123L, "value", true, 0.5);
+        event.setAppId(3);
+        event.setStreamId("stream");
+        event.put("attribute", Integer.class, 7);
+
+        byte[] serialized = registered.serialize(event);
+        Assert.assertTrue(serialized.length < new KryoSerDeser().serialize(event).length);
+
+        TestEvent copy = (TestEvent) registered.deserialize(serialized);
+        Assert.assertEquals(event.time, copy.time);
+        Assert.assertEquals(event.getTime(), copy.getTime());
+        Assert.assertEquals(3, copy.getAppId());
+        Assert.assertEquals("stream", copy.getStreamName());
+        Assert.assertEquals(Integer.valueOf(7), copy.get("attribute", Integer.class));
+        Assert.assertEquals(42, copy.count);
+        Assert.assertEquals("value", copy.value);
+        Assert.assertTrue(copy.flag);
+        Assert.assertEquals(0.5, copy.ratio, 0);
+    }
+
+    @Test
+    public void testSchemaEvent() {
+        EventSchema schema = new EventSchema.Builder().add("user", String.class).add("count", long.class)
+                .add("score", double.class).add("flag", boolean.class).add("unset", int.class)
+                .add("tags", List.class).build();
+        KryoSerDeser registered = new KryoSerDeser();
+        registered.registerSchema(schema, 1);
+
+        Event event = new Event(schema);
+        event.put("user", String.class, "joe");
+        event.putLong("count", -12345678901L);
+        event.putDouble("score", 0.25);
+        event.putBoolean("flag", true);
+        event.put("tags", List.class, new ArrayList<String>(Arrays.asList("a", "b")));
+        event.put("extra", Integer.class, 7);
+
+        byte[] serialized = registered.serialize(event);
+        Assert.assertTrue(serialized.length < new KryoSerDeser().serialize(event).length);
+
+        for (KryoSerDeser serDeser : new KryoSerDeser[] { registered, new KryoSerDeser() }) {
+            Event copy = (Event) serDeser.deserialize(serDeser.serialize(event));
+            Assert.assertEquals("joe", copy.get("user", String.class));
+            Assert.assertEquals(-12345678901L, copy.getLong("count"));
+            Assert.assertEquals(0.25, copy.getDouble("score"), 0);
+            Assert.assertTrue(copy.getBoolean("flag"));
+            Assert.assertFalse(copy.containsKey("unset"));
+            Assert.assertEquals(Arrays.asList("a", "b"), copy.get("tags", List.class));
+            Assert.assertEquals(Integer.valueOf(7), copy.get("extra", Integer.class));
+        }
+        Assert.assertSame(schema, ((Event) registered.deserialize(serialized)).getSchema());
+    }
+
+    @Test
+    public void testUnregisteredSchemaIsDecodedOnce() {
+        EventSchema schema = new EventSchema.Builder().add("user", String.class).add("count", long.class).build();
+        KryoSerDeser serDeser = new KryoSerDeser();
+
+        Event first = new Event(schema);
+        first.putLong("count", 1);
+        Event second = new Event(schema);
+        second.putLong("count", 2);
+        byte[] firstSerialized = serDeser.serialize(first);
+        Assert.assertArrayEquals(firstSerialized, serDeser.serialize(first));
+
+        Event firstCopy = (Event) serDeser.deserialize(firstSerialized);
+        Event secondCopy = (Event) serDeser.deserialize(serDeser.serialize(second));
+        Assert.assertEquals(1, firstCopy.getLong("count"));
+        Assert.assertEquals(2, secondCopy.getLong("count"));
+        Assert.assertSame(firstCopy.getSchema(), secondCopy.getSchema());
+
+        EventSchema other = new EventSchema.Builder().add("user", String.class).add("count", int.class).build();
+        Event third = new Event(other);
+        third.putInt("count", 3);
+        Event thirdCopy = (Event) serDeser.deserialize(serDeser.serialize(third));
+        Assert.assertNotSame(firstCopy.getSchema(), thirdCopy.getSchema());
+        Assert.assertEquals(int.class, thirdCopy.getSchema().getType(thirdCopy.getSchema().slot("count")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateId() {
+        KryoSerDeser serDeser = new KryoSerDeser();
+        serDeser.registerClass(TestEvent.class, 1);
+        serDeser.registerClass(String.class, 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLateRegistration() {
+        KryoSerDeser serDeser = new KryoSerDeser();
+        serDeser.serialize("first");
+        serDeser.registerClass(TestEvent.class, 1);
+    }
+
+    public static class TestEvent extends Event {
+        private final int count;
+        private final long time;
+        private String value;
+        private boolean flag;
+        private double ratio;
+
+        public TestEvent() {
+            this(0, 0, null, false, 0);
+        }
+
+        TestEvent(int count, long time, String value, boolean flag, double ratio) {
+            this.count = count;
+            this.time = time;
+            this.value = value;
+            this.flag = flag;
+            this.ratio = ratio;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.comm.tcp;
+
+import java.util.List;
+
+import org.apache.s4.base.EventMessage;
+import org.apache.s4.comm.topology.Cluster;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.name.Names;
+
+public class TCPEmitterCreditTest {
+
+    private final List<ChannelFuture> writes = Lists.newArrayList();
+    private Channel channel;
+    private TCPEmitter emitter;
+
+    @Before
+    public void createEmitter() {
+        emitter = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Cluster.class).toInstance(Mockito.mock(Cluster.class));
+                bindConstant().annotatedWith(Names.named("s4.comm.timeout")).to(100);
+                bindConstant().annotatedWith(Names.named("s4.comm.tcp.batching")).to(true);
+                // each message is written on its own, and at most 2 are in flight
+                bindConstant().annotatedWith(Names.named("s4.comm.tcp.batchMaxBytes")).to(1);
+                bindConstant().annotatedWith(Names.named("s4.comm.tcp.maxPendingMessages")).to(2);
+            }
+        }).getInstance(TCPEmitter.class);
+
+        channel = Mockito.mock(Channel.class);
+        Mockito.when(channel.write(Mockito.any())).thenAnswer(new Answer<ChannelFuture>() {
+            @Override
+            public ChannelFuture answer(InvocationOnMock invocation) {
+                ChannelFuture future = new DefaultChannelFuture(channel, false);
+                writes.add(future);
+                return future;
+            }
+        });
+    }
+
+    @After
+    public void closeEmitter() {
+        emitter.close();
+    }
+
+    private boolean send() {
+        return emitter.sendOnChannel(channel, 0, new EventMessage(1, "stream", new byte[] { 1 }));
+    }
+
+    private void completeWrites() {
+        for (ChannelFuture write : writes) {
+            write.setSuccess();
+        }
+        writes.clear();
+    }
+
+    @Test
+    public void testDroppedMessagesReturnTheirCredits() {
+        emitter.grantCredits(channel, 3);
+
+        Assert.assertTrue(send());
+        Assert.assertTrue(send());
+        // the writes do not complete, so the next messages are dropped after the timeout
+        Assert.assertFalse(send());
+        Assert.assertFalse(send());
+        completeWrites();
+
+        // the credits of the dropped messages are still available
+        Assert.assertTrue(send());
+        completeWrites();
+        Assert.assertFalse(send());
+        emitter.grantCredits(channel, 1);
+        Assert.assertTrue(send());
+    }
+
+    @Test
+    public void testSendsBeforeTheFirstGrantAreCharged() {
+        int window = 4;
+        // not limited until the listener grants credits
+        Assert.assertEquals(-1, emitter.availableCredits(channel));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(send());
+            completeWrites();
+        }
+
+        emitter.grantCredits(channel, window);
+        Assert.assertEquals(window - 3, emitter.availableCredits(channel));
+        // the listener returns the credits of the messages it consumed, including those sent before the grant
+        for (int i = 0; i < 3; i++) {
+            emitter.grantCredits(channel, 1);
+            Assert.assertTrue(emitter.availableCredits(channel) <= window);
+        }
+        Assert.assertEquals(window, emitter.availableCredits(channel));
+
+        for (int i = 0; i < window; i++) {
+            Assert.assertTrue(send());
+            completeWrites();
+        }
+        Assert.assertFalse(send());
+    }
+
+    @Test
+    public void testSendsBeyondTheWindowBeforeTheFirstGrantAreOwed() {
+        for (int i = 0; i < 6; i++) {
+            Assert.assertTrue(send());
+            completeWrites();
+        }
+        emitter.grantCredits(channel, 4);
+        Assert.assertEquals(0, emitter.availableCredits(channel));
+        // the first 2 returned credits pay off the debt
+        emitter.grantCredits(channel, 2);
+        Assert.assertFalse(send());
+        emitter.grantCredits(channel, 4);
+        Assert.assertEquals(4, emitter.availableCredits(channel));
+    }
+}
@@ -25,7 +25,7 @@ import java.util.List;
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.Listener;
-import org.apache.s4.base.SerializerDeserializer;
+import org.apache.s4.comm.serialize.EventMessageCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,9 +56,6 @@ public class PartitionInfo {
     private int partitionId;
     private ProtocolTestUtil ptu;
 
-    @Inject
-    SerializerDeserializer serDeser;
-
     @Inject
     public PartitionInfo(Emitter emitter, Listener listener) {
         this.emitter = emitter;
@@ -90,7 +87,7 @@ public class PartitionInfo {
             try {
                 for (int i = 0; i < numMessages; i++) {
                     for (int partition = 0; partition < emitter.getPartitionCount(); partition++) {
-                        EventMessage message = new EventMessage("app1", "stream1",
+                        EventMessage message = new EventMessage(1, "stream1",
                                 new String(partitionId + " " + i).getBytes());
                         for (int retries = 0; retries < numRetries; retries++) {
                             if (emitter.send(partition, message)) {
@@ -134,7 +131,7 @@ public class PartitionInfo {
                     break;
                 }
 
-                EventMessage deserialized = (EventMessage) serDeser.deserialize(message);
+                EventMessage deserialized = EventMessageCodec.decode(message);
                 // process and store the message
                 String msgString = new String(deserialized.getSerializedEvent());
                 String[] msgTokens = msgString.split(" ");
@@ -24,17 +24,22 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.s4.base.Event;
+import org.apache.s4.base.EventSchema;
 import org.apache.s4.base.Hasher;
 import org.apache.s4.base.KeyFinder;
 import org.apache.s4.base.SerializerDeserializer;
 import org.apache.s4.comm.serialize.KryoSerDeser;
 import org.apache.s4.comm.topology.RemoteStreamsManager;
+import org.apache.s4.core.ft.CheckpointId;
+import org.apache.s4.core.ft.CheckpointingConfig.CheckpointingMode;
 import org.apache.s4.core.ft.CheckpointingFramework;
+import org.apache.s4.core.ft.CheckpointingFramework.RecoveryMode;
 import org.apache.s4.core.window.AbstractSlidingWindowPE;
 import org.apache.s4.core.window.SlotFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -84,13 +89,19 @@ public abstract class App {
     @Inject
     CheckpointingFramework checkpointingFramework;
 
+    // shared by all the apps of the node
+    @Inject
+    private TimingWheelScheduler timerScheduler;
+
     // serialization uses the application class loader
-    private SerializerDeserializer serDeser = new KryoSerDeser(getClass().getClassLoader());
+    private KryoSerDeser serDeser = new KryoSerDeser(getClass().getClassLoader());
+
+    private final EventClock eventClock = new EventClock();
 
     /**
      * The internal clock can be configured as "wall clock" or "event clock". The wall clock computes time from the
-     * system clock while the "event clock" uses the most recently seen event time stamp. TODO: implement event clock
-     * functionality.
+     * system clock while the "event clock" uses the time stamps of the events flowing through the streams, see
+     * {@link EventClock}.
      */
     public enum ClockType {
         WALL_CLOCK, EVENT_CLOCK
@@ -111,6 +122,12 @@ public abstract class App {
         this.id = id;
     }
 
+    /* Events sent to other nodes must be serialized with the app serializer, which knows the registered classes. */
+    @Inject
+    private void initSender() {
+        sender.setSerDeser(serDeser);
+    }
+
     /* Should only be used within the core package. */
     void addPEPrototype(ProcessingElement pePrototype) {
         pePrototypes.add(pePrototype);
@@ -158,9 +175,41 @@ public abstract class App {
             pe.initPEPrototypeInternal();
         }
 
+        if (checkpointingFramework != null && checkpointingFramework.getRecoveryMode() == RecoveryMode.PREFETCH) {
+            prefetchCheckpoints();
+        }
+
         onStart();
     }
 
+    /*
+     * The partition of the node is assigned when the app starts: fetch the checkpoints of its keys in the background,
+     * before their first events arrive.
+     */
+    private void prefetchCheckpoints() {
+        /* Checkpointed PE prototypes, with the stream used to map their keys to partitions. */
+        final Map<String, Stream<?>> keyStreams = Maps.newHashMap();
+        for (ProcessingElement pe : getPePrototypes()) {
+            if (pe.getCheckpointingConfig().mode != CheckpointingMode.NONE && !pe.getInputStreams().isEmpty()) {
+                keyStreams.put(pe.getClass().getName(), pe.isSingleton() ? null : pe.getInputStreams().get(0));
+            }
+        }
+        if (keyStreams.isEmpty()) {
+            return;
+        }
+        checkpointingFramework.prefetchStates(new Predicate<CheckpointId>() {
+            @Override
+            public boolean apply(CheckpointId checkpointId) {
+                if (!keyStreams.containsKey(checkpointId.getPrototypeId()) || checkpointId.getKey() == null) {
+                    return false;
+                }
+                /* Singletons have an instance in every partition. */
+                Stream<?> stream = keyStreams.get(checkpointId.getPrototypeId());
+                return stream == null || sender.isLocal(checkpointId.getKey(), stream.getName());
+            }
+        });
+    }
+
     /**
      * This method is called by the container to initialize applications.
      */
@@ -180,6 +229,7 @@ public abstract class App {
 
         onClose();
         removeAll();
+        eventClock.close();
     }
 
     private void removeAll() {
@@ -216,9 +266,12 @@ public abstract class App {
     /**
      * The internal clock is configured as "wall clock" or "event clock" when this object is created.
      * 
-     * @return the App time in milliseconds.
+     * @return the App time in milliseconds. With the event clock, {@link Long#MIN_VALUE} until the first event is seen.
      */
     public long getTime() {
+        if (clockType == ClockType.EVENT_CLOCK) {
+            return eventClock.getTime();
+        }
         return System.currentTimeMillis();
     }
 
@@ -241,11 +294,6 @@ public abstract class App {
      */
     public void setClockType(ClockType clockType) {
         this.clockType = clockType;
-
-        if (clockType == ClockType.EVENT_CLOCK) {
-            logger.error("Event clock not implemented yet.");
-            System.exit(1);
-        }
     }
 
     /**
@@ -255,6 +303,35 @@ public abstract class App {
         return clockType;
     }
 
+    /**
+     * @return the event clock, used when the clock type is {@link ClockType#EVENT_CLOCK}
+     */
+    public EventClock getEventClock() {
+        return eventClock;
+    }
+
+    /**
+     * Runs a task periodically according to the app clock: on the node-wide timer scheduler with the wall clock, when
+     * watermarks pass the task deadlines with the event clock.
+     */
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit timeUnit) {
+        if (clockType == ClockType.EVENT_CLOCK) {
+            return eventClock.scheduleAtFixedRate(task, initialDelay, period, timeUnit);
+        }
+        return timerScheduler.scheduleAtFixedRate(task, initialDelay, period, timeUnit);
+    }
+
+    /**
+     * Runs a task once, after a delay on the app clock, see
+     * {@link #scheduleAtFixedRate(Runnable, long, long, TimeUnit)}.
+     */
+    public ScheduledTask schedule(Runnable task, long delay, TimeUnit timeUnit) {
+        if (clockType == ClockType.EVENT_CLOCK) {
+            return eventClock.schedule(task, delay, timeUnit);
+        }
+        return timerScheduler.schedule(task, delay, timeUnit);
+    }
+
     /**
      * @return the sender object
      */
@@ -273,6 +350,43 @@ public abstract class App {
         return serDeser;
     }
 
+    /**
+     * Registers an event class with a stable id. Events of registered classes are serialized with a generated
+     * serializer, and identified by their id instead of their class name. Call this method from {@link #onInit()}, with
+     * the same ids on every node running the app.
+     * <p>
+     * Events sent to other apps through output streams are not affected: the consumer app may not know the class.
+     * 
+     * @param eventType
+     *            the event class
+     * @param id
+     *            an id between 0 and {@link KryoSerDeser#MAX_STABLE_ID}, unique within the app
+     */
+    protected void registerEventType(Class<? extends Event> eventType, int id) {
+        serDeser.registerClass(eventType, id);
+    }
+
+    /**
+     * Registers the schema of generic events with a stable id, so that the names and types of their attributes are not
+     * serialized with each event. Call this method from {@link #onInit()}, with the same ids on every node running the
+     * app.
+     * 
+     * @param schema
+     *            the schema
+     * @param id
+     *            a non-negative id, unique within the app
+     */
+    protected void registerEventSchema(EventSchema schema, int id) {
+        serDeser.registerSchema(schema, id);
+    }
+
+    /**
+     * @return the scheduler that runs PE timers, shared by all the apps of the node
+     */
+    public TimingWheelScheduler getTimerScheduler() {
+        return timerScheduler;
+    }
+
     public CheckpointingFramework getCheckpointingFramework() {
         return checkpointingFramework;
     }
@@ -302,6 +416,21 @@ public abstract class App {
                 .register();
     }
 
+    /**
+     * Creates a stream with a specific key finder and queue configuration. Use this method for streams whose input
+     * rate or burstiness needs a different queue structure or capacity than the default.
+     * 
+     * @param queueConfig
+     *            the queue structure and capacity of each lane of the stream
+     * @see App#createStream(String, KeyFinder, Class, ProcessingElement...)
+     * @see StreamQueueConfig
+     */
+    protected <T extends Event> Stream<T> createStream(String name, KeyFinder<T> finder, Class<T> eventType,
+            StreamQueueConfig queueConfig, ProcessingElement... processingElements) {
+
+        return createStream(name, finder, eventType, processingElements).setQueueConfig(queueConfig);
+    }
+
     /**
      * @see App#createStream(String, KeyFinder, Class, ProcessingElement...)
      */
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.s4.base.CompositeKey;
+
+import com.google.common.base.Function;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+
+/**
+ * PE instances held in a Guava cache, for prototypes that limit the number of instances or expire them. Only these
+ * prototypes pay for the cache's access-order bookkeeping.
+ */
+class CachedInstanceTable implements InstanceTable {
+
+    private final LoadingCache<String, ProcessingElement> cache;
+
+    /**
+     * @param removalListener
+     *            notified of the removed instances, including evicted ones
+     */
+    CachedInstanceTable(CacheBuilder<Object, Object> cacheBuilder, final Function<String, ProcessingElement> factory,
+            RemovalListener<String, ProcessingElement> removalListener) {
+        cache = cacheBuilder.removalListener(removalListener).build(new CacheLoader<String, ProcessingElement>() {
+            @Override
+            public ProcessingElement load(String key) throws Exception {
+                return factory.apply(key);
+            }
+        });
+    }
+
+    @Override
+    public ProcessingElement get(String key) {
+        return cache.getUnchecked(key);
+    }
+
+    @Override
+    public ProcessingElement get(CompositeKey key) {
+        return cache.getUnchecked(key.toString());
+    }
+
+    @Override
+    public ProcessingElement getIfPresent(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    @Override
+    public void remove(String key) {
+        cache.invalidate(key);
+    }
+
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public Collection<ProcessingElement> values() {
+        return Collections.unmodifiableCollection(cache.asMap().values());
+    }
+
+    @Override
+    public Map<String, ProcessingElement> asMap() {
+        return Collections.unmodifiableMap(cache.asMap());
+    }
+}
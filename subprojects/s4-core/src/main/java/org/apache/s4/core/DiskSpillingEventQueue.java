@@ -0,0 +1,269 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.s4.base.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.Closeables;
+
+/**
+ * An event queue that keeps up to <code>capacity</code> events in memory and serializes the following ones to a spill
+ * file. Once events are spilled, new events also go to the file until it is drained, so events are always taken in the
+ * order they were put. Producers do not wait, unless an event cannot be spilled while older events are in the file:
+ * {@link #offer(Event)} then rejects it and {@link #put(Event)} waits for the file to be drained.
+ * <p>
+ * Each queue uses a single spill file, created on the first spill, emptied whenever it is drained and deleted when the
+ * queue is closed.
+ */
+class DiskSpillingEventQueue implements EventQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskSpillingEventQueue.class);
+
+    private final int capacity;
+    private final Stream<?> stream;
+    private final File directory;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final ArrayDeque<Event> memory = new ArrayDeque<Event>();
+
+    /* guarded by lock */
+    private File spillFile;
+    private DataOutputStream spillOut;
+    private DataInputStream spillIn;
+    private int spilled = 0;
+    /* set when a write failed: the file may end with a partial record, so nothing is appended until it is drained */
+    private boolean spillFailed = false;
+
+    DiskSpillingEventQueue(int capacity, Stream<?> stream, File directory) {
+        this.capacity = capacity;
+        this.stream = stream;
+        this.directory = directory;
+    }
+
+    @Override
+    public boolean offer(Event event) {
+        lock.lock();
+        try {
+            if (!enqueue(event)) {
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Event event) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(event)) {
+                drained.await();
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Queues an event unless it would overtake spilled events. Guarded by lock. */
+    private boolean enqueue(Event event) {
+        if (spilled == 0 && memory.size() < capacity) {
+            memory.add(event);
+            return true;
+        }
+        if (spill(event)) {
+            return true;
+        }
+        if (spilled > 0) {
+            return false;
+        }
+        // nothing is spilled, so the events in memory are all older: keep it there rather than losing it
+        memory.add(event);
+        return true;
+    }
+
+    @Override
+    public Event take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (memory.isEmpty() && spilled == 0) {
+                notEmpty.await();
+            }
+            if (memory.isEmpty()) {
+                refill();
+            }
+            return memory.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<Event> batch, int maxEvents) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxEvents) {
+                if (memory.isEmpty()) {
+                    if (spilled == 0) {
+                        break;
+                    }
+                    refill();
+                    if (memory.isEmpty()) {
+                        break;
+                    }
+                }
+                batch.add(memory.poll());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return memory.size() + spilled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            memory.clear();
+            if (spilled > 0) {
+                logger.warn("Discarding {} spilled events of stream {}", spilled, stream.getName());
+            }
+            deleteSpillFile();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean spill(Event event) {
+        if (spillFailed) {
+            return false;
+        }
+        byte[] bytes;
+        try {
+            bytes = stream.getApp().getSerDeser().serialize(event);
+        } catch (RuntimeException e) {
+            logger.error("Cannot serialize event of stream " + stream.getName() + " to spill it", e);
+            return false;
+        }
+        try {
+            openSpillFile();
+            spillOut.writeInt(bytes.length);
+            spillOut.write(bytes);
+            spilled++;
+            return true;
+        } catch (IOException e) {
+            logger.error("Cannot spill event of stream " + stream.getName() + " to disk", e);
+            if (spilled > 0) {
+                spillFailed = true;
+            } else {
+                resetSpillFile();
+            }
+            return false;
+        }
+    }
+
+    private void openSpillFile() throws IOException {
+        if (spillFile == null) {
+            spillFile = File.createTempFile("s4-" + String.valueOf(stream.getName()).replaceAll("[^\\w.-]", "_")
+                    + "-", ".spill", directory);
+        }
+        if (spillOut == null) {
+            spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            logger.info("Stream {} is spilling events to {}", stream.getName(), spillFile);
+        }
+    }
+
+    /* Moves up to capacity spilled events back to memory, oldest first. */
+    private void refill() {
+        try {
+            spillOut.flush();
+            while (spilled > 0 && memory.size() < capacity) {
+                byte[] bytes = new byte[spillIn.readInt()];
+                spillIn.readFully(bytes);
+                memory.add((Event) stream.getApp().getSerDeser().deserialize(bytes));
+                spilled--;
+            }
+        } catch (IOException e) {
+            logger.error("Cannot read spilled events of stream " + stream.getName() + ", discarding " + spilled
+                    + " events", e);
+            spilled = 0;
+        }
+        if (spilled == 0) {
+            resetSpillFile();
+        }
+    }
+
+    /* Closes and empties the drained spill file, kept for the next spill. */
+    private void resetSpillFile() {
+        Closeables.closeQuietly(spillOut);
+        Closeables.closeQuietly(spillIn);
+        spillOut = null;
+        spillIn = null;
+        spilled = 0;
+        spillFailed = false;
+        if (spillFile != null) {
+            try {
+                new FileOutputStream(spillFile).close();
+            } catch (IOException e) {
+                logger.warn("Cannot empty spill file {}", spillFile);
+            }
+        }
+        drained.signalAll();
+    }
+
+    private void deleteSpillFile() {
+        resetSpillFile();
+        if (spillFile != null && !spillFile.delete()) {
+            logger.warn("Cannot delete spill file {}", spillFile);
+        }
+        spillFile = null;
+    }
+}
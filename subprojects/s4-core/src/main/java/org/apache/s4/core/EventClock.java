@@ -0,0 +1,359 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The clock of an app using {@link App.ClockType#EVENT_CLOCK}. Time is given by the events flowing through the streams
+ * of the app, not by the system clock.
+ * <p>
+ * The clock time is a watermark: the time before which no more events are expected. It only moves forward. It is
+ * advanced by
+ * <ul>
+ * <li>regular events: the watermark is the highest event time seen, minus the allowed lateness,
+ * <li>{@link Watermark} events, which set it directly.
+ * </ul>
+ * Events are observed when a stream lane delivers them, so the clock follows the order in which PEs process events.
+ * <p>
+ * Tasks scheduled on the clock run when the watermark passes their deadline, in deadline order, on a firing thread
+ * dedicated to the clock. The thread that advanced the watermark, usually a stream lane about to deliver the event that
+ * advanced it, waits for that firing round, so that the due tasks run before the event is delivered. A periodic task
+ * runs once for every period the watermark went through, so replaying historical data gives the same results as
+ * processing it live, only as fast as the CPU allows.
+ * <p>
+ * Tasks lock PE instances, and may emit events to lanes. They never run on a lane, and a lane waits for a firing round
+ * without holding any lock. The wait is still bounded, see {@link #setMaxRoundWait(long, TimeUnit)}: if a task is
+ * blocked by the waiting lane, for instance because it emits to the full queue of that lane, the lane gives up waiting
+ * and goes on, and the remaining tasks of the round run concurrently with the next events.
+ */
+public class EventClock {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventClock.class);
+
+    private final AtomicLong watermark = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong maxEventTime = new AtomicLong(Long.MIN_VALUE);
+    private volatile long allowedLatenessMillis = 0;
+
+    /* guarded by itself */
+    private final PriorityQueue<EventTimer> timers = new PriorityQueue<EventTimer>();
+    /* Timers scheduled before the clock got its first time. Guarded by timers. */
+    private final List<EventTimer> unanchoredTimers = new ArrayList<EventTimer>();
+    private long sequence = 0;
+
+    /* Guards the firing round state below. */
+    private final Object rounds = new Object();
+    /* The watermark up to which due timers have fired. */
+    private long firedUpTo = Long.MIN_VALUE;
+    private boolean roundRequested = false;
+    private Thread firingThread;
+    private boolean closed = false;
+    private volatile long maxRoundWaitMillis = 1000;
+    private final AtomicLong abandonedWaits = new AtomicLong();
+
+    /**
+     * Sets how late events may arrive relative to the most recent event seen. The watermark trails the highest event
+     * time by this amount.
+     */
+    public void setAllowedLateness(long lateness, TimeUnit timeUnit) {
+        Preconditions.checkArgument(lateness >= 0, "Invalid lateness [%s]", lateness);
+        this.allowedLatenessMillis = timeUnit.toMillis(lateness);
+    }
+
+    public long getAllowedLateness(TimeUnit timeUnit) {
+        return timeUnit.convert(allowedLatenessMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets how long a thread advancing the watermark waits for the tasks that became due, 1 second by default. Past
+     * that, it goes on while they keep running.
+     */
+    public void setMaxRoundWait(long wait, TimeUnit timeUnit) {
+        Preconditions.checkArgument(wait > 0, "Invalid wait [%s]", wait);
+        this.maxRoundWaitMillis = timeUnit.toMillis(wait);
+    }
+
+    /**
+     * @return number of times a thread advancing the watermark stopped waiting for a firing round
+     */
+    public long getAbandonedWaits() {
+        return abandonedWaits.get();
+    }
+
+    /**
+     * @return the watermark in milliseconds, or {@link Long#MIN_VALUE} if no event was seen yet
+     */
+    public long getTime() {
+        return watermark.get();
+    }
+
+    /**
+     * Accounts for an event with the given time, advancing the watermark if needed.
+     */
+    public void observe(long eventTime) {
+        long max;
+        do {
+            max = maxEventTime.get();
+            if (eventTime <= max) {
+                return;
+            }
+        } while (!maxEventTime.compareAndSet(max, eventTime));
+        advanceTo(eventTime - allowedLatenessMillis);
+    }
+
+    /**
+     * Moves the watermark forward to the given time and waits for the tasks that became due to run. Earlier times are
+     * ignored. The caller must not hold any lock that the tasks may need, like the lock of a PE instance.
+     */
+    public void advanceTo(long time) {
+        long current;
+        do {
+            current = watermark.get();
+            if (time <= current) {
+                return;
+            }
+        } while (!watermark.compareAndSet(current, time));
+
+        if (current == Long.MIN_VALUE) {
+            anchorTimers(time);
+        }
+        if (hasDueTimer()) {
+            awaitRound(time);
+        }
+    }
+
+    /**
+     * Runs a task periodically, starting after an initial delay counted from the current watermark, or from the first
+     * watermark if the clock has no time yet.
+     */
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit timeUnit) {
+        Preconditions.checkArgument(period > 0, "Invalid period [%s]", period);
+        return add(new EventTimer(task, timeUnit.toMillis(initialDelay), timeUnit.toMillis(period)));
+    }
+
+    /**
+     * Runs a task once, after a delay counted like the initial delay of
+     * {@link #scheduleAtFixedRate(Runnable, long, long, TimeUnit)}.
+     */
+    public ScheduledTask schedule(Runnable task, long delay, TimeUnit timeUnit) {
+        return add(new EventTimer(task, timeUnit.toMillis(delay), 0));
+    }
+
+    private ScheduledTask add(EventTimer timer) {
+        synchronized (timers) {
+            timer.sequence = sequence++;
+            long now = watermark.get();
+            if (now == Long.MIN_VALUE) {
+                unanchoredTimers.add(timer);
+                return timer;
+            }
+            timer.deadline = now + timer.initialDelay;
+            timers.add(timer);
+        }
+        // tasks may be scheduled under the lock of a PE instance, so do not wait for them
+        if (hasDueTimer()) {
+            requestRound();
+        }
+        return timer;
+    }
+
+    private void anchorTimers(long time) {
+        synchronized (timers) {
+            for (EventTimer timer : unanchoredTimers) {
+                timer.deadline = time + timer.initialDelay;
+                timers.add(timer);
+            }
+            unanchoredTimers.clear();
+        }
+    }
+
+    private boolean hasDueTimer() {
+        synchronized (timers) {
+            EventTimer next = timers.peek();
+            return next != null && next.deadline <= watermark.get();
+        }
+    }
+
+    /**
+     * Stops the firing thread. Pending tasks do not run anymore.
+     */
+    public void close() {
+        synchronized (rounds) {
+            closed = true;
+            if (firingThread != null) {
+                firingThread.interrupt();
+            }
+            rounds.notifyAll();
+        }
+    }
+
+    /* Guarded by rounds. */
+    private void startFiringThread() {
+        if (firingThread == null) {
+            firingThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    fireRounds();
+                }
+            }, "EventClock-timers");
+            firingThread.setDaemon(true);
+            firingThread.start();
+        }
+    }
+
+    private void requestRound() {
+        synchronized (rounds) {
+            if (closed) {
+                return;
+            }
+            startFiringThread();
+            roundRequested = true;
+            rounds.notifyAll();
+        }
+    }
+
+    /* Waits until the timers due at the given time have fired, or for the maximum round wait. */
+    private void awaitRound(long time) {
+        synchronized (rounds) {
+            if (closed) {
+                return;
+            }
+            startFiringThread();
+            roundRequested = true;
+            rounds.notifyAll();
+            long deadline = System.currentTimeMillis() + maxRoundWaitMillis;
+            boolean interrupted = false;
+            while (firedUpTo < time && !closed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    abandonedWaits.incrementAndGet();
+                    logger.warn("Timers due at [{}] still firing after [{}] ms, not waiting for them anymore.", time,
+                            maxRoundWaitMillis);
+                    break;
+                }
+                try {
+                    rounds.wait(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* The loop of the firing thread: each round runs the timers due at the watermark read when it starts. */
+    private void fireRounds() {
+        while (true) {
+            synchronized (rounds) {
+                while (!roundRequested && !closed) {
+                    try {
+                        rounds.wait();
+                    } catch (InterruptedException e) {
+                        // closed
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                roundRequested = false;
+            }
+            long time = watermark.get();
+            fireDueTimers(time);
+            synchronized (rounds) {
+                if (time > firedUpTo) {
+                    firedUpTo = time;
+                }
+                rounds.notifyAll();
+            }
+        }
+    }
+
+    /* Runs the timers due at the given time, in deadline order. Only called by the firing thread. */
+    private void fireDueTimers(long time) {
+        while (true) {
+            EventTimer timer;
+            synchronized (timers) {
+                timer = timers.peek();
+                if (timer == null || timer.deadline > time) {
+                    return;
+                }
+                timers.poll();
+            }
+            if (timer.cancelled) {
+                continue;
+            }
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                logger.error("Exception from event time task [{}].", timer.task, e);
+            }
+            if (timer.period > 0 && !timer.cancelled) {
+                synchronized (timers) {
+                    timer.deadline += timer.period;
+                    timers.add(timer);
+                }
+            }
+        }
+    }
+
+    private static class EventTimer implements ScheduledTask, Comparable<EventTimer> {
+        final Runnable task;
+        final long initialDelay;
+        final long period;
+        long deadline;
+        /* Orders timers with the same deadline by scheduling order. */
+        long sequence;
+        volatile boolean cancelled = false;
+
+        EventTimer(Runnable task, long initialDelay, long period) {
+            this.task = task;
+            this.initialDelay = initialDelay;
+            this.period = period;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(EventTimer other) {
+            if (deadline != other.deadline) {
+                return deadline < other.deadline ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.Collection;
+
+import org.apache.s4.base.Event;
+
+/**
+ * The queue of events waiting to be delivered by a {@link Stream} lane. Implementations are created from a
+ * {@link StreamQueueConfig}. Any number of threads may put events, a single lane thread takes them.
+ */
+interface EventQueue {
+
+    /** Queues an event if there is room, without waiting. */
+    boolean offer(Event event);
+
+    /** Queues an event, waiting for room if necessary. */
+    void put(Event event) throws InterruptedException;
+
+    /** Removes the oldest event, waiting for one if necessary. */
+    Event take() throws InterruptedException;
+
+    /** Removes up to maxEvents of the oldest events and adds them to batch, without waiting. Returns their number. */
+    int drainTo(Collection<Event> batch, int maxEvents);
+
+    int size();
+
+    /** Releases resources held by the queue. */
+    void close();
+}
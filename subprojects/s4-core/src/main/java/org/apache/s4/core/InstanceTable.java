@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.s4.base.CompositeKey;
+
+/**
+ * The PE instances of a prototype, by key. Missing instances are created on access. Implementations are thread safe.
+ * <p>
+ * {@link KeyedInstanceTable} is used by default. {@link CachedInstanceTable} is used when the prototype has a cache
+ * configuration, see {@link ProcessingElement#setPECache(int, long, java.util.concurrent.TimeUnit)}.
+ */
+interface InstanceTable {
+
+    /** Returns the instance for key, creating it if needed. */
+    ProcessingElement get(String key);
+
+    /** Returns the instance for the canonical form of key, creating it if needed. */
+    ProcessingElement get(CompositeKey key);
+
+    /** Returns the instance for key, or null if there is none. */
+    ProcessingElement getIfPresent(String key);
+
+    void remove(String key);
+
+    void clear();
+
+    long size();
+
+    /** A read-only view of the instances. */
+    Collection<ProcessingElement> values();
+
+    /** A read-only view of the instances by key. */
+    Map<String, ProcessingElement> asMap();
+}
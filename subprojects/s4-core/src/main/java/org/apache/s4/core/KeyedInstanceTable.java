@@ -0,0 +1,432 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.s4.base.CompositeKey;
+
+import com.google.common.base.Function;
+
+/**
+ * An open-addressing hash table of PE instances, without expiration or size limit.
+ * <p>
+ * Lookups of existing instances take no lock and allocate nothing: they probe a table of entries that store the spread
+ * hash of their key, and only compare keys whose hashes match. Updates of the table are serialized. Removed entries
+ * leave a tombstone until the table is rebuilt, which happens when live entries and tombstones fill half of the table.
+ * A new table is published in a single volatile write, so readers always see a consistent table.
+ * <p>
+ * Instances are created without holding the lock: a pending entry reserves the key while the factory runs, and is
+ * replaced by the instance once created. Other threads asking for the same key wait for it, other keys are not
+ * blocked.
+ * <p>
+ * Entries are keyed by PE id. A {@link CompositeKey} is matched against the ids using its cached hash code, which is
+ * the hash code of its canonical form, so looking up an existing instance does not build the canonical form.
+ */
+class KeyedInstanceTable implements InstanceTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static class Entry implements Map.Entry<String, ProcessingElement> {
+        final String key;
+        final int hash;
+        final ProcessingElement pe;
+
+        Entry(String key, int hash, ProcessingElement pe) {
+            this.key = key;
+            this.hash = hash;
+            this.pe = pe;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public ProcessingElement getValue() {
+            return pe;
+        }
+
+        @Override
+        public ProcessingElement setValue(ProcessingElement value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /* Reserves a key while its instance is created. */
+    private static final class PendingEntry extends Entry {
+        final Thread creator = Thread.currentThread();
+        final CountDownLatch created = new CountDownLatch(1);
+        volatile ProcessingElement result;
+
+        PendingEntry(String key, int hash) {
+            super(key, hash, null);
+        }
+
+        /* Returns the created instance, or null if the creation failed. */
+        ProcessingElement await() {
+            if (creator == Thread.currentThread()) {
+                throw new IllegalStateException("Recursive creation of the instance for key [" + key + "]");
+            }
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        created.await();
+                        return result;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static final Entry TOMBSTONE = new Entry(null, 0, null);
+
+    private final Function<String, ProcessingElement> factory;
+
+    private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+    /* guarded by this */
+    private int used = 0;
+    private volatile int size = 0;
+
+    /**
+     * @param factory
+     *            creates the instance for a key
+     */
+    KeyedInstanceTable(Function<String, ProcessingElement> factory) {
+        this.factory = factory;
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
+
+    @Override
+    public ProcessingElement get(String key) {
+        ProcessingElement pe = getIfPresent(key);
+        return pe != null ? pe : create(key);
+    }
+
+    @Override
+    public ProcessingElement get(CompositeKey key) {
+        int hash = spread(key.hashCode());
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            Entry e = t.get(i);
+            if (e == null) {
+                return create(key.toString());
+            }
+            if (e.hash == hash && e != TOMBSTONE && key.contentEquals(e.key)) {
+                return e.pe != null ? e.pe : create(key.toString());
+            }
+        }
+    }
+
+    @Override
+    public ProcessingElement getIfPresent(String key) {
+        int hash = spread(key.hashCode());
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            Entry e = t.get(i);
+            if (e == null) {
+                return null;
+            }
+            if (e.hash == hash && e != TOMBSTONE && key.equals(e.key)) {
+                return e.pe;
+            }
+        }
+    }
+
+    private ProcessingElement create(String key) {
+        int hash = spread(key.hashCode());
+        while (true) {
+            PendingEntry pending;
+            boolean creating = false;
+            synchronized (this) {
+                Entry e = find(key, hash);
+                if (e == null) {
+                    pending = new PendingEntry(key, hash);
+                    insert(pending);
+                    creating = true;
+                } else if (e instanceof PendingEntry) {
+                    pending = (PendingEntry) e;
+                } else {
+                    return e.pe;
+                }
+            }
+            if (!creating) {
+                ProcessingElement pe = pending.await();
+                if (pe != null) {
+                    return pe;
+                }
+                // the creation failed, try again
+                continue;
+            }
+
+            ProcessingElement pe = null;
+            try {
+                pe = factory.apply(key);
+            } finally {
+                publish(pending, pe);
+            }
+            return pe;
+        }
+    }
+
+    /* Replaces a pending entry with the created instance, or removes it if the creation failed. */
+    private void publish(PendingEntry pending, ProcessingElement pe) {
+        synchronized (this) {
+            // the pending entry was moved if the table was rebuilt, and dropped if it was cleared
+            AtomicReferenceArray<Entry> t = table;
+            int mask = t.length() - 1;
+            for (int i = pending.hash & mask;; i = (i + 1) & mask) {
+                Entry e = t.get(i);
+                if (e == null) {
+                    break;
+                }
+                if (e == pending) {
+                    if (pe != null) {
+                        t.set(i, new Entry(pending.key, pending.hash, pe));
+                        size++;
+                    } else {
+                        t.set(i, TOMBSTONE);
+                    }
+                    break;
+                }
+            }
+        }
+        pending.result = pe;
+        pending.created.countDown();
+    }
+
+    /* Returns the live or pending entry of the key, or null. Must hold the lock. */
+    private Entry find(String key, int hash) {
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            Entry e = t.get(i);
+            if (e == null) {
+                return null;
+            }
+            if (e.hash == hash && e != TOMBSTONE && key.equals(e.key)) {
+                return e;
+            }
+        }
+    }
+
+    /* Must hold the lock. */
+    private void insert(Entry entry) {
+        if ((used + 1) * 2 > table.length()) {
+            rebuild();
+        }
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        for (int i = entry.hash & mask;; i = (i + 1) & mask) {
+            if (t.get(i) == null) {
+                t.set(i, entry);
+                used++;
+                return;
+            }
+        }
+    }
+
+    /* Copies live entries to a fresh table, large enough to stay at most a quarter full. Must hold the lock. */
+    private void rebuild() {
+        AtomicReferenceArray<Entry> old = table;
+        // pending entries are copied too
+        int live = 0;
+        for (int j = 0; j < old.length(); j++) {
+            Entry e = old.get(j);
+            if (e != null && e != TOMBSTONE) {
+                live++;
+            }
+        }
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (live + 1) * 4) {
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<Entry> t = new AtomicReferenceArray<Entry>(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length(); j++) {
+            Entry e = old.get(j);
+            if (e == null || e == TOMBSTONE) {
+                continue;
+            }
+            int i = e.hash & mask;
+            while (t.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+            t.set(i, e);
+        }
+        used = live;
+        table = t;
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        int hash = spread(key.hashCode());
+        AtomicReferenceArray<Entry> t = table;
+        int mask = t.length() - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            Entry e = t.get(i);
+            if (e == null) {
+                return;
+            }
+            if (e.hash == hash && e != TOMBSTONE && key.equals(e.key)) {
+                // an instance being created is not removed
+                if (e.pe != null) {
+                    t.set(i, TOMBSTONE);
+                    size--;
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+        used = 0;
+        size = 0;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public Collection<ProcessingElement> values() {
+        return new AbstractCollection<ProcessingElement>() {
+            @Override
+            public Iterator<ProcessingElement> iterator() {
+                final Iterator<Entry> entries = new EntryIterator();
+                return new Iterator<ProcessingElement>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public ProcessingElement next() {
+                        return entries.next().pe;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Map<String, ProcessingElement> asMap() {
+        return new AbstractMap<String, ProcessingElement>() {
+            @Override
+            public ProcessingElement get(Object key) {
+                return key instanceof String ? getIfPresent((String) key) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public Set<Map.Entry<String, ProcessingElement>> entrySet() {
+                return new AbstractSet<Map.Entry<String, ProcessingElement>>() {
+                    @SuppressWarnings({ "unchecked", "rawtypes" })
+                    @Override
+                    public Iterator<Map.Entry<String, ProcessingElement>> iterator() {
+                        return (Iterator) new EntryIterator();
+                    }
+
+                    @Override
+                    public int size() {
+                        return size;
+                    }
+                };
+            }
+        };
+    }
+
+    /* Iterates over the live entries of the table current when the iterator was created, skipping pending ones. */
+    private class EntryIterator implements Iterator<Entry> {
+        private final AtomicReferenceArray<Entry> t = table;
+        private int index = 0;
+        private Entry next = advance();
+
+        private Entry advance() {
+            while (index < t.length()) {
+                Entry e = t.get(index++);
+                if (e != null && e.pe != null) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry e = next;
+            next = advance();
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -163,12 +163,26 @@ public class Main {
 
             if (mainArgs.appClass != null) {
                 logger.info("Starting S4 node with single application from class [{}]", mainArgs.appClass);
-                App app = (App) injector.getInstance(Class.forName(mainArgs.appClass));
+                final App app = (App) injector.getInstance(Class.forName(mainArgs.appClass));
+                final TimingWheelScheduler timerScheduler = injector.getInstance(TimingWheelScheduler.class);
+                Runtime.getRuntime().addShutdownHook(new Thread("S4-shutdown") {
+                    @Override
+                    public void run() {
+                        app.close();
+                        timerScheduler.shutdown();
+                    }
+                });
                 app.init();
                 app.start();
             } else {
                 logger.info("Starting S4 node. This node will automatically download applications published for the cluster it belongs to");
-                Server server = injector.getInstance(Server.class);
+                final Server server = injector.getInstance(Server.class);
+                Runtime.getRuntime().addShutdownHook(new Thread("S4-shutdown") {
+                    @Override
+                    public void run() {
+                        server.stop();
+                    }
+                });
                 try {
                     server.start(injector);
                 } catch (Exception e) {
@@ -18,39 +18,48 @@
 
 package org.apache.s4.core;
 
-import java.lang.Thread.UncaughtExceptionHandler;
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.jcip.annotations.ThreadSafe;
 
+import org.apache.s4.base.CompositeKey;
 import org.apache.s4.base.Event;
+import org.apache.s4.core.ft.CheckpointChain;
 import org.apache.s4.core.ft.CheckpointId;
 import org.apache.s4.core.ft.CheckpointingConfig;
 import org.apache.s4.core.ft.CheckpointingConfig.CheckpointingMode;
+import org.apache.s4.core.ft.CheckpointingFramework;
+import org.apache.s4.core.ft.CheckpointingFramework.RecoveryMode;
 import org.apache.s4.core.ft.CheckpointingTask;
+import org.apache.s4.core.ft.DeltaCheckpointable;
 import org.apache.s4.core.gen.OverloadDispatcher;
 import org.apache.s4.core.gen.OverloadDispatcherGenerator;
+import org.apache.s4.core.gen.StateCopier;
+import org.apache.s4.core.gen.StateCopierGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
-import com.google.common.collect.Maps;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * <p>
@@ -70,12 +79,18 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * this method.
  * <li>{@code onTrigger(AnotherEvent event)} When implemented, input events of type {@code AnotherEvent} will be
  * dispatched to this method when certain conditions are met. See {@link #setTrigger(Class, int, long, TimeUnit)}.
+ * <li>{@code onEvents(Collection<SomeEvent> events)} When implemented, and the input stream delivers batches (see
+ * {@link Stream#setMaxBatchSize(int)}), input events of type {@code SomeEvent} are dispatched to this method instead of
+ * {@code onEvent()}. Consecutive events for the same instance come in a single call, under a single lock acquisition.
+ * The collection is only valid during the call. Triggers of a batch are checked after the batch is processed.
  * </ul>
  * <li>
  * A PE implementation must not create threads. A periodic task can be implemented by overloading the {@link #onTime()}
  * method. See {@link #setTimerInterval(long, TimeUnit)}
  * <li>If a reference in the PE prototype shared by the PE instances, the object must be thread safe.
- * <li>The code in a PE instance is synchronized by the framework to avoid concurrency problems.
+ * <li>The code in a PE instance is synchronized by the framework to avoid concurrency problems. The lock is skipped
+ * when the framework can guarantee that a single thread accesses each instance: the PE has a single keyed input stream
+ * (see {@link Stream#setLanes(int)}), no timer, no checkpointing and is not a singleton.
  * <li>In some special cases, it may be desirable to allow concurrency in the PE instance. For example, there may be
  * several event processing methods that can safely run concurrently. To enable concurrency, annotate the implementation
  * of {@code ProcessingElement} with {@link ThreadSafe}.
@@ -115,12 +130,18 @@ public abstract class ProcessingElement implements Cloneable {
 
     /*
      * This maps holds all the instances. We make it package private to prevent concrete classes from updating the
-     * collection.
+     * collection. It is a lock-free hash table unless a cache is configured with setPECache().
      */
-    transient LoadingCache<String, ProcessingElement> peInstances;
+    transient InstanceTable peInstances;
 
-    /* This map is initialized in the prototype and cloned to instances. */
+    /*
+     * Trigger configuration by event type, and by event class once resolved through the class hierarchy. Both maps are
+     * initialized in the prototype and shared with the instances, which only hold the trigger counters.
+     */
     transient Map<Class<? extends Event>, Trigger> triggers;
+    transient private Map<Class<?>, Trigger> resolvedTriggers;
+    transient private long[] triggerLastTimes;
+    transient private int[] triggerEventCounts;
 
     /* PE instance id. */
     protected String id = "";
@@ -129,17 +150,36 @@ public abstract class ProcessingElement implements Cloneable {
     transient private ProcessingElement pePrototype;
     transient private boolean haveTriggers = false;
     transient private long timerIntervalInMilliseconds = 0;
-    transient private ScheduledExecutorService triggerTimer;
-    transient private ScheduledExecutorService checkpointingTimer;
+    transient private ScheduledTask triggerTimer;
+    transient private ScheduledTask checkpointingTimer;
+    /* Instances whose onTime() call of the current timer round has not completed, only used by the prototype. */
+    transient private AtomicInteger pendingOnTime = new AtomicInteger();
     transient private boolean isPrototype = true;
     transient private boolean isThreadSafe = false;
     transient private String name = null;
     transient private boolean isSingleton = false;
     transient long eventCount = 0;
 
+    /* Streams sending events to this prototype, only maintained in the prototype. */
+    transient private List<Stream<?>> inputStreams = Lists.newArrayList();
+    /* True when each instance is only accessed by the stream lane that owns its key. */
+    transient private volatile boolean exclusiveLaneAccess = false;
+    /* Set while the framework runs the instance without its lock: timers scheduled meanwhile are deferred. */
+    transient private boolean deferTimers = false;
+    /* Timers scheduled while deferTimers was set, started once the instance can be locked. */
+    transient private volatile List<InstanceTimerTask> deferredTimers;
+    /* Instances evicted from the PE cache and reset, waiting to be reused. Only used by the prototype. */
+    transient private BlockingQueue<ProcessingElement> pool;
+
     transient private OverloadDispatcher overloadDispatcher;
+    /* The event type of the onEvents() method, null if the PE has none. */
+    transient private Class<? extends Event> batchEventType;
     transient private boolean recoveryAttempted = false;
+    /* Events received while the state is fetched asynchronously, null once the state is restored. Guarded by this. */
+    transient private List<Event> parkedEvents;
     transient private boolean dirty = false;
+    /* Checkpoints that will serialize this instance later. The instance is not recycled while there are some. */
+    transient private AtomicInteger pendingCheckpoints = new AtomicInteger();
 
     transient private CheckpointingConfig checkpointingConfig = new CheckpointingConfig.Builder(CheckpointingMode.NONE)
             .build();
@@ -147,19 +187,16 @@ public abstract class ProcessingElement implements Cloneable {
     protected ProcessingElement() {
         OverloadDispatcherGenerator oldg = new OverloadDispatcherGenerator(this.getClass());
         Class<?> overloadDispatcherClass = oldg.generate();
+        batchEventType = oldg.getBatchEventType();
         try {
             overloadDispatcher = (OverloadDispatcher) overloadDispatcherClass.newInstance();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-        peInstances = CacheBuilder.newBuilder().build(new CacheLoader<String, ProcessingElement>() {
-            @Override
-            public ProcessingElement load(String key) throws Exception {
-                return createPE(key);
-            }
-        });
+        peInstances = new KeyedInstanceTable(instanceFactory());
 
         triggers = new MapMaker().makeMap();
+        resolvedTriggers = new MapMaker().makeMap();
 
         /*
          * Only the PE Prototype uses the constructor. The PEPrototype field will be cloned by the instances and point
@@ -204,6 +241,18 @@ public abstract class ProcessingElement implements Cloneable {
      */
     abstract protected void onRemove();
 
+    /**
+     * This method is called when an instance is evicted from the PE cache and a PE pool is configured, see
+     * {@link #setPEPool(int)}. Override it to reset the fields that hold per-key state, for example by clearing the
+     * collections allocated in {@link #onCreate()}, and return true: the instance is then reused for a new key, and
+     * {@link #onCreate()} is not called again. The instance must be left in the state of a newly created instance.
+     * 
+     * @return true if the instance was reset and can be reused. The default is false: the instance is dropped.
+     */
+    protected boolean onRecycle() {
+        return false;
+    }
+
     /**
      * PE objects must be associated with one and only one {@code App} object.
      * 
@@ -259,13 +308,8 @@ public abstract class ProcessingElement implements Cloneable {
 
         Preconditions.checkArgument(isPrototype, "This method can only be used on the PE prototype. Trigger not set.");
 
-        peInstances = CacheBuilder.newBuilder().expireAfterAccess(duration, timeUnit).maximumSize(maximumSize)
-                .build(new CacheLoader<String, ProcessingElement>() {
-                    @Override
-                    public ProcessingElement load(String key) throws Exception {
-                        return createPE(key);
-                    }
-                });
+        peInstances = new CachedInstanceTable(CacheBuilder.newBuilder().expireAfterAccess(duration, timeUnit)
+                .maximumSize(maximumSize), instanceFactory(), evictionListener());
 
         return this;
     }
@@ -287,13 +331,30 @@ public abstract class ProcessingElement implements Cloneable {
 
         Preconditions.checkArgument(isPrototype, "This method can only be used on the PE prototype. Trigger not set.");
 
-        peInstances = CacheBuilder.newBuilder().maximumSize(maximumSize)
-                .build(new CacheLoader<String, ProcessingElement>() {
-                    @Override
-                    public ProcessingElement load(String key) throws Exception {
-                        return createPE(key);
-                    }
-                });
+        peInstances = new CachedInstanceTable(CacheBuilder.newBuilder().maximumSize(maximumSize), instanceFactory(),
+                evictionListener());
+
+        return this;
+    }
+
+    /**
+     * Reuse instances evicted from the PE cache for new keys, instead of cloning the prototype. Evicted instances are
+     * reset with {@link #onRecycle()} and kept in a pool of at most poolSize instances. This avoids most allocations
+     * when keys are short lived, such as session ids.
+     * <p>
+     * The pool is only used with a PE cache, see {@link #setPECache(int)}, and not for singletons. Instances of a
+     * pooled PE are always locked while they process an event.
+     * 
+     * @param poolSize
+     *            the maximum number of evicted instances waiting to be reused
+     * @return the PE prototype
+     */
+    public ProcessingElement setPEPool(int poolSize) {
+
+        Preconditions.checkArgument(isPrototype, "This method can only be used on the PE prototype. Pool not set.");
+        Preconditions.checkArgument(poolSize > 0, "Pool size must be positive, got %s", poolSize);
+
+        pool = new ArrayBlockingQueue<ProcessingElement>(poolSize);
 
         return this;
     }
@@ -339,9 +400,11 @@ public abstract class ProcessingElement implements Cloneable {
             interval = timeUnit.convert(interval, TimeUnit.MILLISECONDS);
         }
 
-        Trigger config = new Trigger(numEvents, interval);
+        Trigger previous = triggers.get(eventType);
+        Trigger config = new Trigger(previous != null ? previous.index : triggers.size(), numEvents, interval);
 
         triggers.put(eventType, config);
+        resolvedTriggers.clear();
 
         return this;
     }
@@ -397,23 +460,73 @@ public abstract class ProcessingElement implements Cloneable {
         Preconditions.checkArgument(isPrototype, "This method can only be used on the PE prototype. Trigger not set.");
 
         if (triggerTimer != null) {
-            triggerTimer.shutdownNow();
+            triggerTimer.cancel();
+            triggerTimer = null;
         }
 
-        if (interval == 0) {
-            return this;
-        }
+        return this;
+    }
+
+    /**
+     * Runs a task for this PE instance once, after a delay on the app clock. The task runs on a timer thread and is
+     * synchronized with the other methods of the instance, like {@link #onTime()}. It does not run if the instance has
+     * been removed in the meantime. Running it counts as an access to the instance.
+     * <p>
+     * Once an instance schedules a task, the events of all the instances of the PE are processed under the instance
+     * lock, even with a single keyed input stream. A task scheduled from {@link #onCreate()}, or from an event
+     * processed without the lock, is started when that call returns.
+     * 
+     * @return the scheduled task, which can be cancelled
+     */
+    protected ScheduledTask schedule(Runnable task, long delay, TimeUnit timeUnit) {
+        return scheduleInstanceTimer(new InstanceTimerTask(id, task, delay, 0, timeUnit));
+    }
 
-        ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
-                .setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+    /**
+     * Runs a task for this PE instance periodically, see {@link #schedule(Runnable, long, TimeUnit)}. The task is
+     * cancelled once the instance has been removed.
+     * 
+     * @return the scheduled task, which can be cancelled
+     */
+    protected ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit timeUnit) {
+        Preconditions.checkArgument(period > 0, "Invalid timer period: %s", period);
+        return scheduleInstanceTimer(new InstanceTimerTask(id, task, initialDelay, period, timeUnit));
+    }
 
-                    @Override
-                    public void uncaughtException(Thread t, Throwable e) {
-                        logger.error("Expection from timer thread", e);
-                    }
-                }).setNameFormat("Timer-" + getClass().getSimpleName()).build();
-        triggerTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
-        return this;
+    private ScheduledTask scheduleInstanceTimer(InstanceTimerTask timerTask) {
+        Preconditions.checkState(!isPrototype, "Timers can only be scheduled on PE instances.");
+        // timer tasks lock the instance, so event processing must lock it too from now on
+        pePrototype.exclusiveLaneAccess = false;
+        if (deferTimers) {
+            synchronized (this) {
+                List<InstanceTimerTask> timers = deferredTimers;
+                if (timers == null) {
+                    timers = Lists.newArrayList();
+                }
+                timers.add(timerTask);
+                deferredTimers = timers;
+            }
+        } else {
+            timerTask.start();
+        }
+        return timerTask;
+    }
+
+    /* Starts the timers scheduled while the instance was run without its lock. */
+    private void startDeferredTimers() {
+        if (deferredTimers == null) {
+            return;
+        }
+        List<InstanceTimerTask> timers;
+        synchronized (this) {
+            timers = deferredTimers;
+            deferredTimers = null;
+        }
+        if (timers != null) {
+            for (InstanceTimerTask timer : timers) {
+                timer.start();
+            }
+        }
     }
 
     /**
@@ -429,8 +542,80 @@ public abstract class ProcessingElement implements Cloneable {
         return isThreadSafe;
     }
 
+    /**
+     * Override and return true when the PE accesses its instances from threads other than the input stream lanes, so
+     * that the framework always synchronizes event processing.
+     * 
+     * @return true if event processing must always be synchronized on the PE instance. The default is false.
+     */
+    protected boolean requiresInstanceLocking() {
+        return false;
+    }
+
+    /* Called by the stream when this PE is registered as a target. */
+    void addInputStream(Stream<?> stream) {
+        inputStreams.add(stream);
+    }
+
+    /* Streams sending events to this prototype. */
+    List<Stream<?>> getInputStreams() {
+        return inputStreams;
+    }
+
+    /*
+     * Passes an event to the instance for key. With a PE pool, the instance is looked up again if it was evicted and
+     * recycled before it could process the event.
+     */
+    void handleInputEventForKey(CompositeKey key, Event event) {
+        ProcessingElement pe = getInstanceForKey(key);
+        if (pool == null || isSingleton) {
+            pe.handleInputEvent(event);
+            return;
+        }
+        while (!pe.handleOwnInputEvents(key, event, null)) {
+            pe = getInstanceForKey(key);
+        }
+    }
+
+    /* Same as handleInputEventForKey() for events delivered together. */
+    void handleInputEventsForKey(CompositeKey key, List<Event> events) {
+        ProcessingElement pe = getInstanceForKey(key);
+        if (pool == null || isSingleton) {
+            pe.handleInputEvents(events);
+            return;
+        }
+        while (!pe.handleOwnInputEvents(key, null, events)) {
+            pe = getInstanceForKey(key);
+        }
+    }
+
+    /* Processes the event, or the events, unless this instance was recycled and no longer has the id of key. */
+    private synchronized boolean handleOwnInputEvents(CompositeKey key, Event event, List<Event> events) {
+        if (id == null || !key.contentEquals(id)) {
+            return false;
+        }
+        if (events == null) {
+            processInputEvent(event);
+        } else {
+            processInputEvents(events);
+        }
+        return true;
+    }
+
     protected void handleInputEvent(Event event) {
 
+        if (pePrototype.exclusiveLaneAccess) {
+            /* Only the lane thread for this key can get here. */
+            deferTimers = true;
+            try {
+                processInputEvent(event);
+            } finally {
+                deferTimers = false;
+            }
+            startDeferredTimers();
+            return;
+        }
+
         Object object;
         if (isThreadSafe) {
             object = new Object(); // a dummy object TODO improve this.
@@ -438,26 +623,98 @@ public abstract class ProcessingElement implements Cloneable {
             object = this;
         }
         synchronized (object) {
-            if (!recoveryAttempted) {
-                recover();
-                recoveryAttempted = true;
-            }
+            processInputEvent(event);
+        }
+    }
 
-            /* Dispatch onEvent() method. */
-            overloadDispatcher.dispatchEvent(this, event);
+    /* True when the instances accept batches of events through an onEvents() method. */
+    boolean handlesEventBatches() {
+        return batchEventType != null;
+    }
 
-            /* Dispatch onTrigger() method. */
-            if (haveTriggers && isTrigger(event)) {
-                overloadDispatcher.dispatchTrigger(this, event);
+    /* Processes events delivered together by a stream lane, taking the instance lock once. */
+    void handleInputEvents(List<Event> events) {
+
+        if (pePrototype.exclusiveLaneAccess) {
+            deferTimers = true;
+            try {
+                processInputEvents(events);
+            } finally {
+                deferTimers = false;
             }
+            startDeferredTimers();
+            return;
+        }
 
-            eventCount++;
+        Object object;
+        if (isThreadSafe) {
+            object = new Object();
+        } else {
+            object = this;
+        }
+        synchronized (object) {
+            processInputEvents(events);
+        }
+    }
 
-            dirty = true;
+    private void processInputEvents(List<Event> events) {
+        if ((!recoveryAttempted || parkedEvents != null) && !recoverOrPark(null, events)) {
+            return;
+        }
 
-            if (isCheckpointable()) {
-                checkpoint();
+        /* Dispatch runs of events of the batch type to onEvents(), other events to onEvent(). */
+        int n = events.size();
+        int runStart = 0;
+        for (int i = 0; i <= n; i++) {
+            if (i < n && batchEventType.isInstance(events.get(i))) {
+                continue;
+            }
+            if (i > runStart) {
+                overloadDispatcher.dispatchEvents(this, i - runStart == n ? events : events.subList(runStart, i));
             }
+            if (i < n) {
+                overloadDispatcher.dispatchEvent(this, events.get(i));
+            }
+            runStart = i + 1;
+        }
+
+        /* Dispatch onTrigger() method. */
+        if (haveTriggers) {
+            for (Event event : events) {
+                if (isTrigger(event)) {
+                    overloadDispatcher.dispatchTrigger(this, event);
+                }
+            }
+        }
+
+        eventCount += n;
+
+        dirty = true;
+
+        if (isCheckpointable()) {
+            checkpoint();
+        }
+    }
+
+    private void processInputEvent(Event event) {
+        if ((!recoveryAttempted || parkedEvents != null) && !recoverOrPark(event, null)) {
+            return;
+        }
+
+        /* Dispatch onEvent() method. */
+        overloadDispatcher.dispatchEvent(this, event);
+
+        /* Dispatch onTrigger() method. */
+        if (haveTriggers && isTrigger(event)) {
+            overloadDispatcher.dispatchTrigger(this, event);
+        }
+
+        eventCount++;
+
+        dirty = true;
+
+        if (isCheckpointable()) {
+            checkpoint();
         }
     }
 
@@ -470,36 +727,63 @@ public abstract class ProcessingElement implements Cloneable {
         clearDirty();
     }
 
-    private boolean isTrigger(Event event) {
-        return isTrigger(event, event.getClass());
+    /**
+     * Called by the checkpointing framework, with the lock of this instance held, when it keeps this instance to
+     * serialize it later. Until the matching {@link #checkpointSerialized()} call, the instance is not recycled, so that
+     * it still holds the state of its key when it is serialized.
+     */
+    public void checkpointPending() {
+        pendingCheckpoints.incrementAndGet();
     }
 
     /**
-     * Checks the trigger for this event type. Creates an inactive trigger if no trigger is found after recursively
-     * exploring the event class hierarchy. An inactive trigger never triggers.
+     * Called by the checkpointing framework once it serialized this instance, or gave up serializing it, after a call
+     * to {@link #checkpointPending()}.
+     */
+    public void checkpointSerialized() {
+        pendingCheckpoints.decrementAndGet();
+    }
+
+    /**
+     * Checks the trigger for this event type, found by exploring the event class hierarchy, and updates the counters of
+     * this instance.
      * 
-     * @return true if trigger is reached, false if trigger is not ready yet or if trigger is inactive
+     * @return true if trigger is reached, false if trigger is not ready yet or if no trigger is configured
      * 
      */
-    private boolean isTrigger(Event event, Class<?> triggerClass) {
-        /* Check if there is a trigger for this event type. Create an */
-        Trigger trigger = triggers.get(triggerClass);
+    private boolean isTrigger(Event event) {
+        Trigger trigger = pePrototype.triggerFor(event.getClass());
+        if (!trigger.isActive()) {
+            return false;
+        }
+        if (triggerLastTimes == null || trigger.index >= triggerLastTimes.length) {
+            int numTriggers = pePrototype.triggers.size();
+            triggerLastTimes = triggerLastTimes == null ? new long[numTriggers] : Arrays.copyOf(triggerLastTimes,
+                    numTriggers);
+            triggerEventCounts = triggerEventCounts == null ? new int[numTriggers] : Arrays.copyOf(
+                    triggerEventCounts, numTriggers);
+        }
+        return trigger.checkAndUpdate(triggerLastTimes, triggerEventCounts,
+                getApp().getClockType() == App.ClockType.EVENT_CLOCK ? event.getTime() : System.currentTimeMillis());
+    }
 
+    /* Returns the trigger configured for the closest type of the event class, or an inactive trigger. */
+    private Trigger triggerFor(Class<?> eventClass) {
+        Trigger trigger = resolvedTriggers.get(eventClass);
         if (trigger == null) {
-            if (!Event.class.isAssignableFrom(triggerClass)) {
-                // reached termination condition
-                triggers.put(event.getClass(), new Trigger());
-                return false;
-            } else {
-                // further explore hierarchy
-                return isTrigger(event, triggerClass.getSuperclass());
+            trigger = Trigger.INACTIVE;
+            Class<?> triggerClass = eventClass;
+            while (Event.class.isAssignableFrom(triggerClass)) {
+                Trigger configured = triggers.get(triggerClass);
+                if (configured != null) {
+                    trigger = configured;
+                    break;
+                }
+                triggerClass = triggerClass.getSuperclass();
             }
-        } else {
-            /*
-             * Check if it is time to activate the trigger for this event type.
-             */
-            return trigger.checkAndUpdate();
+            resolvedTriggers.put(eventClass, trigger);
         }
+        return trigger;
     }
 
     private void removeInstanceForKeyInternal(String id) {
@@ -511,35 +795,103 @@ public abstract class ProcessingElement implements Cloneable {
         onRemove();
 
         /* Remove PE instance. */
-        peInstances.invalidate(id);
+        peInstances.remove(id);
     }
 
     protected void removeAll() {
 
         /* Close resources in prototype. */
         if (triggerTimer != null) {
-            triggerTimer.shutdownNow();
+            triggerTimer.cancel();
             logger.info("Trigger timer stopped.");
         }
+        if (checkpointingTimer != null) {
+            checkpointingTimer.cancel();
+        }
 
         /* Remove all the instances. */
-        peInstances.invalidateAll();
+        peInstances.clear();
     }
 
     protected void close() {
         removeInstanceForKeyInternal(id);
     }
 
+    private Function<String, ProcessingElement> instanceFactory() {
+        return new Function<String, ProcessingElement>() {
+            @Override
+            public ProcessingElement apply(String key) {
+                return createPE(key);
+            }
+        };
+    }
+
     private ProcessingElement createPE(String id) {
-        ProcessingElement pe = (ProcessingElement) this.clone();
+        ProcessingElement pe = pool == null ? null : pool.poll();
+        if (pe != null) {
+            synchronized (pe) {
+                pe.id = id;
+            }
+            logger.trace("Reused pooled PE instance for id {}.", id);
+            return pe;
+        }
+        pe = (ProcessingElement) this.clone();
         pe.isPrototype = false;
+        pe.pendingCheckpoints = new AtomicInteger();
         pe.id = id;
-        pe.triggers = Maps.newHashMap(triggers);
-        pe.onCreate();
+        // the instance is not published yet, its timers start when it is looked up
+        pe.deferTimers = true;
+        try {
+            pe.onCreate();
+        } finally {
+            pe.deferTimers = false;
+        }
         logger.trace("Num PE instances: {}.", getNumPEInstances());
         return pe;
     }
 
+    private RemovalListener<String, ProcessingElement> evictionListener() {
+        return new RemovalListener<String, ProcessingElement>() {
+            @Override
+            public void onRemoval(RemovalNotification<String, ProcessingElement> notification) {
+                if (notification.wasEvicted() && notification.getValue() != null) {
+                    recycle(notification.getValue());
+                }
+            }
+        };
+    }
+
+    /*
+     * Resets an evicted instance and puts it in the pool. The id is cleared first, so that a lane which looked the
+     * instance up before the eviction notices it, see handleInputEventForKey().
+     */
+    private void recycle(ProcessingElement pe) {
+        if (pool == null || isSingleton) {
+            return;
+        }
+        synchronized (pe) {
+            if (pe.parkedEvents != null || pe.pendingCheckpoints.get() > 0) {
+                /*
+                 * The instance processes its parked events once recovered, or is serialized later under the
+                 * checkpoint id of its key, it is not reused.
+                 */
+                return;
+            }
+            pe.id = null;
+            if (!pe.onRecycle()) {
+                return;
+            }
+            pe.eventCount = 0;
+            pe.dirty = false;
+            pe.recoveryAttempted = false;
+            if (pe.triggerLastTimes != null) {
+                Arrays.fill(pe.triggerLastTimes, 0);
+                Arrays.fill(pe.triggerEventCounts, 0);
+            }
+        }
+        pool.offer(pe);
+    }
+
     /* This method is called by App just before the application starts. */
     protected void initPEPrototypeInternal() {
 
@@ -548,30 +900,22 @@ public abstract class ProcessingElement implements Cloneable {
             try {
                 peInstances.get(SINGLETON);
                 logger.trace("Created singleton [{}].", getInstanceForKey(SINGLETON));
-            } catch (ExecutionException e) {
+            } catch (RuntimeException e) {
                 logger.error("Problem when trying to create a PE instance.", e);
             }
         }
 
         /* Start timer. */
-        if (triggerTimer != null) {
-            triggerTimer.scheduleAtFixedRate(new OnTimeTask(), 0, timerIntervalInMilliseconds, TimeUnit.MILLISECONDS);
+        if (timerIntervalInMilliseconds > 0) {
+            triggerTimer = getApp().scheduleAtFixedRate(new OnTimeTask(), 0, timerIntervalInMilliseconds,
+                    TimeUnit.MILLISECONDS);
             logger.debug("Started timer for PE prototype [{}], ID [{}] with interval [{}].", new String[] {
                     this.getClass().getName(), id, String.valueOf(timerIntervalInMilliseconds) });
         }
 
         if (checkpointingConfig.mode == CheckpointingMode.TIME) {
-            ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
-                    .setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-
-                        @Override
-                        public void uncaughtException(Thread t, Throwable e) {
-                            logger.error("Expection from checkpointing thread", e);
-                        }
-                    }).setNameFormat("Checkpointing-trigger-" + getClass().getSimpleName()).build();
-            checkpointingTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
-            checkpointingTimer.scheduleAtFixedRate(new CheckpointingTask(this), checkpointingConfig.frequency,
-                    checkpointingConfig.frequency, checkpointingConfig.timeUnit);
+            checkpointingTimer = getApp().getTimerScheduler().scheduleAtFixedRate(new CheckpointingTask(this),
+                    checkpointingConfig.frequency, checkpointingConfig.frequency, checkpointingConfig.timeUnit);
             logger.debug(
                     "Started checkpointing timer for PE prototype [{}], ID [{}] with interval [{}] [{}].",
                     new String[] { this.getClass().getName(), id, String.valueOf(checkpointingConfig.frequency),
@@ -587,6 +931,18 @@ public abstract class ProcessingElement implements Cloneable {
             logger.trace("Annotated with @ThreadSafe");
         }
 
+        /*
+         * A keyed stream always delivers a given key from the same lane. If it is the only source of events for the
+         * instances, they don't need to be locked.
+         */
+        exclusiveLaneAccess = inputStreams.size() == 1 && inputStreams.get(0).getKey() != null && !isSingleton
+                && triggerTimer == null && checkpointingConfig.mode == CheckpointingMode.NONE && pool == null
+                && !requiresInstanceLocking();
+        if (exclusiveLaneAccess) {
+            logger.trace("Instances of PE prototype [{}] are accessed by a single lane, skipping locks.", getClass()
+                    .getName());
+        }
+
     }
 
     /**
@@ -599,16 +955,33 @@ public abstract class ProcessingElement implements Cloneable {
 
         /* Check if instance for key exists, otherwise create one. */
         try {
-            if (isSingleton) {
-                return peInstances.get(SINGLETON);
-            }
-            return peInstances.get(id);
-        } catch (ExecutionException e) {
+            ProcessingElement pe = peInstances.get(isSingleton ? SINGLETON : id);
+            pe.startDeferredTimers();
+            return pe;
+        } catch (RuntimeException e) {
             logger.error("Problem when trying to create a PE instance for id {}", id, e);
         }
         return null;
     }
 
+    /**
+     * Same as {@link #getInstanceForKey(String)}, for a key computed by a {@link org.apache.s4.base.Key}. The id of
+     * the instance is the canonical form of the key.
+     */
+    public ProcessingElement getInstanceForKey(CompositeKey key) {
+        if (isSingleton) {
+            return getInstanceForKey(SINGLETON);
+        }
+        try {
+            ProcessingElement pe = peInstances.get(key);
+            pe.startDeferredTimers();
+            return pe;
+        } catch (RuntimeException e) {
+            logger.error("Problem when trying to create a PE instance for id {}", key, e);
+        }
+        return null;
+    }
+
     /**
      * Get all the local instances. See notes in {@link #getInstanceForKey(String) getLocalInstanceForKey}
      */
@@ -617,9 +990,9 @@ public abstract class ProcessingElement implements Cloneable {
             if (isSingleton) {
                 return ImmutableList.of(peInstances.get(SINGLETON));
             } else {
-                return peInstances.asMap().values();
+                return peInstances.values();
             }
-        } catch (ExecutionException e) {
+        } catch (RuntimeException e) {
             logger.error("Problem when trying to create a PE instance for id {}", id, e);
             return null;
         }
@@ -636,7 +1009,7 @@ public abstract class ProcessingElement implements Cloneable {
                 + "it to test your app in single node configuration only. Should work "
                 + "transparently for remote objects once it is implemented.");
 
-        ProcessingElement pe = peInstances.asMap().get(id);
+        ProcessingElement pe = peInstances.getIfPresent(id);
         return pe;
     }
 
@@ -700,32 +1073,131 @@ public abstract class ProcessingElement implements Cloneable {
         }
     }
 
-    private class OnTimeTask extends TimerTask {
+    /*
+     * Calls onTime() on every instance. Each call is a separate task of the timer scheduler, so that calls are spread
+     * over the worker threads while each instance stays locked during its own call. A round is skipped if calls of the
+     * previous round are still pending.
+     * 
+     * With the event clock, calls are made in turn on the firing thread of the clock, and the lane that advanced the
+     * clock waits for the round to complete before delivering the next events.
+     */
+    private class OnTimeTask implements Runnable {
 
         @Override
         public void run() {
 
-            for (Map.Entry<String, ProcessingElement> entry : getPEInstances().entrySet()) {
+            if (getApp().getClockType() == App.ClockType.EVENT_CLOCK) {
+                for (ProcessingElement peInstance : peInstances.values()) {
+                    callOnTime(peInstance);
+                }
+                return;
+            }
 
-                ProcessingElement peInstance = entry.getValue();
+            if (pendingOnTime.get() > 0) {
+                logger.trace("Skipping timer round for PE prototype [{}], [{}] instances still pending.", getClass()
+                        .getName(), pendingOnTime.get());
+                return;
+            }
 
-                try {
-                    if (isThreadSafe) {
-                        peInstance.onTime();
-                    } else {
-                        synchronized (peInstance) {
-                            peInstance.onTime();
+            TimingWheelScheduler scheduler = getApp().getTimerScheduler();
+            for (final ProcessingElement peInstance : peInstances.values()) {
+                pendingOnTime.incrementAndGet();
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            callOnTime(peInstance);
+                        } finally {
+                            pendingOnTime.decrementAndGet();
                         }
                     }
-                } catch (Exception e) {
-                    logger.error("Caught exception in timer when calling PE instance [{}] with id [{}].", peInstance,
-                            peInstance.id);
-                    logger.error("Timer error.", e);
+                });
+            }
+        }
+
+        private void callOnTime(ProcessingElement peInstance) {
+            try {
+                if (isThreadSafe) {
+                    peInstance.onTime();
+                } else {
+                    synchronized (peInstance) {
+                        peInstance.onTime();
+                    }
                 }
+            } catch (Exception e) {
+                logger.error("Caught exception in timer when calling PE instance [{}] with id [{}].", peInstance,
+                        peInstance.id);
+                logger.error("Timer error.", e);
             }
         }
     }
 
+    /* A task scheduled by an instance. It only runs while the instance is still the one for the key of the task. */
+    private class InstanceTimerTask implements Runnable, ScheduledTask {
+        private final String key;
+        private final Runnable task;
+        private final long delay;
+        private final long period;
+        private final TimeUnit timeUnit;
+        private volatile ScheduledTask scheduled;
+        private volatile boolean cancelled;
+
+        InstanceTimerTask(String key, Runnable task, long delay, long period, TimeUnit timeUnit) {
+            this.key = key;
+            this.task = task;
+            this.delay = delay;
+            this.period = period;
+            this.timeUnit = timeUnit;
+        }
+
+        void start() {
+            scheduled = period > 0 ? getApp().scheduleAtFixedRate(this, delay, period, timeUnit) : getApp().schedule(
+                    this, delay, timeUnit);
+            if (cancelled) {
+                scheduled.cancel();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            ScheduledTask scheduled = this.scheduled;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            if (isThreadSafe) {
+                runIfLive();
+            } else {
+                synchronized (ProcessingElement.this) {
+                    runIfLive();
+                }
+            }
+        }
+
+        private void runIfLive() {
+            if (cancelled) {
+                return;
+            }
+            if (!key.equals(id) || peInstances.getIfPresent(key) != ProcessingElement.this) {
+                cancel();
+                return;
+            }
+            task.run();
+        }
+    }
+
     /**
      * @return the PE name
      */
@@ -780,16 +1252,41 @@ public abstract class ProcessingElement implements Cloneable {
         this.dirty = false;
     }
 
+    /**
+     * Serializes this instance. The snapshots of {@link DeltaCheckpointable} PEs are wrapped in a
+     * {@link CheckpointChain}, to which the storage appends the deltas.
+     */
     public byte[] serializeState() {
-        return getApp().getSerDeser().serialize(this);
+        byte[] snapshot = getApp().getSerDeser().serialize(this);
+        if (this instanceof DeltaCheckpointable) {
+            return CheckpointChain.encode(snapshot, Collections.<byte[]> emptyList());
+        }
+        return snapshot;
     }
 
+    /**
+     * Deserializes data produced by {@link #serializeState()}. The deltas that follow the snapshot of a
+     * {@link DeltaCheckpointable} PE are ignored.
+     */
     public ProcessingElement deserializeState(byte[] loadedState) {
+        if (this instanceof DeltaCheckpointable) {
+            loadedState = CheckpointChain.decode(loadedState).get(0);
+        }
         return (ProcessingElement) getApp().getSerDeser().deserialize(loadedState);
     }
 
+    /**
+     * Copies the state fields of a deserialized instance into this instance. State fields are the non-static,
+     * non-transient fields declared by the application classes; they are copied by a {@link StateCopier} generated
+     * once per class.
+     */
     public void restoreState(ProcessingElement oldState) {
-        restoreFieldsForClass(oldState.getClass(), oldState);
+        if (oldState.getClass() != getClass()) {
+            logger.error("Cannot recover old state of class [{}] into PE of class [{}]", oldState.getClass().getName(),
+                    getClass().getName());
+            return;
+        }
+        StateCopierGenerator.copierFor(getClass()).copy(oldState, this);
     }
 
     protected void recover() {
@@ -800,10 +1297,23 @@ public abstract class ProcessingElement implements Cloneable {
             logger.error("Cannot fetch serialized stated for [{}/{}]: {}", new String[] {
                     getPrototype().getClass().getName(), getId(), e.getMessage() });
         }
+        restoreSerializedState(serializedState);
+    }
+
+    private void restoreSerializedState(byte[] serializedState) {
         if (serializedState == null) {
             return;
         }
         try {
+            if (this instanceof DeltaCheckpointable) {
+                /* A snapshot followed by deltas. */
+                List<byte[]> chain = CheckpointChain.decode(serializedState);
+                restoreState((ProcessingElement) getApp().getSerDeser().deserialize(chain.get(0)));
+                for (byte[] delta : chain.subList(1, chain.size())) {
+                    ((DeltaCheckpointable) this).applyStateDelta(getApp().getSerDeser().deserialize(delta));
+                }
+                return;
+            }
             ProcessingElement peInOldState = deserializeState(serializedState);
             restoreState(peInOldState);
         } catch (RuntimeException e) {
@@ -811,62 +1321,123 @@ public abstract class ProcessingElement implements Cloneable {
         }
     }
 
-    private void restoreFieldsForClass(Class<?> currentInOldStateClassHierarchy, ProcessingElement oldState) {
-        if (!ProcessingElement.class.isAssignableFrom(currentInOldStateClassHierarchy)) {
-            return;
-        } else {
-            Field[] fields = oldState.getClass().getDeclaredFields();
-            for (Field field : fields) {
-                if (!Modifier.isTransient(field.getModifiers()) && !Modifier.isStatic(field.getModifiers())) {
-                    if (!Modifier.isPublic(field.getModifiers())) {
-                        field.setAccessible(true);
-                    }
-                    try {
-                        // TODO use reflectasm
-                        field.set(this, field.get(oldState));
-                    } catch (IllegalArgumentException e) {
-                        logger.error("Cannot recover old state for this PE [{}]", e);
-                        return;
-                    } catch (IllegalAccessException e) {
-                        logger.error("Cannot recover old state for this PE [{}]", e);
-                        return;
-                    }
+    /*
+     * Recovers the state before the first event. With the PREFETCH recovery mode, if the checkpoint is not fetched yet,
+     * the event or events are parked and processed by the fetching thread once the state is restored, so that the
+     * stream does not wait for the storage backend.
+     * 
+     * Returns true if the events can be processed now.
+     */
+    private boolean recoverOrPark(Event event, List<Event> events) {
+        final ListenableFuture<byte[]> fetched;
+        synchronized (this) {
+            if (parkedEvents != null) {
+                park(event, events);
+                return false;
+            }
+            if (recoveryAttempted) {
+                return true;
+            }
+            recoveryAttempted = true;
+            CheckpointingFramework checkpointingFramework = getApp().getCheckpointingFramework();
+            if (checkpointingFramework.getRecoveryMode() != RecoveryMode.PREFETCH
+                    || checkpointingConfig.mode == CheckpointingMode.NONE) {
+                recover();
+                return true;
+            }
+            fetched = checkpointingFramework.fetchSerializedStateAsync(new CheckpointId(this));
+            if (fetched.isDone()) {
+                restoreSerializedState(fetchedState(fetched));
+                return true;
+            }
+            parkedEvents = Lists.newArrayList();
+            park(event, events);
+        }
+        fetched.addListener(new Runnable() {
+            @Override
+            public void run() {
+                resumeAfterRecovery(fetchedState(fetched));
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return false;
+    }
 
+    /* Parks up to maxParkedEvents events, the others are dropped. */
+    private void park(Event event, List<Event> events) {
+        List<Event> toPark = events == null ? Collections.singletonList(event) : events;
+        int room = Math.max(0, checkpointingConfig.maxParkedEvents - parkedEvents.size());
+        if (toPark.size() > room) {
+            if (room > 0 || parkedEvents.isEmpty()) {
+                logger.warn("Too many events for PE [{}] while its checkpoint is fetched, dropping events beyond {}",
+                        new CheckpointId(this), checkpointingConfig.maxParkedEvents);
+            }
+            toPark = toPark.subList(0, room);
+        }
+        parkedEvents.addAll(toPark);
+    }
+
+    private synchronized void resumeAfterRecovery(byte[] serializedState) {
+        restoreSerializedState(serializedState);
+        List<Event> events = parkedEvents;
+        parkedEvents = null;
+        logger.trace("Recovered PE [{}/{}], processing {} parked events", new String[] {
+                getPrototype().getClass().getName(), getId(), String.valueOf(events.size()) });
+        try {
+            if (batchEventType != null) {
+                processInputEvents(events);
+            } else {
+                for (Event event : events) {
+                    processInputEvent(event);
                 }
             }
-            restoreFieldsForClass(currentInOldStateClassHierarchy.getSuperclass(), oldState);
+        } catch (RuntimeException e) {
+            logger.error("Cannot process parked events for [" + new CheckpointId(this) + "]", e);
         }
     }
 
-    class Trigger {
+    /* The fetched checkpoint of a completed fetch, or null if the fetch failed. */
+    private byte[] fetchedState(ListenableFuture<byte[]> fetched) {
+        try {
+            return Uninterruptibles.getUninterruptibly(fetched);
+        } catch (ExecutionException e) {
+            logger.error("Cannot fetch checkpoint for [" + new CheckpointId(this) + "]", e.getCause());
+            return null;
+        }
+    }
+
+    /* Immutable trigger configuration, shared by the instances. The counters of trigger index are in each instance. */
+    static final class Trigger {
+        // the inactive trigger never triggers anything, it is used as a marker
+        static final Trigger INACTIVE = new Trigger();
+
+        final int index;
         final long intervalInMilliseconds;
         final int intervalInEvents;
-        long lastTime;
-        int eventCount;
-        // inactive triggers never trigger anything, they are used as markers
-        boolean active = true;
+        final boolean active;
 
-        Trigger() {
+        private Trigger() {
+            this.index = -1;
             this.intervalInEvents = 0;
             this.intervalInMilliseconds = 0;
             this.active = false;
         }
 
-        Trigger(int intervalInEvents, long intervalInMilliseconds) {
+        Trigger(int index, int intervalInEvents, long intervalInMilliseconds) {
+            this.index = index;
             this.intervalInEvents = intervalInEvents;
             this.intervalInMilliseconds = intervalInMilliseconds;
+            this.active = true;
         }
 
-        boolean checkAndUpdate() {
-            if (active) {
-                long timeLapse = System.currentTimeMillis() - lastTime;
-                eventCount++;
-                lastTime = System.currentTimeMillis();
+        /* now is the time of the event with the event clock, the system time otherwise. */
+        boolean checkAndUpdate(long[] lastTimes, int[] eventCounts, long now) {
+            long timeLapse = now - lastTimes[index];
+            eventCounts[index]++;
+            lastTimes[index] = now;
 
-                if (timeLapse > intervalInMilliseconds || eventCount >= intervalInEvents) {
-                    eventCount = 0;
-                    return true;
-                }
+            if (timeLapse > intervalInMilliseconds || eventCounts[index] >= intervalInEvents) {
+                eventCounts[index] = 0;
+                return true;
             }
             return false;
         }
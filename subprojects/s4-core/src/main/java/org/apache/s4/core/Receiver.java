@@ -18,18 +18,21 @@
 
 package org.apache.s4.core;
 
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.Listener;
-import org.apache.s4.base.SerializerDeserializer;
+import org.apache.s4.base.ShardedListener;
+import org.apache.s4.comm.serialize.EventMessageCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.MapMaker;
+import com.google.common.base.Preconditions;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 /**
  * The {@link Receiver} and its counterpart {@link Sender} are the top level classes of the communication layer.
@@ -37,10 +40,20 @@ import com.google.inject.Singleton;
  * {@link Receiver} is responsible for receiving an event to a {@link ProcessingElement} instance using a hashKey.
  * <p>
  * A Listener implementation receives data from the network and passes an event as a byte array to the {@link Receiver}.
- * The byte array is de-serialized and converted into an {@link Event}. Finally the event is passed to the matching
- * streams.
+ * The byte array is decoded with {@link EventMessageCodec} and passed to the matching stream, which converts it into an
+ * {@link Event}. Streams are matched using the app id and the stream id of the message.
  * </p>
- * There is a single {@link Receiver} instance per node.
+ * There is a single {@link Receiver} instance per node. It receives and routes messages from
+ * <code>s4.receiver.threads</code> threads (1 by default). With more than one thread, the listener must be a
+ * {@link ShardedListener} and each thread receives one shard: messages are decoded and deserialized in parallel, and
+ * the messages of a sender connection, therefore the events of a key from that sender, reach their stream in order.
+ * Other listeners are received from a single thread.
+ * <p>
+ * Streams are resolved through an immutable routing table, keyed by app id and stream id, that is replaced whenever a
+ * stream is added or removed. Lookups therefore take no lock.
+ * <p>
+ * A message that cannot be decoded, routed or received by its stream is logged, counted in
+ * {@link #getFailedMessages()} and skipped: it does not stop the receiving thread.
  * 
  * Details on how the cluster is partitioned and how events are serialized and transmitted to its destination are hidden
  * from the application developer. </p>
@@ -51,20 +64,50 @@ public class Receiver implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(Receiver.class);
 
     final private Listener listener;
-    final private SerializerDeserializer serDeser;
-    private Map<Integer, Map<String, Stream<? extends Event>>> streams;
-    private Thread thread;
+
+    @Inject(optional = true)
+    @Named("s4.receiver.threads")
+    int threadCount = 1;
+
+    private volatile RoutingTable routes = new RoutingTable(new long[0], new Stream<?>[0]);
+    private Thread[] threads = new Thread[0];
+    /* null if the listener is not sharded */
+    private ShardedListener shardedListener;
+    private final AtomicLong failedMessages = new AtomicLong();
 
     @Inject
-    public Receiver(Listener listener, SerializerDeserializer serDeser) {
+    public Receiver(Listener listener) {
         this.listener = listener;
-        this.serDeser = serDeser;
-
-        thread = new Thread(this, "Receiver");
-        // TODO avoid starting the thread here
-        thread.start();
+    }
 
-        streams = new MapMaker().makeMap();
+    /* Starts receiving once the optional settings are injected. */
+    @Inject
+    private void start() {
+        Preconditions.checkArgument(threadCount > 0, "Invalid number of receiver threads: %s", threadCount);
+        if (listener instanceof ShardedListener) {
+            shardedListener = (ShardedListener) listener;
+            if (shardedListener.getShardCount() != threadCount) {
+                logger.warn("Receiving from {} threads, one per shard of the listener, instead of {}",
+                        shardedListener.getShardCount(), threadCount);
+                threadCount = shardedListener.getShardCount();
+            }
+        } else if (threadCount > 1) {
+            logger.warn("Receiving from a single thread, so that messages stay in order: listener [{}] is not sharded",
+                    listener.getClass().getName());
+            threadCount = 1;
+        }
+        threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int shard = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive(shard);
+                }
+            }, threadCount == 1 ? "Receiver" : "Receiver-" + i);
+            // TODO avoid starting the threads here
+            threads[i].start();
+        }
     }
 
     int getPartition() {
@@ -72,50 +115,128 @@ public class Receiver implements Runnable {
     }
 
     /** Save stream keyed by app id and stream id. */
-    void addStream(Stream<? extends Event> stream) {
+    synchronized void addStream(Stream<? extends Event> stream) {
         int appId = stream.getApp().getId();
-        Map<String, Stream<? extends Event>> appMap = streams.get(appId);
-        if (appMap == null) {
-            appMap = new MapMaker().makeMap();
-            streams.put(appId, appMap);
-        }
-        appMap.put(stream.getName(), stream);
+        long route = route(appId, EventMessage.streamId(stream.getName()));
+        Stream<?> existing = routes.get(route);
+        Preconditions.checkState(existing == null || existing == stream || existing.getName().equals(stream.getName()),
+                "Streams [%s] and [%s] of app [%s] have the same id, rename one of them", stream.getName(),
+                existing == null ? null : existing.getName(), appId);
+        routes = routes.with(route, stream);
     }
 
     /** Remove stream when it is no longer needed. */
-    void removeStream(Stream<? extends Event> stream) {
-        int appId = stream.getApp().getId();
-        Map<String, Stream<? extends Event>> appMap = streams.get(appId);
-        if (appMap == null) {
+    synchronized void removeStream(Stream<? extends Event> stream) {
+        long route = route(stream.getApp().getId(), EventMessage.streamId(stream.getName()));
+        if (routes.get(route) == null) {
             logger.error("Tried to remove a stream that is not registered in the receiver.");
             return;
         }
-        appMap.remove(stream.getName());
+        routes = routes.with(route, null);
+    }
+
+    private static long route(int appId, int streamId) {
+        return ((long) appId << 32) | (streamId & 0xFFFFFFFFL);
     }
 
     public void run() {
+        receive(0);
+    }
+
+    private void receive(int shard) {
         // TODO: this thread never seems to get interrupted. SHould we catch an interrupted exception from listener
         // here?
         while (!Thread.interrupted()) {
-            byte[] message = listener.recv();
-            EventMessage event = (EventMessage) serDeser.deserialize(message);
-
-            int appId = Integer.valueOf(event.getAppName());
-            String streamId = event.getStreamName();
-
-            /*
-             * Match appId and streamId in event to the target stream and pass the event to the target stream. TODO:
-             * make this more efficient for the case in which we send the same event to multiple PEs.
-             */
+            byte[] message = shardedListener == null ? listener.recv() : shardedListener.recv(shard);
+            if (message == null) {
+                // interrupted while waiting
+                return;
+            }
             try {
-                streams.get(appId).get(streamId).receiveEvent(event);
-            } catch (NullPointerException e) {
-                logger.error("Could not find target stream for event with appId={} and streamId={}", appId, streamId);
+                dispatch(message);
+            } catch (RuntimeException e) {
+                failedMessages.incrementAndGet();
+                logger.error("Cannot process received message of " + message.length + " bytes, skipping it", e);
             }
         }
     }
 
+    private void dispatch(byte[] message) {
+        EventMessage event = EventMessageCodec.decode(message);
+
+        int appId = event.getAppId();
+        int streamId = event.getStreamId();
+
+        /*
+         * Match appId and streamId in event to the target stream and pass the event to the target stream. TODO: make
+         * this more efficient for the case in which we send the same event to multiple PEs.
+         */
+        Stream<?> stream = routes.get(route(appId, streamId));
+        if (stream == null) {
+            logger.error("Could not find target stream for event with appId={} and streamId={}", appId, streamId);
+            return;
+        }
+        stream.receiveEvent(event);
+    }
+
+    /**
+     * @return number of received messages skipped because they could not be decoded or received by their stream
+     */
+    public long getFailedMessages() {
+        return failedMessages.get();
+    }
+
     public void close() {
-        thread.interrupt();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    /* Immutable map from route to stream, sorted by route for binary search. */
+    private static class RoutingTable {
+        private final long[] routes;
+        private final Stream<?>[] streams;
+
+        RoutingTable(long[] routes, Stream<?>[] streams) {
+            this.routes = routes;
+            this.streams = streams;
+        }
+
+        Stream<?> get(long route) {
+            int index = Arrays.binarySearch(routes, route);
+            return index < 0 ? null : streams[index];
+        }
+
+        /* Returns a copy of this table where route maps to stream, or without route if stream is null. */
+        RoutingTable with(long route, Stream<?> stream) {
+            int index = Arrays.binarySearch(routes, route);
+            if (index >= 0) {
+                if (stream != null) {
+                    Stream<?>[] newStreams = streams.clone();
+                    newStreams[index] = stream;
+                    return new RoutingTable(routes, newStreams);
+                }
+                long[] newRoutes = new long[routes.length - 1];
+                Stream<?>[] newStreams = new Stream<?>[routes.length - 1];
+                System.arraycopy(routes, 0, newRoutes, 0, index);
+                System.arraycopy(streams, 0, newStreams, 0, index);
+                System.arraycopy(routes, index + 1, newRoutes, index, routes.length - index - 1);
+                System.arraycopy(streams, index + 1, newStreams, index, routes.length - index - 1);
+                return new RoutingTable(newRoutes, newStreams);
+            }
+            if (stream == null) {
+                return this;
+            }
+            int insertion = -index - 1;
+            long[] newRoutes = new long[routes.length + 1];
+            Stream<?>[] newStreams = new Stream<?>[routes.length + 1];
+            System.arraycopy(routes, 0, newRoutes, 0, insertion);
+            System.arraycopy(streams, 0, newStreams, 0, insertion);
+            newRoutes[insertion] = route;
+            newStreams[insertion] = stream;
+            System.arraycopy(routes, insertion, newRoutes, insertion + 1, routes.length - insertion);
+            System.arraycopy(streams, insertion, newStreams, insertion + 1, routes.length - insertion);
+            return new RoutingTable(newRoutes, newStreams);
+        }
     }
 }
@@ -18,6 +18,7 @@
 
 package org.apache.s4.core;
 
+import org.apache.s4.base.CompositeKey;
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.Hasher;
@@ -47,4 +48,20 @@ public class RemoteSender {
             emitter.send(partition, eventMessage);
         }
     }
+
+    public void send(CompositeKey key, EventMessage eventMessage) {
+        if (key == null) {
+            send((String) null, eventMessage);
+        } else {
+            int partition = (int) (Sender.hash(hasher, key) % emitter.getPartitionCount(eventMessage.getStreamName()));
+            emitter.send(partition, eventMessage);
+        }
+    }
+
+    public void sendToAllPartitions(EventMessage eventMessage) {
+        int partitionCount = emitter.getPartitionCount(eventMessage.getStreamName());
+        for (int partition = 0; partition < partitionCount; partition++) {
+            emitter.send(partition, eventMessage);
+        }
+    }
 }
@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.s4.base.CompositeKey;
 import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.Hasher;
@@ -66,6 +67,14 @@ public class RemoteSenders implements RemoteSendersManager {
      */
     @Override
     public void send(String hashKey, Event event) {
+        send(hashKey == null ? null : CompositeKey.of(hashKey), event);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.s4.core.RemoteSendersManager#send(org.apache.s4.base.CompositeKey, org.apache.s4.base.Event)
+     */
+    @Override
+    public void send(CompositeKey key, Event event) {
 
         Set<StreamConsumer> consumers = streams.getConsumers(event.getStreamName());
         for (StreamConsumer consumer : consumers) {
@@ -80,9 +89,13 @@ public class RemoteSenders implements RemoteSendersManager {
             // we must set the app id of the consumer app for correct dispatch within the consumer node
             // NOTE: this implies multiple serializations, there might be an optimization
             event.setAppId(consumer.getAppId());
-            EventMessage eventMessage = new EventMessage(String.valueOf(event.getAppId()), event.getStreamName(),
+            EventMessage eventMessage = new EventMessage(event.getAppId(), event.getStreamName(),
                     serDeser.serialize(event));
-            sender.send(hashKey, eventMessage);
+            if (event instanceof Watermark) {
+                sender.sendToAllPartitions(eventMessage);
+            } else {
+                sender.send(key, eventMessage);
+            }
         }
 
     }
@@ -1,5 +1,6 @@
 package org.apache.s4.core;
 
+import org.apache.s4.base.CompositeKey;
 import org.apache.s4.base.Event;
 
 public interface RemoteSendersManager
@@ -7,4 +8,6 @@ public interface RemoteSendersManager
 
   public abstract void send(String hashKey, Event event);
 
+  public abstract void send(CompositeKey key, Event event);
+
 }
\ No newline at end of file
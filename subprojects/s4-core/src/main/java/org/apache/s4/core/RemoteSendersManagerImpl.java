@@ -1,5 +1,6 @@
 package org.apache.s4.core;
 
+import org.apache.s4.base.CompositeKey;
 import org.apache.s4.base.Event;
 
 public class RemoteSendersManagerImpl implements RemoteSendersManager
@@ -11,4 +12,10 @@ public class RemoteSendersManagerImpl implements RemoteSendersManager
     
   }
 
+  @Override
+  public void send(CompositeKey key, Event event)
+  {
+    
+  }
+
 }
@@ -20,6 +20,7 @@ package org.apache.s4.core;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.s4.base.CompositeKey;
 import org.apache.s4.base.Event;
 import org.apache.s4.base.Hasher;
 import org.apache.s4.base.Key;
@@ -69,10 +70,10 @@ public class RemoteStream implements Streamable<Event> {
         event.setStreamId(getName());
         event.setAppId(app.getId());
 
-        if (key != null) {
-            remoteSenders.send(key.get(event), event);
+        if (key != null && !(event instanceof Watermark)) {
+            remoteSenders.send(key.getKey(event), event);
         } else {
-            remoteSenders.send(null, event);
+            remoteSenders.send((CompositeKey) null, event);
         }
     }
 
@@ -18,6 +18,8 @@
 
 package org.apache.s4.core;
 
+import org.apache.s4.base.CompositeKey;
+import org.apache.s4.base.CompositeKeyHasher;
 import org.apache.s4.base.Emitter;
 import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
@@ -43,7 +45,7 @@ public class Sender {
     private static Logger logger = LoggerFactory.getLogger(Sender.class);
 
     final private Emitter emitter;
-    final private SerializerDeserializer serDeser;
+    private SerializerDeserializer serDeser;
     final private Hasher hasher;
 
     Assignment assignment;
@@ -66,6 +68,11 @@ public class Sender {
         this.assignment = assignment;
     }
 
+    /* The owning app replaces the default serializer with its own. */
+    void setSerDeser(SerializerDeserializer serDeser) {
+        this.serDeser = serDeser;
+    }
+
     @Inject
     private void resolveLocalPartitionId() {
         ClusterNode node = assignment.assignClusterNode();
@@ -86,17 +93,53 @@ public class Sender {
      * 
      */
     public boolean checkAndSendIfNotLocal(String hashKey, Event event) {
-        int partition = (int) (hasher.hash(hashKey) % emitter.getPartitionCount(event.getStreamName()));
+        return checkAndSendIfNotLocal(hasher.hash(hashKey), event);
+    }
+
+    /**
+     * Same as {@link #checkAndSendIfNotLocal(String, Event)}, using the cached hash of a composite key when the hasher
+     * supports it.
+     * 
+     * @param key
+     *            the key used to map the event to a specific partition.
+     * @param event
+     *            the event to be delivered to a {@link ProcessingElement} instance.
+     * @return true if the event was sent because the destination is <b>not</b> local.
+     */
+    public boolean checkAndSendIfNotLocal(CompositeKey key, Event event) {
+        return checkAndSendIfNotLocal(hash(hasher, key), event);
+    }
+
+    private boolean checkAndSendIfNotLocal(long hash, Event event) {
+        int partition = (int) (hash % emitter.getPartitionCount(event.getStreamName()));
 
         if (partition == localPartitionId) {
             /* Hey we are in the same JVM, don't use the network. */
             return false;
         }
-        send(partition,
-                new EventMessage(String.valueOf(event.getAppId()), event.getStreamName(), serDeser.serialize(event)));
+        send(partition, new EventMessage(event.getAppId(), event.getStreamName(), serDeser.serialize(event)));
         return true;
     }
 
+    /**
+     * @param hashKey
+     *            the string used to map the value of a key to a specific partition.
+     * @param streamName
+     *            the stream the key belongs to
+     * @return true if events with this key are processed by the local partition
+     */
+    public boolean isLocal(String hashKey, String streamName) {
+        return (int) (hasher.hash(hashKey) % emitter.getPartitionCount(streamName)) == localPartitionId;
+    }
+
+    /* Hashes a key without building its canonical form, unless the hasher only supports strings. */
+    static long hash(Hasher hasher, CompositeKey key) {
+        if (hasher instanceof CompositeKeyHasher) {
+            return ((CompositeKeyHasher) hasher).hash(key);
+        }
+        return hasher.hash(key.toString());
+    }
+
     private void send(int partition, EventMessage event) {
         emitter.send(partition, event);
     }
@@ -110,14 +153,17 @@ public class Sender {
      */
     public void sendToRemotePartitions(Event event) {
 
+        /* The same message is sent to every partition, serialize it once. */
+        EventMessage eventMessage = null;
         for (int i = 0; i < emitter.getPartitionCount(event.getStreamName()); i++) {
 
             /* Don't use the comm layer when we send to the same partition. */
-            if (localPartitionId != i)
-                emitter.send(
-                        i,
-                        new EventMessage(String.valueOf(event.getAppId()), event.getStreamName(), serDeser
-                                .serialize(event)));
+            if (localPartitionId != i) {
+                if (eventMessage == null) {
+                    eventMessage = new EventMessage(event.getAppId(), event.getStreamName(), serDeser.serialize(event));
+                }
+                emitter.send(i, eventMessage);
+            }
         }
     }
 
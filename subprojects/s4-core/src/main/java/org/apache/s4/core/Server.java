@@ -20,6 +20,8 @@ package org.apache.s4.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.jar.Attributes.Name;
 import java.util.jar.JarFile;
@@ -84,6 +86,11 @@ public class Server {
     
     @Inject
     private Cluster cluster;
+
+    @Inject
+    private TimingWheelScheduler timerScheduler;
+
+    private final List<App> startedApps = new CopyOnWriteArrayList<App>();
     
     /**
      *
@@ -187,5 +194,21 @@ public class Server {
         app.init();
 
         app.start();
+        startedApps.add(app);
+    }
+
+    /**
+     * Closes the started applications and stops the node-wide timer threads.
+     */
+    public void stop() {
+        for (App app : startedApps) {
+            try {
+                app.close();
+            } catch (RuntimeException e) {
+                logger.error("Cannot close application [" + app.getClass().getName() + "]", e);
+            }
+        }
+        startedApps.clear();
+        timerScheduler.shutdown();
     }
 }
@@ -18,10 +18,19 @@
 
 package org.apache.s4.core;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.jcip.annotations.Immutable;
+
+import org.apache.s4.base.CompositeKey;
 import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
 import org.apache.s4.base.GenericKeyFinder;
@@ -31,6 +40,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
 
 /**
  * {@link Stream} and {@link ProcessingElement} objects represent the links and nodes in the application graph. A stream
@@ -39,24 +49,47 @@ import com.google.common.base.Preconditions;
  * Once a stream is instantiated, it is immutable.
  * <p>
  * To build an application, create stream objects using relevant methods in the {@link App} class.
+ * <p>
+ * Events that are delivered to a local partition are not serialized. By default the stream queues a copy of the event
+ * so that the emitting PE may keep modifying its instance. The copy is skipped, and the event object itself is queued,
+ * when:
+ * <ul>
+ * <li>the event class is annotated with {@link Immutable}, or
+ * <li>the stream is configured with {@link #setPassByReference(boolean)}.
+ * </ul>
+ * In both cases the application guarantees that the event is not modified once it is put in the stream.
+ * <p>
+ * By default a stream delivers events from a single thread. A keyed stream can be configured with
+ * {@link #setLanes(int)} to deliver events from several threads: each key is always handled by the same lane, so events
+ * for a given key are processed in order, while different keys are processed in parallel.
+ * <p>
+ * Each lane queues up to 1000 events in an array by default. Use {@link #setQueueConfig(StreamQueueConfig)} to pick
+ * another queue structure or capacity.
+ * <p>
+ * A lane can take several queued events at once, see {@link #setMaxBatchSize(int)}. Target PEs that implement
+ * {@code onEvents(Collection<T>)} then receive the events of each key in a single call.
  */
-public class Stream<T extends Event> implements Runnable, Streamable {
+public class Stream<T extends Event> implements Streamable {
 
     private static final Logger logger = LoggerFactory.getLogger(Stream.class);
 
     final static private String DEFAULT_SEPARATOR = "^";
-    final static private int CAPACITY = 1000;
     private static int idCounter = 0;
     private String name;
     protected Key<T> key;
     private ProcessingElement[] targetPEs;
-    protected final BlockingQueue<EventMessage> queue = new ArrayBlockingQueue<EventMessage>(CAPACITY);
-    private Thread thread;
+    private Lane[] lanes;
     final private Sender sender;
     final private Receiver receiver;
     // final private int id;
     final private App app;
     private Class<T> eventType = null;
+    private boolean passByReference = false;
+    private StreamQueueConfig queueConfig = StreamQueueConfig.DEFAULT;
+    private int maxBatchSize = 1;
+
+    /* Caches the result of the immutability check for each event class. Weak keys so we don't pin app classes. */
+    private static final ConcurrentMap<Class<?>, Boolean> immutableEventClasses = new MapMaker().weakKeys().makeMap();
 
     /**
      * Send events using a {@link KeyFinder}. The key finder extracts the value of the key which is used to determine
@@ -69,6 +102,7 @@ public class Stream<T extends Event> implements Runnable, Streamable {
         this.app = app;
         this.sender = app.getSender();
         this.receiver = app.getReceiver();
+        this.lanes = new Lane[] { new Lane(this, 0) };
     }
 
     public void start() {
@@ -81,10 +115,16 @@ public class Stream<T extends Event> implements Runnable, Streamable {
             }
         }
 
+        if (key == null && lanes.length > 1) {
+            logger.warn("Stream [{}] has no key, events will be delivered from a single lane instead of {}.", name,
+                    lanes.length);
+            lanes = new Lane[] { new Lane(this, 0) };
+        }
+
         /* Start streaming. */
-        thread = new Thread(this, name);
-        thread.setContextClassLoader(getApp().getClass().getClassLoader());
-        thread.start();
+        for (Lane lane : lanes) {
+            lane.start();
+        }
         this.receiver.addStream(this);
     }
 
@@ -138,6 +178,89 @@ public class Stream<T extends Event> implements Runnable, Streamable {
         return this;
     }
 
+    /**
+     * Deliver local events by reference instead of queuing a copy. Use it when events put in this stream are never
+     * modified afterwards, neither by the emitter nor by the receiving PEs. Events of classes annotated with
+     * {@link Immutable} are always delivered by reference.
+     * 
+     * @param passByReference
+     *            true to skip the defensive copy on local delivery, default is false.
+     * @return the stream object
+     */
+    public Stream<T> setPassByReference(boolean passByReference) {
+        this.passByReference = passByReference;
+        return this;
+    }
+
+    /**
+     * Deliver events from several threads. Events are assigned to a lane using the hash of their key, so events with
+     * the same key are always delivered in order by the same thread. Streams without a key use a single lane.
+     * <p>
+     * This must be set before the application is started.
+     * 
+     * @param numLanes
+     *            the number of delivery threads, default is 1.
+     * @return the stream object
+     */
+    public Stream<T> setLanes(int numLanes) {
+        Preconditions.checkArgument(numLanes > 0, "Number of lanes must be positive, got %s", numLanes);
+        Lane[] newLanes = new Lane[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            newLanes[i] = new Lane(this, i);
+        }
+        this.lanes = newLanes;
+        return this;
+    }
+
+    /**
+     * Configure the queue of each lane of this stream.
+     * <p>
+     * This must be set before the application is started.
+     * 
+     * @param queueConfig
+     *            the queue structure and capacity, default is an array of 1000 events.
+     * @return the stream object
+     */
+    public Stream<T> setQueueConfig(StreamQueueConfig queueConfig) {
+        Preconditions.checkNotNull(queueConfig);
+        this.queueConfig = queueConfig;
+        // recreate the lanes with the new queues
+        return setLanes(lanes.length);
+    }
+
+    /**
+     * Let each lane take up to maxBatchSize queued events at once. The events of a batch are grouped by key, in order,
+     * and each group is passed to the {@code onEvents(Collection<T>)} method of the target PE instance under a single
+     * lock acquisition. Target PEs without such a method still receive one event at a time. Lanes never wait to fill
+     * a batch, they only take the events that are already queued.
+     * <p>
+     * Batches are not used with the event clock, since timers may become due between two events.
+     * 
+     * @param maxBatchSize
+     *            the maximum number of events delivered together, default is 1.
+     * @return the stream object
+     */
+    public Stream<T> setMaxBatchSize(int maxBatchSize) {
+        Preconditions.checkArgument(maxBatchSize > 0, "Batch size must be positive, got %s", maxBatchSize);
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public StreamQueueConfig getQueueConfig() {
+        return queueConfig;
+    }
+
+    /**
+     * @return the number of delivery threads of this stream.
+     */
+    public int getLanes() {
+        return lanes.length;
+    }
+
     /**
      * Send events from this stream to a PE.
      * 
@@ -161,6 +284,9 @@ public class Stream<T extends Event> implements Runnable, Streamable {
      */
     public Stream<T> setPEs(ProcessingElement[] pes) {
         this.targetPEs = pes;
+        for (ProcessingElement pe : pes) {
+            pe.addInputStream(this);
+        }
         return this;
     }
 
@@ -178,20 +304,28 @@ public class Stream<T extends Event> implements Runnable, Streamable {
             /*
              * Events may be sent to local or remote partitions or both. The following code implements the logic.
              */
-            if (key != null) {
+            if (event instanceof Watermark) {
+
+                /* Watermarks go to every partition and every lane, whatever the key. */
+                sender.sendToRemotePartitions(event);
+                for (Lane lane : lanes) {
+                    lane.put(event);
+                }
+
+            } else if (key != null) {
 
                 /*
                  * We send to a specific PE instance using the key but we don't know if the target partition is remote
                  * or local. We need to ask the sender.
                  */
-                if (!sender.checkAndSendIfNotLocal(key.get((T) event), event)) {
+                CompositeKey keyValue = key.getKey((T) event);
+                if (!sender.checkAndSendIfNotLocal(keyValue, event)) {
 
                     /*
                      * Sender checked and decided that the target is local so we simply put the event in the queue and
                      * we save the trip over the network.
                      */
-                    queue.put(new EventMessage(String.valueOf(event.getAppId()), event.getStreamName(), app
-                            .getSerDeser().serialize(event)));
+                    laneFor(keyValue).put(localEvent(event));
                 }
 
             } else {
@@ -202,8 +336,7 @@ public class Stream<T extends Event> implements Runnable, Streamable {
                  * the queue.
                  */
                 sender.sendToRemotePartitions(event);
-                queue.put(new EventMessage(String.valueOf(event.getAppId()), event.getStreamName(), app.getSerDeser()
-                        .serialize(event)));
+                lanes[0].put(localEvent(event));
             }
         } catch (InterruptedException e) {
             logger.error("Interrupted while waiting to put an event in the queue: {}.", e.getMessage());
@@ -211,12 +344,51 @@ public class Stream<T extends Event> implements Runnable, Streamable {
         }
     }
 
+    private Lane laneFor(CompositeKey keyValue) {
+        if (lanes.length == 1) {
+            return lanes[0];
+        }
+        return lanes[(keyValue.hashCode() & Integer.MAX_VALUE) % lanes.length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private Lane laneFor(Event event) {
+        return key == null ? lanes[0] : laneFor(key.getKey((T) event));
+    }
+
+    /*
+     * Returns the event object to put in the local queue: the event itself when it is safe to share it, a copy
+     * otherwise.
+     */
+    private Event localEvent(Event event) {
+        if (passByReference || isImmutable(event.getClass())) {
+            return event;
+        }
+        return (Event) app.getSerDeser().deserialize(app.getSerDeser().serialize(event));
+    }
+
+    private static boolean isImmutable(Class<?> eventClass) {
+        Boolean immutable = immutableEventClasses.get(eventClass);
+        if (immutable == null) {
+            immutable = eventClass.isAnnotationPresent(Immutable.class);
+            immutableEventClasses.put(eventClass, immutable);
+        }
+        return immutable;
+    }
+
     /**
      * The low level {@link Receiver} object call this method when a new {@link Event} is available.
      */
-    public void receiveEvent(EventMessage event) {
+    public void receiveEvent(EventMessage eventMessage) {
         try {
-            queue.put(event);
+            Event event = (Event) app.getSerDeser().deserialize(eventMessage.getSerializedEventBuffer());
+            if (event instanceof Watermark) {
+                for (Lane lane : lanes) {
+                    lane.put(event);
+                }
+            } else {
+                laneFor(event).put(event);
+            }
         } catch (InterruptedException e) {
             logger.error("Interrupted while waiting to put an event in the queue: {}.", e.getMessage());
             Thread.currentThread().interrupt();
@@ -255,7 +427,10 @@ public class Stream<T extends Event> implements Runnable, Streamable {
      * Stop and close this stream.
      */
     public void close() {
-        thread.interrupt();
+        receiver.removeStream(this);
+        for (Lane lane : lanes) {
+            lane.close();
+        }
     }
 
     /**
@@ -272,56 +447,227 @@ public class Stream<T extends Event> implements Runnable, Streamable {
         return receiver;
     }
 
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                /* Get oldest event in queue. */
-                EventMessage eventMessage = queue.take();
+    /**
+     * @return number of events waiting to be delivered, over all lanes
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (Lane lane : lanes) {
+            size += lane.queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return maximum number of events that can wait to be delivered, over all lanes
+     */
+    public int getQueueCapacity() {
+        long capacity = (long) lanes.length * queueConfig.getEffectiveCapacity();
+        return (int) Math.min(capacity, Integer.MAX_VALUE);
+    }
 
-                @SuppressWarnings("unchecked")
-                T event = (T) app.getSerDeser().deserialize(eventMessage.getSerializedEvent());
+    /**
+     * @return number of times an event could not be queued immediately because a lane was full
+     */
+    public long getStallCount() {
+        long stalls = 0;
+        for (Lane lane : lanes) {
+            stalls += lane.stalls.get();
+        }
+        return stalls;
+    }
 
-                /* Send event to each target PE. */
-                for (int i = 0; i < targetPEs.length; i++) {
+    /**
+     * @return total time spent waiting for room in full lanes, in milliseconds
+     */
+    public long getStallTimeMillis() {
+        long nanos = 0;
+        for (Lane lane : lanes) {
+            nanos += lane.stallNanos.get();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
 
-                    if (key == null) {
+    public Stream<T> register() {
+        app.addStream(this);
+        return this;
+    }
 
-                        /* Broadcast to all PE instances! */
+    /* Sends an event taken from a lane queue to each target PE. */
+    @SuppressWarnings("unchecked")
+    private void dispatch(Event event) {
 
-                        /* STEP 1: find all PE instances. */
+        /* With the event clock, timers that become due fire before the event is delivered. Lanes hold no lock here. */
+        boolean eventClock = app.getClockType() == App.ClockType.EVENT_CLOCK;
+        if (event instanceof Watermark) {
+            if (eventClock) {
+                app.getEventClock().advanceTo(event.getTime());
+            }
+            return;
+        }
+        if (eventClock) {
+            app.getEventClock().observe(event.getTime());
+        }
 
-                        Collection<ProcessingElement> pes = targetPEs[i].getInstances();
+        for (int i = 0; i < targetPEs.length; i++) {
+            deliver(targetPEs[i], event);
+        }
+    }
 
-                        /* STEP 2: iterate and pass event to PE instance. */
-                        for (ProcessingElement pe : pes) {
+    @SuppressWarnings("unchecked")
+    private void deliver(ProcessingElement prototype, Event event) {
 
-                            pe.handleInputEvent(event);
-                        }
+        if (key == null) {
+
+            /* Broadcast to all PE instances! */
+
+            /* STEP 1: find all PE instances. */
+
+            Collection<ProcessingElement> pes = prototype.getInstances();
+
+            /* STEP 2: iterate and pass event to PE instance. */
+            for (ProcessingElement pe : pes) {
+
+                pe.handleInputEvent(event);
+            }
+
+        } else {
+
+            /* We have a key, send to target PE. */
+
+            /* Find the PE instance for key and pass event to it. */
+            prototype.handleInputEventForKey(key.getKey((T) event), event);
+        }
+    }
+
+    /*
+     * Sends events taken together from a lane queue to each target PE. PEs that accept batches receive the events of
+     * each instance in a single call, groups is scratch space owned by the lane.
+     */
+    @SuppressWarnings("unchecked")
+    private void dispatchBatch(List<Event> batch, Map<CompositeKey, List<Event>> groups) {
 
-                    } else {
+        if (app.getClockType() == App.ClockType.EVENT_CLOCK) {
+            for (Event event : batch) {
+                dispatch(event);
+            }
+            return;
+        }
+
+        /* Watermarks only matter to the event clock. */
+        for (Iterator<Event> it = batch.iterator(); it.hasNext();) {
+            if (it.next() instanceof Watermark) {
+                it.remove();
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
 
-                        /* We have a key, send to target PE. */
+        groups.clear();
+        for (int i = 0; i < targetPEs.length; i++) {
+            ProcessingElement prototype = targetPEs[i];
 
-                        /* STEP 1: find the PE instance for key. */
-                        ProcessingElement pe = targetPEs[i].getInstanceForKey(key.get(event));
+            if (!prototype.handlesEventBatches()) {
+                for (Event event : batch) {
+                    deliver(prototype, event);
+                }
 
-                        /* STEP 2: pass event to PE instance. */
-                        pe.handleInputEvent(event);
+            } else if (key == null) {
+                for (ProcessingElement pe : prototype.getInstances()) {
+                    pe.handleInputEvents(batch);
+                }
+
+            } else {
+                if (groups.isEmpty()) {
+                    for (Event event : batch) {
+                        CompositeKey keyValue = key.getKey((T) event);
+                        List<Event> group = groups.get(keyValue);
+                        if (group == null) {
+                            group = new ArrayList<Event>();
+                            groups.put(keyValue, group);
+                        }
+                        group.add(event);
                     }
                 }
+                for (Map.Entry<CompositeKey, List<Event>> group : groups.entrySet()) {
+                    prototype.handleInputEventsForKey(group.getKey(), group.getValue());
+                }
+            }
+        }
+    }
+
+    /* Delivers the events of a subset of the keys, in order, from a dedicated thread. */
+    private static class Lane implements Runnable {
+
+        final Stream<?> stream;
+        final int index;
+        final EventQueue queue;
+        final AtomicLong stalls = new AtomicLong();
+        final AtomicLong stallNanos = new AtomicLong();
+        Thread thread;
+
+        Lane(Stream<?> stream, int index) {
+            this.stream = stream;
+            this.index = index;
+            this.queue = stream.queueConfig.createQueue(stream);
+        }
 
-            } catch (InterruptedException e) {
-                logger.info("Closing stream {}.", name);
-                receiver.removeStream(this);
-                Thread.currentThread().interrupt();
+        void start() {
+            thread = new Thread(this, stream.lanes.length == 1 ? stream.name : stream.name + "-lane-" + index);
+            thread.setContextClassLoader(stream.getApp().getClass().getClassLoader());
+            thread.start();
+        }
+
+        /* Queues an event, waiting for room and accounting for the stall if the lane is full. */
+        void put(Event event) throws InterruptedException {
+            if (queue.offer(event)) {
                 return;
             }
+            long start = System.nanoTime();
+            stalls.incrementAndGet();
+            try {
+                queue.put(event);
+            } finally {
+                stallNanos.addAndGet(System.nanoTime() - start);
+            }
         }
-    }
 
-    public Stream<T> register() {
-        app.addStream(this);
-        return this;
+        void close() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+            queue.close();
+        }
+
+        @Override
+        public void run() {
+            List<Event> batch = new ArrayList<Event>();
+            Map<CompositeKey, List<Event>> groups = new LinkedHashMap<CompositeKey, List<Event>>();
+            while (true) {
+                try {
+                    /* Get oldest event in queue and send it to each target PE. */
+                    Event event = queue.take();
+                    if (stream.maxBatchSize == 1) {
+                        stream.dispatch(event);
+                        continue;
+                    }
+
+                    /* Along with the events queued behind it, a batch may hold a single event. */
+                    batch.add(event);
+                    queue.drainTo(batch, stream.maxBatchSize - 1);
+                    try {
+                        stream.dispatchBatch(batch, groups);
+                    } finally {
+                        batch.clear();
+                    }
+
+                } catch (InterruptedException e) {
+                    logger.info("Closing stream {}, lane {}.", stream.name, index);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
     }
 }
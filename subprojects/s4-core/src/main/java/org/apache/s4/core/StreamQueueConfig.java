@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.base.util.RingBuffer;
+import org.apache.s4.base.util.RingBuffer.OverflowPolicy;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Configuration of the queues of a {@link Stream}: queue structure and capacity. Each lane of the stream gets its own
+ * queue with this configuration. Use the {@link Builder} class to build instances.
+ *
+ */
+public class StreamQueueConfig {
+
+    /**
+     * Identifies the structure of the queue
+     *
+     */
+    public static enum QueueType {
+        /** bounded, array-backed: the default */
+        ARRAY,
+        /** bounded, linked nodes: memory is only used for queued events */
+        LINKED,
+        /** unbounded, linked nodes: producers never wait, capacity is ignored */
+        UNBOUNDED,
+        /** bounded, lock-free ring buffer: lowest hand-off latency, the consumer spins briefly when idle */
+        RING,
+        /** bounded in memory, events beyond capacity are serialized to a file: producers never wait */
+        DISK_SPILLING
+    }
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    public static final StreamQueueConfig DEFAULT = new Builder(QueueType.ARRAY).build();
+
+    public final QueueType type;
+    public final int capacity;
+    public final File spillDirectory;
+
+    private StreamQueueConfig(QueueType type, int capacity, File spillDirectory) {
+        this.type = type;
+        this.capacity = capacity;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /* Returns the number of events that can be queued before producers wait. */
+    int getEffectiveCapacity() {
+        return (type == QueueType.UNBOUNDED || type == QueueType.DISK_SPILLING) ? Integer.MAX_VALUE : capacity;
+    }
+
+    EventQueue createQueue(Stream<?> stream) {
+        switch (type) {
+        case LINKED:
+            return new BlockingEventQueue(new LinkedBlockingQueue<Event>(capacity));
+        case UNBOUNDED:
+            return new BlockingEventQueue(new LinkedBlockingQueue<Event>());
+        case RING:
+            return new RingEventQueue(new RingBuffer<Event>(capacity, OverflowPolicy.BLOCK));
+        case DISK_SPILLING:
+            return new DiskSpillingEventQueue(capacity, stream, spillDirectory);
+        default:
+            return new BlockingEventQueue(new ArrayBlockingQueue<Event>(capacity));
+        }
+    }
+
+    public static class Builder {
+        private QueueType type;
+        private int capacity = DEFAULT_CAPACITY;
+        private File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+        public Builder(QueueType type) {
+            this.type = type;
+        }
+
+        public Builder capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Directory where {@link QueueType#DISK_SPILLING} queues write their spill files. Default is the temporary
+         * directory.
+         */
+        public Builder spillDirectory(File spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        public StreamQueueConfig build() {
+            Preconditions.checkNotNull(type);
+            Preconditions.checkArgument(capacity > 0, "Queue capacity must be positive, got %s", capacity);
+            return new StreamQueueConfig(type, capacity, spillDirectory);
+        }
+
+    }
+
+    private static class BlockingEventQueue implements EventQueue {
+        private final BlockingQueue<Event> queue;
+
+        BlockingEventQueue(BlockingQueue<Event> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean offer(Event event) {
+            return queue.offer(event);
+        }
+
+        @Override
+        public void put(Event event) throws InterruptedException {
+            queue.put(event);
+        }
+
+        @Override
+        public Event take() throws InterruptedException {
+            return queue.take();
+        }
+
+        @Override
+        public int drainTo(Collection<Event> batch, int maxEvents) {
+            return queue.drainTo(batch, maxEvents);
+        }
+
+        @Override
+        public int size() {
+            return queue.size();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class RingEventQueue implements EventQueue {
+        private final RingBuffer<Event> ring;
+
+        RingEventQueue(RingBuffer<Event> ring) {
+            this.ring = ring;
+        }
+
+        @Override
+        public boolean offer(Event event) {
+            return ring.offer(event);
+        }
+
+        @Override
+        public void put(Event event) throws InterruptedException {
+            ring.put(event);
+        }
+
+        @Override
+        public Event take() throws InterruptedException {
+            return ring.take();
+        }
+
+        @Override
+        public int drainTo(Collection<Event> batch, int maxEvents) {
+            int n = 0;
+            Event event;
+            while (n < maxEvents && (event = ring.poll()) != null) {
+                batch.add(event);
+                n++;
+            }
+            return n;
+        }
+
+        @Override
+        public int size() {
+            return ring.size();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * Node-wide scheduler for PE timers, windowing and checkpointing tasks.
+ * <p>
+ * Timers are kept in a hierarchical timing wheel: {@value #LEVELS} wheels of {@value #WHEEL_SIZE} buckets, where a
+ * bucket of the first wheel spans one tick and a bucket of the next wheel spans a full rotation of the previous one.
+ * Scheduling and cancelling a timer take constant time. A single thread advances the wheels every tick, moves timers
+ * of the higher wheels down as their time approaches, and hands expired timers to a small pool of worker threads.
+ * <p>
+ * Periodic tasks run at a fixed rate. A run never overlaps with the previous run of the same task, and runs missed
+ * because the previous one took too long are skipped.
+ * <p>
+ * Threads are started when the first task is scheduled, so nodes without timers pay nothing.
+ */
+@Singleton
+public class TimingWheelScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheelScheduler.class);
+
+    static final int WHEEL_BITS = 8;
+    static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    static final int LEVELS = 4;
+    private static final int MASK = WHEEL_SIZE - 1;
+    /* Timers further away are parked in the last bucket reachable from the top wheel, and cascaded again from there. */
+    private static final long MAX_TICKS = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+    @Inject(optional = true)
+    @Named("s4.timer.threads")
+    int workerThreads = 2;
+
+    @Inject(optional = true)
+    @Named("s4.timer.tickMillis")
+    long tickMillis = 10;
+
+    private final Object lock = new Object();
+    /* guarded by lock */
+    private final Timeout[][] buckets = new Timeout[LEVELS][WHEEL_SIZE];
+    /* guarded by lock */
+    private long currentTick = 0;
+    /* guarded by lock */
+    private boolean started = false;
+
+    private long tickNanos;
+    private long startNanos;
+    private Thread ticker;
+    private ExecutorService workers;
+    private volatile boolean stopped = false;
+
+    /** Creates a scheduler configured by injection. */
+    public TimingWheelScheduler() {
+    }
+
+    public TimingWheelScheduler(int workerThreads, long tickMillis) {
+        this.workerThreads = workerThreads;
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * A scheduled task. Cancelling it prevents any further run.
+     */
+    public static final class Timeout implements ScheduledTask {
+        private final Runnable task;
+        private final long periodTicks;
+        /* guarded by the scheduler lock */
+        private long deadline;
+        /* guarded by the scheduler lock */
+        private Timeout next;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline, long periodTicks) {
+            this.task = task;
+            this.deadline = deadline;
+            this.periodTicks = periodTicks;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Runs a task once, after a delay. The delay is rounded up to a whole number of ticks.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return add(task, unit.toNanos(delay), 0);
+    }
+
+    /**
+     * Runs a task periodically, starting after an initial delay. Intervals are rounded up to a whole number of ticks.
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        Preconditions.checkArgument(period > 0, "Invalid period [%s]", period);
+        ensureStarted();
+        return add(task, unit.toNanos(initialDelay), Math.max(1, ticks(unit.toNanos(period))));
+    }
+
+    /**
+     * Runs a task on a worker thread as soon as possible. Use it to spread the work of a timer across cores.
+     */
+    public void execute(Runnable task) {
+        ensureStarted();
+        workers.execute(task);
+    }
+
+    /**
+     * Stops the threads of the scheduler. Pending tasks are discarded.
+     */
+    public void shutdown() {
+        stopped = true;
+        synchronized (lock) {
+            if (started) {
+                ticker.interrupt();
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    private void ensureStarted() {
+        synchronized (lock) {
+            if (started) {
+                return;
+            }
+            Preconditions.checkState(!stopped, "Scheduler is stopped");
+            tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+            startNanos = System.nanoTime();
+            UncaughtExceptionHandler handler = new UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread t, Throwable e) {
+                    logger.error("Exception from timer thread", e);
+                }
+            };
+            workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactoryBuilder().setDaemon(true)
+                    .setUncaughtExceptionHandler(handler).setNameFormat("Timer-worker-%d").build());
+            ticker = new ThreadFactoryBuilder().setDaemon(true).setUncaughtExceptionHandler(handler)
+                    .setNameFormat("Timer-wheel").build().newThread(new Ticker());
+            ticker.start();
+            started = true;
+            logger.info("Started timing wheel with a tick of [{}] ms and [{}] worker threads.", tickMillis,
+                    workerThreads);
+        }
+    }
+
+    private long ticks(long nanos) {
+        return (nanos + tickNanos - 1) / tickNanos;
+    }
+
+    private Timeout add(Runnable task, long delayNanos, long periodTicks) {
+        ensureStarted();
+        Timeout timeout = new Timeout(task, ticks(System.nanoTime() - startNanos + Math.max(0, delayNanos)),
+                periodTicks);
+        boolean due;
+        synchronized (lock) {
+            due = !insert(timeout);
+        }
+        if (due) {
+            dispatch(timeout);
+        }
+        return timeout;
+    }
+
+    /* Puts the timeout in the bucket where it waits for its deadline. Returns false if it is already due. */
+    private boolean insert(Timeout timeout) {
+        long delta = timeout.deadline - currentTick;
+        if (delta <= 0) {
+            return false;
+        }
+        long when = delta > MAX_TICKS ? currentTick + MAX_TICKS : timeout.deadline;
+        int level = 0;
+        while (level < LEVELS - 1 && (when - currentTick) >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        int index = (int) ((when >>> (WHEEL_BITS * level)) & MASK);
+        timeout.next = buckets[level][index];
+        buckets[level][index] = timeout;
+        return true;
+    }
+
+    /* Advances the wheels by one tick and collects the expired timeouts. */
+    private void tick(List<Timeout> expired) {
+        currentTick++;
+
+        /* When a wheel completes a rotation, the current bucket of the next wheel moves down. */
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                break;
+            }
+            int index = (int) ((currentTick >>> (WHEEL_BITS * level)) & MASK);
+            Timeout timeout = buckets[level][index];
+            buckets[level][index] = null;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (!timeout.cancelled && !insert(timeout)) {
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+
+        int index = (int) (currentTick & MASK);
+        Timeout timeout = buckets[0][index];
+        buckets[0][index] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (!timeout.cancelled && !insert(timeout)) {
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private void dispatch(final Timeout timeout) {
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (timeout.cancelled) {
+                        return;
+                    }
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable e) {
+                        logger.error("Exception from timer task [{}].", timeout.task, e);
+                    }
+                    if (timeout.periodTicks > 0 && !timeout.cancelled) {
+                        reschedule(timeout);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            if (!stopped) {
+                throw e;
+            }
+        }
+    }
+
+    private void reschedule(Timeout timeout) {
+        boolean due;
+        synchronized (lock) {
+            timeout.deadline += timeout.periodTicks;
+            if (timeout.deadline <= currentTick) {
+                /* Skip the runs we missed. */
+                timeout.deadline = currentTick + timeout.periodTicks
+                        - ((currentTick - timeout.deadline) % timeout.periodTicks);
+            }
+            due = !insert(timeout);
+        }
+        if (due) {
+            dispatch(timeout);
+        }
+    }
+
+    private class Ticker implements Runnable {
+
+        @Override
+        public void run() {
+            List<Timeout> expired = new ArrayList<Timeout>();
+            while (!stopped) {
+                long now = System.nanoTime() - startNanos;
+                synchronized (lock) {
+                    while (currentTick < now / tickNanos) {
+                        tick(expired);
+                    }
+                }
+                for (Timeout timeout : expired) {
+                    dispatch(timeout);
+                }
+                expired.clear();
+
+                long sleep;
+                synchronized (lock) {
+                    sleep = (currentTick + 1) * tickNanos - (System.nanoTime() - startNanos);
+                }
+                if (sleep > 0) {
+                    LockSupport.parkNanos(sleep);
+                }
+                if (Thread.interrupted()) {
+                    break;
+                }
+            }
+            logger.info("Timing wheel stopped.");
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import net.jcip.annotations.Immutable;
+
+import org.apache.s4.base.Event;
+
+/**
+ * An event that only carries a time: it tells the receiving apps that no event older than this time is expected on the
+ * stream. Watermarks advance the {@link EventClock} of apps using {@link App.ClockType#EVENT_CLOCK}, and are not
+ * delivered to PEs.
+ * <p>
+ * Regular events advance the clock too. Adapters only need to put watermarks in a stream when no event is sent for a
+ * while, so that timers keep firing.
+ * <p>
+ * Watermarks are broadcast to all partitions and lanes of a stream, whatever the key of the stream.
+ */
+@Immutable
+public class Watermark extends Event {
+
+    public Watermark() {
+        super();
+    }
+
+    public Watermark(long time) {
+        super(time);
+    }
+}
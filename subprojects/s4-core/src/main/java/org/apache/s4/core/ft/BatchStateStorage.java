@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.ft;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * A storage backend that stores several checkpoints in one operation, for instance with a single sync. The
+ * checkpointing framework hands it the batches of checkpoints written together.
+ * </p>
+ */
+public interface BatchStateStorage extends StateStorage {
+
+    /**
+     * Stores a batch of checkpoints.
+     *
+     * @param states
+     *            checkpoint data by safeKeeperId
+     * @param callbacks
+     *            callbacks by safeKeeperId, each notified of the result of storing its checkpoint
+     */
+    public void saveStates(Map<CheckpointId, byte[]> states, Map<CheckpointId, StorageCallback> callbacks);
+}
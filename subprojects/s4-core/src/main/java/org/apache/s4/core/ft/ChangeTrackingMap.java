@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.ft;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * A hash map that records the keys updated and removed since the last call to {@link #getDelta()}, for PEs
+ * implementing {@link DeltaCheckpointable}.
+ * </p>
+ * <p>
+ * Changes are only tracked through {@link #put(Object, Object)}, {@link #remove(Object)} and {@link #clear()}: the
+ * views are read-only, and values must be replaced rather than modified in place. Immutable values are best.
+ * </p>
+ * <p>
+ * This class does not implement {@link Map}, so that serializers save its entries as fields instead of replaying them
+ * through <code>put()</code>.
+ * </p>
+ */
+public class ChangeTrackingMap<K, V> {
+
+    private HashMap<K, V> entries = new HashMap<K, V>();
+    private transient HashSet<K> updatedKeys = new HashSet<K>();
+    private transient HashSet<K> removedKeys = new HashSet<K>();
+
+    public V get(Object key) {
+        return entries.get(key);
+    }
+
+    public boolean containsKey(Object key) {
+        return entries.containsKey(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public V put(K key, V value) {
+        updatedKeys.add(key);
+        removedKeys.remove(key);
+        return entries.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (!entries.containsKey(key)) {
+            return null;
+        }
+        updatedKeys.remove(key);
+        removedKeys.add((K) key);
+        return entries.remove(key);
+    }
+
+    public void clear() {
+        updatedKeys.clear();
+        removedKeys.addAll(entries.keySet());
+        entries.clear();
+    }
+
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public Collection<V> values() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public Set<Map.Entry<K, V>> entrySet() {
+        return Collections.unmodifiableMap(entries).entrySet();
+    }
+
+    /**
+     * @return the entries updated and the keys removed since the previous call. Tracking restarts from an empty delta.
+     */
+    public Delta<K, V> getDelta() {
+        Delta<K, V> delta = new Delta<K, V>();
+        for (K key : updatedKeys) {
+            delta.updated.put(key, entries.get(key));
+        }
+        delta.removed.addAll(removedKeys);
+        updatedKeys.clear();
+        removedKeys.clear();
+        return delta;
+    }
+
+    /**
+     * Applies a delta returned by {@link #getDelta()}, without tracking its changes.
+     */
+    public void applyDelta(Delta<K, V> delta) {
+        for (K key : delta.removed) {
+            entries.remove(key);
+        }
+        entries.putAll(delta.updated);
+    }
+
+    @Override
+    public String toString() {
+        return entries.toString();
+    }
+
+    /**
+     * Changes of a {@link ChangeTrackingMap}: the new values of the updated entries, and the removed keys.
+     */
+    public static class Delta<K, V> {
+        HashMap<K, V> updated = new HashMap<K, V>();
+        HashSet<K> removed = new HashSet<K>();
+
+        public Map<K, V> getUpdated() {
+            return updated;
+        }
+
+        public Set<K> getRemoved() {
+            return removed;
+        }
+    }
+}
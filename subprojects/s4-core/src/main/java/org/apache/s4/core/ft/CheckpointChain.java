@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.ft;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * Encodes a snapshot and the deltas stored after it in a single array. The checkpoints of {@link DeltaCheckpointable}
+ * PEs always use this format, snapshots included (see {@link org.apache.s4.core.ProcessingElement#serializeState()}),
+ * and the checkpoints of other PEs never do: the format is known from the type of the PE, not guessed from the data.
+ * <p>
+ * Format: a format version byte, the number of parts, then each part (snapshot first) prefixed by its length.
+ */
+public final class CheckpointChain {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private CheckpointChain() {
+    }
+
+    public static byte[] encode(byte[] snapshot, List<byte[]> deltas) {
+        int size = 1 + 4 + 4 + snapshot.length;
+        for (byte[] delta : deltas) {
+            size += 4 + delta.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(FORMAT_VERSION).putInt(1 + deltas.size());
+        buffer.putInt(snapshot.length).put(snapshot);
+        for (byte[] delta : deltas) {
+            buffer.putInt(delta.length).put(delta);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return a chain holding the parts of the given chain, followed by the deltas
+     */
+    public static byte[] append(byte[] chain, List<byte[]> deltas) {
+        List<byte[]> parts = decode(chain);
+        return encode(parts.get(0), Lists.newArrayList(Iterables.concat(parts.subList(1, parts.size()), deltas)));
+    }
+
+    /**
+     * @return the snapshot followed by the deltas
+     * @throws IllegalArgumentException
+     *             if the data was not encoded by {@link #encode(byte[], List)}
+     */
+    public static List<byte[]> decode(byte[] chain) {
+        if (chain.length < 5 || chain[0] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Not a checkpoint chain, or unsupported format version");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(chain, 1, chain.length - 1);
+        int parts = buffer.getInt();
+        if (parts < 1) {
+            throw new IllegalArgumentException("Invalid number of parts in checkpoint chain: " + parts);
+        }
+        List<byte[]> decoded = Lists.newArrayListWithCapacity(parts);
+        for (int i = 0; i < parts; i++) {
+            byte[] part = new byte[buffer.getInt()];
+            buffer.get(part);
+            decoded.add(part);
+        }
+        return decoded;
+    }
+}
@@ -38,17 +38,32 @@ public class CheckpointingConfig {
     public final CheckpointingMode mode;
     public final int frequency;
     public final TimeUnit timeUnit;
+    /**
+     * For PEs implementing {@link DeltaCheckpointable}: a full snapshot is stored every snapshotInterval checkpoints,
+     * the checkpoints in between only store the changes.
+     */
+    public final int snapshotInterval;
+    /**
+     * With the PREFETCH recovery mode: the events received by an instance while its checkpoint is fetched are kept
+     * until it is restored, up to maxParkedEvents. Further events are dropped.
+     */
+    public final int maxParkedEvents;
 
-    private CheckpointingConfig(CheckpointingMode mode, int frequency, TimeUnit timeUnit) {
+    private CheckpointingConfig(CheckpointingMode mode, int frequency, TimeUnit timeUnit, int snapshotInterval,
+            int maxParkedEvents) {
         this.mode = mode;
         this.frequency = frequency;
         this.timeUnit = timeUnit;
+        this.snapshotInterval = snapshotInterval;
+        this.maxParkedEvents = maxParkedEvents;
     }
 
     public static class Builder {
         private CheckpointingMode mode;
         private int frequency;
         private TimeUnit timeUnit = TimeUnit.MILLISECONDS;
+        private int snapshotInterval = 10;
+        private int maxParkedEvents = 1000;
 
         public Builder(CheckpointingMode mode) {
             this.mode = mode;
@@ -64,8 +79,18 @@ public class CheckpointingConfig {
             return this;
         }
 
+        public Builder snapshotInterval(int snapshotInterval) {
+            this.snapshotInterval = snapshotInterval;
+            return this;
+        }
+
+        public Builder maxParkedEvents(int maxParkedEvents) {
+            this.maxParkedEvents = maxParkedEvents;
+            return this;
+        }
+
         public CheckpointingConfig build() {
-            return new CheckpointingConfig(mode, frequency, timeUnit);
+            return new CheckpointingConfig(mode, frequency, timeUnit, snapshotInterval, maxParkedEvents);
         }
 
     }
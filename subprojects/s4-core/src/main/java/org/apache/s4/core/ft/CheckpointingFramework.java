@@ -20,6 +20,8 @@ package org.apache.s4.core.ft;
 
 import org.apache.s4.core.ProcessingElement;
 
+import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.ImplementedBy;
 
 /**
@@ -46,6 +48,29 @@ public interface CheckpointingFramework {
      */
     byte[] fetchSerializedState(CheckpointId key);
 
+    /**
+     * Fetches checkpoint data from storage for a given PE, without blocking the caller.
+     *
+     * @param key
+     *            safeKeeperId
+     * @return a future for the checkpoint data, which returns null if the storage does not contain data for the key
+     */
+    ListenableFuture<byte[]> fetchSerializedStateAsync(CheckpointId key);
+
+    /**
+     * Fetches in the background, in parallel, the stored checkpoints accepted by the filter. Later fetches for these
+     * keys use the prefetched data instead of querying the storage backend.
+     *
+     * @param filter
+     *            selects the checkpoints to prefetch, typically the keys of the local partition
+     */
+    void prefetchStates(Predicate<CheckpointId> filter);
+
+    /**
+     * @return how PE instances recover their state from checkpoints
+     */
+    RecoveryMode getRecoveryMode();
+
     /**
      * Evaluates whether specified PE should be checkpointed, based on:
      * <ul>
@@ -67,4 +92,17 @@ public interface CheckpointingFramework {
         SUCCESS, FAILURE
     }
 
+    /**
+     * <ul>
+     * <li>SYNCHRONOUS: a PE instance fetches its checkpoint when it receives its first event, blocking the stream
+     * until the checkpoint is fetched or the fetch times out</li>
+     * <li>PREFETCH: the checkpoints of the partition are fetched in the background when the application starts on a
+     * node. Events for an instance whose checkpoint is not available yet are parked until it is restored, without
+     * blocking the stream</li>
+     * </ul>
+     */
+    public enum RecoveryMode {
+        SYNCHRONOUS, PREFETCH
+    }
+
 }
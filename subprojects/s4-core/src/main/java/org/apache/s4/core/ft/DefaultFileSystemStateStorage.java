@@ -18,17 +18,26 @@
 
 package org.apache.s4.core.ft;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.codec.binary.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
 import com.google.common.io.Files;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -45,16 +54,38 @@ import com.google.inject.name.Named;
  * Checkpoints are stored in individual files (1 file = 1 checkpointId) in directories according to the following
  * structure: <code>(storageRootpath)/prototypeId/checkpointId</code>
  * </p>
+ * <p>
+ * Deltas are appended, each prefixed by its length, to a file next to the snapshot:
+ * <code>(storageRootpath)/prototypeId/checkpointId.deltas</code>
+ * </p>
+ * <p>
+ * A snapshot is written to a temporary file, then renamed over the previous one, so that a failure never leaves a
+ * partial snapshot. The deltas of the previous snapshot are moved aside before the rename and deleted after it: the
+ * new snapshot is never combined with older deltas. Replacing a snapshot, appending a delta and
+ * {@link #fetchChain(CheckpointId)} hold a lock for the key, so that a fetched chain never mixes two snapshots.
+ * </p>
  *
  */
-public class DefaultFileSystemStateStorage implements StateStorage {
+public class DefaultFileSystemStateStorage implements DeltaStateStorage {
+
+    private static final String DELTAS_SUFFIX = ".deltas";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String OLD_SUFFIX = ".old";
+
+    private static final int KEY_LOCKS = 64;
 
     private static Logger logger = LoggerFactory.getLogger(DefaultFileSystemStateStorage.class);
+
+    /* Striped by key: guards the snapshot and deltas files of the keys against concurrent replacement */
+    private final Object[] keyLocks = new Object[KEY_LOCKS];
     @Inject(optional = true)
     @Named("s4.checkpointing.filesystem.storageRootPath")
     String storageRootPath;
 
     public DefaultFileSystemStateStorage() {
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new Object();
+        }
     }
 
     /**
@@ -99,7 +130,8 @@ public class DefaultFileSystemStateStorage implements StateStorage {
             File[] files = dir.listFiles(new FileFilter() {
                 @Override
                 public boolean accept(File file) {
-                    return (file.isFile());
+                    // checkpoint file names are base64 encoded, without dots, unlike deltas and temporary files
+                    return (file.isFile() && file.getName().indexOf('.') < 0);
                 }
             });
             for (File file : files) {
@@ -109,6 +141,10 @@ public class DefaultFileSystemStateStorage implements StateStorage {
         return keys;
     }
 
+    private Object lockFor(CheckpointId key) {
+        return keyLocks[(key.hashCode() & Integer.MAX_VALUE) % keyLocks.length];
+    }
+
     // files kept as : root/<prototypeId>/encodedKeyWithFullInfo
     private static File checkpointID2File(CheckpointId key, String storageRootPath) {
 
@@ -116,6 +152,23 @@ public class DefaultFileSystemStateStorage implements StateStorage {
                 + Base64.encodeBase64URLSafeString(key.getStringRepresentation().getBytes()));
     }
 
+    private static File deltasFile(File checkpointFile) {
+        return new File(checkpointFile.getPath() + DELTAS_SUFFIX);
+    }
+
+    private static File withSuffix(File file, String suffix) {
+        return new File(file.getPath() + suffix);
+    }
+
+    /* Renames the source over the target, atomically where the file system allows it. */
+    private static boolean replace(File source, File target) {
+        if (source.renameTo(target)) {
+            return true;
+        }
+        // some platforms cannot rename onto an existing file
+        return target.delete() && source.renameTo(target);
+    }
+
     private static CheckpointId file2CheckpointID(File file) {
         CheckpointId id = null;
         id = new CheckpointId(new String(Base64.decodeBase64(file.getName())));
@@ -144,37 +197,130 @@ public class DefaultFileSystemStateStorage implements StateStorage {
         if (logger.isDebugEnabled()) {
             logger.debug("Checkpointing [" + key + "] into file: [" + f.getAbsolutePath() + "]");
         }
-        if (!f.exists()) {
-            if (!f.getParentFile().exists()) {
-                // parent file has prototype id
-                if (!f.getParentFile().mkdirs()) {
-                    callback.storageOperationResult(CheckpointingFramework.StorageResultCode.FAILURE,
-                            "Cannot create directory for storing PE [" + key.toString() + "] for prototype: "
-                                    + f.getParentFile().getAbsolutePath());
-                    return;
-                }
-            }
-        } else {
-            if (!f.delete()) {
+        if (!f.getParentFile().exists()) {
+            // parent file has prototype id
+            if (!f.getParentFile().mkdirs() && !f.getParentFile().exists()) {
                 callback.storageOperationResult(CheckpointingFramework.StorageResultCode.FAILURE,
-                        "Cannot delete previously saved checkpoint file [" + f.getParentFile().getAbsolutePath() + "]");
+                        "Cannot create directory for storing PE [" + key.toString() + "] for prototype: "
+                                + f.getParentFile().getAbsolutePath());
                 return;
             }
         }
 
+        File tmp = withSuffix(f, TMP_SUFFIX);
         try {
-            Files.write(state, f);
-            callback.storageOperationResult(CheckpointingFramework.StorageResultCode.SUCCESS, key.toString());
-        } catch (FileNotFoundException e) {
-            logger.error("Cannot write checkpoint file [" + f.getAbsolutePath() + "]", e);
+            Files.write(state, tmp);
+        } catch (IOException e) {
+            logger.error("Cannot write checkpoint file [" + tmp.getAbsolutePath() + "]", e);
+            tmp.delete();
             callback.storageOperationResult(CheckpointingFramework.StorageResultCode.FAILURE, key.toString() + " : "
                     + e.getMessage());
+            return;
+        }
+
+        // the previous snapshot without its deltas is only older, the new snapshot with them would be wrong
+        File deltas = deltasFile(f);
+        File oldDeltas = withSuffix(deltas, OLD_SUFFIX);
+        synchronized (lockFor(key)) {
+            if (deltas.exists() && !replace(deltas, oldDeltas)) {
+                tmp.delete();
+                callback.storageOperationResult(CheckpointingFramework.StorageResultCode.FAILURE,
+                        "Cannot move previously saved deltas file [" + deltas.getAbsolutePath() + "]");
+                return;
+            }
+            if (!replace(tmp, f)) {
+                tmp.delete();
+                callback.storageOperationResult(CheckpointingFramework.StorageResultCode.FAILURE,
+                        "Cannot rename checkpoint file [" + tmp.getAbsolutePath() + "] to [" + f.getAbsolutePath()
+                                + "]");
+                return;
+            }
+        }
+        if (oldDeltas.exists() && !oldDeltas.delete()) {
+            logger.warn("Cannot delete previously saved deltas file [{}]", oldDeltas.getAbsolutePath());
+        }
+        callback.storageOperationResult(CheckpointingFramework.StorageResultCode.SUCCESS, key.toString());
+    }
+
+    @Override
+    public void saveDelta(CheckpointId key, byte[] delta, StorageCallback callback) {
+        File f = checkpointID2File(key, storageRootPath);
+        synchronized (lockFor(key)) {
+            appendDelta(key, f, delta, callback);
+        }
+    }
+
+    private void appendDelta(CheckpointId key, File f, byte[] delta, StorageCallback callback) {
+        if (!f.exists()) {
+            callback.storageOperationResult(CheckpointingFramework.StorageResultCode.FAILURE, key.toString()
+                    + " : no snapshot to append the delta to");
+            return;
+        }
+        File deltas = deltasFile(f);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(deltas, true));
+            out.writeInt(delta.length);
+            out.write(delta);
+            out.close();
+            out = null;
+            callback.storageOperationResult(CheckpointingFramework.StorageResultCode.SUCCESS, key.toString());
         } catch (IOException e) {
-            logger.error("Cannot write checkpoint file [" + f.getAbsolutePath() + "]", e);
+            logger.error("Cannot append to deltas file [" + deltas.getAbsolutePath() + "]", e);
             callback.storageOperationResult(CheckpointingFramework.StorageResultCode.FAILURE, key.toString() + " : "
                     + e.getMessage());
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+    @Override
+    public List<byte[]> fetchDeltas(CheckpointId key) {
+        return readDeltas(deltasFile(checkpointID2File(key, storageRootPath)));
+    }
+
+    @Override
+    public byte[] fetchChain(CheckpointId key) {
+        byte[] snapshot;
+        List<byte[]> deltas;
+        synchronized (lockFor(key)) {
+            snapshot = fetchState(key);
+            if (snapshot == null) {
+                return null;
+            }
+            deltas = fetchDeltas(key);
         }
+        return deltas.isEmpty() ? snapshot : CheckpointChain.append(snapshot, deltas);
+    }
 
+    private static List<byte[]> readDeltas(File deltas) {
+        if (!deltas.exists()) {
+            return Collections.emptyList();
+        }
+        List<byte[]> result = Lists.newArrayList();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(deltas)));
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] delta = new byte[length];
+                in.readFully(delta);
+                result.add(delta);
+            }
+        } catch (EOFException e) {
+            // last delta incompletely written, keep the complete ones
+            logger.warn("Ignoring truncated delta at the end of file [{}]", deltas.getAbsolutePath());
+        } catch (IOException e) {
+            logger.error("Cannot read content from deltas file [" + deltas.getAbsolutePath() + "]", e);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+        return result;
     }
 
 }
@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.ft;
+
+/**
+ * <p>
+ * Implemented by PEs whose state can be checkpointed incrementally. Instead of serializing the whole PE on every
+ * checkpoint, the checkpointing framework stores a full snapshot from time to time, see
+ * {@link CheckpointingConfig#snapshotInterval}, and only the changes in between. On recovery, the changes are applied
+ * on top of the snapshot, in order.
+ * </p>
+ * <p>
+ * Changes are usually tracked with collections such as {@link ChangeTrackingMap}.
+ * </p>
+ * <p>
+ * Deltas are only used with a storage backend implementing {@link DeltaStateStorage}, other backends get full
+ * snapshots.
+ * </p>
+ */
+public interface DeltaCheckpointable {
+
+    /**
+     * Returns the changes since the previous call and starts tracking new changes. Called by the checkpointing
+     * framework while the PE instance is locked, for every checkpoint including full snapshots.
+     * <p>
+     * The delta is serialized later, outside of the lock: it must not share mutable objects with the PE. It must also
+     * hold the new values rather than increments, as a snapshot may already contain some of the changes of the next
+     * delta.
+     * </p>
+     *
+     * @return a serializable object holding the changes
+     */
+    Object getStateDelta();
+
+    /**
+     * Applies changes returned by {@link #getStateDelta()} on the state restored from a snapshot. Applied changes must
+     * not be tracked as new changes.
+     *
+     * @param delta
+     *            the changes, deserialized
+     */
+    void applyStateDelta(Object delta);
+}
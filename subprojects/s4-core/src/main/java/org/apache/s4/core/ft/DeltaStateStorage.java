@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.ft;
+
+import java.util.List;
+
+/**
+ * <p>
+ * A storage backend that keeps, for each checkpoint, a snapshot and the chain of deltas stored after it. Used for PEs
+ * implementing {@link DeltaCheckpointable}.
+ * </p>
+ * <p>
+ * {@link #saveState(CheckpointId, byte[], StorageCallback)} stores a new snapshot and drops the deltas of the previous
+ * one.
+ * </p>
+ */
+public interface DeltaStateStorage extends StateStorage {
+
+    /**
+     * Appends a delta to the chain of a checkpoint.
+     *
+     * @param key
+     *            safeKeeperId
+     * @param delta
+     *            serialized changes since the previous snapshot or delta
+     * @param callback
+     *            callback for receiving notifications of storage operations
+     */
+    public void saveDelta(CheckpointId key, byte[] delta, StorageCallback callback);
+
+    /**
+     * Fetches the deltas stored after the snapshot of a checkpoint.
+     *
+     * @param key
+     *            safeKeeperId
+     * @return the deltas in the order they were stored, an empty list if there are none
+     */
+    public List<byte[]> fetchDeltas(CheckpointId key);
+
+    /**
+     * Fetches the snapshot of a checkpoint together with its deltas, in a single read: a snapshot stored concurrently
+     * never gets combined with the deltas of another one.
+     *
+     * @param key
+     *            safeKeeperId
+     * @return the snapshot if there are no deltas, the snapshot chain followed by the deltas (see
+     *         {@link CheckpointChain#append(byte[], List)}) otherwise, or null if there is no snapshot
+     */
+    public byte[] fetchChain(CheckpointId key);
+}
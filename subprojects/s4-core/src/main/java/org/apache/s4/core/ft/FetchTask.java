@@ -24,7 +24,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Encapsulates a checkpoint fetching operation.
+ * Encapsulates a checkpoint fetching operation. With a {@link DeltaStateStorage}, the deltas stored after the snapshot
+ * are fetched too, and appended to the {@link CheckpointChain} of the snapshot.
  *
  */
 public class FetchTask implements Callable<byte[]> {
@@ -43,8 +44,10 @@ public class FetchTask implements Callable<byte[]> {
     @Override
     public byte[] call() throws Exception {
         try {
-            byte[] result = stateStorage.fetchState(checkpointId);
-            return result;
+            if (stateStorage instanceof DeltaStateStorage) {
+                return ((DeltaStateStorage) stateStorage).fetchChain(checkpointId);
+            }
+            return stateStorage.fetchState(checkpointId);
         } catch (Exception e) {
             logger.error("Cannot fetch checkpoint data for {}", checkpointId, e);
             throw e;
@@ -20,6 +20,10 @@ package org.apache.s4.core.ft;
 
 import org.apache.s4.core.ProcessingElement;
 
+import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Implementation of {@link CheckpointingFramework} that does NO checkpointing.
  *
@@ -36,6 +40,20 @@ public final class NoOpCheckpointingFramework implements CheckpointingFramework
         return null;
     }
 
+    @Override
+    public ListenableFuture<byte[]> fetchSerializedStateAsync(CheckpointId key) {
+        return Futures.<byte[]> immediateFuture(null);
+    }
+
+    @Override
+    public void prefetchStates(Predicate<CheckpointId> filter) {
+    }
+
+    @Override
+    public RecoveryMode getRecoveryMode() {
+        return RecoveryMode.SYNCHRONOUS;
+    }
+
     @Override
     public boolean isCheckpointable(ProcessingElement pe) {
         return false;
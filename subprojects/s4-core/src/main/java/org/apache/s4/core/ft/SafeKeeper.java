@@ -19,10 +19,16 @@
 package org.apache.s4.core.ft;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -33,7 +39,22 @@ import org.apache.s4.core.ProcessingElement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 
@@ -43,6 +64,11 @@ import com.google.inject.name.Named;
  * This class is responsible for coordinating interactions between the S4 event processor and the checkpoint storage
  * backend. In particular, it schedules asynchronous save tasks to be executed on the backend.
  * </p>
+ * <p>
+ * Checkpoint requests are coalesced: a key has at most one pending checkpoint, which is serialized when a writer
+ * thread takes it, so that repeated requests for a busy PE store its latest state once. Writers take pending
+ * checkpoints in batches, stored with a single call when the backend is a {@link BatchStateStorage}.
+ * </p>
  * 
  * 
  * 
@@ -69,25 +95,65 @@ public final class SafeKeeper implements CheckpointingFramework {
     @Inject(optional = true)
     private StorageCallbackFactory storageCallbackFactory = new LoggingStorageCallbackFactory();
 
-    private ThreadPoolExecutor storageThreadPool;
-    private ThreadPoolExecutor serializationThreadPool;
-    private ThreadPoolExecutor fetchingThreadPool;
+    private ThreadPoolExecutor incrementalThreadPool;
+    private ListeningExecutorService fetchingThreadPool;
+    private ListeningExecutorService prefetchingThreadPool;
+    private ThreadFactory prefetchingThreadFactory;
+
+    /*
+     * Number of deltas stored since the last snapshot, by key. A missing count means that the next checkpoint of the
+     * key must be a snapshot.
+     */
+    private Cache<CheckpointId, Integer> deltaCounts;
+    /* Keys whose chain lost a snapshot or a delta, no delta is stored for them until the next snapshot. */
+    private final Set<CheckpointId> brokenChains = Sets.newSetFromMap(new ConcurrentHashMap<CheckpointId, Boolean>());
+
+    /* Newest pending checkpoint request by key, in arrival order. Also the lock of the writers. */
+    private final Map<CheckpointId, PendingCheckpoint> pendingCheckpoints = Maps.newLinkedHashMap();
+    /*
+     * Keys taken by a writer, guarded by pendingCheckpoints. Their next checkpoint waits until the writer is done, so
+     * that the writes of a key are ordered.
+     */
+    private final Set<CheckpointId> writingCheckpoints = Sets.newHashSet();
+
+    /* Checkpoints being fetched ahead of the first event of their keys, removed when claimed. Also their lock. */
+    private final Map<CheckpointId, ListenableFuture<byte[]>> prefetchingStates = Maps.newHashMap();
+    /* Checkpoints fetched ahead of the first event of their keys, removed when claimed. Bounded in bytes. */
+    private Cache<CheckpointId, byte[]> prefetchedStates;
+    /* Limits the prefetches queued at once. */
+    private Semaphore prefetchingPermits;
+    /* Set when prefetched checkpoints are evicted for lack of room, prefetching stops then. */
+    private volatile boolean prefetchingSaturated = false;
 
     @Inject(optional = true)
     @Named("s4.checkpointing.storageMaxThreads")
     int storageMaxThreads = 1;
 
-    @Inject(optional = true)
-    @Named("s4.checkpointing.storageThreadKeepAliveSeconds")
-    int storageThreadKeepAliveSeconds = 120;
-
     @Inject(optional = true)
     @Named("s4.checkpointing.storageMaxOutstandingRequests")
     int storageMaxOutstandingRequests = 1000;
 
+    @Inject(optional = true)
+    @Named("s4.checkpointing.storageBatchSize")
+    int storageBatchSize = 100;
+
+    /**
+     * @deprecated ignored, storage threads are started once and serialize the checkpoints they store. Kept so that a
+     *             configuration setting it gets a warning instead of having no effect silently.
+     */
+    @Deprecated
+    @Inject(optional = true)
+    @Named("s4.checkpointing.storageThreadKeepAliveSeconds")
+    Integer storageThreadKeepAliveSeconds;
+
+    /**
+     * @deprecated ignored, checkpoints are serialized by the storage threads, see
+     *             <code>s4.checkpointing.storageMaxThreads</code>.
+     */
+    @Deprecated
     @Inject(optional = true)
     @Named("s4.checkpointing.serializationMaxThreads")
-    int serializationMaxThreads = 1;
+    Integer serializationMaxThreads;
 
     @Inject(optional = true)
     @Named("s4.checkpointing.serializationThreadKeepAliveSeconds")
@@ -125,6 +191,26 @@ public final class SafeKeeper implements CheckpointingFramework {
     @Named("s4.checkpointing.fetchingQueueSize")
     int fetchingQueueSize = 100;
 
+    @Inject(optional = true)
+    @Named("s4.checkpointing.recoveryMode")
+    RecoveryMode recoveryMode = RecoveryMode.SYNCHRONOUS;
+
+    @Inject(optional = true)
+    @Named("s4.checkpointing.prefetchingThreads")
+    int prefetchingThreads = 4;
+
+    @Inject(optional = true)
+    @Named("s4.checkpointing.prefetchingQueueSize")
+    int prefetchingQueueSize = 1000;
+
+    @Inject(optional = true)
+    @Named("s4.checkpointing.prefetchedStateRetentionMs")
+    long prefetchedStateRetentionMs = 600000;
+
+    @Inject(optional = true)
+    @Named("s4.checkpointing.prefetchedStateMaxBytes")
+    long prefetchedStateMaxBytes = 64 * 1024 * 1024;
+
     long fetchingDisabledInitTime = -1;
     AtomicInteger fetchingCurrentConsecutiveFailures = new AtomicInteger();
 
@@ -134,35 +220,74 @@ public final class SafeKeeper implements CheckpointingFramework {
     @Inject
     private void init() {
 
+        if (storageThreadKeepAliveSeconds != null) {
+            logger.warn("Ignoring deprecated setting s4.checkpointing.storageThreadKeepAliveSeconds [{}]: storage "
+                    + "threads do not time out", storageThreadKeepAliveSeconds);
+        }
+        if (serializationMaxThreads != null) {
+            logger.warn("Ignoring deprecated setting s4.checkpointing.serializationMaxThreads [{}]: checkpoints are "
+                    + "serialized by the storage threads, use s4.checkpointing.storageMaxThreads instead",
+                    serializationMaxThreads);
+        }
+
         // NOTE: those thread pools should be fine tuned according to backend and application load/requirements.
         // For now:
         // - number of threads and work queue size have overridable defaults
         // - failures are logged
-        // - when storage queue is full, we throttle backwards to the serialization threadpool
-        // - when serialization queue is full, we abort execution for new entries
+        // - storage threads serialize and store the pending checkpoints, in batches. Callers never do it: when too
+        // many keys have a pending checkpoint, we abort the checkpoints of new keys
         // - fetching uses a synchronous queue and therefore is a blocking operation, with a timeout
 
         ThreadFactory storageThreadFactory = new ThreadFactoryBuilder().setNameFormat("Checkpointing-storage-%d")
-                .setUncaughtExceptionHandler(new UncaughtExceptionLogger("storage")).build();
-        storageThreadPool = new ThreadPoolExecutor(1, storageMaxThreads, storageThreadKeepAliveSeconds,
-                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(storageMaxOutstandingRequests),
-                storageThreadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
-        storageThreadPool.allowCoreThreadTimeOut(true);
-
-        ThreadFactory serializationThreadFactory = new ThreadFactoryBuilder()
-                .setNameFormat("Checkpointing-serialization-%d")
-                .setUncaughtExceptionHandler(new UncaughtExceptionLogger("serialization")).build();
-        serializationThreadPool = new ThreadPoolExecutor(1, serializationMaxThreads,
-                serializationThreadKeepAliveSeconds, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
-                        serializationMaxOutstandingRequests), serializationThreadFactory,
-                new ThreadPoolExecutor.AbortPolicy());
-        serializationThreadPool.allowCoreThreadTimeOut(true);
+                .setDaemon(true).setUncaughtExceptionHandler(new UncaughtExceptionLogger("storage")).build();
+        for (int i = 0; i < storageMaxThreads; i++) {
+            storageThreadFactory.newThread(new CheckpointWriter()).start();
+        }
 
         ThreadFactory fetchingThreadFactory = new ThreadFactoryBuilder().setNameFormat("Checkpointing-fetching-%d")
                 .setUncaughtExceptionHandler(new UncaughtExceptionLogger("fetching")).build();
-        fetchingThreadPool = new ThreadPoolExecutor(0, fetchingMaxThreads, fetchingThreadKeepAliveSeconds,
-                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(fetchingQueueSize), fetchingThreadFactory);
-        fetchingThreadPool.allowCoreThreadTimeOut(true);
+        ThreadPoolExecutor fetchingExecutor = new ThreadPoolExecutor(0, fetchingMaxThreads,
+                fetchingThreadKeepAliveSeconds, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(fetchingQueueSize),
+                fetchingThreadFactory);
+        fetchingExecutor.allowCoreThreadTimeOut(true);
+        fetchingThreadPool = MoreExecutors.listeningDecorator(fetchingExecutor);
+
+        // - checkpoints of PEs with delta checkpointing are serialized and stored by a single thread, in order
+        ThreadFactory incrementalThreadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("Checkpointing-incremental-%d")
+                .setUncaughtExceptionHandler(new UncaughtExceptionLogger("incremental")).build();
+        incrementalThreadPool = new ThreadPoolExecutor(1, 1, serializationThreadKeepAliveSeconds, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(serializationMaxOutstandingRequests), incrementalThreadFactory,
+                new ThreadPoolExecutor.AbortPolicy());
+        incrementalThreadPool.allowCoreThreadTimeOut(true);
+        deltaCounts = CacheBuilder.newBuilder().expireAfterAccess(1, TimeUnit.HOURS).build();
+
+        // - prefetching fetches the checkpoints of the partition with a few threads in parallel, with at most
+        // prefetchingQueueSize of them queued, and keeps up to prefetchedStateMaxBytes of fetched checkpoints. It stops
+        // when they do not fit, the other checkpoints are fetched on demand. Prefetched checkpoints that no event claims
+        // are dropped after a while
+        prefetchingThreadFactory = new ThreadFactoryBuilder().setNameFormat("Checkpointing-prefetching-%d")
+                .setUncaughtExceptionHandler(new UncaughtExceptionLogger("prefetching")).build();
+        ThreadPoolExecutor prefetchingExecutor = new ThreadPoolExecutor(prefetchingThreads, prefetchingThreads,
+                fetchingThreadKeepAliveSeconds, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                        prefetchingQueueSize + fetchingQueueSize), prefetchingThreadFactory);
+        prefetchingExecutor.allowCoreThreadTimeOut(true);
+        prefetchingThreadPool = MoreExecutors.listeningDecorator(prefetchingExecutor);
+        prefetchingPermits = new Semaphore(prefetchingQueueSize);
+        prefetchedStates = CacheBuilder.newBuilder().maximumWeight(prefetchedStateMaxBytes)
+                .weigher(new Weigher<CheckpointId, byte[]>() {
+                    @Override
+                    public int weigh(CheckpointId key, byte[] state) {
+                        return state.length;
+                    }
+                }).removalListener(new RemovalListener<CheckpointId, byte[]>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<CheckpointId, byte[]> notification) {
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            prefetchingSaturated = true;
+                        }
+                    }
+                }).expireAfterWrite(prefetchedStateRetentionMs, TimeUnit.MILLISECONDS).build();
 
     }
 
@@ -174,51 +299,226 @@ public final class SafeKeeper implements CheckpointingFramework {
     @Override
     public StorageCallback saveState(ProcessingElement pe) {
         StorageCallback storageCallback = storageCallbackFactory.createStorageCallback();
-        Future<byte[]> futureSerializedState = null;
-        try {
-            futureSerializedState = serializeState(pe);
-        } catch (RejectedExecutionException e) {
-            // if (monitor != null) {
-            // monitor.increment(MetricsName.checkpointing_dropped_from_serialization_queue.toString(), 1,
-            // S4_CORE_METRICS.toString());
-            // }
-            storageCallback.storageOperationResult(StorageResultCode.FAILURE,
-                    "Serialization task queue is full. An older serialization task was dumped in order to serialize PE ["
-                            + pe.getId() + "]" + "	Remaining capacity for the serialization task queue is ["
-                            + serializationThreadPool.getQueue().remainingCapacity() + "] ; number of elements is ["
-                            + serializationThreadPool.getQueue().size() + "] ; maximum capacity is ["
-                            + serializationThreadPool + "]");
+        if (pe instanceof DeltaCheckpointable && stateStorage instanceof DeltaStateStorage) {
+            saveStateIncrementally(pe, storageCallback);
             return storageCallback;
         }
-        submitSaveStateTask(new SaveStateTask(new CheckpointId(pe), futureSerializedState, storageCallback,
-                stateStorage), storageCallback);
+        CheckpointId key = new CheckpointId(pe);
+        synchronized (pendingCheckpoints) {
+            PendingCheckpoint pending = pendingCheckpoints.get(key);
+            if (pending != null) {
+                // not serialized yet, so the pending checkpoint will store the latest state
+                pending.add(pe, storageCallback);
+                return storageCallback;
+            }
+            if (pendingCheckpoints.size() >= storageMaxOutstandingRequests) {
+                // if (monitor != null) {
+                // monitor.increment(MetricsName.checkpointing_dropped_from_storage_queue.toString(), 1);
+                // }
+                storageCallback.storageOperationResult(StorageResultCode.FAILURE,
+                        "Storage checkpoint queue is full, cannot checkpoint PE [" + pe.getId()
+                                + "] ; number of pending checkpoints is [" + pendingCheckpoints.size()
+                                + "] ; maximum capacity is [" + storageMaxOutstandingRequests + "]");
+                return storageCallback;
+            }
+            pendingCheckpoints.put(key, new PendingCheckpoint(pe, storageCallback));
+            pendingCheckpoints.notifyAll();
+        }
         return storageCallback;
     }
 
-    private Future<byte[]> serializeState(ProcessingElement pe) {
-        Future<byte[]> future = serializationThreadPool.submit(new SerializeTask(pe));
-        // if (monitor != null) {
-        // monitor.increment(MetricsName.checkpointing_added_to_serialization_queue.toString(), 1,
-        // S4_CORE_METRICS.toString());
-        // }
-        return future;
-    }
-
-    private void submitSaveStateTask(SaveStateTask task, StorageCallback storageCallback) {
+    /*
+     * Stores a snapshot every snapshotInterval checkpoints, and the changes in between. The caller holds the PE lock,
+     * so the deltas are taken, and queued to the single incremental thread, in order.
+     */
+    private void saveStateIncrementally(ProcessingElement pe, StorageCallback storageCallback) {
+        CheckpointId key = new CheckpointId(pe);
+        Integer deltaCount = deltaCounts.getIfPresent(key);
+        // always taken, so that the next delta starts from this checkpoint
+        Object delta = ((DeltaCheckpointable) pe).getStateDelta();
+        boolean snapshot = deltaCount == null || deltaCount + 1 >= pe.getCheckpointingConfig().snapshotInterval;
+        if (snapshot) {
+            // deltas are taken now, only snapshots read the instance later
+            pe.checkpointPending();
+        }
         try {
-            storageThreadPool.execute(task);
-            // if (monitor != null) {
-            // monitor.increment(MetricsName.checkpointing_added_to_storage_queue.toString(), 1);
-            // }
+            incrementalThreadPool.execute(new IncrementalSaveTask(pe, key, snapshot ? null : delta,
+                    new ChainTrackingCallback(key, storageCallback)));
+            deltaCounts.put(key, snapshot ? 0 : deltaCount + 1);
         } catch (RejectedExecutionException e) {
-            // if (monitor != null) {
-            // monitor.increment(MetricsName.checkpointing_dropped_from_storage_queue.toString(), 1);
-            // }
+            if (snapshot) {
+                pe.checkpointSerialized();
+            }
+            breakChain(key);
             storageCallback.storageOperationResult(StorageResultCode.FAILURE,
-                    "Storage checkpoint queue is full. Removed an old task to handle latest task. Remaining capacity for task queue is ["
-                            + storageThreadPool.getQueue().remainingCapacity() + "] ; number of elements is ["
-                            + storageThreadPool.getQueue().size() + "] ; maximum capacity is ["
-                            + storageMaxOutstandingRequests + "]");
+                    "Incremental checkpointing queue is full, cannot checkpoint PE [" + pe.getId() + "]");
+        }
+    }
+
+    /* The next checkpoint of the key will be a snapshot. */
+    private void breakChain(CheckpointId key) {
+        brokenChains.add(key);
+        deltaCounts.invalidate(key);
+    }
+
+    /* Serializes and stores a snapshot, or a delta when there is one. */
+    private final class IncrementalSaveTask implements Runnable {
+        final ProcessingElement pe;
+        final CheckpointId key;
+        final Object delta;
+        final StorageCallback storageCallback;
+
+        IncrementalSaveTask(ProcessingElement pe, CheckpointId key, Object delta, StorageCallback storageCallback) {
+            this.pe = pe;
+            this.key = key;
+            this.delta = delta;
+            this.storageCallback = storageCallback;
+        }
+
+        @Override
+        public void run() {
+            if (delta == null) {
+                byte[] state;
+                try {
+                    synchronized (pe) {
+                        state = pe.serializeState();
+                    }
+                } finally {
+                    pe.checkpointSerialized();
+                }
+                brokenChains.remove(key);
+                stateStorage.saveState(key, state, storageCallback);
+            } else if (brokenChains.contains(key)) {
+                storageCallback.storageOperationResult(StorageResultCode.FAILURE, "Skipped delta for [" + key
+                        + "] after a failed checkpoint, waiting for the next snapshot");
+            } else {
+                ((DeltaStateStorage) stateStorage).saveDelta(key, pe.getApp().getSerDeser().serialize(delta),
+                        storageCallback);
+            }
+        }
+    }
+
+    /* Breaks the chain of a key when one of its checkpoints cannot be stored, then notifies the callback. */
+    private final class ChainTrackingCallback implements StorageCallback {
+        final CheckpointId key;
+        final StorageCallback storageCallback;
+
+        ChainTrackingCallback(CheckpointId key, StorageCallback storageCallback) {
+            this.key = key;
+            this.storageCallback = storageCallback;
+        }
+
+        @Override
+        public void storageOperationResult(StorageResultCode resultCode, Object message) {
+            if (resultCode == StorageResultCode.FAILURE) {
+                breakChain(key);
+            }
+            storageCallback.storageOperationResult(resultCode, message);
+        }
+    }
+
+    /* The latest PE instance of a key and the callbacks of the requests coalesced into its checkpoint. */
+    private static final class PendingCheckpoint implements StorageCallback {
+        ProcessingElement pe;
+        final List<StorageCallback> storageCallbacks = Lists.newArrayListWithCapacity(1);
+
+        PendingCheckpoint(ProcessingElement pe, StorageCallback storageCallback) {
+            add(pe, storageCallback);
+        }
+
+        /* Guarded by pendingCheckpoints, until a writer takes the checkpoint. The caller holds the lock of pe. */
+        void add(ProcessingElement pe, StorageCallback storageCallback) {
+            if (this.pe != pe) {
+                // a new instance of the key, the evicted one can be recycled
+                pe.checkpointPending();
+                if (this.pe != null) {
+                    this.pe.checkpointSerialized();
+                }
+                this.pe = pe;
+            }
+            storageCallbacks.add(storageCallback);
+        }
+
+        @Override
+        public void storageOperationResult(StorageResultCode resultCode, Object message) {
+            for (StorageCallback storageCallback : storageCallbacks) {
+                storageCallback.storageOperationResult(resultCode, message);
+            }
+        }
+    }
+
+    /* Serializes and stores batches of pending checkpoints. */
+    private final class CheckpointWriter implements Runnable {
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Map<CheckpointId, PendingCheckpoint> batch;
+                try {
+                    batch = takeBatch();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    writeBatch(batch);
+                } catch (RuntimeException e) {
+                    logger.error("Cannot store checkpoints " + batch.keySet(), e);
+                } finally {
+                    synchronized (pendingCheckpoints) {
+                        writingCheckpoints.removeAll(batch.keySet());
+                        pendingCheckpoints.notifyAll();
+                    }
+                }
+            }
+        }
+
+        /* Takes the oldest pending checkpoints, skipping the keys that another writer is storing. */
+        private Map<CheckpointId, PendingCheckpoint> takeBatch() throws InterruptedException {
+            synchronized (pendingCheckpoints) {
+                while (true) {
+                    Map<CheckpointId, PendingCheckpoint> batch = Maps.newLinkedHashMap();
+                    Iterator<Map.Entry<CheckpointId, PendingCheckpoint>> it = pendingCheckpoints.entrySet().iterator();
+                    while (it.hasNext() && batch.size() < storageBatchSize) {
+                        Map.Entry<CheckpointId, PendingCheckpoint> pending = it.next();
+                        if (writingCheckpoints.add(pending.getKey())) {
+                            batch.put(pending.getKey(), pending.getValue());
+                            it.remove();
+                        }
+                    }
+                    if (!batch.isEmpty()) {
+                        return batch;
+                    }
+                    pendingCheckpoints.wait();
+                }
+            }
+        }
+
+        private void writeBatch(Map<CheckpointId, PendingCheckpoint> batch) {
+            Map<CheckpointId, byte[]> states = Maps.newLinkedHashMap();
+            Map<CheckpointId, StorageCallback> storageCallbacks = Maps.newHashMap();
+            for (Map.Entry<CheckpointId, PendingCheckpoint> pending : batch.entrySet()) {
+                ProcessingElement pe = pending.getValue().pe;
+                try {
+                    states.put(pending.getKey(), new SerializeTask(pe).call());
+                    storageCallbacks.put(pending.getKey(), pending.getValue());
+                } catch (Exception e) {
+                    logger.warn("Cannot serialize checkpoint : " + pending.getKey(), e);
+                    pending.getValue().storageOperationResult(StorageResultCode.FAILURE,
+                            pending.getKey().toString() + " : " + e.getMessage());
+                } finally {
+                    pe.checkpointSerialized();
+                }
+            }
+            if (states.isEmpty()) {
+                return;
+            }
+            if (stateStorage instanceof BatchStateStorage) {
+                ((BatchStateStorage) stateStorage).saveStates(states, storageCallbacks);
+            } else {
+                for (Map.Entry<CheckpointId, byte[]> state : states.entrySet()) {
+                    stateStorage.saveState(state.getKey(), state.getValue(), storageCallbacks.get(state.getKey()));
+                }
+            }
         }
     }
 
@@ -232,15 +532,19 @@ public final class SafeKeeper implements CheckpointingFramework {
 
         byte[] result = null;
 
-        if (fetchingCurrentConsecutiveFailures.get() == fetchingMaxConsecutiveFailuresBeforeDisabling) {
-            if ((fetchingDisabledInitTime + fetchingDisabledDurationMs) < System.currentTimeMillis()) {
-                return null;
-            } else {
-                // reached time, reinit
-                fetchingCurrentConsecutiveFailures.set(0);
+        // a prefetched checkpoint does not query the backend again
+        Future<byte[]> fetched = claimPrefetchedState(key);
+        if (fetched == null) {
+            if (fetchingCurrentConsecutiveFailures.get() == fetchingMaxConsecutiveFailuresBeforeDisabling) {
+                if ((fetchingDisabledInitTime + fetchingDisabledDurationMs) < System.currentTimeMillis()) {
+                    return null;
+                } else {
+                    // reached time, reinit
+                    fetchingCurrentConsecutiveFailures.set(0);
+                }
             }
+            fetched = fetchingThreadPool.submit(new FetchTask(stateStorage, key));
         }
-        Future<byte[]> fetched = fetchingThreadPool.submit(new FetchTask(stateStorage, key));
         try {
             result = fetched.get(fetchingMaxWaitMs, TimeUnit.MILLISECONDS);
             fetchingCurrentConsecutiveFailures.set(0);
@@ -267,6 +571,123 @@ public final class SafeKeeper implements CheckpointingFramework {
         return result;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.s4.core.ft.CheckpointingFramework#fetchSerializedStateAsync(org.apache.s4.core.ft.CheckpointId)
+     */
+    @Override
+    public ListenableFuture<byte[]> fetchSerializedStateAsync(CheckpointId key) {
+        ListenableFuture<byte[]> fetched = claimPrefetchedState(key);
+        if (fetched != null) {
+            return fetched;
+        }
+        try {
+            // the caller does not wait, so the fetch does not compete with the bounded queue of blocking fetches
+            return prefetchingThreadPool.submit(new FetchTask(stateStorage, key));
+        } catch (RejectedExecutionException e) {
+            logger.error("Cannot fetch checkpoint from backend for key [{}]: {}", key.getStringRepresentation(),
+                    e.getMessage());
+            return Futures.<byte[]> immediateFuture(null);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.s4.core.ft.CheckpointingFramework#prefetchStates(com.google.common.base.Predicate)
+     */
+    @Override
+    public void prefetchStates(final Predicate<CheckpointId> filter) {
+        // listing the stored keys may take a while as well. It waits for queued prefetches, so it has its own thread
+        prefetchingThreadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                int count = 0;
+                try {
+                    for (CheckpointId key : stateStorage.fetchStoredKeys()) {
+                        if (prefetchingSaturated) {
+                            logger.warn("Prefetched checkpoints exceed {} bytes, the other checkpoints are fetched on "
+                                    + "demand", prefetchedStateMaxBytes);
+                            break;
+                        }
+                        if (filter.apply(key) && prefetch(key)) {
+                            count++;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                logger.info("Prefetched {} checkpoints", count);
+            }
+        }).start();
+    }
+
+    /* Queues the fetch of a checkpoint, waiting while too many are queued. Returns false if it is already fetched. */
+    private boolean prefetch(final CheckpointId key) throws InterruptedException {
+        synchronized (prefetchingStates) {
+            if (prefetchingStates.containsKey(key) || prefetchedStates.getIfPresent(key) != null) {
+                return false;
+            }
+        }
+        prefetchingPermits.acquire();
+        final ListenableFuture<byte[]> fetching;
+        try {
+            fetching = prefetchingThreadPool.submit(new FetchTask(stateStorage, key));
+        } catch (RejectedExecutionException e) {
+            prefetchingPermits.release();
+            logger.error("Cannot prefetch checkpoint for key [{}]: {}", key.getStringRepresentation(), e.getMessage());
+            return false;
+        }
+        synchronized (prefetchingStates) {
+            prefetchingStates.put(key, fetching);
+        }
+        fetching.addListener(new Runnable() {
+            @Override
+            public void run() {
+                prefetchingPermits.release();
+                synchronized (prefetchingStates) {
+                    // unless it was claimed while it was fetched
+                    if (prefetchingStates.remove(key) == fetching) {
+                        byte[] state = prefetchedState(key, fetching);
+                        if (state != null) {
+                            prefetchedStates.put(key, state);
+                        }
+                    }
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return true;
+    }
+
+    /* The checkpoint of a completed prefetch, or null if there is none or it failed. */
+    private byte[] prefetchedState(CheckpointId key, ListenableFuture<byte[]> fetching) {
+        try {
+            return Uninterruptibles.getUninterruptibly(fetching);
+        } catch (ExecutionException e) {
+            logger.warn("Cannot prefetch checkpoint for key [{}]: {}", key.getStringRepresentation(), e.getCause()
+                    .getMessage());
+            return null;
+        }
+    }
+
+    /* Removes and returns the prefetched checkpoint of a key, fetched or being fetched, or returns null. */
+    private ListenableFuture<byte[]> claimPrefetchedState(CheckpointId key) {
+        synchronized (prefetchingStates) {
+            ListenableFuture<byte[]> fetching = prefetchingStates.remove(key);
+            if (fetching != null) {
+                return fetching;
+            }
+            byte[] state = prefetchedStates.asMap().remove(key);
+            return state == null ? null : Futures.immediateFuture(state);
+        }
+    }
+
+    @Override
+    public RecoveryMode getRecoveryMode() {
+        return recoveryMode;
+    }
+
     @Override
     public boolean isCheckpointable(ProcessingElement pe) {
         if (pe.getCheckpointingConfig().mode.equals(CheckpointingConfig.CheckpointingMode.NONE)) {
@@ -0,0 +1,732 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.ft;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.s4.core.ft.CheckpointingFramework.StorageResultCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * <p>
+ * Checkpoint storage backend that appends snapshots and deltas to a log of segment files, instead of keeping one file
+ * per checkpoint. The number of files depends on the volume of checkpoints, not on the number of keys.
+ * </p>
+ * <p>
+ * The location of the last snapshot of each key, and of the deltas stored after it, is kept in an in-memory index.
+ * {@link #fetchStoredKeys()} reads the index. Fetching a checkpoint reads the active segment with positional reads, and
+ * the other segments, which no longer change, through a memory mapping created once per segment. The index is rebuilt from the segments when the storage starts: records carry a sequence number, so that the latest
+ * snapshot of a key wins wherever it is in the log.
+ * </p>
+ * <p>
+ * Writes are appended to the active segment. They are synced to disk together every
+ * <code>s4.checkpointing.segments.syncIntervalMs</code> milliseconds, and storage callbacks are notified after the
+ * sync. A background task compacts the segments whose records are mostly superseded, by copying their live records to
+ * the active segment and deleting them.
+ * </p>
+ * <p>
+ * Segments are stored in <code>(storageRootPath)/segment-(id).log</code>. Each record is made of: a magic number, the
+ * record type (snapshot or delta), the sequence number, the key and data lengths, the key, the data and a CRC32
+ * checksum. A record that is incomplete or corrupted ends the scan of its segment when the index is rebuilt.
+ * </p>
+ */
+public class SegmentedFileStateStorage implements DeltaStateStorage, BatchStateStorage {
+
+    private static Logger logger = LoggerFactory.getLogger(SegmentedFileStateStorage.class);
+
+    private static final int MAGIC = 0x53345347;
+    private static final byte SNAPSHOT = 1;
+    private static final byte DELTA = 2;
+    /* magic, type, sequence, key length, data length */
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 4 + 4;
+    private static final int CHECKSUM_SIZE = 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    @Inject(optional = true)
+    @Named("s4.checkpointing.segments.storageRootPath")
+    String storageRootPath;
+
+    @Inject(optional = true)
+    @Named("s4.checkpointing.segments.segmentSizeBytes")
+    int segmentSizeBytes = 64 * 1024 * 1024;
+
+    /* 0 to sync every write before returning */
+    @Inject(optional = true)
+    @Named("s4.checkpointing.segments.syncIntervalMs")
+    long syncIntervalMs = 10;
+
+    @Inject(optional = true)
+    @Named("s4.checkpointing.segments.compactionIntervalMs")
+    long compactionIntervalMs = 60000;
+
+    /* segments with less than this ratio of live data are compacted */
+    @Inject(optional = true)
+    @Named("s4.checkpointing.segments.compactionThreshold")
+    double compactionThreshold = 0.5;
+
+    private final ConcurrentMap<CheckpointId, Entry> index = new ConcurrentHashMap<CheckpointId, Entry>();
+
+    /* Guarded by this, like the active segment and all writes. */
+    private final List<Segment> segments = Lists.newArrayList();
+    private Segment activeSegment;
+    private long nextSequence = 0;
+    /* Written since the last sync. */
+    private Set<Segment> unsyncedSegments = Sets.newHashSet();
+    private List<PendingCallback> pendingCallbacks = Lists.newArrayList();
+
+    private ScheduledExecutorService maintenance;
+
+    public SegmentedFileStateStorage() {
+    }
+
+    /**
+     * <p>
+     * Called by the dependency injection framework, after construction. Rebuilds the index from the existing segments
+     * and starts the sync and compaction tasks.
+     * <p/>
+     */
+    @Inject
+    public void init() throws IOException {
+        if (storageRootPath == null) {
+            storageRootPath = System.getProperty("user.dir") + File.separator + "tmp" + File.separator + "segments";
+            logger.warn("Unspecified storage dir; using default dir: {}", storageRootPath);
+        }
+        File root = new File(storageRootPath);
+        if (!root.exists() && !root.mkdirs()) {
+            throw new IOException("Cannot create storage directory [" + root.getAbsolutePath() + "]");
+        }
+        loadSegments(root);
+
+        maintenance = Executors.newScheduledThreadPool(1, new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("Checkpointing-segments-%d").build());
+        if (syncIntervalMs > 0) {
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sync();
+                }
+            }, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (RuntimeException e) {
+                    logger.error("Cannot compact checkpoint segments", e);
+                }
+            }
+        }, compactionIntervalMs, compactionIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Syncs pending writes, stops the background tasks and closes the segments.
+     */
+    public void close() {
+        maintenance.shutdown();
+        sync();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    @Override
+    public void saveState(CheckpointId key, byte[] state, StorageCallback callback) {
+        synchronized (this) {
+            appendSnapshot(key, state, callback);
+        }
+        if (syncIntervalMs <= 0) {
+            sync();
+        }
+    }
+
+    /* The batch is appended under a single lock and committed with a single sync. */
+    @Override
+    public void saveStates(Map<CheckpointId, byte[]> states, Map<CheckpointId, StorageCallback> callbacks) {
+        synchronized (this) {
+            for (Map.Entry<CheckpointId, byte[]> state : states.entrySet()) {
+                appendSnapshot(state.getKey(), state.getValue(), callbacks.get(state.getKey()));
+            }
+        }
+        if (syncIntervalMs <= 0) {
+            sync();
+        }
+    }
+
+    /* Guarded by this. */
+    private void appendSnapshot(CheckpointId key, byte[] state, StorageCallback callback) {
+        try {
+            Location location = append(SNAPSHOT, nextSequence++, key, state);
+            Entry previous = index.put(key, new Entry(location, ImmutableList.<Location> of()));
+            if (previous != null) {
+                previous.release();
+            }
+            committed(callback, key);
+        } catch (IOException e) {
+            logger.error("Cannot write checkpoint [" + key + "]", e);
+            callback.storageOperationResult(StorageResultCode.FAILURE, key.toString() + " : " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void saveDelta(CheckpointId key, byte[] delta, StorageCallback callback) {
+        try {
+            synchronized (this) {
+                Entry entry = index.get(key);
+                if (entry == null) {
+                    callback.storageOperationResult(StorageResultCode.FAILURE, key.toString()
+                            + " : no snapshot to append the delta to");
+                    return;
+                }
+                Location location = append(DELTA, nextSequence++, key, delta);
+                index.put(key, entry.withDelta(location));
+                committed(callback, key);
+            }
+        } catch (IOException e) {
+            logger.error("Cannot write checkpoint delta [" + key + "]", e);
+            callback.storageOperationResult(StorageResultCode.FAILURE, key.toString() + " : " + e.getMessage());
+            return;
+        }
+        if (syncIntervalMs <= 0) {
+            sync();
+        }
+    }
+
+    @Override
+    public byte[] fetchState(CheckpointId key) {
+        // retried when compaction moves the record while it is read
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Entry entry = index.get(key);
+            if (entry == null) {
+                return null;
+            }
+            try {
+                return entry.snapshot.read();
+            } catch (IOException e) {
+                if (index.get(key) == entry) {
+                    logger.error("Cannot read checkpoint [" + key + "]", e);
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<byte[]> fetchDeltas(CheckpointId key) {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Entry entry = index.get(key);
+            if (entry == null) {
+                return Collections.emptyList();
+            }
+            try {
+                return readDeltas(entry);
+            } catch (IOException e) {
+                if (index.get(key) == entry) {
+                    logger.error("Cannot read checkpoint deltas [" + key + "]", e);
+                    return Collections.emptyList();
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /* The snapshot and the deltas come from the same index entry, so they always belong together. */
+    @Override
+    public byte[] fetchChain(CheckpointId key) {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Entry entry = index.get(key);
+            if (entry == null) {
+                return null;
+            }
+            try {
+                byte[] snapshot = entry.snapshot.read();
+                if (entry.deltas.isEmpty()) {
+                    return snapshot;
+                }
+                return CheckpointChain.append(snapshot, readDeltas(entry));
+            } catch (IOException e) {
+                if (index.get(key) == entry) {
+                    logger.error("Cannot read checkpoint [" + key + "]", e);
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static List<byte[]> readDeltas(Entry entry) throws IOException {
+        List<byte[]> deltas = Lists.newArrayListWithCapacity(entry.deltas.size());
+        for (Location location : entry.deltas) {
+            deltas.add(location.read());
+        }
+        return deltas;
+    }
+
+    @Override
+    public Set<CheckpointId> fetchStoredKeys() {
+        return ImmutableSet.copyOf(index.keySet());
+    }
+
+    /* Guarded by this. */
+    private Location append(byte type, long sequence, CheckpointId key, byte[] data) throws IOException {
+        if (activeSegment == null || activeSegment.size >= segmentSizeBytes) {
+            if (activeSegment != null) {
+                activeSegment.seal();
+            }
+            activeSegment = createSegment(segments.isEmpty() ? 0 : segments.get(segments.size() - 1).id + 1);
+        }
+        byte[] keyBytes = key.getStringRepresentation().getBytes(Charsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + data.length + CHECKSUM_SIZE);
+        record.putInt(MAGIC).put(type).putLong(sequence).putInt(keyBytes.length).putInt(data.length).put(keyBytes)
+                .put(data);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.position() - 4);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        Segment segment = activeSegment;
+        long position = segment.size;
+        while (record.hasRemaining()) {
+            segment.channel.write(record, position + record.position());
+        }
+        segment.size += record.limit();
+        segment.liveBytes.addAndGet(record.limit());
+        unsyncedSegments.add(segment);
+        return new Location(segment, position, record.limit(), HEADER_SIZE + keyBytes.length, data.length, sequence);
+    }
+
+    /* Guarded by this. The callback is notified after the next sync. */
+    private void committed(StorageCallback callback, CheckpointId key) {
+        pendingCallbacks.add(new PendingCallback(callback, key));
+    }
+
+    /* Group commit: one sync for all the writes since the previous one, then the callbacks. */
+    private void sync() {
+        Set<Segment> toSync;
+        List<PendingCallback> callbacks;
+        synchronized (this) {
+            if (pendingCallbacks.isEmpty() && unsyncedSegments.isEmpty()) {
+                return;
+            }
+            toSync = unsyncedSegments;
+            callbacks = pendingCallbacks;
+            unsyncedSegments = Sets.newHashSet();
+            pendingCallbacks = Lists.newArrayList();
+        }
+        StorageResultCode result = StorageResultCode.SUCCESS;
+        String failure = null;
+        for (Segment segment : toSync) {
+            try {
+                segment.channel.force(false);
+            } catch (IOException e) {
+                logger.error("Cannot sync checkpoint segment [" + segment.file.getAbsolutePath() + "]", e);
+                result = StorageResultCode.FAILURE;
+                failure = e.getMessage();
+            }
+        }
+        for (PendingCallback pending : callbacks) {
+            pending.callback.storageOperationResult(result, result == StorageResultCode.SUCCESS ? pending.key
+                    .toString() : pending.key.toString() + " : " + failure);
+        }
+    }
+
+    /**
+     * Copies the live records of the segments that are mostly superseded to the active segment, then deletes these
+     * segments. Called periodically by a background task.
+     */
+    void compact() {
+        Set<Segment> candidates = Sets.newHashSet();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment != activeSegment && segment.liveBytes.get() < segment.size * compactionThreshold) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        int moved = 0;
+        Set<Segment> copies = Sets.newHashSet();
+        for (Map.Entry<CheckpointId, Entry> indexed : index.entrySet()) {
+            for (Location location : indexed.getValue().locations()) {
+                if (candidates.contains(location.segment)) {
+                    Segment copy = move(indexed.getKey(), location);
+                    if (copy != null) {
+                        copies.add(copy);
+                        moved++;
+                    }
+                }
+            }
+        }
+        // the copies must be on disk before the originals are deleted. They are forced here rather than by sync(),
+        // which returns early while another thread is forcing, and only logs failures
+        for (Segment segment : copies) {
+            try {
+                segment.channel.force(false);
+            } catch (IOException e) {
+                logger.error("Cannot sync checkpoint segment [" + segment.file.getAbsolutePath()
+                        + "], compacted segments are kept", e);
+                return;
+            }
+        }
+        int deleted = 0;
+        synchronized (this) {
+            for (Segment segment : candidates) {
+                if (segment.liveBytes.get() > 0) {
+                    // a record could not be moved, try again later
+                    continue;
+                }
+                segments.remove(segment);
+                segment.close();
+                if (!segment.file.delete()) {
+                    logger.warn("Cannot delete compacted segment [{}]", segment.file.getAbsolutePath());
+                }
+                deleted++;
+            }
+        }
+        logger.info("Compacted {} checkpoint segments, moved {} records", deleted, moved);
+    }
+
+    /*
+     * Copies a record to the active segment, with its sequence number, unless it was superseded in the meantime.
+     * Returns the segment of the copy, or null.
+     */
+    private Segment move(CheckpointId key, Location location) {
+        byte[] data;
+        try {
+            data = location.read();
+        } catch (IOException e) {
+            logger.error("Cannot read checkpoint [" + key + "] for compaction", e);
+            return null;
+        }
+        try {
+            synchronized (this) {
+                Entry entry = index.get(key);
+                if (entry == null || !entry.locations().contains(location)) {
+                    return null;
+                }
+                boolean snapshot = entry.snapshot == location;
+                Location copy = append(snapshot ? SNAPSHOT : DELTA, location.sequence, key, data);
+                index.put(key, entry.replace(location, copy));
+                location.release();
+                return copy.segment;
+            }
+        } catch (IOException e) {
+            logger.error("Cannot copy checkpoint [" + key + "] for compaction", e);
+            return null;
+        }
+    }
+
+    /* Guarded by this. */
+    private Segment createSegment(long id) throws IOException {
+        Segment segment = new Segment(id, new File(storageRootPath, String.format("%s%010d%s", SEGMENT_PREFIX, id,
+                SEGMENT_SUFFIX)));
+        segments.add(segment);
+        return segment;
+    }
+
+    /* Scans the segments in order and keeps, for each key, the latest snapshot and the deltas after it. */
+    private synchronized void loadSegments(File root) throws IOException {
+        File[] files = root.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX)
+                        && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return f1.getName().compareTo(f2.getName());
+            }
+        });
+
+        Map<CheckpointId, Location> snapshots = Maps.newHashMap();
+        Map<CheckpointId, List<Location>> deltas = Maps.newHashMap();
+        for (File file : files) {
+            String name = file.getName();
+            Segment segment = createSegment(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length()
+                    - SEGMENT_SUFFIX.length())));
+            // existing segments are never appended to
+            segment.seal();
+            ByteBuffer buffer = segment.map();
+            while (buffer.remaining() >= HEADER_SIZE + CHECKSUM_SIZE) {
+                int position = buffer.position();
+                if (buffer.getInt() != MAGIC) {
+                    buffer.position(position);
+                    break;
+                }
+                byte type = buffer.get();
+                long sequence = buffer.getLong();
+                int keyLength = buffer.getInt();
+                int dataLength = buffer.getInt();
+                if (keyLength < 0 || dataLength < 0
+                        || buffer.remaining() < (long) keyLength + dataLength + CHECKSUM_SIZE) {
+                    buffer.position(position);
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                buffer.get(keyBytes);
+                buffer.position(buffer.position() + dataLength);
+                int recordLength = buffer.position() + CHECKSUM_SIZE - position;
+                CRC32 crc = new CRC32();
+                ByteBuffer checked = buffer.duplicate();
+                checked.position(position + 4).limit(buffer.position());
+                byte[] checkedBytes = new byte[checked.remaining()];
+                checked.get(checkedBytes);
+                crc.update(checkedBytes);
+                if (buffer.getInt() != (int) crc.getValue()) {
+                    buffer.position(position);
+                    break;
+                }
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                CheckpointId key = new CheckpointId(new String(keyBytes, Charsets.UTF_8));
+                Location location = new Location(segment, position, recordLength, HEADER_SIZE + keyLength, dataLength,
+                        sequence);
+                segment.size = position + recordLength;
+                if (type == SNAPSHOT) {
+                    Location previous = snapshots.get(key);
+                    if (previous == null || previous.sequence < sequence) {
+                        snapshots.put(key, location);
+                    }
+                } else {
+                    if (!deltas.containsKey(key)) {
+                        deltas.put(key, Lists.<Location> newArrayList());
+                    }
+                    deltas.get(key).add(location);
+                }
+            }
+            if (buffer.hasRemaining()) {
+                logger.warn("Ignoring [{}] bytes of incomplete or corrupted records at the end of segment [{}]",
+                        buffer.remaining(), file.getAbsolutePath());
+                segment.size = buffer.position();
+            }
+        }
+
+        for (Map.Entry<CheckpointId, Location> snapshot : snapshots.entrySet()) {
+            List<Location> chain = Lists.newArrayList();
+            if (deltas.containsKey(snapshot.getKey())) {
+                for (Location delta : deltas.get(snapshot.getKey())) {
+                    if (delta.sequence > snapshot.getValue().sequence) {
+                        chain.add(delta);
+                    }
+                }
+                Collections.sort(chain, Location.BY_SEQUENCE);
+            }
+            // a copy made by compaction may be found with the original, both with the same sequence number
+            for (int i = chain.size() - 1; i > 0; i--) {
+                if (chain.get(i).sequence == chain.get(i - 1).sequence) {
+                    chain.remove(i);
+                }
+            }
+            index.put(snapshot.getKey(), new Entry(snapshot.getValue(), ImmutableList.copyOf(chain)));
+        }
+        for (Segment segment : segments) {
+            segment.liveBytes.set(0);
+        }
+        for (Entry entry : index.values()) {
+            for (Location location : entry.locations()) {
+                location.segment.liveBytes.addAndGet(location.length);
+            }
+        }
+        logger.info("Loaded [{}] checkpoints from [{}] segments in [{}]", new String[] {
+                String.valueOf(index.size()), String.valueOf(segments.size()), root.getAbsolutePath() });
+        // writes go to a new segment, after any incomplete record
+        activeSegment = null;
+    }
+
+    /*
+     * A segment file. Writes are done by the storage, under its lock. Reads of the active segment are positional reads,
+     * reads of a sealed segment go through a mapping of the whole file.
+     */
+    private static final class Segment {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        /* Guarded by the storage. */
+        long size;
+        /* Bytes of the records still referenced by the index. */
+        final AtomicLong liveBytes = new AtomicLong();
+        /* Set once no more records are appended, before the segment is mapped. */
+        private volatile boolean sealed;
+        private volatile MappedByteBuffer mapped;
+
+        Segment(long id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            this.size = channel.size();
+        }
+
+        void seal() {
+            sealed = true;
+        }
+
+        /* Maps the sealed segment. It does not grow anymore, so it is mapped only once. */
+        synchronized MappedByteBuffer map() throws IOException {
+            if (mapped == null) {
+                mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            }
+            return mapped;
+        }
+
+        byte[] read(long position, int length) throws IOException {
+            byte[] data = new byte[length];
+            if (sealed) {
+                MappedByteBuffer buffer = mapped;
+                if (buffer == null) {
+                    buffer = map();
+                }
+                ByteBuffer view = buffer.duplicate();
+                view.position((int) position);
+                view.get(data);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Cannot read [" + length + "] bytes at [" + position
+                                + "] of segment [" + file.getAbsolutePath() + "]");
+                    }
+                }
+            }
+            return data;
+        }
+
+        void close() {
+            Closeables.closeQuietly(channel);
+        }
+    }
+
+    /* A record in a segment. */
+    private static final class Location {
+        static final Comparator<Location> BY_SEQUENCE = new Comparator<Location>() {
+            @Override
+            public int compare(Location l1, Location l2) {
+                return l1.sequence < l2.sequence ? -1 : (l1.sequence == l2.sequence ? 0 : 1);
+            }
+        };
+
+        final Segment segment;
+        final long position;
+        final int length;
+        final int dataOffset;
+        final int dataLength;
+        final long sequence;
+
+        Location(Segment segment, long position, int length, int dataOffset, int dataLength, long sequence) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.sequence = sequence;
+        }
+
+        byte[] read() throws IOException {
+            return segment.read(position + dataOffset, dataLength);
+        }
+
+        /* The record is superseded. */
+        void release() {
+            segment.liveBytes.addAndGet(-length);
+        }
+    }
+
+    /* Index entry: the last snapshot of a key and the deltas after it, in order. Immutable. */
+    private static final class Entry {
+        final Location snapshot;
+        final ImmutableList<Location> deltas;
+
+        Entry(Location snapshot, ImmutableList<Location> deltas) {
+            this.snapshot = snapshot;
+            this.deltas = deltas;
+        }
+
+        List<Location> locations() {
+            return ImmutableList.<Location> builder().add(snapshot).addAll(deltas).build();
+        }
+
+        Entry withDelta(Location delta) {
+            return new Entry(snapshot, ImmutableList.<Location> builder().addAll(deltas).add(delta).build());
+        }
+
+        Entry replace(Location location, Location copy) {
+            if (location == snapshot) {
+                return new Entry(copy, deltas);
+            }
+            List<Location> copied = Lists.newArrayList(deltas);
+            copied.set(copied.indexOf(location), copy);
+            return new Entry(snapshot, ImmutableList.copyOf(copied));
+        }
+
+        void release() {
+            for (Location location : locations()) {
+                location.release();
+            }
+        }
+    }
+
+    private static final class PendingCallback {
+        final StorageCallback callback;
+        final CheckpointId key;
+
+        PendingCallback(StorageCallback callback, CheckpointId key) {
+            this.callback = callback;
+            this.key = key;
+        }
+    }
+}
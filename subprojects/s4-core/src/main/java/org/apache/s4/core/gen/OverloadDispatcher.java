@@ -18,6 +18,8 @@
 
 package org.apache.s4.core.gen;
 
+import java.util.Collection;
+
 import org.apache.s4.base.Event;
 import org.apache.s4.core.ProcessingElement;
 
@@ -45,6 +47,11 @@ import org.apache.s4.core.ProcessingElement;
  * </ul>
  * </p>
  * <p>
+ * A PE may also define a single <code>onEvents(Collection&lt;T&gt; events)</code> method, which receives batches of
+ * events of type <code>T</code> when the input stream delivers events in batches. {@link #dispatchEvents} calls it,
+ * and does nothing when the PE has no such method.
+ * </p>
+ * <p>
  * Implementations of this interface are typically generated at runtime.
  * </p>
  */
@@ -53,4 +60,6 @@ public interface OverloadDispatcher {
     public void dispatchEvent(ProcessingElement pe, Event event);
 
     public void dispatchTrigger(ProcessingElement pe, Event event);
+
+    public void dispatchEvents(ProcessingElement pe, Collection<? extends Event> events);
 }
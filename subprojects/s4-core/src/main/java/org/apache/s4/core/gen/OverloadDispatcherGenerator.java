@@ -38,10 +38,12 @@ import static org.objectweb.asm.Opcodes.V1_6;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.WildcardType;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Random;
 
 import org.apache.s4.base.Event;
 import org.apache.s4.base.util.S4RLoader;
@@ -53,6 +55,7 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
 /**
@@ -69,12 +72,26 @@ import com.google.common.io.Files;
  * <p>
  * If there is still no match, an error statement is logged and the event is ignored (not processed).
  * </p>
+ * <p>
+ * The overloads are checked one by one with <code>instanceof</code>, from the most specialized type. A
+ * <code>tableswitch</code> on a case number cached per event class was measured to be slower for every PE in
+ * <code>OverloadDispatcherBenchmark</code>, including one with 16 overloads, and was not kept.
+ * </p>
+ * <p>
+ * Batches of events are passed to the <code>onEvents(Collection&lt;T&gt;)</code> method, if the PE defines one. The
+ * type argument <code>T</code> is available from {@link #getBatchEventType()}.
+ * </p>
  * 
  */
 public class OverloadDispatcherGenerator {
+
+    /* Part of the dispatcher class names, change it whenever the generated code changes. */
+    private static final int GENERATOR_VERSION = 1;
+
     private final List<Hierarchy> inputEventHierarchies = new ArrayList<Hierarchy>();
     private final List<Hierarchy> outputEventHierarchies = new ArrayList<Hierarchy>();
     private Class<?> targetClass;
+    private Class<? extends Event> batchEventType;
     private static final boolean DUMP = true;
 
     public OverloadDispatcherGenerator() {
@@ -88,6 +105,10 @@ public class OverloadDispatcherGenerator {
                 inputEventHierarchies.add(new Hierarchy(method.getParameterTypes()[0]));
             } else if (method.getName().equals("onTrigger") && method.getReturnType().equals(Void.TYPE)) {
                 outputEventHierarchies.add(new Hierarchy(method.getParameterTypes()[0]));
+            } else if (method.getName().equals("onEvents") && method.getReturnType().equals(Void.TYPE)
+                    && method.getParameterTypes().length == 1
+                    && method.getParameterTypes()[0].equals(Collection.class)) {
+                batchEventType = elementType(method);
             }
         }
         // order by most specialized types
@@ -95,9 +116,110 @@ public class OverloadDispatcherGenerator {
         Collections.sort(outputEventHierarchies);
     }
 
+    /* The event type of a Collection<T> parameter, Event if it cannot be resolved. */
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Event> elementType(Method method) {
+        java.lang.reflect.Type parameterType = method.getGenericParameterTypes()[0];
+        if (parameterType instanceof ParameterizedType) {
+            java.lang.reflect.Type argument = ((ParameterizedType) parameterType).getActualTypeArguments()[0];
+            if (argument instanceof WildcardType) {
+                argument = ((WildcardType) argument).getUpperBounds()[0];
+            }
+            if (argument instanceof Class && Event.class.isAssignableFrom((Class<?>) argument)) {
+                return (Class<? extends Event>) argument;
+            }
+        }
+        return Event.class;
+    }
+
+    /**
+     * @return the type of the events accepted by the <code>onEvents</code> method of the target class, or null if it
+     *         has no such method.
+     */
+    public Class<? extends Event> getBatchEventType() {
+        return batchEventType;
+    }
+
+    /**
+     * The name of the dispatcher class, derived from the target class and from the overloads it dispatches to. A class
+     * with this name generated for an older version of the target class, or by an older generator, does not match the
+     * current name, so stale pre-generated dispatchers are never picked up.
+     * 
+     * @return the name of the dispatcher class in the default package
+     */
+    public String getDispatcherClassName() {
+        StringBuilder signature = new StringBuilder().append(GENERATOR_VERSION).append(targetClass.getName());
+        appendSignature(signature, "onEvent", inputEventHierarchies);
+        appendSignature(signature, "onTrigger", outputEventHierarchies);
+        if (batchEventType != null) {
+            signature.append(";onEvents(").append(batchEventType.getName()).append(')');
+        }
+        return "OverloadDispatcher" + (Hashing.md5().hashString(signature).asLong() & Long.MAX_VALUE);
+    }
+
+    private static void appendSignature(StringBuilder signature, String methodName, List<Hierarchy> eventHierarchies) {
+        for (Hierarchy hierarchy : eventHierarchies) {
+            signature.append(';').append(methodName);
+            for (Class<?> clazz : hierarchy.classes) {
+                signature.append('(').append(clazz.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns the dispatcher class for the target class. A dispatcher class already visible from the classloader of the
+     * target class is used when it matches the current target class, for instance a dispatcher pre-generated in the S4R
+     * archive. Otherwise the class is generated.
+     */
     public Class<?> generate() {
-        Random rand = new Random(System.currentTimeMillis());
-        String dispatcherClassName = "OverloadDispatcher" + (Math.abs(rand.nextInt() % 3256));
+        String dispatcherClassName = getDispatcherClassName();
+        Class<?> existing = findExisting(dispatcherClassName);
+        if (existing != null) {
+            LoggerFactory.getLogger(getClass()).debug(
+                    "Using existing overload dispatcher class [{}] for PE of class [{}]", dispatcherClassName,
+                    targetClass.getName());
+            return existing;
+        }
+
+        byte[] bytecode = generateBytecode();
+        if (DUMP) {
+            try {
+                LoggerFactory.getLogger(getClass()).debug(
+                        "Dumping generated overload dispatcher class for PE of class [" + targetClass + "]");
+                Files.write(bytecode, new File(System.getProperty("java.io.tmpdir") + "/" + dispatcherClassName
+                        + ".class"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new OverloadDispatcherClassLoader(targetClass.getClassLoader()).loadClassFromBytes(dispatcherClassName,
+                bytecode);
+    }
+
+    private Class<?> findExisting(String dispatcherClassName) {
+        ClassLoader loader = targetClass.getClassLoader();
+        if (loader == null) {
+            return null;
+        }
+        try {
+            Class<?> clazz = Class.forName(dispatcherClassName, false, loader);
+            return OverloadDispatcher.class.isAssignableFrom(clazz) ? clazz : null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            LoggerFactory.getLogger(getClass()).warn("Cannot load existing overload dispatcher class [{}]: {}",
+                    dispatcherClassName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Generates the dispatcher class without loading it. Used to pre-generate dispatchers when packaging applications.
+     * 
+     * @return the bytecode of the class named {@link #getDispatcherClassName()}
+     */
+    public byte[] generateBytecode() {
+        String dispatcherClassName = getDispatcherClassName();
 
         // class headers
         ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
@@ -126,22 +248,11 @@ public class OverloadDispatcherGenerator {
         generateEventDispatchMethod(cw, "dispatchEvent", inputEventHierarchies, "onEvent");
         // dispatch output events method
         generateEventDispatchMethod(cw, "dispatchTrigger", outputEventHierarchies, "onTrigger");
+        // dispatch batches of input events method
+        generateBatchDispatchMethod(cw);
 
         cw.visitEnd();
-
-        if (DUMP) {
-            try {
-                LoggerFactory.getLogger(getClass()).debug(
-                        "Dumping generated overload dispatcher class for PE of class [" + targetClass + "]");
-                Files.write(cw.toByteArray(), new File(System.getProperty("java.io.tmpdir") + "/" + dispatcherClassName
-                        + ".class"));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        return new OverloadDispatcherClassLoader(targetClass.getClassLoader()).loadClassFromBytes(dispatcherClassName,
-                cw.toByteArray());
-
+        return cw.toByteArray();
     }
 
     private void generateEventDispatchMethod(ClassWriter cw, String dispatchMethodName,
@@ -200,6 +311,24 @@ public class OverloadDispatcherGenerator {
         mv2.visitEnd();
     }
 
+
+    private void generateBatchDispatchMethod(ClassWriter cw) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "dispatchEvents", "("
+                + Type.getDescriptor(ProcessingElement.class) + Type.getDescriptor(Collection.class) + ")V", null,
+                null);
+        mv.visitCode();
+        if (batchEventType != null) {
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitTypeInsn(CHECKCAST, Type.getInternalName(targetClass));
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(targetClass), "onEvents",
+                    "(" + Type.getDescriptor(Collection.class) + ")V");
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(2, 3);
+        mv.visitEnd();
+    }
+
     private void addErrorLogStatement(MethodVisitor mv2) {
         mv2.visitVarInsn(ALOAD, 0);
         mv2.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", "getClass", "()Ljava/lang/Class;");
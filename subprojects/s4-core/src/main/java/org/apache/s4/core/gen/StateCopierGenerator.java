@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.gen;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.s4.base.util.GeneratedClasses;
+import org.apache.s4.core.ProcessingElement;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+
+/**
+ * Generates a {@link StateCopier} subclass for a processing element class. The generated <code>copy</code> method
+ * reads and writes each state field through its memory offset, in a straight sequence of instructions.
+ * <p>
+ * The state fields are the non-static, non-transient fields declared by the class and its superclasses, up to but
+ * excluding {@link ProcessingElement}: the fields of the base class are runtime state of the instance, not state of
+ * the application.
+ * <p>
+ * Copiers are generated once per class and cached. Generated classes do not reference the processing element class,
+ * so the cache does not prevent unloading applications.
+ */
+public class StateCopierGenerator {
+
+    private static final String UNSAFE = GeneratedClasses.UNSAFE_TYPE;
+    private static final String BASE_CLASS = Type.getInternalName(StateCopier.class);
+
+    private static final LoadingCache<Class<?>, StateCopier> copiers = CacheBuilder.newBuilder().weakKeys()
+            .build(new CacheLoader<Class<?>, StateCopier>() {
+                @Override
+                public StateCopier load(Class<?> peClass) throws Exception {
+                    return generate(peClass).newInstance();
+                }
+            });
+
+    private StateCopierGenerator() {
+    }
+
+    /**
+     * @return the state copier for a processing element class, generated on first use
+     */
+    public static StateCopier copierFor(Class<? extends ProcessingElement> peClass) {
+        try {
+            return copiers.get(peClass);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Cannot create state copier for class [" + peClass.getName() + "].",
+                    e.getCause());
+        }
+    }
+
+    /**
+     * @return the state fields of a processing element class, from the most specialized class
+     */
+    static List<Field> stateFields(Class<?> peClass) {
+        List<Field> fields = Lists.newArrayList();
+        for (Class<?> c = peClass; c != null && c != ProcessingElement.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isTransient(field.getModifiers()) && !Modifier.isStatic(field.getModifiers())) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Class<? extends StateCopier> generate(Class<?> peClass) {
+        String className = "org/apache/s4/core/gen/generated/" + peClass.getName().replace('.', '_') + "StateCopier";
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, className, null, BASE_CLASS, null);
+
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, BASE_CLASS, "<init>", "()V");
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "copy", "(Ljava/lang/Object;Ljava/lang/Object;)V", null, null);
+        mv.visitCode();
+        for (Field field : stateFields(peClass)) {
+            generateFieldCopy(mv, field.getType(), GeneratedClasses.fieldOffset(field));
+        }
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+
+        return (Class<? extends StateCopier>) GeneratedClasses.define(StateCopier.class.getClassLoader(),
+                className.replace('/', '.'), cw.toByteArray());
+    }
+
+    private static void generateFieldCopy(MethodVisitor mv, Class<?> type, long offset) {
+        String suffix = type.isPrimitive() ? accessorSuffix(type) : "Object";
+        String descriptor = type.isPrimitive() ? Type.getDescriptor(type) : "Ljava/lang/Object;";
+
+        // unsafe.putXxx(to, offset, unsafe.getXxx(from, offset))
+        GeneratedClasses.loadUnsafe(mv);
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitLdcInsn(Long.valueOf(offset));
+        GeneratedClasses.loadUnsafe(mv);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitLdcInsn(Long.valueOf(offset));
+        mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE, "get" + suffix, "(Ljava/lang/Object;J)" + descriptor);
+        mv.visitMethodInsn(INVOKEVIRTUAL, UNSAFE, "put" + suffix, "(Ljava/lang/Object;J" + descriptor + ")V");
+    }
+
+    /* int -> Int, boolean -> Boolean, etc. */
+    private static String accessorSuffix(Class<?> primitiveType) {
+        String name = primitiveType.getName();
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
@@ -20,21 +20,16 @@ package org.apache.s4.core.window;
 
 import java.util.Collection;
 import java.util.Map;
-import java.util.TimerTask;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.collections15.buffer.CircularFifoBuffer;
 import org.apache.s4.base.Event;
 import org.apache.s4.core.App;
 import org.apache.s4.core.ProcessingElement;
+import org.apache.s4.core.ScheduledTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
 /**
  * Abstract ProcessingElement that can store historical values using a sliding window. Each set of values is called a
  * slot. Each slot represents a segment of time or a fixed number of events. Slots are consecutive in time or events.
@@ -42,7 +37,8 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * Users are expected to provide a factory for creating new slots, and a method to perform a global computation on the
  * current window.
  * 
- * Slots are automatically added.
+ * Slots are automatically added. With the event clock, time-based slots are rotated as the event time advances, see
+ * {@link org.apache.s4.core.EventClock}.
  * 
  * WHen using time-based slots, use this implementation only if you expect most slots to have values, it is not
  * efficient for sparse event streams.
@@ -59,7 +55,7 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
 
     final private int numSlots;
     private CircularFifoBuffer<T> circularBuffer;
-    final private ScheduledExecutorService windowingTimerService;
+    transient private ScheduledTask windowingTimer;
     final private long slotDurationInMilliseconds;
 
     private T openSlot;
@@ -108,13 +104,8 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
         this.slotCapacity = slotCapacity;
         if (slotDuration > 0l) {
             slotDurationInMilliseconds = TimeUnit.MILLISECONDS.convert(slotDuration, timeUnit);
-            ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
-                    .setNameFormat("SlidingWindow-" + getClass().getSimpleName()).build();
-            windowingTimerService = Executors.newSingleThreadScheduledExecutor(threadFactory);
-
         } else {
             slotDurationInMilliseconds = 0;
-            windowingTimerService = null;
         }
     }
 
@@ -128,19 +119,27 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
      * For count-based windows, we use a trigger that adds a new slot when the current one reaches its maximum capacity.
      */
     public final void onTrigger(Event event) {
-        if (windowingTimerService == null) {
+        if (slotDurationInMilliseconds == 0) {
             if (eventCount % slotCapacity == 0) {
                 addSlot();
             }
         }
     }
 
+    /* Slots are rotated by the windowing timer thread, which synchronizes on the PE instances. */
+    @Override
+    protected boolean requiresInstanceLocking() {
+        return slotDurationInMilliseconds > 0;
+    }
+
     @Override
     protected void initPEPrototypeInternal() {
         super.initPEPrototypeInternal();
-        windowingTimerService.scheduleAtFixedRate(new SlotTask(), slotDurationInMilliseconds,
-                slotDurationInMilliseconds, TimeUnit.MILLISECONDS);
-        logger.trace("TIMER: " + slotDurationInMilliseconds);
+        if (slotDurationInMilliseconds > 0) {
+            windowingTimer = getApp().scheduleAtFixedRate(new SlotTask(), slotDurationInMilliseconds,
+                    slotDurationInMilliseconds, TimeUnit.MILLISECONDS);
+            logger.trace("TIMER: " + slotDurationInMilliseconds);
+        }
 
     }
 
@@ -157,7 +156,7 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
      */
     protected final void addSlot() {
 
-        if (windowingTimerService != null) {
+        if (slotDurationInMilliseconds > 0) {
             logger.error("Calling method addSlot() in a periodic window is not allowed.");
             return;
         }
@@ -188,7 +187,9 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
 
     /** Stops the the sliding window. */
     protected void stop() {
-        windowingTimerService.shutdownNow();
+        if (windowingTimer != null) {
+            windowingTimer.cancel();
+        }
     }
 
     /**
@@ -203,7 +204,7 @@ public abstract class AbstractSlidingWindowPE<T extends Slot<U>, U, V> extends P
         return openSlot;
     }
 
-    private class SlotTask extends TimerTask {
+    private class SlotTask implements Runnable {
 
         @Override
         public void run() {
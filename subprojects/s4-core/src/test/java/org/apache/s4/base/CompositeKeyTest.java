@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base;
+
+import java.util.Arrays;
+
+import org.apache.s4.comm.DefaultHasher;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompositeKeyTest {
+
+    private final DefaultHasher hasher = new DefaultHasher();
+
+    private void checkHashes(CompositeKey key, String canonicalForm) {
+        Assert.assertEquals(canonicalForm, key.toString());
+        Assert.assertEquals(canonicalForm.hashCode(), key.hashCode());
+        Assert.assertEquals(hasher.hash(canonicalForm), key.longHash());
+        Assert.assertEquals(hasher.hash(canonicalForm), hasher.hash(key));
+        Assert.assertTrue(key.contentEquals(canonicalForm));
+    }
+
+    @Test
+    public void testHashesMatchCanonicalForm() {
+        checkHashes(CompositeKey.of("user42"), "user42");
+        checkHashes(CompositeKey.of(""), "");
+        checkHashes(CompositeKey.of(0), "0");
+        checkHashes(CompositeKey.of(1234567890123L), "1234567890123");
+        checkHashes(CompositeKey.of(-987L), "-987");
+        checkHashes(CompositeKey.of(Long.MAX_VALUE), String.valueOf(Long.MAX_VALUE));
+        checkHashes(CompositeKey.of(Long.MIN_VALUE), String.valueOf(Long.MIN_VALUE));
+        checkHashes(CompositeKey.of("a", 7, -10L), "a^7^-10");
+        checkHashes(CompositeKey.of(Arrays.asList("x", "y")), "x^y");
+    }
+
+    @Test
+    public void testEquality() {
+        Assert.assertEquals(CompositeKey.of("12"), CompositeKey.of(12L));
+        Assert.assertEquals(CompositeKey.of("a^1"), CompositeKey.of("a", 1));
+        Assert.assertFalse(CompositeKey.of("a", 1).equals(CompositeKey.of("a", 10)));
+        Assert.assertFalse(CompositeKey.of(10).contentEquals("1"));
+        Assert.assertFalse(CompositeKey.of(1).contentEquals("10"));
+        Assert.assertFalse(CompositeKey.of("a", "b").contentEquals("a-b"));
+        Assert.assertEquals(Arrays.asList("a", "7"), CompositeKey.of("a", 7).toList());
+    }
+
+    @Test
+    public void testNullComponentsAreEmpty() {
+        checkHashes(CompositeKey.of((String) null), "");
+        checkHashes(CompositeKey.of("a", null), "a^");
+        checkHashes(CompositeKey.of(Arrays.asList(null, "b")), "^b");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedComponent() {
+        CompositeKey.of("a", 1.5d);
+    }
+}
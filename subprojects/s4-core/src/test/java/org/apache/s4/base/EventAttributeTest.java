@@ -18,6 +18,7 @@
 
 package org.apache.s4.base;
 
+import java.lang.ref.WeakReference;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -25,6 +26,8 @@ import junit.framework.Assert;
 
 import org.junit.Test;
 
+import com.google.common.io.ByteStreams;
+
 public class EventAttributeTest {
 
     @Test
@@ -43,6 +46,41 @@ public class EventAttributeTest {
         Assert.assertEquals("dog", ev.get("A Map", Map.class).get("snoopy"));
     }
 
+    @Test
+    public void testSchema() {
+
+        EventSchema schema = new EventSchema.Builder().add("An Int", int.class).add("A String", String.class)
+                .add("A Long", long.class).add("A Char", char.class).add("A Float", float.class).build();
+        Event ev = new Event(schema);
+        Assert.assertFalse(ev.containsKey("An Int"));
+
+        ev.put("An Int", Integer.class, 33);
+        ev.put("A String", String.class, "XXX");
+        ev.putLong("A Long", Long.MIN_VALUE);
+        ev.put("A Char", Character.class, 'c');
+        ev.put("A Float", Float.class, -1.5f);
+        ev.putInt("Not in schema", 5);
+
+        Assert.assertTrue(ev.containsKey("An Int"));
+        Assert.assertEquals(33, ev.get("An Int", Integer.class).intValue());
+        Assert.assertEquals(33, ev.getInt("An Int"));
+        Assert.assertEquals("XXX", ev.get("A String", String.class));
+        Assert.assertEquals(Long.MIN_VALUE, ev.getLong("A Long"));
+        Assert.assertEquals(Character.valueOf('c'), ev.get("A Char", Character.class));
+        Assert.assertEquals(-1.5f, ev.get("A Float", Float.class), 0);
+        Assert.assertEquals(5, ev.getInt("Not in schema"));
+        Assert.assertNull(ev.get("A String", Integer.class));
+        Assert.assertEquals("33", ev.get("An Int"));
+        Assert.assertEquals("5", ev.getAttributesAsMap().get("Not in schema"));
+        Assert.assertEquals(6, ev.getAttributesAsMap().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSchemaTypeMismatch() {
+        Event ev = new Event(new EventSchema.Builder().add("A Long", long.class).build());
+        ev.putDouble("A Long", 1.0);
+    }
+
     @Test
     public void testGenericKeyFinder1() {
 
@@ -81,4 +119,71 @@ public class EventAttributeTest {
         Assert.assertNull(k.get(ev));
     }
 
+    static class KeyedEvent extends Event {
+        private int count = -7;
+        private short small = 12;
+        private char letter = 'x';
+        private double ratio = 0.5;
+        private boolean flag = true;
+        private String label;
+    }
+
+    @Test
+    public void testGeneratedAccessors() {
+
+        /* Primitive and reference fields are read through generated accessors. */
+        KeyedEvent ev = new KeyedEvent();
+        Assert.assertEquals("-7", new GenericKeyFinder<KeyedEvent>("count", KeyedEvent.class).getKey(ev).toString());
+        Assert.assertEquals(Long.valueOf(-7),
+                new GenericKeyFinder<KeyedEvent>("count", KeyedEvent.class).getKey(ev).get(0));
+        Assert.assertEquals("12", new GenericKeyFinder<KeyedEvent>("small", KeyedEvent.class).getKey(ev).toString());
+        Assert.assertEquals("x", new GenericKeyFinder<KeyedEvent>("letter", KeyedEvent.class).getKey(ev).toString());
+        Assert.assertEquals("0.5", new GenericKeyFinder<KeyedEvent>("ratio", KeyedEvent.class).getKey(ev).toString());
+        Assert.assertEquals("true", new GenericKeyFinder<KeyedEvent>("flag", KeyedEvent.class).getKey(ev).toString());
+        Assert.assertEquals("null", new GenericKeyFinder<KeyedEvent>("label", KeyedEvent.class).getKey(ev).toString());
+
+        ev.label = "abc";
+        Assert.assertEquals("abc", new GenericKeyFinder<KeyedEvent>("label", KeyedEvent.class).getKey(ev).toString());
+    }
+
+    @Test
+    public void testAccessorsAreShared() throws Exception {
+        Assert.assertSame(KeyAccessorGenerator.accessorFor(SimpleEvent.class.getDeclaredField("numGrapes")),
+                KeyAccessorGenerator.accessorFor(SimpleEvent.class.getDeclaredField("numGrapes")));
+    }
+
+    /* Loads its own copy of KeyedEvent, like an application class loader. */
+    private static class EventLoader extends ClassLoader {
+        EventLoader() {
+            super(EventAttributeTest.class.getClassLoader());
+        }
+
+        Class<?> loadKeyedEvent() throws Exception {
+            String name = KeyedEvent.class.getName();
+            byte[] bytes = ByteStreams.toByteArray(getParent().getResourceAsStream(name.replace('.', '/') + ".class"));
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    @Test
+    public void testAccessorsDoNotRetainEventClasses() throws Exception {
+        Class<?> eventType = new EventLoader().loadKeyedEvent();
+        KeyAccessorGenerator.accessorFor(eventType.getDeclaredField("count"));
+        WeakReference<Class<?>> unloaded = new WeakReference<Class<?>>(eventType);
+        eventType = null;
+        for (int i = 0; i < 50 && unloaded.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        Assert.assertNull(unloaded.get());
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void testAccessorRejectsOtherEventTypes() throws Exception {
+
+        /* The accessor reads by offset, so it must not be given an event of another class. */
+        GeneratedKeyAccessor accessor = KeyAccessorGenerator.accessorFor(KeyedEvent.class.getDeclaredField("count"));
+        accessor.getKey(new SimpleEvent("Hello", 28));
+    }
+
 }
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.base.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.s4.base.util.RingBuffer.OverflowPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    @Test
+    public void testCapacityAndOrder() {
+        RingBuffer<Integer> ring = new RingBuffer<Integer>(5, OverflowPolicy.BLOCK);
+        Assert.assertEquals(8, ring.capacity());
+        for (int i = 0; i < 8; i++) {
+            Assert.assertTrue(ring.offer(i));
+        }
+        Assert.assertFalse(ring.offer(8));
+        Assert.assertEquals(8, ring.size());
+        for (int i = 0; i < 8; i++) {
+            Assert.assertEquals(i, ring.poll().intValue());
+        }
+        Assert.assertNull(ring.poll());
+    }
+
+    @Test
+    public void testDropNewest() throws InterruptedException {
+        RingBuffer<Integer> ring = new RingBuffer<Integer>(4, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 6; i++) {
+            ring.put(i);
+        }
+        Assert.assertEquals(2, ring.getDroppedCount());
+        Assert.assertEquals(0, ring.take().intValue());
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        RingBuffer<Integer> ring = new RingBuffer<Integer>(4, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 6; i++) {
+            Assert.assertTrue(ring.put(i));
+        }
+        Assert.assertEquals(2, ring.getDroppedCount());
+        for (int i = 2; i < 6; i++) {
+            Assert.assertEquals(i, ring.take().intValue());
+        }
+    }
+
+    @Test
+    public void testOnDrop() throws InterruptedException {
+        final List<Integer> dropped = new ArrayList<Integer>();
+        RingBuffer<Integer> ring = new RingBuffer<Integer>(2, OverflowPolicy.DROP_OLDEST) {
+            @Override
+            protected void onDrop(Integer element) {
+                dropped.add(element);
+            }
+        };
+        for (int i = 0; i < 5; i++) {
+            ring.put(i);
+        }
+        Assert.assertEquals(Arrays.asList(0, 1, 2), dropped);
+    }
+
+    @Test
+    public void testIdleConsumerIsWoken() throws InterruptedException {
+        final RingBuffer<Integer> ring = new RingBuffer<Integer>(4, OverflowPolicy.BLOCK);
+        final List<Integer> taken = new ArrayList<Integer>();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taken.add(ring.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ring.getBlockedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(1, ring.getBlockedCount());
+
+        ring.put(1);
+        consumer.join(5000);
+        Assert.assertEquals(Arrays.asList(1), taken);
+        Assert.assertEquals(0, ring.getBlockedCount());
+    }
+
+    @Test
+    public void testBlockedProducerIsWoken() throws InterruptedException {
+        final RingBuffer<Integer> ring = new RingBuffer<Integer>(1, OverflowPolicy.BLOCK);
+        Assert.assertEquals(2, ring.capacity());
+        ring.put(0);
+        ring.put(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ring.put(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ring.getBlockedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(1, ring.getBlockedCount());
+
+        Assert.assertEquals(0, ring.take().intValue());
+        producer.join(5000);
+        Assert.assertFalse(producer.isAlive());
+        Assert.assertEquals(1, ring.poll().intValue());
+        Assert.assertEquals(2, ring.poll().intValue());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 50000;
+        final RingBuffer<Integer> ring = new RingBuffer<Integer>(64, OverflowPolicy.BLOCK);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perProducer; i++) {
+                            ring.put(i);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        long sum = 0;
+        for (int i = 0; i < producers * perProducer; i++) {
+            sum += ring.take();
+        }
+        Assert.assertEquals((long) producers * perProducer * (perProducer - 1) / 2, sum);
+        Assert.assertNull(ring.poll());
+        Assert.assertEquals(0, ring.getDroppedCount());
+    }
+}
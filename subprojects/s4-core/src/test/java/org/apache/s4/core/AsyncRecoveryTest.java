@@ -0,0 +1,258 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.core.ft.CheckpointId;
+import org.apache.s4.core.ft.CheckpointingConfig;
+import org.apache.s4.core.ft.CheckpointingConfig.CheckpointingMode;
+import org.apache.s4.core.ft.CheckpointingFramework;
+import org.apache.s4.core.ft.SafeKeeper;
+import org.apache.s4.core.ft.StateStorage;
+import org.apache.s4.core.ft.StorageCallback;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.name.Names;
+
+public class AsyncRecoveryTest {
+
+    public static class CountPE extends ProcessingElement {
+        int count;
+        List<Integer> seen;
+
+        public CountPE() {
+        }
+
+        CountPE(App app) {
+            super(app);
+        }
+
+        public void onEvent(Event event) {
+            count++;
+            seen.add(event.get("i", Integer.class));
+        }
+
+        @Override
+        protected void onCreate() {
+            seen = Lists.newArrayList();
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    /* Fetches complete when the test sets them. */
+    static class TestCheckpointingFramework implements CheckpointingFramework {
+        final Map<String, SettableFuture<byte[]>> fetches = Maps.newHashMap();
+
+        SettableFuture<byte[]> fetch(String key) {
+            if (!fetches.containsKey(key)) {
+                fetches.put(key, SettableFuture.<byte[]> create());
+            }
+            return fetches.get(key);
+        }
+
+        @Override
+        public StorageCallback saveState(ProcessingElement pe) {
+            return null;
+        }
+
+        @Override
+        public byte[] fetchSerializedState(CheckpointId key) {
+            throw new AssertionError("Recovery should not block");
+        }
+
+        @Override
+        public ListenableFuture<byte[]> fetchSerializedStateAsync(CheckpointId key) {
+            return fetch(key.getKey());
+        }
+
+        @Override
+        public void prefetchStates(Predicate<CheckpointId> filter) {
+        }
+
+        @Override
+        public RecoveryMode getRecoveryMode() {
+            return RecoveryMode.PREFETCH;
+        }
+
+        @Override
+        public boolean isCheckpointable(ProcessingElement pe) {
+            return false;
+        }
+    }
+
+    private App app;
+    private TestCheckpointingFramework checkpointing;
+    private CountPE prototype;
+
+    @Before
+    public void createApp() {
+        app = new App() {
+            @Override
+            protected void onStart() {
+            }
+
+            @Override
+            protected void onInit() {
+            }
+
+            @Override
+            protected void onClose() {
+            }
+        };
+        checkpointing = new TestCheckpointingFramework();
+        app.checkpointingFramework = checkpointing;
+        prototype = new CountPE(app);
+        prototype.setCheckpointingConfig(new CheckpointingConfig.Builder(CheckpointingMode.EVENT_COUNT).frequency(1)
+                .build());
+    }
+
+    private static Event event(int i) {
+        Event event = new Event();
+        event.put("i", Integer.class, i);
+        return event;
+    }
+
+    private byte[] checkpoint(int count, Integer... seen) {
+        CountPE old = new CountPE();
+        old.count = count;
+        old.seen = Lists.newArrayList(seen);
+        return app.getSerDeser().serialize(old);
+    }
+
+    @Test
+    public void testEventsAreParkedUntilRecovered() {
+        CountPE pe = (CountPE) prototype.getInstanceForKey("a");
+        pe.handleInputEvent(event(1));
+        pe.handleInputEvent(event(2));
+        Assert.assertEquals(0, pe.count);
+
+        checkpointing.fetch("a").set(checkpoint(10, 0));
+        Assert.assertEquals(12, pe.count);
+        Assert.assertEquals(Lists.newArrayList(0, 1, 2), pe.seen);
+
+        pe.handleInputEvent(event(3));
+        Assert.assertEquals(13, pe.count);
+        Assert.assertEquals(Lists.newArrayList(0, 1, 2, 3), pe.seen);
+    }
+
+    @Test
+    public void testPrefetchedStateIsRestoredImmediately() {
+        checkpointing.fetch("b").set(checkpoint(5));
+        checkpointing.fetch("c").set(null);
+
+        CountPE b = (CountPE) prototype.getInstanceForKey("b");
+        b.handleInputEvent(event(1));
+        Assert.assertEquals(6, b.count);
+
+        CountPE c = (CountPE) prototype.getInstanceForKey("c");
+        c.handleInputEvent(event(1));
+        Assert.assertEquals(1, c.count);
+        Assert.assertEquals(Lists.newArrayList(1), c.seen);
+    }
+
+    @Test
+    public void testFailedFetchProcessesParkedEvents() {
+        CountPE pe = (CountPE) prototype.getInstanceForKey("d");
+        pe.handleInputEvent(event(1));
+        checkpointing.fetch("d").setException(new RuntimeException("storage unavailable"));
+        Assert.assertEquals(1, pe.count);
+    }
+
+    @Test
+    public void testParkedEventsAreCapped() {
+        prototype.setCheckpointingConfig(new CheckpointingConfig.Builder(CheckpointingMode.EVENT_COUNT).frequency(1)
+                .maxParkedEvents(2).build());
+        CountPE pe = (CountPE) prototype.getInstanceForKey("e");
+        for (int i = 1; i <= 4; i++) {
+            pe.handleInputEvent(event(i));
+        }
+        checkpointing.fetch("e").set(checkpoint(10, 0));
+        Assert.assertEquals(12, pe.count);
+        Assert.assertEquals(Lists.newArrayList(0, 1, 2), pe.seen);
+    }
+
+    /* 100 checkpoints of 100 bytes. */
+    static class CountingStorage implements StateStorage {
+        final AtomicInteger fetches = new AtomicInteger();
+
+        @Override
+        public void saveState(CheckpointId key, byte[] state, StorageCallback callback) {
+        }
+
+        @Override
+        public byte[] fetchState(CheckpointId key) {
+            fetches.incrementAndGet();
+            return new byte[100];
+        }
+
+        @Override
+        public Set<CheckpointId> fetchStoredKeys() {
+            Set<CheckpointId> keys = Sets.newLinkedHashSet();
+            for (int i = 0; i < 100; i++) {
+                keys.add(new CheckpointId("pe", "k" + i));
+            }
+            return keys;
+        }
+    }
+
+    @Test
+    public void testPrefetchingStopsWhenPrefetchedStatesDoNotFit() throws Exception {
+        final CountingStorage storage = new CountingStorage();
+        CheckpointingFramework safeKeeper = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(StateStorage.class).toInstance(storage);
+                bindConstant().annotatedWith(Names.named("s4.checkpointing.prefetchingQueueSize")).to(2);
+                bindConstant().annotatedWith(Names.named("s4.checkpointing.prefetchedStateMaxBytes")).to(1000L);
+            }
+        }).getInstance(SafeKeeper.class);
+
+        safeKeeper.prefetchStates(Predicates.<CheckpointId> alwaysTrue());
+        int fetches;
+        do {
+            fetches = storage.fetches.get();
+            Thread.sleep(200);
+        } while (fetches != storage.fetches.get());
+        Assert.assertTrue(String.valueOf(fetches), fetches > 0 && fetches < 100);
+
+        // the checkpoints that were not prefetched are fetched on demand
+        Assert.assertEquals(100, safeKeeper.fetchSerializedStateAsync(new CheckpointId("pe", "k99")).get(10,
+                TimeUnit.SECONDS).length);
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.core.ft.BatchStateStorage;
+import org.apache.s4.core.ft.CheckpointId;
+import org.apache.s4.core.ft.CheckpointingConfig;
+import org.apache.s4.core.ft.CheckpointingConfig.CheckpointingMode;
+import org.apache.s4.core.ft.CheckpointingFramework;
+import org.apache.s4.core.ft.CheckpointingFramework.StorageResultCode;
+import org.apache.s4.core.ft.SafeKeeper;
+import org.apache.s4.core.ft.StateStorage;
+import org.apache.s4.core.ft.StorageCallback;
+import org.apache.s4.core.ft.StorageCallbackFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+public class CheckpointCoalescingTest {
+
+    public static class CounterPE extends ProcessingElement {
+        int count;
+
+        public CounterPE() {
+        }
+
+        CounterPE(App app) {
+            super(app);
+        }
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    /* Records the batches and the threads storing them. The first batch waits until the test releases it. */
+    static class RecordingStorage implements BatchStateStorage {
+        final List<Map<CheckpointId, byte[]>> batches = Lists.newCopyOnWriteArrayList();
+        final Set<String> threads = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        final CountDownLatch firstBatchReleased = new CountDownLatch(1);
+
+        @Override
+        public void saveStates(Map<CheckpointId, byte[]> states, Map<CheckpointId, StorageCallback> callbacks) {
+            threads.add(Thread.currentThread().getName());
+            if (batches.isEmpty()) {
+                firstBatchStarted.countDown();
+                try {
+                    firstBatchReleased.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            batches.add(Maps.newHashMap(states));
+            for (CheckpointId key : states.keySet()) {
+                callbacks.get(key).storageOperationResult(StorageResultCode.SUCCESS, key.toString());
+            }
+        }
+
+        @Override
+        public void saveState(CheckpointId key, byte[] state, StorageCallback callback) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] fetchState(CheckpointId key) {
+            return null;
+        }
+
+        @Override
+        public Set<CheckpointId> fetchStoredKeys() {
+            return ImmutableSet.of();
+        }
+    }
+
+    private final BlockingQueue<StorageResultCode> results = new LinkedBlockingQueue<StorageResultCode>();
+    private final RecordingStorage storage = new RecordingStorage();
+    private CheckpointingFramework safeKeeper;
+    private CounterPE prototype;
+
+    @Before
+    public void createSafeKeeper() {
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bindConstant().annotatedWith(Names.named("s4.checkpointing.storageMaxOutstandingRequests")).to(2);
+                // deprecated settings, bound as in configuration files, are accepted and ignored
+                bindConstant().annotatedWith(Names.named("s4.checkpointing.storageThreadKeepAliveSeconds")).to("60");
+                bindConstant().annotatedWith(Names.named("s4.checkpointing.serializationMaxThreads")).to("4");
+                bind(StateStorage.class).toInstance(storage);
+                bind(StorageCallbackFactory.class).toInstance(new StorageCallbackFactory() {
+                    @Override
+                    public StorageCallback createStorageCallback() {
+                        return new StorageCallback() {
+                            @Override
+                            public void storageOperationResult(StorageResultCode resultCode, Object message) {
+                                results.add(resultCode);
+                            }
+                        };
+                    }
+                });
+            }
+        });
+        safeKeeper = injector.getInstance(SafeKeeper.class);
+
+        App app = new App() {
+            @Override
+            protected void onStart() {
+            }
+
+            @Override
+            protected void onInit() {
+            }
+
+            @Override
+            protected void onClose() {
+            }
+        };
+        app.checkpointingFramework = safeKeeper;
+        prototype = new CounterPE(app);
+        prototype.setCheckpointingConfig(new CheckpointingConfig.Builder(CheckpointingMode.TIME).frequency(1).build());
+    }
+
+    private void checkpoint(CounterPE pe, int count) {
+        synchronized (pe) {
+            pe.count = count;
+            pe.checkpoint();
+        }
+    }
+
+    private void awaitResults(StorageResultCode... expected) throws InterruptedException {
+        for (StorageResultCode resultCode : expected) {
+            Assert.assertEquals(resultCode, results.poll(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testRepeatedCheckpointsAreCoalesced() throws InterruptedException {
+        CounterPE a = (CounterPE) prototype.getInstanceForKey("a");
+        CounterPE b = (CounterPE) prototype.getInstanceForKey("b");
+
+        checkpoint(a, 1);
+        Assert.assertTrue(storage.firstBatchStarted.await(10, TimeUnit.SECONDS));
+        // the writer is busy: the requests for a keep a single pending checkpoint, with the latest state
+        for (int i = 2; i <= 5; i++) {
+            checkpoint(a, i);
+        }
+        checkpoint(b, 10);
+        Assert.assertTrue(results.isEmpty());
+
+        storage.firstBatchReleased.countDown();
+        awaitResults(StorageResultCode.SUCCESS, StorageResultCode.SUCCESS, StorageResultCode.SUCCESS,
+                StorageResultCode.SUCCESS, StorageResultCode.SUCCESS, StorageResultCode.SUCCESS);
+
+        Assert.assertEquals(2, storage.batches.size());
+        Assert.assertEquals(ImmutableSet.of(new CheckpointId(a)), storage.batches.get(0).keySet());
+        Map<CheckpointId, byte[]> secondBatch = storage.batches.get(1);
+        Assert.assertEquals(ImmutableSet.of(new CheckpointId(a), new CheckpointId(b)), secondBatch.keySet());
+        Assert.assertEquals(5, ((CounterPE) a.deserializeState(secondBatch.get(new CheckpointId(a)))).count);
+        Assert.assertEquals(10, ((CounterPE) b.deserializeState(secondBatch.get(new CheckpointId(b)))).count);
+        for (String thread : storage.threads) {
+            Assert.assertTrue(thread, thread.startsWith("Checkpointing-storage-"));
+        }
+    }
+
+    @Test
+    public void testCheckpointsOfNewKeysFailWhenQueueIsFull() throws InterruptedException {
+        checkpoint((CounterPE) prototype.getInstanceForKey("a"), 1);
+        Assert.assertTrue(storage.firstBatchStarted.await(10, TimeUnit.SECONDS));
+        checkpoint((CounterPE) prototype.getInstanceForKey("b"), 1);
+        CounterPE c = (CounterPE) prototype.getInstanceForKey("c");
+        checkpoint(c, 1);
+
+        // no room for d, but c still accepts newer requests
+        checkpoint((CounterPE) prototype.getInstanceForKey("d"), 1);
+        awaitResults(StorageResultCode.FAILURE);
+        checkpoint(c, 2);
+
+        storage.firstBatchReleased.countDown();
+        awaitResults(StorageResultCode.SUCCESS, StorageResultCode.SUCCESS, StorageResultCode.SUCCESS,
+                StorageResultCode.SUCCESS);
+        Assert.assertEquals(2, storage.batches.get(1).size());
+    }
+}
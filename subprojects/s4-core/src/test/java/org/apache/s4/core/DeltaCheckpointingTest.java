@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.core.ft.ChangeTrackingMap;
+import org.apache.s4.core.ft.CheckpointChain;
+import org.apache.s4.core.ft.CheckpointId;
+import org.apache.s4.core.ft.CheckpointingConfig;
+import org.apache.s4.core.ft.CheckpointingConfig.CheckpointingMode;
+import org.apache.s4.core.ft.CheckpointingFramework;
+import org.apache.s4.core.ft.CheckpointingFramework.StorageResultCode;
+import org.apache.s4.core.ft.DefaultFileSystemStateStorage;
+import org.apache.s4.core.ft.DeltaCheckpointable;
+import org.apache.s4.core.ft.SafeKeeper;
+import org.apache.s4.core.ft.StateStorage;
+import org.apache.s4.core.ft.StorageCallback;
+import org.apache.s4.core.ft.StorageCallbackFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+public class DeltaCheckpointingTest {
+
+    public static class TopicsPE extends ProcessingElement implements DeltaCheckpointable {
+        ChangeTrackingMap<String, Integer> topics = new ChangeTrackingMap<String, Integer>();
+
+        public TopicsPE() {
+        }
+
+        TopicsPE(App app) {
+            super(app);
+        }
+
+        public void onEvent(Event event) {
+            String topic = event.get("topic");
+            Integer count = event.get("count", Integer.class);
+            if (count == 0) {
+                topics.remove(topic);
+            } else {
+                topics.put(topic, count);
+            }
+        }
+
+        @Override
+        public Object getStateDelta() {
+            return topics.getDelta();
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void applyStateDelta(Object delta) {
+            topics.applyDelta((ChangeTrackingMap.Delta<String, Integer>) delta);
+        }
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private final Semaphore stored = new Semaphore(0);
+    private DefaultFileSystemStateStorage storage;
+    private CheckpointingFramework safeKeeper;
+
+    @Before
+    public void createSafeKeeper() {
+        final File root = tmpFolder.getRoot();
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bindConstant().annotatedWith(Names.named("s4.checkpointing.filesystem.storageRootPath")).to(
+                        root.getAbsolutePath());
+                bind(StateStorage.class).to(DefaultFileSystemStateStorage.class).asEagerSingleton();
+                bind(StorageCallbackFactory.class).toInstance(new StorageCallbackFactory() {
+                    @Override
+                    public StorageCallback createStorageCallback() {
+                        return new StorageCallback() {
+                            @Override
+                            public void storageOperationResult(StorageResultCode resultCode, Object message) {
+                                Assert.assertEquals(String.valueOf(message), StorageResultCode.SUCCESS, resultCode);
+                                stored.release();
+                            }
+                        };
+                    }
+                });
+            }
+        });
+        storage = (DefaultFileSystemStateStorage) injector.getInstance(StateStorage.class);
+        safeKeeper = injector.getInstance(SafeKeeper.class);
+    }
+
+    private TopicsPE createPrototype() {
+        App app = new App() {
+            @Override
+            protected void onStart() {
+            }
+
+            @Override
+            protected void onInit() {
+            }
+
+            @Override
+            protected void onClose() {
+            }
+        };
+        app.checkpointingFramework = safeKeeper;
+        TopicsPE prototype = new TopicsPE(app);
+        prototype.setCheckpointingConfig(new CheckpointingConfig.Builder(CheckpointingMode.TIME).frequency(1)
+                .snapshotInterval(3).build());
+        return prototype;
+    }
+
+    private static Event topic(String topic, int count) {
+        Event event = new Event();
+        event.put("topic", String.class, topic);
+        event.put("count", Integer.class, count);
+        return event;
+    }
+
+    private void checkpoint(TopicsPE pe) throws InterruptedException {
+        synchronized (pe) {
+            pe.checkpoint();
+        }
+        Assert.assertTrue(stored.tryAcquire(10, TimeUnit.SECONDS));
+    }
+
+    private static Map<String, Integer> toMap(ChangeTrackingMap<String, Integer> trackingMap) {
+        Map<String, Integer> map = Maps.newHashMap();
+        for (Map.Entry<String, Integer> entry : trackingMap.entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+
+    @Test
+    public void testChangeTrackingMap() {
+        ChangeTrackingMap<String, Integer> map = new ChangeTrackingMap<String, Integer>();
+        map.put("a", 1);
+        map.put("b", 2);
+        map.getDelta();
+        map.put("a", 3);
+        map.remove("b");
+        map.remove("c");
+        map.put("d", 4);
+        map.remove("d");
+        ChangeTrackingMap.Delta<String, Integer> delta = map.getDelta();
+        Assert.assertEquals(ImmutableMap.of("a", 3), delta.getUpdated());
+        Assert.assertEquals(2, delta.getRemoved().size());
+        Assert.assertTrue(map.getDelta().getUpdated().isEmpty());
+
+        ChangeTrackingMap<String, Integer> copy = new ChangeTrackingMap<String, Integer>();
+        copy.put("b", 2);
+        copy.getDelta();
+        copy.applyDelta(delta);
+        Assert.assertEquals(ImmutableMap.of("a", 3), toMap(copy));
+        Assert.assertTrue(copy.getDelta().getRemoved().isEmpty());
+    }
+
+    @Test
+    public void testSnapshotAndDeltas() throws InterruptedException {
+        TopicsPE pe = (TopicsPE) createPrototype().getInstanceForKey("pe1");
+        CheckpointId id = new CheckpointId(pe);
+
+        pe.handleInputEvent(topic("x", 1));
+        checkpoint(pe);
+        pe.handleInputEvent(topic("y", 2));
+        checkpoint(pe);
+        pe.handleInputEvent(topic("x", 0));
+        pe.handleInputEvent(topic("z", 3));
+        checkpoint(pe);
+
+        Assert.assertEquals(2, storage.fetchDeltas(id).size());
+        Assert.assertEquals(1, storage.fetchStoredKeys().size());
+        Assert.assertEquals(3, CheckpointChain.decode(safeKeeper.fetchSerializedState(id)).size());
+
+        // a new instance restores the snapshot, then applies the deltas
+        TopicsPE recovered = (TopicsPE) createPrototype().getInstanceForKey("pe1");
+        recovered.handleInputEvent(topic("w", 4));
+        Assert.assertEquals(ImmutableMap.of("y", 2, "z", 3, "w", 4), toMap(recovered.topics));
+
+        // the third checkpoint after the snapshot is a snapshot again, which drops the deltas
+        pe.handleInputEvent(topic("y", 5));
+        checkpoint(pe);
+        Assert.assertTrue(storage.fetchDeltas(id).isEmpty());
+        Assert.assertEquals(1, CheckpointChain.decode(safeKeeper.fetchSerializedState(id)).size());
+
+        // the snapshot replaced the previous one through a temporary file, and the old deltas are gone
+        Assert.assertEquals(1, new File(tmpFolder.getRoot(), id.getPrototypeId()).listFiles().length);
+        Assert.assertEquals(1, storage.fetchStoredKeys().size());
+    }
+}
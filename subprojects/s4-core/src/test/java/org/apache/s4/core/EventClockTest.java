@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EventClockTest {
+
+    private final EventClock clock = new EventClock();
+    private final List<Long> firings = new ArrayList<Long>();
+
+    @After
+    public void close() {
+        clock.close();
+    }
+
+    private Runnable recorder(final long tag) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                firings.add(tag * 1000000 + clock.getTime());
+            }
+        };
+    }
+
+    @Test
+    public void testTimersFireInBulk() {
+        Assert.assertEquals(Long.MIN_VALUE, clock.getTime());
+
+        // scheduled before the first event, anchored on the first watermark
+        clock.scheduleAtFixedRate(recorder(1), 10, 10, TimeUnit.MILLISECONDS);
+        clock.observe(1000);
+        Assert.assertTrue(firings.isEmpty());
+
+        // one run for each period the watermark went through
+        clock.observe(1035);
+        Assert.assertEquals(3, firings.size());
+        Assert.assertEquals(1035, clock.getTime());
+
+        // late events do not move the clock back
+        clock.observe(1001);
+        Assert.assertEquals(1035, clock.getTime());
+        Assert.assertEquals(3, firings.size());
+    }
+
+    @Test
+    public void testOrderAndCancel() {
+        clock.advanceTo(0);
+        ScheduledTask slow = clock.scheduleAtFixedRate(recorder(1), 20, 20, TimeUnit.MILLISECONDS);
+        clock.scheduleAtFixedRate(recorder(2), 15, 15, TimeUnit.MILLISECONDS);
+
+        clock.advanceTo(40);
+        // deadlines 15 (2), 20 (1), 30 (2), 40 (1), in deadline order
+        Assert.assertEquals(4, firings.size());
+        Assert.assertEquals(2 * 1000000 + 40, firings.get(0).longValue());
+        Assert.assertEquals(1 * 1000000 + 40, firings.get(1).longValue());
+        Assert.assertEquals(2 * 1000000 + 40, firings.get(2).longValue());
+        Assert.assertEquals(1 * 1000000 + 40, firings.get(3).longValue());
+
+        slow.cancel();
+        firings.clear();
+        clock.advanceTo(60);
+        // deadlines 45 and 60 (2) only
+        Assert.assertEquals(2, firings.size());
+        Assert.assertEquals(2 * 1000000 + 60, firings.get(1).longValue());
+    }
+
+    @Test
+    public void testAllowedLateness() {
+        clock.setAllowedLateness(5, TimeUnit.SECONDS);
+        clock.observe(60000);
+        Assert.assertEquals(55000, clock.getTime());
+
+        // explicit watermarks set the time directly
+        clock.advanceTo(58000);
+        Assert.assertEquals(58000, clock.getTime());
+        clock.observe(61000);
+        Assert.assertEquals(58000, clock.getTime());
+    }
+
+    @Test
+    public void testOneShot() {
+        clock.advanceTo(0);
+        clock.schedule(recorder(1), 10, TimeUnit.MILLISECONDS);
+        clock.advanceTo(50);
+        Assert.assertEquals(1, firings.size());
+        Assert.assertEquals(1 * 1000000 + 50, firings.get(0).longValue());
+    }
+
+    @Test
+    public void testTimersDoNotRunOnTheAdvancingThread() throws Exception {
+        final List<Thread> threads = new ArrayList<Thread>();
+        final CountDownLatch fired = new CountDownLatch(2);
+        final Object instance = new Object();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (instance) {
+                    threads.add(Thread.currentThread());
+                }
+                fired.countDown();
+            }
+        };
+        clock.advanceTo(0);
+        // scheduling a task that is already due does not wait for it, even under a lock the task needs
+        synchronized (instance) {
+            clock.schedule(task, 0, TimeUnit.MILLISECONDS);
+            clock.schedule(task, 10, TimeUnit.MILLISECONDS);
+        }
+        clock.advanceTo(10);
+        Assert.assertTrue(fired.await(10, TimeUnit.SECONDS));
+        synchronized (instance) {
+            Assert.assertEquals(2, threads.size());
+            Assert.assertFalse(threads.contains(Thread.currentThread()));
+        }
+    }
+
+    @Test
+    public void testAdvancingThreadStopsWaitingForBlockedTimers() throws Exception {
+        // the task waits for the thread that advances the clock, like a timer emitting to the full queue of that lane
+        final CountDownLatch laneDrained = new CountDownLatch(1);
+        final CountDownLatch fired = new CountDownLatch(1);
+        clock.setMaxRoundWait(100, TimeUnit.MILLISECONDS);
+        clock.advanceTo(0);
+        clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    laneDrained.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                fired.countDown();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+
+        clock.advanceTo(10);
+        Assert.assertEquals(1, clock.getAbandonedWaits());
+        laneDrained.countDown();
+        Assert.assertTrue(fired.await(10, TimeUnit.SECONDS));
+    }
+}
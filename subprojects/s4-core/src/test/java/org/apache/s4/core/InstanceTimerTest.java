@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.base.CompositeKey;
+import org.apache.s4.base.Event;
+import org.apache.s4.base.Key;
+import org.apache.s4.core.ft.NoOpCheckpointingFramework;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class InstanceTimerTest {
+
+    static class TestApp extends App {
+        @Override
+        protected void onStart() {
+        }
+
+        @Override
+        protected void onInit() {
+        }
+
+        @Override
+        protected void onClose() {
+        }
+    }
+
+    static class ReminderPE extends ProcessingElement {
+        // initialized in the constructor, shared with the instances
+        final List<String> reminders = new ArrayList<String>();
+
+        ReminderPE(App app) {
+            super(app);
+        }
+
+        ScheduledTask remind(final String what, long delay) {
+            return schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reminders.add(getId() + ":" + what);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        ScheduledTask remindEvery(final String what, long period) {
+            return scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    reminders.add(getId() + ":" + what);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    @Test
+    public void testInstanceTimers() {
+        App app = new TestApp();
+        app.setClockType(App.ClockType.EVENT_CLOCK);
+        ReminderPE prototype = new ReminderPE(app);
+        app.getEventClock().advanceTo(0);
+
+        ((ReminderPE) prototype.getInstanceForKey("a")).remind("once", 10);
+        ((ReminderPE) prototype.getInstanceForKey("b")).remindEvery("tick", 10);
+        ScheduledTask cancelled = ((ReminderPE) prototype.getInstanceForKey("c")).remind("cancelled", 10);
+        cancelled.cancel();
+
+        app.getEventClock().advanceTo(25);
+        Assert.assertEquals(3, prototype.reminders.size());
+        Assert.assertEquals("a:once", prototype.reminders.get(0));
+        Assert.assertEquals("b:tick", prototype.reminders.get(1));
+        Assert.assertEquals("b:tick", prototype.reminders.get(2));
+
+        // timers of removed instances stop
+        prototype.getInstanceForKey("b").close();
+        prototype.reminders.clear();
+        app.getEventClock().advanceTo(100);
+        Assert.assertTrue(prototype.reminders.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPrototypesCannotScheduleInstanceTimers() {
+        new ReminderPE(new TestApp()).remind("never", 10);
+    }
+
+    public static class CounterPE extends ProcessingElement {
+        // both updated with a racy read-modify-write, only safe if the timer and the events are serialized
+        int counter;
+        int timerRuns;
+
+        CounterPE(App app) {
+            super(app);
+        }
+
+        public void onEvent(Event event) {
+            if (counter == 0) {
+                scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        increment();
+                        timerRuns++;
+                    }
+                }, 0, 1, TimeUnit.MILLISECONDS);
+            }
+            increment();
+        }
+
+        private void increment() {
+            int value = counter;
+            for (int i = 0; i < 100; i++) {
+                Thread.yield();
+            }
+            counter = value + 1;
+        }
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    @Test
+    public void testTimersAreSerializedWithLaneEvents() throws Exception {
+        App app = new TestApp();
+        app.checkpointingFramework = new NoOpCheckpointingFramework();
+        TimingWheelScheduler scheduler = new TimingWheelScheduler(1, 1);
+        Field schedulerField = App.class.getDeclaredField("timerScheduler");
+        schedulerField.setAccessible(true);
+        schedulerField.set(app, scheduler);
+        try {
+            CounterPE prototype = new CounterPE(app);
+            // a single keyed input stream, events of a key are only delivered by one lane
+            Stream<?> stream = Mockito.mock(Stream.class);
+            Mockito.when(stream.getKey()).thenReturn((Key) Mockito.mock(Key.class));
+            prototype.addInputStream(stream);
+            prototype.initPEPrototypeInternal();
+
+            CompositeKey key = CompositeKey.of("k");
+            int events = 2000;
+            for (int i = 0; i < events; i++) {
+                prototype.handleInputEventForKey(key, new Event());
+            }
+            CounterPE instance = (CounterPE) prototype.getInstanceForKey("k");
+            synchronized (instance) {
+                Assert.assertTrue(instance.timerRuns > 0);
+                Assert.assertEquals(events + instance.timerRuns, instance.counter);
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.s4.base.CompositeKey;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+
+public class KeyedInstanceTableTest {
+
+    static class TestPE extends ProcessingElement {
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    private final ProcessingElement[] pes = new ProcessingElement[] { new TestPE(), new TestPE() };
+    private final AtomicInteger created = new AtomicInteger();
+    private KeyedInstanceTable table;
+
+    @Before
+    public void createTable() {
+        table = new KeyedInstanceTable(new Function<String, ProcessingElement>() {
+            @Override
+            public ProcessingElement apply(String key) {
+                created.incrementAndGet();
+                return pes[Integer.parseInt(key) % 2];
+            }
+        });
+    }
+
+    @Test
+    public void testGetAndRemove() {
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertSame(pes[i % 2], table.get(String.valueOf(i)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertSame(pes[i % 2], table.get(String.valueOf(i)));
+        }
+        Assert.assertEquals(1000, created.get());
+        Assert.assertEquals(1000, table.size());
+
+        for (int i = 0; i < 1000; i += 2) {
+            table.remove(String.valueOf(i));
+        }
+        Assert.assertEquals(500, table.size());
+        Assert.assertNull(table.getIfPresent("0"));
+        Assert.assertSame(pes[1], table.getIfPresent("1"));
+
+        int count = 0;
+        for (Map.Entry<String, ProcessingElement> entry : table.asMap().entrySet()) {
+            Assert.assertEquals(1, Integer.parseInt(entry.getKey()) % 2);
+            count++;
+        }
+        Assert.assertEquals(500, count);
+        Assert.assertEquals(500, table.values().size());
+
+        // removed keys are created again
+        table.get("0");
+        Assert.assertEquals(1001, created.get());
+
+        table.clear();
+        Assert.assertEquals(0, table.size());
+        Assert.assertNull(table.getIfPresent("1"));
+    }
+
+    @Test
+    public void testCompositeKeyLookup() {
+        ProcessingElement pe = table.get("42");
+        Assert.assertSame(pe, table.get(CompositeKey.of(42)));
+        Assert.assertSame(pe, table.get(CompositeKey.of("42")));
+        Assert.assertEquals(1, created.get());
+
+        Assert.assertSame(pes[1], table.get(CompositeKey.of(43L)));
+        Assert.assertEquals(2, created.get());
+        Assert.assertSame(pes[1], table.getIfPresent("43"));
+    }
+
+    @Test
+    public void testConcurrentCreation()throws InterruptedException {
+        final int threads = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 10000; i++) {
+                            table.get(String.valueOf(i));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        Assert.assertEquals(10000, created.get());
+        Assert.assertEquals(10000, table.size());
+    }
+
+    @Test
+    public void testFactoryRunsWithoutLock() throws InterruptedException {
+        final CountDownLatch creating = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final KeyedInstanceTable slowTable = new KeyedInstanceTable(new Function<String, ProcessingElement>() {
+            @Override
+            public ProcessingElement apply(String key) {
+                created.incrementAndGet();
+                if (key.equals("0")) {
+                    creating.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return pes[Integer.parseInt(key) % 2];
+            }
+        });
+        final ProcessingElement[] results = new ProcessingElement[2];
+        final CountDownLatch done = new CountDownLatch(2);
+        for (int t = 0; t < 2; t++) {
+            final int index = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    results[index] = slowTable.get("0");
+                    done.countDown();
+                }
+            }).start();
+        }
+        Assert.assertTrue(creating.await(10, TimeUnit.SECONDS));
+
+        // other keys are created while the first creation is in progress, which is not visible yet
+        Assert.assertSame(pes[1], slowTable.get("1"));
+        Assert.assertNull(slowTable.getIfPresent("0"));
+        Assert.assertEquals(1, slowTable.size());
+        Assert.assertEquals(1, slowTable.values().size());
+        slowTable.remove("0");
+
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertSame(pes[0], results[0]);
+        Assert.assertSame(pes[0], results[1]);
+        Assert.assertSame(pes[0], slowTable.getIfPresent("0"));
+        Assert.assertEquals(2, created.get());
+        Assert.assertEquals(2, slowTable.size());
+    }
+
+    @Test
+    public void testFailedCreation() {
+        final AtomicInteger failures = new AtomicInteger(1);
+        KeyedInstanceTable failingTable = new KeyedInstanceTable(new Function<String, ProcessingElement>() {
+            @Override
+            public ProcessingElement apply(String key) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("cannot create " + key);
+                }
+                return pes[0];
+            }
+        });
+        try {
+            failingTable.get("0");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(0, failingTable.size());
+        Assert.assertSame(pes[0], failingTable.get("0"));
+        Assert.assertEquals(1, failingTable.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRecursiveCreation() {
+        final KeyedInstanceTable[] recursiveTable = new KeyedInstanceTable[1];
+        recursiveTable[0] = new KeyedInstanceTable(new Function<String, ProcessingElement>() {
+            @Override
+            public ProcessingElement apply(String key) {
+                return recursiveTable[0].get(key);
+            }
+        });
+        recursiveTable[0].get("0");
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PEPoolTest {
+
+    static class SessionPE extends ProcessingElement {
+        // initialized in the constructor, shared with the instances
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger recycled = new AtomicInteger();
+        final boolean recyclable;
+
+        List<String> pages;
+
+        SessionPE(boolean recyclable) {
+            this.recyclable = recyclable;
+        }
+
+        @Override
+        protected void onCreate() {
+            created.incrementAndGet();
+            pages = new ArrayList<String>();
+        }
+
+        @Override
+        protected boolean onRecycle() {
+            if (!recyclable) {
+                return false;
+            }
+            recycled.incrementAndGet();
+            pages.clear();
+            return true;
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    private void visitSessions(SessionPE prototype, int sessions) {
+        for (int i = 0; i < sessions; i++) {
+            SessionPE pe = (SessionPE) prototype.getInstanceForKey("session" + i);
+            Assert.assertEquals("session" + i, pe.getId());
+            Assert.assertTrue(pe.pages.isEmpty());
+            pe.pages.add("index.html");
+        }
+    }
+
+    @Test
+    public void testEvictedInstancesAreReused() {
+        SessionPE prototype = new SessionPE(true);
+        prototype.setPECache(10).setPEPool(4);
+
+        visitSessions(prototype, 100);
+        Assert.assertTrue(prototype.recycled.get() > 0);
+        Assert.assertTrue(prototype.created.get() < 100);
+        Assert.assertTrue(prototype.getNumPEInstances() <= 10);
+    }
+
+    @Test
+    public void testInstancesAreDroppedWithoutRecycling() {
+        SessionPE prototype = new SessionPE(false);
+        prototype.setPECache(10).setPEPool(4);
+
+        visitSessions(prototype, 100);
+        Assert.assertEquals(0, prototype.recycled.get());
+        Assert.assertEquals(100, prototype.created.get());
+    }
+
+    @Test
+    public void testInstancesWithPendingCheckpointsAreNotReused() {
+        SessionPE prototype = new SessionPE(true);
+        prototype.setPECache(10).setPEPool(4);
+
+        for (int i = 0; i < 100; i++) {
+            SessionPE pe = (SessionPE) prototype.getInstanceForKey("session" + i);
+            Assert.assertTrue(pe.pages.isEmpty());
+            pe.pages.add("index.html");
+            // as when a checkpoint of the instance is queued and not serialized yet
+            synchronized (pe) {
+                pe.checkpointPending();
+            }
+        }
+        Assert.assertEquals(0, prototype.recycled.get());
+        Assert.assertEquals(100, prototype.created.get());
+    }
+}
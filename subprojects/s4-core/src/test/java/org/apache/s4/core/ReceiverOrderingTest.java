@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.io.DataOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.Listener;
+import org.apache.s4.comm.serialize.EventMessageCodec;
+import org.apache.s4.comm.tcp.TCPListener;
+import org.apache.s4.comm.topology.Assignment;
+import org.apache.s4.comm.topology.ClusterNode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Scopes;
+import com.google.inject.name.Names;
+
+public class ReceiverOrderingTest {
+
+    private static final int SENDERS = 3;
+    private static final int KEYS_PER_SENDER = 4;
+    private static final int EVENTS_PER_KEY = 2000;
+
+    private Receiver receiver;
+    private Listener listener;
+
+    @After
+    public void close() {
+        if (receiver != null) {
+            receiver.close();
+        }
+        if (listener != null) {
+            listener.close();
+        }
+    }
+
+    @Test
+    public void testEventsOfAKeyStayInOrderWithSeveralThreads() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                Assignment assignment = Mockito.mock(Assignment.class);
+                Mockito.when(assignment.assignClusterNode()).thenReturn(new ClusterNode(0, port, "localhost", "Task-0"));
+                bind(Assignment.class).toInstance(assignment);
+                bind(Listener.class).to(TCPListener.class).in(Scopes.SINGLETON);
+                bindConstant().annotatedWith(Names.named("s4.comm.timeout")).to(1000);
+                bindConstant().annotatedWith(Names.named("s4.receiver.threads")).to(4);
+            }
+        });
+        listener = injector.getInstance(Listener.class);
+        receiver = injector.getInstance(Receiver.class);
+
+        // the stream records the sequence numbers of each key, as received
+        final Map<String, List<Integer>> received = Maps.newHashMap();
+        final CountDownLatch done = new CountDownLatch(SENDERS * KEYS_PER_SENDER * EVENTS_PER_KEY);
+        App app = Mockito.mock(App.class);
+        Mockito.when(app.getId()).thenReturn(1);
+        Stream<?> stream = Mockito.mock(Stream.class);
+        Mockito.when(stream.getApp()).thenReturn(app);
+        Mockito.when(stream.getName()).thenReturn("stream");
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                String[] event = new String(((EventMessage) invocation.getArguments()[0]).getSerializedEvent(),
+                        Charsets.UTF_8).split(":");
+                synchronized (received) {
+                    if (!received.containsKey(event[0])) {
+                        received.put(event[0], Lists.<Integer> newArrayList());
+                    }
+                    received.get(event[0]).add(Integer.parseInt(event[1]));
+                }
+                done.countDown();
+                return null;
+            }
+        }).when(stream).receiveEvent(Mockito.any(EventMessage.class));
+        receiver.addStream(stream);
+
+        // each sender interleaves its keys on its own connection
+        List<Socket> sockets = Lists.newArrayList();
+        for (int sender = 0; sender < SENDERS; sender++) {
+            sockets.add(new Socket("localhost", port));
+        }
+        for (int i = 0; i < EVENTS_PER_KEY; i++) {
+            for (int sender = 0; sender < SENDERS; sender++) {
+                DataOutputStream out = new DataOutputStream(sockets.get(sender).getOutputStream());
+                for (int key = 0; key < KEYS_PER_SENDER; key++) {
+                    byte[] frame = EventMessageCodec.encodeToArray(new EventMessage(1, "stream", ("key" + sender
+                            + "-" + key + ":" + i).getBytes(Charsets.UTF_8)));
+                    out.writeInt(frame.length);
+                    out.write(frame);
+                }
+            }
+        }
+        for (Socket socket : sockets) {
+            socket.getOutputStream().flush();
+        }
+
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        Assert.assertEquals(SENDERS * KEYS_PER_SENDER, received.size());
+        for (Map.Entry<String, List<Integer>> key : received.entrySet()) {
+            List<Integer> sequence = key.getValue();
+            for (int i = 0; i < EVENTS_PER_KEY; i++) {
+                Assert.assertEquals(key.getKey(), i, sequence.get(i).intValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.Listener;
+import org.apache.s4.comm.serialize.EventMessageCodec;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.base.Charsets;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.util.Providers;
+
+public class ReceiverTest {
+
+    private Receiver receiver;
+
+    @After
+    public void close() {
+        if (receiver != null) {
+            receiver.close();
+        }
+    }
+
+    private static byte[] frame(String event) {
+        return EventMessageCodec.encodeToArray(new EventMessage(1, "stream", event.getBytes(Charsets.UTF_8)));
+    }
+
+    @Test
+    public void testFailedMessagesAreSkipped() throws Exception {
+        // the receiver thread starts on injection, the listener delivers once the stream is registered
+        final CountDownLatch streamAdded = new CountDownLatch(1);
+        final byte[][] frames = { new byte[] { 1, 2, 3 }, frame("fails"), frame("ok") };
+        final Listener listener = Mockito.mock(Listener.class);
+        Mockito.when(listener.recv()).thenAnswer(new Answer<byte[]>() {
+            private int next = 0;
+
+            @Override
+            public byte[] answer(InvocationOnMock invocation) {
+                try {
+                    streamAdded.await();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                // null stops the receiving thread
+                return next < frames.length ? frames[next++] : null;
+            }
+        });
+
+        final CountDownLatch received = new CountDownLatch(1);
+        App app = Mockito.mock(App.class);
+        Mockito.when(app.getId()).thenReturn(1);
+        Stream<?> stream = Mockito.mock(Stream.class);
+        Mockito.when(stream.getApp()).thenReturn(app);
+        Mockito.when(stream.getName()).thenReturn("stream");
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                EventMessage message = (EventMessage) invocation.getArguments()[0];
+                if (new String(message.getSerializedEvent(), Charsets.UTF_8).equals("fails")) {
+                    throw new IllegalStateException("Cannot deserialize event");
+                }
+                received.countDown();
+                return null;
+            }
+        }).when(stream).receiveEvent(Mockito.any(EventMessage.class));
+
+        receiver = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Listener.class).toProvider(Providers.of(listener));
+            }
+        }).getInstance(Receiver.class);
+        receiver.addStream(stream);
+        streamAdded.countDown();
+
+        Assert.assertTrue(received.await(10, TimeUnit.SECONDS));
+        // an undecodable frame and a message the stream could not receive
+        Assert.assertEquals(2, receiver.getFailedMessages());
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RestoreStateTest {
+
+    static class BasePE extends ProcessingElement {
+        private long total;
+        protected transient int cached;
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    static class StatePE extends BasePE {
+        private static int instances;
+
+        private int count;
+        private boolean flag;
+        private double average;
+        private char grade;
+        private List<String> items;
+        transient String scratch;
+    }
+
+    static class OtherPE extends BasePE {
+        private int count;
+    }
+
+    @Test
+    public void testRestoreCopiesStateFields() {
+        StatePE old = new StatePE();
+        ((BasePE) old).total = 42L;
+        old.cached = 7;
+        old.count = 3;
+        old.flag = true;
+        old.average = 1.5d;
+        old.grade = 'b';
+        old.items = Arrays.asList("x", "y");
+        old.scratch = "old";
+        old.id = "key";
+
+        StatePE pe = new StatePE();
+        pe.id = "other";
+        pe.scratch = "current";
+        StatePE.instances = 5;
+        pe.restoreState(old);
+
+        Assert.assertEquals(42L, ((BasePE) pe).total);
+        Assert.assertEquals(3, pe.count);
+        Assert.assertTrue(pe.flag);
+        Assert.assertEquals(1.5d, pe.average, 0d);
+        Assert.assertEquals('b', pe.grade);
+        Assert.assertSame(old.items, pe.items);
+        // transient, static and base class fields are not state
+        Assert.assertEquals(0, pe.cached);
+        Assert.assertEquals("current", pe.scratch);
+        Assert.assertEquals(5, StatePE.instances);
+        Assert.assertEquals("other", pe.getId());
+    }
+
+    @Test
+    public void testRestoreIgnoresOtherClasses() {
+        OtherPE old = new OtherPE();
+        old.count = 3;
+        StatePE pe = new StatePE();
+        pe.restoreState(old);
+        Assert.assertEquals(0, pe.count);
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.base.Hasher;
+import org.apache.s4.base.KeyFinder;
+import org.apache.s4.comm.topology.RemoteStreamsManager;
+import org.apache.s4.core.ft.CheckpointingFramework;
+import org.apache.s4.core.ft.NoOpCheckpointingFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.name.Names;
+import com.google.inject.util.Providers;
+
+/**
+ * Checks the batches that stream lanes deliver to onEvents(). Events are queued before the lane starts, so that the
+ * lane finds them all queued and the batch boundaries are known.
+ */
+public class StreamBatchingTest {
+
+    public static class KeyedEvent extends Event {
+        String key;
+        int seq;
+
+        public KeyedEvent() {
+        }
+
+        KeyedEvent(String key, int seq) {
+            this.key = key;
+            this.seq = seq;
+        }
+
+        @Override
+        public String toString() {
+            return key + seq;
+        }
+    }
+
+    static class KeyedEventFinder implements KeyFinder<KeyedEvent> {
+        @Override
+        public List<String> get(KeyedEvent event) {
+            return ImmutableList.of(event.key);
+        }
+    }
+
+    public static class BatchingPE extends ProcessingElement {
+        // initialized in the constructor, shared with the instances
+        List<String> batches = Lists.newCopyOnWriteArrayList();
+        CountDownLatch delivered;
+
+        public BatchingPE(App app) {
+            super(app);
+        }
+
+        public void onEvents(Collection<KeyedEvent> events) {
+            StringBuilder batch = new StringBuilder();
+            for (KeyedEvent event : events) {
+                Assert.assertEquals(getId(), event.key);
+                batch.append(event);
+            }
+            batches.add(batch.toString());
+            for (int i = 0; i < events.size(); i++) {
+                delivered.countDown();
+            }
+        }
+
+        @Override
+        protected void onCreate() {
+        }
+
+        @Override
+        protected void onRemove() {
+        }
+    }
+
+    static class TestApp extends App {
+        @Override
+        protected void onStart() {
+        }
+
+        @Override
+        protected void onInit() {
+        }
+
+        @Override
+        protected void onClose() {
+        }
+    }
+
+    private Stream<KeyedEvent> stream;
+
+    @After
+    public void closeStream() {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    private BatchingPE createPE() {
+        App app = new TestApp();
+        Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                // providers, so that Guice does not inject the members of the mocks
+                bind(Sender.class).toProvider(Providers.of(Mockito.mock(Sender.class)));
+                bind(Receiver.class).toProvider(Providers.of(Mockito.mock(Receiver.class)));
+                bind(RemoteSendersManager.class).toInstance(Mockito.mock(RemoteSendersManager.class));
+                bind(Hasher.class).toInstance(Mockito.mock(Hasher.class));
+                bind(RemoteStreamsManager.class).toInstance(Mockito.mock(RemoteStreamsManager.class));
+                bind(CheckpointingFramework.class).to(NoOpCheckpointingFramework.class);
+                bindConstant().annotatedWith(Names.named("s4.cluster.name")).to("cluster1");
+            }
+        }).injectMembers(app);
+        return app.createPE(BatchingPE.class, "batching");
+    }
+
+    /* Queues the events, then starts the lane and waits for their delivery. */
+    private void deliver(BatchingPE prototype, int maxBatchSize, KeyedEvent... events) throws InterruptedException {
+        prototype.delivered = new CountDownLatch(events.length);
+        stream = prototype.getApp().createStream("batches", new KeyedEventFinder(), prototype);
+        stream.setMaxBatchSize(maxBatchSize).setPassByReference(true);
+        for (KeyedEvent event : events) {
+            stream.put(event);
+        }
+        prototype.initPEPrototypeInternal();
+        stream.start();
+        Assert.assertTrue(prototype.delivered.await(10, TimeUnit.SECONDS));
+    }
+
+    private static KeyedEvent[] events(String... keys) {
+        KeyedEvent[] events = new KeyedEvent[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            events[i] = new KeyedEvent(keys[i], i);
+        }
+        return events;
+    }
+
+    @Test
+    public void testBatchBoundaries() throws Exception {
+        BatchingPE prototype = createPE();
+        deliver(prototype, 4, events("a", "a", "a", "a", "a", "a", "a", "a", "a", "a"));
+        Assert.assertEquals(ImmutableList.of("a0a1a2a3", "a4a5a6a7", "a8a9"), prototype.batches);
+    }
+
+    @Test
+    public void testMixedKeys() throws Exception {
+        BatchingPE prototype = createPE();
+        deliver(prototype, 5, events("a", "b", "a", "b", "a", "c"));
+        // grouped by key in order of first appearance, events of a key in order
+        Assert.assertEquals(ImmutableList.of("a0a2a4", "b1b3", "c5"), prototype.batches);
+    }
+
+    @Test
+    public void testBatchAfterEviction() throws Exception {
+        BatchingPE prototype = createPE();
+        prototype.setPECache(1).setPEPool(1);
+        // each batch evicts the instance of the previous one, and the last batch goes to a new instance for a
+        deliver(prototype, 2, events("a", "a", "b", "b", "a", "a"));
+        Assert.assertEquals(ImmutableList.of("a0a1", "b2b3", "a4a5"), prototype.batches);
+        Assert.assertEquals(1, prototype.getNumPEInstances());
+    }
+}
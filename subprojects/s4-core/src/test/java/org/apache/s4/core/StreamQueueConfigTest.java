@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.base.SerializerDeserializer;
+import org.apache.s4.core.StreamQueueConfig.QueueType;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamQueueConfigTest {
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private Stream<Event> createStream(StreamQueueConfig queueConfig) {
+        return createStream(queueConfig, null);
+    }
+
+    /* events with a "fail" attribute cannot be serialized by the returned stream's app */
+    private Stream<Event> createStream(StreamQueueConfig queueConfig, final SerializerDeserializer serDeser) {
+        App app = new App() {
+            @Override
+            public SerializerDeserializer getSerDeser() {
+                return serDeser == null ? super.getSerDeser() : serDeser;
+            }
+
+            @Override
+            protected void onStart() {
+            }
+
+            @Override
+            protected void onInit() {
+            }
+
+            @Override
+            protected void onClose() {
+            }
+        };
+        return new Stream<Event>(app).setName("test").setQueueConfig(queueConfig);
+    }
+
+    private static Event event(int i) {
+        Event event = new Event();
+        event.put("i", Integer.class, i);
+        return event;
+    }
+
+    @Test
+    public void testQueueTypes() throws InterruptedException {
+        for (QueueType type : QueueType.values()) {
+            StreamQueueConfig config = new StreamQueueConfig.Builder(type).capacity(4)
+                    .spillDirectory(tmpFolder.getRoot()).build();
+            EventQueue queue = config.createQueue(createStream(config));
+            for (int i = 0; i < 4; i++) {
+                Assert.assertTrue(type.name(), queue.offer(event(i)));
+            }
+            Assert.assertEquals(type.name(), type == QueueType.ARRAY || type == QueueType.LINKED
+                    || type == QueueType.RING, !queue.offer(event(4)));
+            for (int i = 0; i < 4; i++) {
+                Assert.assertEquals(type.name(), i, queue.take().get("i", Integer.class).intValue());
+            }
+            queue.close();
+        }
+    }
+
+    @Test
+    public void testDiskSpilling() throws InterruptedException {
+        StreamQueueConfig config = new StreamQueueConfig.Builder(QueueType.DISK_SPILLING).capacity(3)
+                .spillDirectory(tmpFolder.getRoot()).build();
+        Stream<Event> stream = createStream(config);
+        Assert.assertEquals(Integer.MAX_VALUE, stream.getQueueCapacity());
+        EventQueue queue = config.createQueue(stream);
+
+        for (int i = 0; i < 10; i++) {
+            queue.put(event(i));
+        }
+        Assert.assertEquals(10, queue.size());
+        Assert.assertEquals(1, tmpFolder.getRoot().list().length);
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(i, queue.take().get("i", Integer.class).intValue());
+        }
+        // events put while spilled events remain must stay behind them
+        queue.put(event(10));
+        for (int i = 5; i <= 10; i++) {
+            Assert.assertEquals(i, queue.take().get("i", Integer.class).intValue());
+        }
+        Assert.assertEquals(0, queue.size());
+        // the drained spill file is kept for the next spills, until the queue is closed
+        Assert.assertEquals(1, tmpFolder.getRoot().list().length);
+        for (int i = 11; i < 20; i++) {
+            queue.put(event(i));
+        }
+        Assert.assertEquals(1, tmpFolder.getRoot().list().length);
+        queue.close();
+        Assert.assertArrayEquals(new File[0], tmpFolder.getRoot().listFiles());
+    }
+
+    @Test
+    public void testFailedSpillDoesNotReorderEvents() throws InterruptedException {
+        StreamQueueConfig config = new StreamQueueConfig.Builder(QueueType.DISK_SPILLING).capacity(2)
+                .spillDirectory(tmpFolder.getRoot()).build();
+        final App app = createStream(config).getApp();
+        SerializerDeserializer failing = new SerializerDeserializer() {
+            @Override
+            public byte[] serialize(Object message) {
+                if (((Event) message).containsKey("fail")) {
+                    throw new IllegalArgumentException("cannot serialize");
+                }
+                return app.getSerDeser().serialize(message);
+            }
+
+            @Override
+            public Object deserialize(byte[] rawMessage) {
+                return app.getSerDeser().deserialize(rawMessage);
+            }
+
+            @Override
+            public Object deserialize(ByteBuffer buffer) {
+                return app.getSerDeser().deserialize(buffer);
+            }
+        };
+        final EventQueue queue = config.createQueue(createStream(config, failing));
+
+        for (int i = 0; i < 4; i++) {
+            queue.put(event(i));
+        }
+        final Event unspillable = event(4);
+        unspillable.put("fail", Boolean.class, true);
+        // events 2 and 3 are spilled: keeping event 4 in memory would overtake them
+        Assert.assertFalse(queue.offer(unspillable));
+
+        final CountDownLatch putDone = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.put(unspillable);
+                    putDone.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        producer.start();
+        Assert.assertFalse(putDone.await(100, TimeUnit.MILLISECONDS));
+
+        Assert.assertEquals(0, queue.take().get("i", Integer.class).intValue());
+        Assert.assertEquals(1, queue.take().get("i", Integer.class).intValue());
+        // taking event 2 drains the spill file, which releases the producer
+        Assert.assertEquals(2, queue.take().get("i", Integer.class).intValue());
+        Assert.assertTrue(putDone.await(5, TimeUnit.SECONDS));
+        queue.put(event(5));
+        for (int i = 3; i <= 5; i++) {
+            Assert.assertEquals(i, queue.take().get("i", Integer.class).intValue());
+        }
+        queue.close();
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelSchedulerTest {
+
+    private TimingWheelScheduler scheduler;
+
+    @Before
+    public void createScheduler() {
+        scheduler = new TimingWheelScheduler(2, 1);
+    }
+
+    @After
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void testOneShot() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(3);
+        final long start = System.nanoTime();
+        final long[] elapsed = new long[1];
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        scheduler.schedule(task, 0, TimeUnit.MILLISECONDS);
+        scheduler.schedule(task, 5, TimeUnit.MILLISECONDS);
+        // beyond the first wheel
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                elapsed[0] = System.nanoTime() - start;
+                done.countDown();
+            }
+        }, 300, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        TimingWheelScheduler.Timeout timeout = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+        Thread.sleep(100);
+        Assert.assertEquals(0, runs.get());
+        Assert.assertTrue(timeout.isCancelled());
+    }
+
+    @Test
+    public void testFixedRate() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(10);
+        final AtomicInteger concurrentRuns = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        TimingWheelScheduler.Timeout timeout = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (concurrentRuns.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                try {
+                    Thread.sleep(3);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                concurrentRuns.decrementAndGet();
+                done.countDown();
+            }
+        }, 0, 2, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        timeout.cancel();
+        Assert.assertEquals(0, overlaps.get());
+    }
+}
@@ -91,7 +91,7 @@ public class CheckpointingTest {
         event.put("command", String.class, "setValue1");
         event.put("value", String.class, "message1");
 
-        app.testStream.receiveEvent(new EventMessage("", "stream1", app.getSerDeser().serialize(event)));
+        app.testStream.receiveEvent(new EventMessage(app.getId(), "stream1", app.getSerDeser().serialize(event)));
 
         signalValue1Set.await();
 
@@ -103,7 +103,7 @@ public class CheckpointingTest {
         // 3. generate a checkpoint event
         event = new Event();
         event.put("command", String.class, "checkpoint");
-        app.testStream.receiveEvent(new EventMessage("", "stream1", app.getSerDeser().serialize(event)));
+        app.testStream.receiveEvent(new EventMessage(app.getId(), "stream1", app.getSerDeser().serialize(event)));
         Assert.assertTrue(signalCheckpointed.await(10, TimeUnit.SECONDS));
 
         // NOTE: the backend has asynchronous save operations
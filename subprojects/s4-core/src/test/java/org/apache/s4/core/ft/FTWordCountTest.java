@@ -118,7 +118,7 @@ public class FTWordCountTest extends ZkBasedTest {
         Event event;
         event = new Event();
         event.put("sentence", String.class, sentence);
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
+        emitter.send(0, new EventMessage(-1, "inputStream", injector.getInstance(SerializerDeserializer.class)
                 .serialize(event)));
     }
 
@@ -84,7 +84,7 @@ public class RecoveryTest extends ZkBasedTest {
         Event event;
         event = new Event();
         event.put("command", String.class, "checkpoint");
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
+        emitter.send(0, new EventMessage(-1, "inputStream", injector.getInstance(SerializerDeserializer.class)
                 .serialize(event)));
     }
 
@@ -117,7 +117,7 @@ public class RecoveryTest extends ZkBasedTest {
         Event event = new Event();
         event.put("command", String.class, "setValue1");
         event.put("value", String.class, "message1");
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
+        emitter.send(0, new EventMessage(-1, "inputStream", injector.getInstance(SerializerDeserializer.class)
                 .serialize(event)));
 
         if (manualCheckpointing) {
@@ -142,7 +142,7 @@ public class RecoveryTest extends ZkBasedTest {
         event = new Event();
         event.put("command", String.class, "setValue2");
         event.put("value", String.class, "message2");
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
+        emitter.send(0, new EventMessage(-1, "inputStream", injector.getInstance(SerializerDeserializer.class)
                 .serialize(event)));
 
         Assert.assertTrue(signalValue2Set.await(10, TimeUnit.SECONDS));
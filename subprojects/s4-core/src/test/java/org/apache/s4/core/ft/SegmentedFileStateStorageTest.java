@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.ft;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.core.ft.CheckpointingFramework.StorageResultCode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+
+public class SegmentedFileStateStorageTest {
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private final Semaphore synced = new Semaphore(0);
+    private final StorageCallback callback = new StorageCallback() {
+        @Override
+        public void storageOperationResult(StorageResultCode resultCode, Object message) {
+            Assert.assertEquals(String.valueOf(message), StorageResultCode.SUCCESS, resultCode);
+            synced.release();
+        }
+    };
+    private SegmentedFileStateStorage storage;
+
+    private SegmentedFileStateStorage open(int segmentSizeBytes) throws IOException {
+        if (storage != null) {
+            storage.close();
+        }
+        storage = new SegmentedFileStateStorage();
+        storage.storageRootPath = tmpFolder.getRoot().getAbsolutePath();
+        storage.segmentSizeBytes = segmentSizeBytes;
+        storage.compactionIntervalMs = 3600000;
+        storage.init();
+        return storage;
+    }
+
+    @After
+    public void close() {
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    private static CheckpointId key(int i) {
+        return new CheckpointId("PE", "key" + i);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(Charsets.UTF_8);
+    }
+
+    private static String string(byte[] bytes) {
+        return bytes == null ? null : new String(bytes, Charsets.UTF_8);
+    }
+
+    private void awaitSynced(int writes) throws InterruptedException {
+        Assert.assertTrue(synced.tryAcquire(writes, 10, TimeUnit.SECONDS));
+    }
+
+    private int segmentFiles() {
+        return tmpFolder.getRoot().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        }).length;
+    }
+
+    private void checkChain(int i, String snapshot, String... deltas) {
+        Assert.assertEquals(snapshot, string(storage.fetchState(key(i))));
+        List<byte[]> stored = storage.fetchDeltas(key(i));
+        Assert.assertEquals(deltas.length, stored.size());
+        for (int d = 0; d < deltas.length; d++) {
+            Assert.assertEquals(deltas[d], string(stored.get(d)));
+        }
+    }
+
+    @Test
+    public void testSaveFetchAndReopen() throws Exception {
+        open(1024 * 1024);
+        storage.saveState(key(1), bytes("s1"), callback);
+        storage.saveDelta(key(1), bytes("d1"), callback);
+        storage.saveDelta(key(1), bytes("d2"), callback);
+        storage.saveState(key(2), bytes("s2"), callback);
+        storage.saveDelta(key(2), bytes("d3"), callback);
+        storage.saveState(key(2), bytes("s3"), callback);
+        awaitSynced(6);
+
+        checkChain(1, "s1", "d1", "d2");
+        checkChain(2, "s3");
+        Assert.assertNull(storage.fetchState(key(3)));
+        Assert.assertEquals(ImmutableSet.of(key(1), key(2)), storage.fetchStoredKeys());
+
+        // the index is rebuilt from the segments
+        open(1024 * 1024);
+        checkChain(1, "s1", "d1", "d2");
+        checkChain(2, "s3");
+        Assert.assertEquals(ImmutableSet.of(key(1), key(2)), storage.fetchStoredKeys());
+
+        storage.saveDelta(key(2), bytes("d4"), callback);
+        awaitSynced(1);
+        checkChain(2, "s3", "d4");
+    }
+
+    @Test
+    public void testReadActiveAndSealedSegments() throws Exception {
+        // each segment holds a few records, reads are interleaved with the writes that grow the active segment
+        open(200);
+        for (int i = 0; i < 20; i++) {
+            storage.saveState(key(i), bytes("s" + i), callback);
+            Assert.assertEquals("s" + i, string(storage.fetchState(key(i))));
+            storage.saveDelta(key(i), bytes("d" + i), callback);
+            checkChain(i, "s" + i, "d" + i);
+        }
+        awaitSynced(40);
+        Assert.assertTrue(segmentFiles() > 2);
+        for (int i = 0; i < 20; i++) {
+            checkChain(i, "s" + i, "d" + i);
+        }
+    }
+
+    @Test
+    public void testFetchChain() throws Exception {
+        open(1024 * 1024);
+        byte[] snapshot = CheckpointChain.encode(bytes("s1"), Collections.<byte[]> emptyList());
+        storage.saveState(key(1), snapshot, callback);
+        awaitSynced(1);
+        Assert.assertArrayEquals(snapshot, storage.fetchChain(key(1)));
+
+        storage.saveDelta(key(1), bytes("d1"), callback);
+        storage.saveDelta(key(1), bytes("d2"), callback);
+        awaitSynced(2);
+        List<byte[]> parts = CheckpointChain.decode(storage.fetchChain(key(1)));
+        Assert.assertEquals(3, parts.size());
+        Assert.assertEquals("s1", string(parts.get(0)));
+        Assert.assertEquals("d1", string(parts.get(1)));
+        Assert.assertEquals("d2", string(parts.get(2)));
+
+        Assert.assertNull(storage.fetchChain(key(2)));
+    }
+
+    @Test
+    public void testDeltaWithoutSnapshotFails() throws Exception {
+        open(1024 * 1024);
+        final StorageResultCode[] result = new StorageResultCode[1];
+        storage.saveDelta(key(1), bytes("d1"), new StorageCallback() {
+            @Override
+            public void storageOperationResult(StorageResultCode resultCode, Object message) {
+                result[0] = resultCode;
+            }
+        });
+        Assert.assertEquals(StorageResultCode.FAILURE, result[0]);
+        Assert.assertTrue(storage.fetchStoredKeys().isEmpty());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        open(256);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 5; i++) {
+                storage.saveState(key(i), bytes("s" + round + "-" + i), callback);
+            }
+        }
+        storage.saveDelta(key(0), bytes("d0"), callback);
+        awaitSynced(101);
+        int before = segmentFiles();
+
+        storage.compact();
+        Assert.assertTrue(segmentFiles() < before);
+        for (int i = 1; i < 5; i++) {
+            checkChain(i, "s19-" + i);
+        }
+        checkChain(0, "s19-0", "d0");
+
+        // copies keep their sequence numbers, the latest snapshots still win after a restart
+        open(256);
+        for (int i = 1; i < 5; i++) {
+            checkChain(i, "s19-" + i);
+        }
+        checkChain(0, "s19-0", "d0");
+    }
+
+    @Test
+    public void testIncompleteRecordIsIgnored() throws Exception {
+        open(1024 * 1024);
+        storage.saveState(key(1), bytes("s1"), callback);
+        awaitSynced(1);
+        storage.close();
+        storage = null;
+
+        File[] segments = tmpFolder.getRoot().listFiles();
+        FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true);
+        out.write(new byte[] { 0x53, 0x34, 0x53, 0x47, 1, 0, 0 });
+        out.close();
+
+        open(1024 * 1024);
+        checkChain(1, "s1");
+        storage.saveState(key(1), bytes("s2"), callback);
+        awaitSynced(1);
+        open(1024 * 1024);
+        checkChain(1, "s2");
+    }
+}
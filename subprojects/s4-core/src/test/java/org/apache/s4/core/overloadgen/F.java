@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.overloadgen;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.core.ProcessingElement;
+
+/**
+ * A PE with 16 onEvent overloads, to measure dispatch when the chain of <code>instanceof</code> checks is long.
+ */
+public class F extends ProcessingElement {
+
+    public static final int OVERLOADS = 16;
+
+    public int processedOverload = -1;
+
+    public static class FEvent0 extends Event {
+    }
+
+    public static class FEvent1 extends Event {
+    }
+
+    public static class FEvent2 extends Event {
+    }
+
+    public static class FEvent3 extends Event {
+    }
+
+    public static class FEvent4 extends Event {
+    }
+
+    public static class FEvent5 extends Event {
+    }
+
+    public static class FEvent6 extends Event {
+    }
+
+    public static class FEvent7 extends Event {
+    }
+
+    public static class FEvent8 extends Event {
+    }
+
+    public static class FEvent9 extends Event {
+    }
+
+    public static class FEvent10 extends Event {
+    }
+
+    public static class FEvent11 extends Event {
+    }
+
+    public static class FEvent12 extends Event {
+    }
+
+    public static class FEvent13 extends Event {
+    }
+
+    public static class FEvent14 extends Event {
+    }
+
+    public static class FEvent15 extends Event {
+    }
+
+    /* No overload of its own, dispatched to onEvent(FEvent0). */
+    public static class FEvent0a extends FEvent0 {
+    }
+
+    public void onEvent(FEvent0 event) {
+        processedOverload = 0;
+    }
+
+    public void onEvent(FEvent1 event) {
+        processedOverload = 1;
+    }
+
+    public void onEvent(FEvent2 event) {
+        processedOverload = 2;
+    }
+
+    public void onEvent(FEvent3 event) {
+        processedOverload = 3;
+    }
+
+    public void onEvent(FEvent4 event) {
+        processedOverload = 4;
+    }
+
+    public void onEvent(FEvent5 event) {
+        processedOverload = 5;
+    }
+
+    public void onEvent(FEvent6 event) {
+        processedOverload = 6;
+    }
+
+    public void onEvent(FEvent7 event) {
+        processedOverload = 7;
+    }
+
+    public void onEvent(FEvent8 event) {
+        processedOverload = 8;
+    }
+
+    public void onEvent(FEvent9 event) {
+        processedOverload = 9;
+    }
+
+    public void onEvent(FEvent10 event) {
+        processedOverload = 10;
+    }
+
+    public void onEvent(FEvent11 event) {
+        processedOverload = 11;
+    }
+
+    public void onEvent(FEvent12 event) {
+        processedOverload = 12;
+    }
+
+    public void onEvent(FEvent13 event) {
+        processedOverload = 13;
+    }
+
+    public void onEvent(FEvent14 event) {
+        processedOverload = 14;
+    }
+
+    public void onEvent(FEvent15 event) {
+        processedOverload = 15;
+    }
+
+    /** @return an instance of the event type of each overload, in overload order */
+    public static Event[] events() {
+        return new Event[] { new FEvent0(), new FEvent1(), new FEvent2(), new FEvent3(), new FEvent4(),
+                new FEvent5(), new FEvent6(), new FEvent7(), new FEvent8(), new FEvent9(), new FEvent10(),
+                new FEvent11(), new FEvent12(), new FEvent13(), new FEvent14(), new FEvent15() };
+    }
+
+    @Override
+    protected void onCreate() {
+    }
+
+    @Override
+    protected void onRemove() {
+    }
+}
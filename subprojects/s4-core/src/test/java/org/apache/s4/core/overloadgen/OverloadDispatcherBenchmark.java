@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.core.overloadgen;
+
+import java.util.Random;
+
+import org.apache.s4.base.Event;
+import org.apache.s4.core.ProcessingElement;
+import org.apache.s4.core.gen.OverloadDispatcher;
+import org.apache.s4.core.gen.OverloadDispatcherGenerator;
+
+/**
+ * Measures the dispatchers generated by {@link OverloadDispatcherGenerator} on the test PEs of this package. Each PE
+ * receives a random mix of the event types it handles, through a warmed-up dispatcher.
+ * <p>
+ * A dispatcher switching on a case number cached per event class, instead of the chain of <code>instanceof</code>
+ * checks, was measured with this benchmark and removed: it was 2 to 2.5 times slower on every PE, including
+ * {@link F} with 16 overloads, as the cache lookup costs more than the checks it saves.
+ * <p>
+ * Run with <code>java -cp &lt;test classpath&gt; org.apache.s4.core.overloadgen.OverloadDispatcherBenchmark [seconds]</code>
+ * where seconds is the measurement time for each case, 1 by default.
+ */
+public class OverloadDispatcherBenchmark {
+
+    private static final int BATCH = 10000;
+    private static final int MIX = 4096;
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        long measureNanos = (args.length > 0 ? Long.parseLong(args[0]) : 1) * 1000000000L;
+
+        run(new A(), measureNanos, new Event(), new Event1(), new Event1a(), new Event2());
+        run(new C(), measureNanos, new Event1());
+        run(new D(), measureNanos, new Event(), new Event1(), new Event2());
+        run(new F(), measureNanos, F.events());
+    }
+
+    private static void run(ProcessingElement pe, long measureNanos, Event... types) throws Exception {
+        // a fixed random mix, so that the branches of the linear dispatch are not trivially predicted
+        Random random = new Random(42);
+        Event[] events = new Event[MIX];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = types[random.nextInt(types.length)];
+        }
+        OverloadDispatcher dispatcher = (OverloadDispatcher) new OverloadDispatcherGenerator(pe.getClass())
+                .generate().newInstance();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            measure(dispatcher, pe, events, measureNanos);
+        }
+        double nanosPerEvent = measure(dispatcher, pe, events, measureNanos);
+        System.out.println(String.format("%-4s %2d types %8.2f ns/event", pe.getClass().getSimpleName(),
+                types.length, nanosPerEvent));
+    }
+
+    private static double measure(OverloadDispatcher dispatcher, ProcessingElement pe, Event[] events,
+            long measureNanos) {
+        long dispatched = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                dispatcher.dispatchEvent(pe, events[i % events.length]);
+            }
+            dispatched += BATCH;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < measureNanos);
+        return (double) elapsed / dispatched;
+    }
+}
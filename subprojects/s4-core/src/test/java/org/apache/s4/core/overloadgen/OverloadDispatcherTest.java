@@ -21,10 +21,13 @@ package org.apache.s4.core.overloadgen;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.regex.Pattern;
 
 import junit.framework.Assert;
 
+import org.apache.s4.base.Event;
 import org.apache.s4.core.gen.OverloadDispatcher;
 import org.apache.s4.core.gen.OverloadDispatcherGenerator;
 import org.junit.Test;
@@ -52,6 +55,64 @@ public class OverloadDispatcherTest {
         Assert.assertEquals(Event1.class, a.processedTriggerEventClass);
         Assert.assertFalse(a.processedTriggerThroughGenericMethod);
     }
+
+    @Test
+    public void testDispatchWithManyOverloads() throws Exception {
+        OverloadDispatcher dispatcher = (OverloadDispatcher) new OverloadDispatcherGenerator(F.class).generate()
+                .newInstance();
+        F f = new F();
+        Event[] events = F.events();
+        Assert.assertEquals(F.OVERLOADS, events.length);
+        for (int i = 0; i < events.length; i++) {
+            dispatcher.dispatchEvent(f, events[i]);
+            Assert.assertEquals(i, f.processedOverload);
+        }
+        dispatcher.dispatchEvent(f, new F.FEvent0a());
+        Assert.assertEquals(0, f.processedOverload);
+        // no matching overload
+        f.processedOverload = -1;
+        dispatcher.dispatchEvent(f, new Event1());
+        Assert.assertEquals(-1, f.processedOverload);
+    }
+
+    @Test
+    public void testDispatcherClassName() throws Exception {
+        OverloadDispatcherGenerator gen = new OverloadDispatcherGenerator(A.class);
+        Assert.assertEquals(gen.getDispatcherClassName(), new OverloadDispatcherGenerator(A.class)
+                .getDispatcherClassName());
+        Assert.assertEquals(gen.getDispatcherClassName(), gen.generate().getName());
+        Assert.assertFalse(gen.getDispatcherClassName().equals(
+                new OverloadDispatcherGenerator(D.class).getDispatcherClassName()));
+    }
+
+    @Test
+    public void testDispatchToClosestSuperclass() throws Exception {
+        OverloadDispatcherGenerator gen = new OverloadDispatcherGenerator(A.class);
+        OverloadDispatcher dispatcher = (OverloadDispatcher) gen.generate().newInstance();
+        A a = new A();
+        // input events
+        dispatcher.dispatchEvent(a, new Event1());
+        Assert.assertEquals(Event1.class, a.processedEventClass);
+        dispatcher.dispatchEvent(a, new Event1a());
+        Assert.assertEquals(Event1a.class, a.processedEventClass);
+        dispatcher.dispatchEvent(a, new Event2());
+        Assert.assertEquals(Event2.class, a.processedEventClass);
+        dispatcher.dispatchEvent(a, new Event() {
+        });
+        Assert.assertEquals(Event.class, a.processedEventClass);
+        dispatcher.dispatchEvent(a, new Event1a());
+        Assert.assertEquals(Event1a.class, a.processedEventClass);
+        dispatcher.dispatchEvent(a, new Event1());
+        Assert.assertEquals(Event1.class, a.processedEventClass);
+       
+        // trigger events
+        dispatcher.dispatchTrigger(a, new Event2());
+        Assert.assertEquals(Event2.class, a.processedTriggerEventClass);
+        Assert.assertTrue(a.processedTriggerThroughGenericMethod);
+        dispatcher.dispatchTrigger(a, new Event1());
+        Assert.assertEquals(Event1.class, a.processedTriggerEventClass);
+        Assert.assertFalse(a.processedTriggerThroughGenericMethod);
+    }
     
     @Test
     public void testDispatchWithSingleMethod() throws Exception {
@@ -96,4 +157,27 @@ public class OverloadDispatcherTest {
         dispatcher.dispatchEvent(d, new Event1());
         Assert.assertTrue(d.processedEvent1);
     }
+
+    @Test
+    public void testDispatchBatch() throws Exception {
+        OverloadDispatcherGenerator gen = new OverloadDispatcherGenerator(E.class);
+        Assert.assertEquals(Event1.class, gen.getBatchEventType());
+        OverloadDispatcher dispatcher = (OverloadDispatcher) gen.generate().newInstance();
+        E e = new E();
+        Event1 first = new Event1();
+        Event1a second = new Event1a();
+        dispatcher.dispatchEvents(e, Arrays.asList(first, second));
+        Assert.assertEquals(1, e.batches);
+        Assert.assertEquals(Arrays.asList(first, second), e.batched);
+        dispatcher.dispatchEvent(e, new Event2());
+        Assert.assertTrue(e.processedEvent2);
+
+        // without onEvents() batches are ignored
+        gen = new OverloadDispatcherGenerator(A.class);
+        Assert.assertNull(gen.getBatchEventType());
+        dispatcher = (OverloadDispatcher) gen.generate().newInstance();
+        A a = new A();
+        dispatcher.dispatchEvents(a, Collections.<Event> singletonList(new Event1()));
+        Assert.assertNull(a.processedEventClass);
+    }
 }
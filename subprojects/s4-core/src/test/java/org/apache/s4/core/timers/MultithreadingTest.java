@@ -45,7 +45,6 @@ public class MultithreadingTest {
     private static Logger logger = LoggerFactory.getLogger(MultithreadingTest.class);
 
     private static final String STREAM_NAME = "StreamName";
-    private static final String APP_NAME = "AppName";
 
     /*
      * We inject one event and fire one onTime() event, both should be synchronized (not running in parallel)
@@ -58,7 +57,8 @@ public class MultithreadingTest {
         app.init();
         app.start();
 
-        app.testStream.receiveEvent(new EventMessage(APP_NAME, STREAM_NAME, app.getSerDeser().serialize(new Event())));
+        app.testStream.receiveEvent(new EventMessage(app.getId(), STREAM_NAME, app.getSerDeser().serialize(
+                new Event())));
 
         /*
          * This must raise a timeout, since the onTime() event is blocked waiting for the onEvent() call to finish. If
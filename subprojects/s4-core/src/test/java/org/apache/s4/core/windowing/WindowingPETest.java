@@ -51,7 +51,6 @@ public class WindowingPETest {
     public static final List<Integer> allValues = new ArrayList<Integer>();
 
     private static final String STREAM_NAME = "stream1";
-    private static final String APP_NAME = "app1";
 
     @Test
     public void test() {
@@ -66,7 +65,7 @@ public class WindowingPETest {
         for (int i = 0; i < NB_EVENTS; i++) {
             Event e = new Event();
             e.put("value", Integer.class, i);
-            app.stream1.receiveEvent(new EventMessage(APP_NAME, STREAM_NAME, app.getSerDeser().serialize(e)));
+            app.stream1.receiveEvent(new EventMessage(app.getId(), STREAM_NAME, app.getSerDeser().serialize(e)));
         }
 
         try {
@@ -132,7 +132,7 @@ public class TestAutomaticDeployment extends ZkBasedTest {
 
         Event event = new Event();
         event.put("line", String.class, time1);
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
+        emitter.send(0, new EventMessage(-1, "inputStream", injector.getInstance(SerializerDeserializer.class)
                 .serialize(event)));
 
         // check event processed
@@ -49,7 +49,7 @@ public class WordCountApp extends App {
         // wordCounterPrototype.setTrigger(WordSeenEvent.class, 1, 0, null);
         wordCounterPrototype.setWordClassifierStream(wordCountStream);
         Stream<WordSeenEvent> wordSeenStream = createStream("words seen stream", new WordSeenKeyFinder(),
-                wordCounterPrototype);
+                wordCounterPrototype).setMaxBatchSize(16);
         WordSplitterPE wordSplitterPrototype = createPE(WordSplitterPE.class);
         wordSplitterPrototype.setWordSeenStream(wordSeenStream);
         Stream<Event> sentenceStream = createInputStream("inputStream", new SentenceKeyFinder(), wordSplitterPrototype);
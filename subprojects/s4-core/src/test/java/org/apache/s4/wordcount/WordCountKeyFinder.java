@@ -18,18 +18,16 @@
 
 package org.apache.s4.wordcount;
 
+import org.apache.s4.base.CompositeKey;
+import org.apache.s4.base.CompositeKeyFinder;
 
-import java.util.ArrayList;
-import java.util.List;
+public class WordCountKeyFinder extends CompositeKeyFinder<WordCountEvent> {
 
-import org.apache.s4.base.KeyFinder;
+    private static final CompositeKey CLASSIFIER = CompositeKey.of("classifier");
 
-public class WordCountKeyFinder implements KeyFinder<WordCountEvent> {
-
-    @SuppressWarnings("serial")
     @Override
-    public List<String> get(WordCountEvent event) {
-        return new ArrayList<String>(){{add("classifier");}};
+    public CompositeKey getKey(WordCountEvent event) {
+        return CLASSIFIER;
     }
 
 }
@@ -114,7 +114,7 @@ public class WordCountTest extends ZkBasedTest {
     public void injectSentence(String sentence) throws IOException {
         Event event = new Event();
         event.put("sentence", String.class, sentence);
-        emitter.send(0, new EventMessage("-1", "inputStream", injector.getInstance(SerializerDeserializer.class)
+        emitter.send(0, new EventMessage(-1, "inputStream", injector.getInstance(SerializerDeserializer.class)
                 .serialize(event)));
     }
 
@@ -18,6 +18,8 @@
 
 package org.apache.s4.wordcount;
 
+import java.util.Collection;
+
 import org.apache.s4.core.App;
 import org.apache.s4.core.ProcessingElement;
 import org.apache.s4.core.Stream;
@@ -38,6 +40,17 @@ public class WordCounterPE extends ProcessingElement {
     }
 
     public void onEvent(WordSeenEvent event) { 
+        countWord(event);
+    }
+
+    /* Receives the words seen by this instance in batches, see the words seen stream in WordCountApp. */
+    public void onEvents(Collection<WordSeenEvent> events) {
+        for (WordSeenEvent event : events) {
+            countWord(event);
+        }
+    }
+
+    private void countWord(WordSeenEvent event) {
         wordCounter++;
         System.out.println("seen word " + event.getWord());
         // NOTE: it seems the id is the key for now...     
@@ -24,6 +24,7 @@ import org.apache.s4.base.Event;
 import org.apache.s4.base.KeyFinder;
 import org.apache.s4.core.App;
 import org.apache.s4.core.Stream;
+import org.apache.s4.core.StreamQueueConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -95,6 +96,10 @@ class StreamBuilder<T extends Event> {
         stream.setName(type.getCanonicalName() + "," + keyDescriptor);
     }
 
+    void setQueueConfig(StreamQueueConfig queueConfig) {
+        stream.setQueueConfig(queueConfig);
+    }
+
     // Not all PE may have been created, we use PE Name as a placeholder. The PE prototypes will be assigned in the
     // buildApp() method in AppBuilder.
     void to(String[] peNames) {
@@ -18,6 +18,8 @@
 
 package org.apache.s4.example.counter;
 
+import java.util.Collection;
+
 import org.apache.s4.base.Event;
 import org.apache.s4.core.App;
 import org.apache.s4.core.ProcessingElement;
@@ -46,6 +48,11 @@ public class CounterPE extends ProcessingElement {
         counter += 1;
     }
 
+    public void onEvents(Collection<Event> events) {
+
+        counter += events.size();
+    }
+
     public void onTrigger(Event event) {
 
         CountEvent countEvent = new CountEvent(getId(), counter);
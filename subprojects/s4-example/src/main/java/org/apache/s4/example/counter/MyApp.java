@@ -84,11 +84,14 @@ final public class MyApp extends App {
         ageCountPE.setCountStream(ageCountStream);
 
         /* Streams that output user events keyed on user, gender, and age. */
-        Stream<UserEvent> userStream = createStream("User Stream", new UserIDKeyFinder(), userCountPE);
+        Stream<UserEvent> userStream = createStream("User Stream", new UserIDKeyFinder(), userCountPE)
+                .setMaxBatchSize(64);
 
-        Stream<UserEvent> genderStream = createStream("Gender Stream", new GenderKeyFinder(), genderCountPE);
+        Stream<UserEvent> genderStream = createStream("Gender Stream", new GenderKeyFinder(), genderCountPE)
+                .setMaxBatchSize(64);
 
-        Stream<UserEvent> ageStream = createStream("Age Stream", new AgeKeyFinder(), ageCountPE);
+        Stream<UserEvent> ageStream = createStream("Age Stream", new AgeKeyFinder(), ageCountPE)
+                .setMaxBatchSize(64);
 
         generateUserEventPE = createPE(GenerateUserEventPE.class);
         generateUserEventPE.setStreams(userStream, genderStream, ageStream);
@@ -18,19 +18,14 @@
 
 package org.apache.s4.example.counter;
 
-import java.util.ArrayList;
-import java.util.List;
+import org.apache.s4.base.CompositeKey;
+import org.apache.s4.base.CompositeKeyFinder;
 
-import org.apache.s4.base.KeyFinder;
-public class UserIDKeyFinder implements KeyFinder<UserEvent> {
+public class UserIDKeyFinder extends CompositeKeyFinder<UserEvent> {
 
-    public List<String> get(UserEvent event) {
+    public CompositeKey getKey(UserEvent event) {
 
-        List<String> results = new ArrayList<String>();
-
-        /* Retrieve the user ID and add it to the list. */
-        results.add(event.getUserID());
-
-        return results;
+        /* Retrieve the user ID. */
+        return CompositeKey.of(event.getUserID());
     }
 }
@@ -87,6 +87,7 @@ public class Deploy extends S4ArgsBase {
                 params.add("appName=" + deployArgs.appName);
                 ExecGradle.exec(deployArgs.gradleBuildFile, "installS4R", params.toArray(new String[] {}));
                 File tmpS4R = new File(tmpAppsDir.getAbsolutePath() + "/" + deployArgs.appName + ".s4r");
+                DispatcherPregenerator.addTo(tmpS4R);
                 if (!Strings.isNullOrEmpty(deployArgs.generatedS4R)) {
                     logger.info("Copying generated S4R to [{}]", deployArgs.generatedS4R);
                     s4rToDeploy = new File(deployArgs.generatedS4R);
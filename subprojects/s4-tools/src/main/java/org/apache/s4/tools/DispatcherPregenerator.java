@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+
+import org.apache.s4.base.util.S4RLoader;
+import org.apache.s4.base.util.S4RLoaderFactory;
+import org.apache.s4.core.ProcessingElement;
+import org.apache.s4.core.gen.OverloadDispatcherGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+/**
+ * Adds the overload dispatchers of the PE classes of an application to its S4R archive, so that nodes load them
+ * instead of generating them when the application starts. See {@link OverloadDispatcherGenerator#generate()}.
+ * <p>
+ * The dispatchers are stored in the {@value #DISPATCHERS_JAR} jar of the archive, which is on the application
+ * classpath. Dispatchers that do not match the PE classes deployed with them are ignored by the nodes.
+ */
+public class DispatcherPregenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(DispatcherPregenerator.class);
+
+    static final String DISPATCHERS_JAR = "app/s4-dispatchers.jar";
+
+    /**
+     * Generates the dispatchers of the PE classes found in the application jars of an S4R archive and adds them to
+     * the archive, replacing previously generated dispatchers.
+     * 
+     * @param s4r
+     *            the S4R archive, updated in place
+     * @return the number of generated dispatchers
+     */
+    public static int addTo(File s4r) throws IOException {
+        ByteArrayOutputStream dispatchers = new ByteArrayOutputStream();
+        int count;
+        S4RLoader loader = new S4RLoaderFactory().createS4RLoader(s4r.getAbsolutePath());
+        try {
+            count = generateDispatchers(s4r, loader, dispatchers);
+        } finally {
+            /* closes the jar files opened by the loader */
+            loader.close();
+        }
+
+        replaceDispatchers(s4r, dispatchers.toByteArray());
+        return count;
+    }
+
+    /* Writes a jar with the dispatchers of the PE classes of the archive. */
+    private static int generateDispatchers(File s4r, S4RLoader loader, ByteArrayOutputStream dispatchers)
+            throws IOException {
+        JarOutputStream dispatchersJar = new JarOutputStream(dispatchers);
+        int count = 0;
+        for (String className : appClassNames(s4r)) {
+            Class<?> clazz;
+            try {
+                clazz = Class.forName(className, false, loader);
+            } catch (ClassNotFoundException e) {
+                continue;
+            } catch (LinkageError e) {
+                logger.warn("Cannot load class [{}], skipping it: {}", className, e.getMessage());
+                continue;
+            }
+            if (!ProcessingElement.class.isAssignableFrom(clazz) || Modifier.isAbstract(clazz.getModifiers())) {
+                continue;
+            }
+            OverloadDispatcherGenerator generator = new OverloadDispatcherGenerator(clazz);
+            dispatchersJar.putNextEntry(new JarEntry(generator.getDispatcherClassName() + ".class"));
+            dispatchersJar.write(generator.generateBytecode());
+            dispatchersJar.closeEntry();
+            logger.info("Generated overload dispatcher [{}] for PE class [{}]", generator.getDispatcherClassName(),
+                    className);
+            count++;
+        }
+        dispatchersJar.close();
+        return count;
+    }
+
+    /* Names of the classes in the jars of the app directory of the archive. */
+    private static List<String> appClassNames(File s4r) throws IOException {
+        List<String> classNames = new ArrayList<String>();
+        JarFile archive = new JarFile(s4r);
+        try {
+            Enumeration<JarEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.getName().startsWith("app/") || !entry.getName().endsWith(".jar")
+                        || entry.getName().equals(DISPATCHERS_JAR)) {
+                    continue;
+                }
+                JarInputStream appJar = new JarInputStream(archive.getInputStream(entry));
+                try {
+                    for (JarEntry classEntry = appJar.getNextJarEntry(); classEntry != null; classEntry = appJar
+                            .getNextJarEntry()) {
+                        String name = classEntry.getName();
+                        if (name.endsWith(".class")) {
+                            classNames.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                        }
+                    }
+                } finally {
+                    Closeables.closeQuietly(appJar);
+                }
+            }
+        } finally {
+            archive.close();
+        }
+        return classNames;
+    }
+
+    /* Rewrites the archive with the given dispatchers jar. */
+    private static void replaceDispatchers(File s4r, byte[] dispatchersJar) throws IOException {
+        File updated = new File(s4r.getParentFile(), s4r.getName() + ".tmp");
+        JarFile archive = new JarFile(s4r);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(updated));
+        try {
+            Enumeration<JarEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (entry.getName().equals(DISPATCHERS_JAR)) {
+                    continue;
+                }
+                out.putNextEntry(new JarEntry(entry.getName()));
+                InputStream in = archive.getInputStream(entry);
+                try {
+                    ByteStreams.copy(in, out);
+                } finally {
+                    Closeables.closeQuietly(in);
+                }
+                out.closeEntry();
+            }
+            out.putNextEntry(new JarEntry(DISPATCHERS_JAR));
+            out.write(dispatchersJar);
+            out.closeEntry();
+        } finally {
+            Closeables.closeQuietly(out);
+            archive.close();
+        }
+        Files.move(updated, s4r);
+    }
+}
@@ -11,6 +11,7 @@ import org.apache.helix.PropertyKey.Builder;
 import org.apache.helix.model.IdealState;
 import org.apache.s4.base.Event;
 import org.apache.s4.base.EventMessage;
+import org.apache.s4.base.EventSchema;
 import org.apache.s4.comm.serialize.KryoSerDeser;
 import org.apache.s4.comm.tcp.TCPEmitter;
 import org.apache.s4.comm.topology.ClusterFromHelix;
@@ -43,15 +44,17 @@ public class GenericEventAdapter
       IdealState idealstate = helixDataAccessor.getProperty(keyBuilder
           .idealStates(adapterArgs.streamName));
       TCPEmitter emitter = new TCPEmitter(cluster, 1000);
+      EventSchema schema = new EventSchema.Builder().add("name", String.class)
+          .build();
+      KryoSerDeser serializer = new KryoSerDeser();
       while (true)
       {
         int partitionId = ((int) (Math.random() * 1000))
             % idealstate.getNumPartitions();
-        Event event = new Event();
+        Event event = new Event(schema);
         event.put("name", String.class,
             "Hello world to partition:" + partitionId);
-        KryoSerDeser serializer = new KryoSerDeser();
-        EventMessage message = new EventMessage("-1", adapterArgs.streamName,
+        EventMessage message = new EventMessage(-1, adapterArgs.streamName,
             serializer.serialize(event));
         System.out.println("Sending event to partition:"+partitionId);
         emitter.send(partitionId, message);
@@ -40,8 +40,14 @@ public class Package extends S4ArgsBase {
             // prepare gradle -P parameters, including passed gradle opts
             params.add("appClass=" + packageArgs.appClass);
             params.add("appName=" + packageArgs.appName.get(0));
+            params.add("appsDir=" + packageArgs.appsDir.getAbsolutePath());
             ExecGradle.exec(packageArgs.gradleBuildFile, "installS4R", params.toArray(new String[] {}));
 
+            // pre-generate the overload dispatchers of the PEs so that nodes don't generate them at startup
+            if (packageArgs.generateDispatchers) {
+                DispatcherPregenerator.addTo(new File(packageArgs.appsDir, packageArgs.appName.get(0) + ".s4r"));
+            }
+
             // Explicitly shutdown the JVM since Gradle leaves non-daemon threads running that delay the termination
             System.exit(0);
         } catch (Exception e) {
@@ -61,5 +67,11 @@ public class Package extends S4ArgsBase {
         @Parameter(names = { "-a", "-appClass" }, description = "Full class name of the application class (extending App or AdapterApp)", required = false)
         String appClass = "";
 
+        @Parameter(names = { "-appsDir" }, description = "Directory where the s4r is created", required = false, converter = FileConverter.class)
+        File appsDir = new File("/tmp/appsDir");
+
+        @Parameter(names = { "-generateDispatchers" }, description = "Add pre-generated overload dispatchers of the PE classes to the s4r", required = false, arity = 1)
+        boolean generateDispatchers = true;
+
     }
 }
@@ -0,0 +1,196 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.s4.tools;
+
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.CodeSource;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.s4.base.Event;
+import org.apache.s4.base.util.S4RLoader;
+import org.apache.s4.base.util.S4RLoaderFactory;
+import org.apache.s4.core.ProcessingElement;
+import org.apache.s4.core.Watermark;
+import org.apache.s4.core.gen.OverloadDispatcherGenerator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+public class DispatcherPregeneratorTest {
+
+    private static final String PE_CLASS = "pregen/TestPE";
+
+    private File tmpDir;
+    private S4RLoader loader;
+
+    @Before
+    public void createTmpDir() {
+        tmpDir = Files.createTempDir();
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        if (loader != null) {
+            loader.close();
+        }
+        FileUtils.deleteDirectory(tmpDir);
+    }
+
+    @Test
+    public void testPregeneratedDispatcherIsLoadedFromS4R() throws Exception {
+        File s4r = s4r("app.s4r", peClass(false));
+        Assert.assertEquals(1, DispatcherPregenerator.addTo(s4r));
+        JarFile archive = new JarFile(s4r);
+        try {
+            Assert.assertNotNull(archive.getEntry(DispatcherPregenerator.DISPATCHERS_JAR));
+            Assert.assertNotNull(archive.getEntry("app/app.jar"));
+        } finally {
+            archive.close();
+        }
+
+        // running it again replaces the dispatchers
+        Assert.assertEquals(1, DispatcherPregenerator.addTo(s4r));
+
+        Assert.assertTrue(isPregenerated(dispatcherFor(s4r)));
+    }
+
+    @Test
+    public void testDispatcherIsGeneratedWhenNotPregenerated() throws Exception {
+        Assert.assertFalse(isPregenerated(dispatcherFor(s4r("app.s4r", peClass(false)))));
+    }
+
+    @Test
+    public void testStaleDispatcherIsIgnored() throws Exception {
+        File s4r = s4r("old.s4r", peClass(false));
+        DispatcherPregenerator.addTo(s4r);
+
+        // the PE gained an overload since the dispatchers were generated
+        File updated = s4r("new.s4r", peClass(true), dispatchersJar(s4r));
+        Assert.assertFalse(isPregenerated(dispatcherFor(updated)));
+    }
+
+    private Class<?> dispatcherFor(File s4r) throws ClassNotFoundException {
+        loader = new S4RLoaderFactory().createS4RLoader(s4r.getAbsolutePath());
+        Class<?> peClass = loader.loadClass(PE_CLASS.replace('/', '.'));
+        Assert.assertSame(loader, peClass.getClassLoader());
+        OverloadDispatcherGenerator generator = new OverloadDispatcherGenerator(peClass);
+        Class<?> dispatcher = generator.generate();
+        Assert.assertEquals(generator.getDispatcherClassName(), dispatcher.getName());
+        return dispatcher;
+    }
+
+    /* Classes generated at runtime are defined without a code source location. */
+    private static boolean isPregenerated(Class<?> dispatcher) {
+        CodeSource codeSource = dispatcher.getProtectionDomain().getCodeSource();
+        return codeSource != null && codeSource.getLocation() != null
+                && codeSource.getLocation().getPath().endsWith("s4-dispatchers.jar");
+    }
+
+    private static byte[] dispatchersJar(File s4r) throws IOException {
+        JarFile archive = new JarFile(s4r);
+        try {
+            return ByteStreams.toByteArray(archive.getInputStream(archive
+                    .getEntry(DispatcherPregenerator.DISPATCHERS_JAR)));
+        } finally {
+            archive.close();
+        }
+    }
+
+    /* An S4R with the PE class in app/app.jar, and optionally a dispatchers jar. */
+    private File s4r(String name, byte[] peClass, byte[]... dispatchersJar) throws IOException {
+        ByteArrayOutputStream appJar = new ByteArrayOutputStream();
+        JarOutputStream app = new JarOutputStream(appJar);
+        app.putNextEntry(new JarEntry(PE_CLASS + ".class"));
+        app.write(peClass);
+        app.closeEntry();
+        app.close();
+
+        File s4r = new File(tmpDir, name);
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(s4r));
+        try {
+            out.putNextEntry(new JarEntry("app/app.jar"));
+            out.write(appJar.toByteArray());
+            out.closeEntry();
+            if (dispatchersJar.length > 0) {
+                out.putNextEntry(new JarEntry(DispatcherPregenerator.DISPATCHERS_JAR));
+                out.write(dispatchersJar[0]);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return s4r;
+    }
+
+    /*
+     * A PE class that only exists in the S4R, so that it is loaded by the S4R loader: onEvent(Event), plus
+     * onEvent(Watermark) for the updated version.
+     */
+    private static byte[] peClass(boolean withWatermarkOverload) {
+        String superName = Type.getInternalName(ProcessingElement.class);
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC + ACC_SUPER, PE_CLASS, null, superName, null);
+
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V");
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        emptyMethod(cw, ACC_PROTECTED, "onCreate", "()V");
+        emptyMethod(cw, ACC_PROTECTED, "onRemove", "()V");
+        emptyMethod(cw, ACC_PUBLIC, "onEvent", "(" + Type.getDescriptor(Event.class) + ")V");
+        if (withWatermarkOverload) {
+            emptyMethod(cw, ACC_PUBLIC, "onEvent", "(" + Type.getDescriptor(Watermark.class) + ")V");
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void emptyMethod(ClassWriter cw, int access, String name, String descriptor) {
+        MethodVisitor mv = cw.visitMethod(access, name, descriptor, null, null);
+        mv.visitCode();
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+}
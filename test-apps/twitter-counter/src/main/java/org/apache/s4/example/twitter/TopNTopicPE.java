@@ -28,18 +28,20 @@ import java.util.TreeSet;
 
 import org.apache.s4.core.App;
 import org.apache.s4.core.ProcessingElement;
+import org.apache.s4.core.ft.ChangeTrackingMap;
+import org.apache.s4.core.ft.DeltaCheckpointable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 
-public class TopNTopicPE extends ProcessingElement {
+public class TopNTopicPE extends ProcessingElement implements DeltaCheckpointable {
 
     static Logger logger = LoggerFactory.getLogger(TopNTopicPE.class);
-    Map<String, Integer> countedTopics = Maps.newHashMap();
+    // only the topics updated since the last checkpoint are checkpointed
+    ChangeTrackingMap<String, Integer> countedTopics = new ChangeTrackingMap<String, Integer>();
 
     public TopNTopicPE() {
         // required for checkpointing. Requirement to be lifted in 0.6
@@ -81,6 +83,17 @@ public class TopNTopicPE extends ProcessingElement {
         }
     }
 
+    @Override
+    public Object getStateDelta() {
+        return countedTopics.getDelta();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void applyStateDelta(Object delta) {
+        countedTopics.applyDelta((ChangeTrackingMap.Delta<String, Integer>) delta);
+    }
+
     @Override
     protected void onCreate() {
         // TODO Auto-generated method stub
@@ -41,9 +41,9 @@ public class TwitterCounterApp extends App {
 
             TopNTopicPE topNTopicPE = createPE(TopNTopicPE.class);
             topNTopicPE.setTimerInterval(10, TimeUnit.SECONDS);
-            // we checkpoint this PE every 20s
+            // we checkpoint the changes of this PE every 20s, and the whole PE every 10 checkpoints
             topNTopicPE.setCheckpointingConfig(new CheckpointingConfig.Builder(CheckpointingMode.TIME).frequency(20)
-                    .timeUnit(TimeUnit.SECONDS).build());
+                    .timeUnit(TimeUnit.SECONDS).snapshotInterval(10).build());
             @SuppressWarnings("unchecked")
             Stream<TopicEvent> aggregatedTopicStream = createStream("AggregatedTopicSeen", new KeyFinder<TopicEvent>() {
 